@@ -24,12 +24,17 @@ package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller;
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.common.ResourceContentAggregationServiceBase;
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.defaultstrategies.wholeresourcebased.DocumentReferecenDefaultResourceBasedAggregationService;
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common.ResourceSoTConduitController;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.searches.SearchNameEnum;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.util.Comparator;
+import java.util.Date;
 
 @ApplicationScoped
 public class DocumentReferenceSoTConduitController extends ResourceSoTConduitController {
@@ -51,5 +56,15 @@ public class DocumentReferenceSoTConduitController extends ResourceSoTConduitCon
         return(aggregationService);
     }
 
+    @Override
+    protected Comparator<Resource> specifySearchResultOrdering(SearchNameEnum searchName){
+        if(searchName == SearchNameEnum.DOCUMENT_REFERENCE_DATE_AND_TYPE){
+            Comparator<Resource> dateOrdering = Comparator.comparing(
+                    resource -> ((DocumentReference)resource).getDate(),
+                    Comparator.nullsLast(Comparator.<Date>naturalOrder()));
+            return(dateOrdering);
+        }
+        return(null);
+    }
 
 }
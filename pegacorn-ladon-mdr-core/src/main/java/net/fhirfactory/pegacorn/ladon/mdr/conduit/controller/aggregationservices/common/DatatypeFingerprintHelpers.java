@@ -0,0 +1,227 @@
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.common;
+
+import org.hl7.fhir.r4.model.*;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.util.List;
+
+/**
+ * Computes 64-bit structural fingerprints (FNV-1a) for the FHIR datatypes that the aggregation services compare
+ * most often. Two instances that are equalsDeep() (or equalsShallow(), for HumanName) always produce the same
+ * fingerprint, so a fingerprint mismatch is a definitive "not equal" - the deep comparison is only performed when
+ * fingerprints collide.
+ *
+ * The HAPI datatypes are mutable, so fingerprints are NOT memoised against the instance. Callers that compare one
+ * value against many (e.g. a constant CodeableConcept against every Identifier type) should compute the
+ * fingerprint once and use the fingerprint-accepting variants.
+ */
+@ApplicationScoped
+public class DatatypeFingerprintHelpers {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long NULL_MARKER = 0x9e3779b97f4a7c15L;
+
+    //
+    // Fingerprints
+    //
+
+    public long fingerprint(Coding coding){
+        if(coding == null || coding.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, coding.getSystem());
+        hash = mix(hash, coding.getVersion());
+        hash = mix(hash, coding.getCode());
+        hash = mix(hash, coding.getDisplay());
+        hash = mix(hash, coding.hasUserSelected() ? Boolean.toString(coding.getUserSelected()) : null);
+        return(hash);
+    }
+
+    public long fingerprint(CodeableConcept codeableConcept){
+        if(codeableConcept == null || codeableConcept.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for(Coding currentCoding: codeableConcept.getCoding()){
+            hash = mix(hash, fingerprint(currentCoding));
+        }
+        hash = mix(hash, codeableConcept.getText());
+        return(hash);
+    }
+
+    public long fingerprint(Period period){
+        if(period == null || period.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, period.hasStart() ? period.getStartElement().getValueAsString() : null);
+        hash = mix(hash, period.hasEnd() ? period.getEndElement().getValueAsString() : null);
+        return(hash);
+    }
+
+    public long fingerprint(Identifier identifier){
+        if(identifier == null || identifier.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, identifier.hasUse() ? identifier.getUse().toCode() : null);
+        hash = mix(hash, fingerprint(identifier.hasType() ? identifier.getType() : null));
+        hash = mix(hash, identifier.getSystem());
+        hash = mix(hash, identifier.getValue());
+        hash = mix(hash, fingerprint(identifier.hasPeriod() ? identifier.getPeriod() : null));
+        // The assigner Reference is deliberately left out (it can itself carry an Identifier); it is still
+        // covered by the equalsDeep() fallback.
+        return(hash);
+    }
+
+    public long fingerprint(Reference reference){
+        if(reference == null || reference.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, reference.getReference());
+        hash = mix(hash, reference.getType());
+        hash = mix(hash, fingerprint(reference.hasIdentifier() ? reference.getIdentifier() : null));
+        hash = mix(hash, reference.getDisplay());
+        return(hash);
+    }
+
+    /**
+     * Fingerprints only the primitive properties of the HumanName (use, text, family, given, prefix, suffix) - i.e.
+     * the same content as HumanName.equalsShallow().
+     */
+    public long fingerprint(HumanName humanName){
+        if(humanName == null || humanName.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, humanName.hasUse() ? humanName.getUse().toCode() : null);
+        hash = mix(hash, humanName.getText());
+        hash = mix(hash, humanName.getFamily());
+        hash = mixStrings(hash, humanName.getGiven());
+        hash = mixStrings(hash, humanName.getPrefix());
+        hash = mixStrings(hash, humanName.getSuffix());
+        return(hash);
+    }
+
+    public long fingerprint(ContactPoint contactPoint){
+        if(contactPoint == null || contactPoint.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, contactPoint.hasSystem() ? contactPoint.getSystem().toCode() : null);
+        hash = mix(hash, contactPoint.getValue());
+        hash = mix(hash, contactPoint.hasUse() ? contactPoint.getUse().toCode() : null);
+        hash = mix(hash, contactPoint.hasRank() ? Integer.toString(contactPoint.getRank()) : null);
+        hash = mix(hash, fingerprint(contactPoint.hasPeriod() ? contactPoint.getPeriod() : null));
+        return(hash);
+    }
+
+    public long fingerprint(Address address){
+        if(address == null || address.isEmpty()){
+            return(NULL_MARKER);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, address.hasUse() ? address.getUse().toCode() : null);
+        hash = mix(hash, address.hasType() ? address.getType().toCode() : null);
+        hash = mix(hash, address.getText());
+        hash = mixStrings(hash, address.getLine());
+        hash = mix(hash, address.getCity());
+        hash = mix(hash, address.getDistrict());
+        hash = mix(hash, address.getState());
+        hash = mix(hash, address.getPostalCode());
+        hash = mix(hash, address.getCountry());
+        hash = mix(hash, fingerprint(address.hasPeriod() ? address.getPeriod() : null));
+        return(hash);
+    }
+
+    //
+    // Equality (fingerprint first, deep comparison only on collision)
+    //
+
+    public boolean sameCodeableConcept(CodeableConcept first, CodeableConcept second){
+        return(sameCodeableConcept(first, fingerprint(first), second));
+    }
+
+    public boolean sameCodeableConcept(CodeableConcept first, long firstFingerprint, CodeableConcept second){
+        if(firstFingerprint != fingerprint(second)){
+            return(false);
+        }
+        return(Base.compareDeep(first, second, true));
+    }
+
+    public boolean sameIdentifier(Identifier first, Identifier second){
+        if(fingerprint(first) != fingerprint(second)){
+            return(false);
+        }
+        return(Base.compareDeep(first, second, true));
+    }
+
+    public boolean sameReference(Reference first, Reference second){
+        if(fingerprint(first) != fingerprint(second)){
+            return(false);
+        }
+        return(Base.compareDeep(first, second, true));
+    }
+
+    public boolean sameContactPoint(ContactPoint first, ContactPoint second){
+        if(fingerprint(first) != fingerprint(second)){
+            return(false);
+        }
+        return(Base.compareDeep(first, second, true));
+    }
+
+    public boolean sameAddress(Address first, Address second){
+        if(fingerprint(first) != fingerprint(second)){
+            return(false);
+        }
+        return(Base.compareDeep(first, second, true));
+    }
+
+    public boolean sameHumanNameShallow(HumanName first, HumanName second){
+        if(fingerprint(first) != fingerprint(second)){
+            return(false);
+        }
+        if(first == null || second == null){
+            return(first == second);
+        }
+        return(first.equalsShallow(second));
+    }
+
+    //
+    // Helper Methods
+    //
+
+    private long mixStrings(long hash, List<StringType> values){
+        long mixedHash = mix(hash, (long)values.size());
+        for(StringType currentValue: values){
+            mixedHash = mix(mixedHash, currentValue.getValue());
+        }
+        return(mixedHash);
+    }
+
+    private long mix(long hash, String value){
+        if(value == null){
+            return(mix(hash, NULL_MARKER));
+        }
+        long mixedHash = hash;
+        for(int index = 0; index < value.length(); index += 1){
+            mixedHash ^= value.charAt(index);
+            mixedHash *= FNV_PRIME;
+        }
+        // Field separator, so that ("ab","c") and ("a","bc") do not collide
+        mixedHash ^= 0xff;
+        mixedHash *= FNV_PRIME;
+        return(mixedHash);
+    }
+
+    private long mix(long hash, long value){
+        long mixedHash = hash;
+        for(int shift = 0; shift < 64; shift += 8){
+            mixedHash ^= (value >>> shift) & 0xff;
+            mixedHash *= FNV_PRIME;
+        }
+        return(mixedHash);
+    }
+}
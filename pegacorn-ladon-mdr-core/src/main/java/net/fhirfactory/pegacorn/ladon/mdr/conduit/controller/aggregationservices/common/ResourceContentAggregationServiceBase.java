@@ -3,6 +3,7 @@ package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservice
 import net.fhirfactory.pegacorn.datasets.fhir.r4.codesystems.PegacornIdentifierCodeEnum;
 import net.fhirfactory.pegacorn.datasets.fhir.r4.codesystems.PegacornIdentifierCodeSystemFactory;
 import net.fhirfactory.pegacorn.datasets.fhir.r4.common.SourceOfTruthRIDIdentifierBuilder;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.summary.SearchSummaryModeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.businesskey.VirtualDBKeyManagement;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.*;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBMethodOutcome;
@@ -33,12 +34,17 @@ public abstract class ResourceContentAggregationServiceBase {
     @Inject
     private FHIRContextUtility fhirContextUtility;
 
+    @Inject
+    private DatatypeFingerprintHelpers fingerprintHelpers;
+
     protected FHIRContextUtility getFhirContextUtility(){
         return(fhirContextUtility);
     }
 
     protected VirtualDBKeyManagement getIdentifierPicker(){return(VirtualDBKeyHelpers);}
 
+    protected DatatypeFingerprintHelpers getFingerprintHelpers(){return(fingerprintHelpers);}
+
     public PegacornIdentifierCodeSystemFactory getPegacornIdentifierCodeSystemFactory() {
         return pegacornIdentifierCodeSystemFactory;
     }
@@ -67,6 +73,12 @@ public abstract class ResourceContentAggregationServiceBase {
     // Search Result Aggregation
     //
     public abstract VirtualDBMethodOutcome aggregateSearchResultSet(List<ResourceSoTConduitSearchResponseElement> responseSet);
+    public abstract VirtualDBMethodOutcome aggregateSearchSummary(SearchSummaryModeEnum summaryMode, int matchCount);
+    /**
+     * @return The keys on which aggregateSearchResultSet() groups the search result (returned within the searchResponse)
+     * with the other results describing the same entity - two results sharing any key being the same entity
+     */
+    public abstract List<String> buildSearchResultGroupingKeys(ResourceSoTConduitSearchResponseElement searchResponse, Resource resource);
 
     protected void mapIdToIdentifier(ResourceSoTConduitActionResponse actionResponse){
         List<Identifier> identifierList = getIdentifiers(actionResponse);
@@ -74,8 +86,9 @@ public abstract class ResourceContentAggregationServiceBase {
             return;
         }
         CodeableConcept sotRIDCode = pegacornIdentifierCodeSystemFactory.buildIdentifierType(PegacornIdentifierCodeEnum.IDENTIFIER_CODE_SOURCE_OF_TRUTH_RECORD_ID);
+        long sotRIDCodeFingerprint = fingerprintHelpers.fingerprint(sotRIDCode);
         for(Identifier currentIdentifier: identifierList){
-            if(currentIdentifier.getType().equalsDeep(sotRIDCode)){
+            if(fingerprintHelpers.sameCodeableConcept(sotRIDCode, sotRIDCodeFingerprint, currentIdentifier.getType())){
                 return;
             }
         }
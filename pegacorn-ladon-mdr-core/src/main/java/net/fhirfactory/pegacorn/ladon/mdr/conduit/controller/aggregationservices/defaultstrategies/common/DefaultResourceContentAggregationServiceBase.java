@@ -22,19 +22,35 @@
 package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.defaultstrategies.common;
 
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.common.ResourceContentAggregationServiceBase;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.summary.SearchSummaryModeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.*;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBActionStatusEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBActionTypeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBMethodOutcome;
+import net.fhirfactory.pegacorn.petasos.model.itops.PegacornFunctionStatusEnum;
 import org.hl7.fhir.r4.model.*;
 
+import javax.inject.Inject;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
 public abstract class DefaultResourceContentAggregationServiceBase extends ResourceContentAggregationServiceBase {
 
+    @Inject
+    private ResourceSoTConduitActionResponseFactory actionResponseFactory;
 
+    protected ResourceSoTConduitActionResponseFactory getActionResponseFactory(){
+        return(actionResponseFactory);
+    }
+
+    //
+    // Strategy Specific Methods
+    //
+
+    protected abstract VirtualDBMethodOutcome defaultActionOutcomeAggregationService(VirtualDBActionTypeEnum action, List<ResourceSoTConduitActionResponse> outcomeList);
 
     //
     // Shared Methods
@@ -119,24 +135,263 @@ public abstract class DefaultResourceContentAggregationServiceBase extends Resou
         }
     }
 
+    protected VirtualDBMethodOutcome defaultSearchOutcomeAggregationService(List<ResourceSoTConduitSearchResponseElement> searchOutcomeList){
+        if(searchOutcomeList == null){
+            VirtualDBMethodOutcome methodOutcome = generateBadAttributeOutcome("defaultSearchOutcomeAggregationService()", VirtualDBActionTypeEnum.SEARCH, "searchOutcomeList is null");
+            return(methodOutcome);
+        }
+        if(searchOutcomeList.isEmpty() ){
+            VirtualDBMethodOutcome methodOutcome = generateBadAttributeOutcome("defaultSearchOutcomeAggregationService()", VirtualDBActionTypeEnum.SEARCH, "searchOutcomeList is empty, no conduit has provided feedback/responses");
+            return(methodOutcome);
+        }
+        Bundle searchResult = assembleSearchResultBundle(searchOutcomeList);
+        VirtualDBMethodOutcome searchOutcome = new VirtualDBMethodOutcome();
+        searchOutcome.setCreated(false);
+        searchOutcome.setCausalAction(VirtualDBActionTypeEnum.SEARCH);
+        searchOutcome.setStatusEnum(VirtualDBActionStatusEnum.SEARCH_FINISHED);
+        CodeableConcept details = new CodeableConcept();
+        Coding detailsCoding = new Coding();
+        detailsCoding.setSystem("https://www.hl7.org/fhir/codesystem-operation-outcome.html");
+        detailsCoding.setCode("MSG_SEARCH_SUCCESFUL");
+        String text = "Search completed, found " + searchResult.getTotal() + " matches";
+        detailsCoding.setDisplay(text);
+        details.setText(text);
+        details.addCoding(detailsCoding);
+        OperationOutcome opOutcome = new OperationOutcome();
+        OperationOutcome.OperationOutcomeIssueComponent newOutcomeComponent = new OperationOutcome.OperationOutcomeIssueComponent();
+        newOutcomeComponent.setDetails(details);
+        newOutcomeComponent.setCode(OperationOutcome.IssueType.INFORMATIONAL);
+        newOutcomeComponent.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
+        opOutcome.addIssue(newOutcomeComponent);
+        searchOutcome.setOperationOutcome(opOutcome);
+        searchOutcome.setResource(searchResult);
+        return(searchOutcome);
+    }
+
+    /**
+     * Builds the outcome of a summary (count/exists) search: a SEARCHSET Bundle with no entries, whose total is the
+     * number of matches (COUNT) or 0/1 for "no matches"/"at least one match" (EXISTS).
+     */
+    @Override
+    public VirtualDBMethodOutcome aggregateSearchSummary(SearchSummaryModeEnum summaryMode, int matchCount){
+        Bundle searchResult = new Bundle();
+        searchResult.setType(Bundle.BundleType.SEARCHSET);
+        searchResult.setTimestamp(Date.from(Instant.now()));
+        String text;
+        if(summaryMode == SearchSummaryModeEnum.EXISTS){
+            searchResult.setTotal(matchCount > 0 ? 1 : 0);
+            text = matchCount > 0 ? "Search completed, matches exist" : "Search completed, no matches exist";
+        } else {
+            searchResult.setTotal(matchCount);
+            text = "Search completed, counted " + matchCount + " matches";
+        }
+        VirtualDBMethodOutcome searchOutcome = new VirtualDBMethodOutcome();
+        searchOutcome.setCreated(false);
+        searchOutcome.setCausalAction(VirtualDBActionTypeEnum.SEARCH);
+        searchOutcome.setStatusEnum(VirtualDBActionStatusEnum.SEARCH_FINISHED);
+        CodeableConcept details = new CodeableConcept();
+        Coding detailsCoding = new Coding();
+        detailsCoding.setSystem("https://www.hl7.org/fhir/codesystem-operation-outcome.html");
+        detailsCoding.setCode("MSG_SEARCH_SUCCESFUL");
+        detailsCoding.setDisplay(text);
+        details.setText(text);
+        details.addCoding(detailsCoding);
+        OperationOutcome opOutcome = new OperationOutcome();
+        OperationOutcome.OperationOutcomeIssueComponent newOutcomeComponent = new OperationOutcome.OperationOutcomeIssueComponent();
+        newOutcomeComponent.setDetails(details);
+        newOutcomeComponent.setCode(OperationOutcome.IssueType.INFORMATIONAL);
+        newOutcomeComponent.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
+        opOutcome.addIssue(newOutcomeComponent);
+        searchOutcome.setOperationOutcome(opOutcome);
+        searchOutcome.setResource(searchResult);
+        return(searchOutcome);
+    }
+
     protected Bundle assembleSearchResultBundle(List<ResourceSoTConduitSearchResponseElement> searchOutcomeList){
         Bundle searchResultBundle = new Bundle();
         searchResultBundle.setType(Bundle.BundleType.SEARCHSET);
         searchResultBundle.setTimestamp(Date.from(Instant.now()));
+        List<Resource> aggregatedResourceList = groupAndAggregateSearchResults(searchOutcomeList);
         int entryCount = 0;
+        for(Resource resource: aggregatedResourceList){
+            Bundle.BundleEntryComponent newBundleEntry = new Bundle.BundleEntryComponent();
+            newBundleEntry.setResource(resource);
+            Bundle.BundleEntrySearchComponent searchComponent = new Bundle.BundleEntrySearchComponent();
+            searchComponent.setMode(Bundle.SearchEntryMode.MATCH);
+            searchComponent.setScore(1);
+            newBundleEntry.setSearch(searchComponent);
+            searchResultBundle.addEntry(newBundleEntry);
+            entryCount += 1;
+        }
+        searchResultBundle.setTotal(entryCount);
+        return(searchResultBundle);
+    }
+
+    //
+    // Search Result Grouping (cross-conduit de-duplication)
+    //
+
+    /**
+     * This function groups the search results from each of the conduits by the entity they describe, using a hashed
+     * index of the Identifiers (business Identifiers and Source-of-Truth RID Identifiers) of each resource. Each group
+     * is then aggregated using the resource type's aggregation strategy (defaultActionOutcomeAggregationService()),
+     * so that a single resource is returned for each real-world entity.
+     *
+     * The order of the returned list follows the order in which each entity was first encountered.
+     *
+     * @param searchOutcomeList The set of search responses from each of the conduits
+     * @return A list of aggregated resources, one per entity
+     */
+    protected List<Resource> groupAndAggregateSearchResults(List<ResourceSoTConduitSearchResponseElement> searchOutcomeList){
+        getLogger().debug(".groupAndAggregateSearchResults(): Entry");
+        HashMap<String, SearchResultEntityGroup> entityIndex = new HashMap<>();
+        ArrayList<SearchResultEntityGroup> entityGroups = new ArrayList<>();
         for(ResourceSoTConduitSearchResponseElement searchResponse: searchOutcomeList){
+            if(searchResponse.getResources() == null){
+                continue;
+            }
             for(Resource resource: searchResponse.getResources()){
-                Bundle.BundleEntryComponent newBundleEntry = new Bundle.BundleEntryComponent();
-                newBundleEntry.setResource(resource);
-                Bundle.BundleEntrySearchComponent searchComponent = new Bundle.BundleEntrySearchComponent();
-                searchComponent.setMode(Bundle.SearchEntryMode.MATCH);
-                searchComponent.setScore(1);
-                newBundleEntry.setSearch(searchComponent);
-                searchResultBundle.addEntry(newBundleEntry);
-                entryCount += 1;
+                if(resource == null){
+                    continue;
+                }
+                ResourceSoTConduitActionResponse memberResponse = createSearchMemberResponse(searchResponse, resource);
+                List<String> indexKeys = buildEntityIndexKeys(searchResponse, memberResponse);
+                SearchResultEntityGroup matchedGroup = null;
+                for(String currentKey: indexKeys){
+                    SearchResultEntityGroup existingGroup = entityIndex.get(currentKey);
+                    if(existingGroup == null){
+                        continue;
+                    }
+                    existingGroup = existingGroup.getRepresentativeGroup();
+                    if(matchedGroup == null){
+                        matchedGroup = existingGroup;
+                    } else if(matchedGroup != existingGroup){
+                        matchedGroup.absorb(existingGroup);
+                    }
+                }
+                if(matchedGroup == null){
+                    matchedGroup = new SearchResultEntityGroup();
+                    entityGroups.add(matchedGroup);
+                }
+                matchedGroup.addMember(memberResponse);
+                for(String currentKey: indexKeys){
+                    entityIndex.put(currentKey, matchedGroup);
+                }
             }
         }
-        searchResultBundle.setTotal(entryCount);
-        return(searchResultBundle);
+        ArrayList<Resource> aggregatedResourceList = new ArrayList<>();
+        for(SearchResultEntityGroup currentGroup: entityGroups){
+            if(currentGroup.isAbsorbed()){
+                continue;
+            }
+            Resource aggregatedResource = aggregateSearchResultEntityGroup(currentGroup);
+            if(aggregatedResource != null){
+                aggregatedResourceList.add(aggregatedResource);
+            }
+        }
+        getLogger().debug(".groupAndAggregateSearchResults(): Exit, entity count --> {}", aggregatedResourceList.size());
+        return(aggregatedResourceList);
+    }
+
+    @Override
+    public List<String> buildSearchResultGroupingKeys(ResourceSoTConduitSearchResponseElement searchResponse, Resource resource){
+        return(buildEntityIndexKeys(searchResponse, createSearchMemberResponse(searchResponse, resource)));
+    }
+
+    protected Resource aggregateSearchResultEntityGroup(SearchResultEntityGroup entityGroup){
+        List<ResourceSoTConduitActionResponse> memberList = entityGroup.getMembers();
+        if(memberList.isEmpty()){
+            return(null);
+        }
+        if(memberList.size() == 1){
+            return(((Resource)memberList.get(0).getResource()).copy());
+        }
+        getLogger().trace(".aggregateSearchResultEntityGroup(): Aggregating {} search results for the same entity", memberList.size());
+        VirtualDBMethodOutcome aggregatedOutcome = defaultActionOutcomeAggregationService(VirtualDBActionTypeEnum.REVIEW, memberList);
+        if(aggregatedOutcome == null || aggregatedOutcome.getResource() == null){
+            return(((Resource)memberList.get(0).getResource()).copy());
+        }
+        return((Resource)aggregatedOutcome.getResource());
+    }
+
+    protected ResourceSoTConduitActionResponse createSearchMemberResponse(ResourceSoTConduitSearchResponseElement searchResponse, Resource resource){
+        String activityLocation = getAggregationServiceName() + "::groupAndAggregateSearchResults()";
+        ResourceSoTConduitActionResponse memberResponse = actionResponseFactory.createResourceConduitActionResponse(
+                searchResponse.getConduitName(),
+                PegacornFunctionStatusEnum.FUNCTION_STATUS_OK,
+                resource,
+                resource.getIdElement(),
+                VirtualDBActionStatusEnum.REVIEW_FINISH,
+                activityLocation);
+        if(searchResponse.getResponseResourceGrade() != null){
+            memberResponse.setResponseResourceGrade(searchResponse.getResponseResourceGrade());
+        }
+        if(searchResponse.getSoTConduitGrade() != null){
+            memberResponse.setSoTGrade(searchResponse.getSoTConduitGrade());
+        }
+        return(memberResponse);
+    }
+
+    /**
+     * Conduit responses are treated as immutable snapshots (so that they can be cached and shared across requests),
+     * so the response returned by an aggregation - whether a single conduit's response, the whole-resource precedence
+     * response or the base of a property-by-property merge - is a new response wrapping a copy of the precedence
+     * Resource rather than the conduit's response itself. The "additive" responses of a merge are only ever read, and
+     * any elements adopted from them are shared with the merged view - which must therefore itself be treated as
+     * read-only once returned.
+     *
+     * @param precedenceResponse The highest precedence conduit response (the "base" of the merge)
+     * @return A new ResourceSoTConduitActionResponse carrying a copy of the Resource and the same grading/attribute sets
+     */
+    protected ResourceSoTConduitActionResponse createMergedView(ResourceSoTConduitActionResponse precedenceResponse){
+        getLogger().debug(".createMergedView(): Entry");
+        Resource mergedResource = ((Resource) precedenceResponse.getResource()).copy();
+        String activityLocation = getAggregationServiceName() + "::defaultActionOutcomeAggregationService()";
+        ResourceSoTConduitActionResponse mergedResponse = getActionResponseFactory().createResourceConduitActionResponse(
+                precedenceResponse.getSourceOfTruthName(),
+                PegacornFunctionStatusEnum.FUNCTION_STATUS_OK,
+                mergedResource,
+                mergedResource.getIdElement(),
+                precedenceResponse.getStatusEnum(),
+                activityLocation);
+        mergedResponse.setCausalAction(precedenceResponse.getCausalAction());
+        mergedResponse.setCreated(precedenceResponse.getCreated());
+        mergedResponse.setIdentifier(precedenceResponse.getIdentifier());
+        mergedResponse.setResponseResourceGrade(precedenceResponse.getResponseResourceGrade());
+        mergedResponse.setSoTGrade(precedenceResponse.getSoTGrade());
+        mergedResponse.getImmutableAttributes().addAll(precedenceResponse.getImmutableAttributes());
+        mergedResponse.getAuthoritativeAttributes().addAll(precedenceResponse.getAuthoritativeAttributes());
+        mergedResponse.getInformationalAttributes().addAll(precedenceResponse.getInformationalAttributes());
+        mergedResponse.getAnecdotalAttributes().addAll(precedenceResponse.getAnecdotalAttributes());
+        getLogger().debug(".createMergedView(): Exit");
+        return(mergedResponse);
+    }
+
+    /**
+     * Builds the set of keys used to locate a search result within the entity index. A key is derived from each
+     * Identifier with both a system and a value (an Identifier without a system, even if typed, is not globally unique
+     * and so does not group results) - as well as one for the conduit/id pair, so that the same resource returned twice
+     * by a conduit is also collapsed.
+     */
+    protected List<String> buildEntityIndexKeys(ResourceSoTConduitSearchResponseElement searchResponse, ResourceSoTConduitActionResponse memberResponse){
+        ArrayList<String> indexKeys = new ArrayList<>();
+        Resource resource = (Resource)memberResponse.getResource();
+        if(resource.hasIdElement() && resource.getIdElement().hasIdPart()){
+            indexKeys.add("id:" + searchResponse.getConduitName() + ":" + resource.getResourceType().toString() + "/" + resource.getIdElement().getIdPart());
+        }
+        for(Identifier currentIdentifier: getIdentifiers(memberResponse)){
+            String identifierKey = buildIdentifierIndexKey(currentIdentifier);
+            if(identifierKey != null){
+                indexKeys.add(identifierKey);
+            }
+        }
+        return(indexKeys);
+    }
+
+    protected String buildIdentifierIndexKey(Identifier identifier){
+        if(identifier == null || !identifier.hasValue() || !identifier.hasSystem()){
+            return(null);
+        }
+        return("identifier:" + identifier.getSystem() + "|" + identifier.getValue());
     }
 }
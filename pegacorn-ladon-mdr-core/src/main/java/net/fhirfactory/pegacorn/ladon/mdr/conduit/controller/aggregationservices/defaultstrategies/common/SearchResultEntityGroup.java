@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.defaultstrategies.common;
+
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SearchResultEntityGroup collects the (per-conduit) search hits that have been determined to describe the same
+ * real-world entity - i.e. they share a business Identifier or Source-of-Truth RID Identifier. Groups are joined
+ * together (absorbed) when a later search hit is found to bridge two previously distinct groups.
+ */
+public class SearchResultEntityGroup {
+    private ArrayList<ResourceSoTConduitActionResponse> members;
+    private SearchResultEntityGroup absorbingGroup;
+
+    public SearchResultEntityGroup(){
+        this.members = new ArrayList<>();
+        this.absorbingGroup = null;
+    }
+
+    public List<ResourceSoTConduitActionResponse> getMembers() {
+        return members;
+    }
+
+    public void addMember(ResourceSoTConduitActionResponse member){
+        this.members.add(member);
+    }
+
+    public boolean isAbsorbed(){
+        return(this.absorbingGroup != null);
+    }
+
+    /**
+     * Follows the chain of absorptions to the group that currently holds the members of this group.
+     *
+     * @return The group that is now representing this (potentially absorbed) group
+     */
+    public SearchResultEntityGroup getRepresentativeGroup(){
+        SearchResultEntityGroup currentGroup = this;
+        while(currentGroup.absorbingGroup != null){
+            currentGroup = currentGroup.absorbingGroup;
+        }
+        return(currentGroup);
+    }
+
+    /**
+     * Moves all the members of the otherGroup into this group and marks the otherGroup as absorbed.
+     *
+     * @param otherGroup The group to be merged into this one
+     */
+    public void absorb(SearchResultEntityGroup otherGroup){
+        if(otherGroup == null || otherGroup == this){
+            return;
+        }
+        this.members.addAll(otherGroup.members);
+        otherGroup.members.clear();
+        otherGroup.absorbingGroup = this;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResultEntityGroup{" +
+                "memberCount=" + members.size() +
+                ", absorbed=" + isAbsorbed() +
+                '}';
+    }
+}
@@ -56,7 +56,7 @@ public class PatientDefaultPropertyBasedContentAggregationService extends Domain
     @Override
     protected void aggregateIntoBasePropertyByProperty(ResourceSoTConduitActionResponse baseResponse, ResourceSoTConduitActionResponse additiveResponse) {
         Patient basePatientResource = (Patient)baseResponse.getResource();
-        Patient additivePatientResource = (Patient)baseResponse.getResource();
+        Patient additivePatientResource = (Patient)additiveResponse.getResource();
         // Merge "identifiers" (Identifier)
         getMergeHelpers().mergeIdentifiers(baseResponse, basePatientResource.getIdentifier(), additiveResponse, additivePatientResource.getIdentifier());
         // Merge "active" (Set the Active Flag: note, if any are Active, then make this one Active)
@@ -180,7 +180,7 @@ public class PatientDefaultPropertyBasedContentAggregationService extends Domain
             return(true); // This isn't technically true, but our intent is for the calling code to just leave this instance alone
         }
         for(Patient.ContactComponent currentContact:  baseContactSet){
-            boolean sameName = currentContact.getName().equalsShallow(additiveContact.getName());
+            boolean sameName = getFingerprintHelpers().sameHumanNameShallow(currentContact.getName(), additiveContact.getName());
             boolean sameRelationship = currentContact.getRelationship().equals(additiveContact.getRelationship());
             if(sameName && sameRelationship){
                 return(true);
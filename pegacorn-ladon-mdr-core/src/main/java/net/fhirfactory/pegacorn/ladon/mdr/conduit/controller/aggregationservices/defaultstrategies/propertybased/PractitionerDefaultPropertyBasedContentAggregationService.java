@@ -67,7 +67,7 @@ public class PractitionerDefaultPropertyBasedContentAggregationService extends D
     @Override
     protected void aggregateIntoBasePropertyByProperty(ResourceSoTConduitActionResponse baseResponse, ResourceSoTConduitActionResponse additiveResponse) {
         Practitioner basePractitionerResource = (Practitioner)baseResponse.getResource();
-        Practitioner additivePractitionerResource = (Practitioner)baseResponse.getResource();
+        Practitioner additivePractitionerResource = (Practitioner)additiveResponse.getResource();
         // Merge "identifiers" (Identifier)
         getMergeHelpers().mergeIdentifiers(baseResponse, basePractitionerResource.getIdentifier(), additiveResponse, additivePractitionerResource.getIdentifier());
         // Merge "active" (Set the Active Flag: note, if any are Active, then make this one Active)
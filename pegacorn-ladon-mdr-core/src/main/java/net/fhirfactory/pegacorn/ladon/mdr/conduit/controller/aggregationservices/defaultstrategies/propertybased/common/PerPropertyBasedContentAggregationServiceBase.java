@@ -28,11 +28,13 @@ import java.util.List;
 import javax.inject.Inject;
 
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.defaultstrategies.common.DefaultResourceContentAggregationServiceBase;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.projection.ResourceProjection;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceGradeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitSearchResponseElement;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBActionTypeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBMethodOutcome;
+import org.hl7.fhir.r4.model.Resource;
 
 public abstract class PerPropertyBasedContentAggregationServiceBase extends DefaultResourceContentAggregationServiceBase {
 
@@ -80,7 +82,8 @@ public abstract class PerPropertyBasedContentAggregationServiceBase extends Defa
 
     @Override
     public VirtualDBMethodOutcome aggregateSearchResultSet(List<ResourceSoTConduitSearchResponseElement> responseSet) {
-        return null;
+        VirtualDBMethodOutcome outcome = defaultSearchOutcomeAggregationService(responseSet);
+        return(outcome);
     }
 
     //
@@ -89,6 +92,7 @@ public abstract class PerPropertyBasedContentAggregationServiceBase extends Defa
     //
     //
 
+    @Override
     protected VirtualDBMethodOutcome defaultActionOutcomeAggregationService(VirtualDBActionTypeEnum action, List<ResourceSoTConduitActionResponse> outcomeList){
         getLogger().debug(".defaultActionOutcomeAggregationService(): Entry, action --> {}", action);
         if(outcomeList == null){
@@ -141,18 +145,24 @@ public abstract class PerPropertyBasedContentAggregationServiceBase extends Defa
         // If there is only one, return it
         if(outcomeList.size() == 1) {
 //            mapIdToIdentifier(precendenceResponse);
-            return(precendenceResponse);
+            return(createMergedView(precendenceResponse));
         }
-        // Otherwise Aggregate the Resource, Property-by-Property
+        // Otherwise Aggregate the Resource, Property-by-Property - into a merged view, leaving the conduit responses untouched
         ArrayList<ResourceSoTConduitActionResponse> otherResponseSet = new ArrayList<>();
         otherResponseSet.addAll(outcomeList);
         otherResponseSet.remove(precendenceResponse);
+        ResourceSoTConduitActionResponse mergedResponse = createMergedView(precendenceResponse);
         for(ResourceSoTConduitActionResponse currentOutcome: otherResponseSet){
 //            mapIdToIdentifier(currentOutcome);
-            aggregateResourceSuperClassByAttribute(precendenceResponse, currentOutcome);
-            aggregateDomainResourceSuperClassByAttribute(precendenceResponse, currentOutcome);
-            aggregateIntoBasePropertyByProperty(precendenceResponse, currentOutcome);
+            aggregateResourceSuperClassByAttribute(mergedResponse, currentOutcome);
+            aggregateDomainResourceSuperClassByAttribute(mergedResponse, currentOutcome);
+            aggregateIntoBasePropertyByProperty(mergedResponse, currentOutcome);
+            // A merge involving a partially populated (projected) resource is itself only partially populated
+            if(ResourceProjection.isSubsetted((Resource)currentOutcome.getResource())){
+                ResourceProjection.markAsSubsetted((Resource)mergedResponse.getResource());
+            }
         }
-        return(precendenceResponse);
+        getLogger().debug(".defaultActionOutcomeAggregationService(): Exit, merged {} responses", outcomeList.size());
+        return(mergedResponse);
     }
 }
@@ -1,5 +1,6 @@
 package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.defaultstrategies.propertybased.common;
 
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.common.DatatypeFingerprintHelpers;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.SoTConduitGradeEnum;
 import org.hl7.fhir.r4.model.*;
@@ -7,14 +8,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
 @ApplicationScoped
 public class PerPropertyMergeHelpers {
     private static final Logger LOG = LoggerFactory.getLogger(PerPropertyMergeHelpers.class);
 
+    @Inject
+    private DatatypeFingerprintHelpers fingerprintHelpers;
+
     // Identifier Merge
 
     /**
@@ -30,23 +39,30 @@ public class PerPropertyMergeHelpers {
         if (baseIdentifierSet.isEmpty()) {
             baseIdentifierSet.addAll(additiveIdentifierSet);
         } else {
-            for (Identifier currentBaseResourceIdentifier : baseIdentifierSet) {
-                for (Identifier currentAdditiveResourceIdentifier : additiveIdentifierSet) {
-                    boolean sameUse = currentBaseResourceIdentifier.getUse().equals(currentAdditiveResourceIdentifier.getUse());
-                    boolean sameCoding = currentBaseResourceIdentifier.getType().equalsDeep(currentAdditiveResourceIdentifier.getType());
-                    boolean sameSystem = currentBaseResourceIdentifier.getSystem().equals(currentAdditiveResourceIdentifier.getSystem());
+            List<Identifier> displacedIdentifiers = new ArrayList<>();
+            List<Identifier> addedIdentifiers = new ArrayList<>();
+            for (Identifier currentAdditiveResourceIdentifier : additiveIdentifierSet) {
+                Identifier matchingBaseIdentifier = null;
+                for (Identifier currentBaseResourceIdentifier : baseIdentifierSet) {
+                    boolean sameUse = Objects.equals(currentBaseResourceIdentifier.getUse(), currentAdditiveResourceIdentifier.getUse());
+                    boolean sameCoding = fingerprintHelpers.sameCodeableConcept(currentBaseResourceIdentifier.getType(), currentAdditiveResourceIdentifier.getType());
+                    boolean sameSystem = Objects.equals(currentBaseResourceIdentifier.getSystem(), currentAdditiveResourceIdentifier.getSystem());
                     boolean baseIdentifierIsCurrent = isAttributeCurrent(currentBaseResourceIdentifier.getPeriod());
                     boolean additiveIdentifierIsCurrent = isAttributeCurrent(currentAdditiveResourceIdentifier.getPeriod());
                     if (sameUse && sameCoding && sameSystem && baseIdentifierIsCurrent && additiveIdentifierIsCurrent) {
-                        if (!baseHasPrecedence("identifier", baseResponse, additiveResponse)) {
-                            baseIdentifierSet.remove(currentBaseResourceIdentifier);
-                            baseIdentifierSet.add(currentAdditiveResourceIdentifier);
-                        }
-                    } else {
-                        baseIdentifierSet.add(currentAdditiveResourceIdentifier);
+                        matchingBaseIdentifier = currentBaseResourceIdentifier;
+                        break;
                     }
                 }
+                if (matchingBaseIdentifier == null) {
+                    addedIdentifiers.add(currentAdditiveResourceIdentifier);
+                } else if (!baseHasPrecedence("identifier", baseResponse, additiveResponse)) {
+                    displacedIdentifiers.add(matchingBaseIdentifier);
+                    addedIdentifiers.add(currentAdditiveResourceIdentifier);
+                }
             }
+            baseIdentifierSet.removeAll(displacedIdentifiers);
+            baseIdentifierSet.addAll(addedIdentifiers);
         }
     }
 
@@ -63,23 +79,30 @@ public class PerPropertyMergeHelpers {
         if (baseReferenceSet.isEmpty()) {
             baseReferenceSet.addAll(additiveReferenceSet);
         } else {
-            for (Reference currentBaseResourceReference : baseReferenceSet) {
-                for (Reference currentAdditiveResourceReference : additiveReferenceSet) {
-                    boolean sameReference = currentBaseResourceReference.getReference().contentEquals(currentAdditiveResourceReference.getReference());
-                    boolean sameType = currentBaseResourceReference.getType().equals(currentAdditiveResourceReference.getType());
-                    boolean sameIdentifierUse = currentBaseResourceReference.getIdentifier().getUse().equals(currentAdditiveResourceReference.getIdentifier().getUse());
-                    boolean sameIdentifierType = currentAdditiveResourceReference.getIdentifier().getType().equalsDeep(currentAdditiveResourceReference.getIdentifier().getType());
-                    boolean sameIdentifierSystem = currentAdditiveResourceReference.getIdentifier().getSystem().equals(currentAdditiveResourceReference.getIdentifier().getSystem());
+            List<Reference> displacedReferences = new ArrayList<>();
+            List<Reference> addedReferences = new ArrayList<>();
+            for (Reference currentAdditiveResourceReference : additiveReferenceSet) {
+                Reference matchingBaseReference = null;
+                for (Reference currentBaseResourceReference : baseReferenceSet) {
+                    boolean sameReference = Objects.equals(currentBaseResourceReference.getReference(), currentAdditiveResourceReference.getReference());
+                    boolean sameType = Objects.equals(currentBaseResourceReference.getType(), currentAdditiveResourceReference.getType());
+                    boolean sameIdentifierUse = Objects.equals(currentBaseResourceReference.getIdentifier().getUse(), currentAdditiveResourceReference.getIdentifier().getUse());
+                    boolean sameIdentifierType = fingerprintHelpers.sameCodeableConcept(currentBaseResourceReference.getIdentifier().getType(), currentAdditiveResourceReference.getIdentifier().getType());
+                    boolean sameIdentifierSystem = Objects.equals(currentBaseResourceReference.getIdentifier().getSystem(), currentAdditiveResourceReference.getIdentifier().getSystem());
                     if (sameReference && sameType && sameIdentifierUse && sameIdentifierType && sameIdentifierSystem) {
-                        if (!baseHasPrecedence("identifier", baseResponse, additiveResponse)) {
-                            baseReferenceSet.remove(currentBaseResourceReference);
-                            baseReferenceSet.add(currentAdditiveResourceReference);
-                        }
-                    } else {
-                        baseReferenceSet.add(currentAdditiveResourceReference);
+                        matchingBaseReference = currentBaseResourceReference;
+                        break;
                     }
                 }
+                if (matchingBaseReference == null) {
+                    addedReferences.add(currentAdditiveResourceReference);
+                } else if (!baseHasPrecedence("identifier", baseResponse, additiveResponse)) {
+                    displacedReferences.add(matchingBaseReference);
+                    addedReferences.add(currentAdditiveResourceReference);
+                }
             }
+            baseReferenceSet.removeAll(displacedReferences);
+            baseReferenceSet.addAll(addedReferences);
         }
     }
 
@@ -127,23 +150,30 @@ public class PerPropertyMergeHelpers {
         if (baseHumanNameSet.isEmpty()) {
             baseHumanNameSet.addAll(additiveHumanNameSet);
         } else {
-            for (HumanName currentBaseHumanName : baseHumanNameSet) {
-                for (HumanName currentAdditiveHumanName : additiveHumanNameSet) {
-                    boolean sameUse = currentBaseHumanName.getUse().equals(currentAdditiveHumanName.getUse());
-                    boolean sameFamilyName = currentBaseHumanName.getFamily().contentEquals(currentAdditiveHumanName.getFamily());
+            List<HumanName> displacedHumanNames = new ArrayList<>();
+            List<HumanName> addedHumanNames = new ArrayList<>();
+            for (HumanName currentAdditiveHumanName : additiveHumanNameSet) {
+                HumanName matchingBaseHumanName = null;
+                for (HumanName currentBaseHumanName : baseHumanNameSet) {
+                    boolean sameUse = Objects.equals(currentBaseHumanName.getUse(), currentAdditiveHumanName.getUse());
+                    boolean sameFamilyName = Objects.equals(currentBaseHumanName.getFamily(), currentAdditiveHumanName.getFamily());
                     boolean sameGivenName = currentBaseHumanName.getGiven().containsAll(currentAdditiveHumanName.getGiven());
                     boolean baseNameIsCurrent = isAttributeCurrent(currentBaseHumanName.getPeriod());
                     boolean additiveNameIsCurrent = isAttributeCurrent(currentAdditiveHumanName.getPeriod());
                     if (sameUse && sameFamilyName && sameGivenName && baseNameIsCurrent && additiveNameIsCurrent) {
-                        if (!baseHasPrecedence("name", baseResponse, additiveResponse)) {
-                            baseHumanNameSet.remove(currentBaseHumanName);
-                            baseHumanNameSet.add(currentAdditiveHumanName);
-                        }
-                    } else {
-                        baseHumanNameSet.add(currentAdditiveHumanName);
+                        matchingBaseHumanName = currentBaseHumanName;
+                        break;
                     }
                 }
+                if (matchingBaseHumanName == null) {
+                    addedHumanNames.add(currentAdditiveHumanName);
+                } else if (!baseHasPrecedence("name", baseResponse, additiveResponse)) {
+                    displacedHumanNames.add(matchingBaseHumanName);
+                    addedHumanNames.add(currentAdditiveHumanName);
+                }
             }
+            baseHumanNameSet.removeAll(displacedHumanNames);
+            baseHumanNameSet.addAll(addedHumanNames);
         }
     }
 
@@ -161,22 +191,29 @@ public class PerPropertyMergeHelpers {
         if (baseContactPointSet.isEmpty()) {
             baseContactPointSet.addAll(additiveContactPointSet);
         } else {
-            for (ContactPoint currentBaseContactPoint : baseContactPointSet) {
-                for (ContactPoint currentAdditiveContactPoint : additiveContactPointSet) {
-                    boolean sameUse = currentBaseContactPoint.getUse().equals(currentAdditiveContactPoint.getUse());
-                    boolean sameSystem = currentBaseContactPoint.getSystem().equals(currentAdditiveContactPoint.getSystem());
+            List<ContactPoint> displacedContactPoints = new ArrayList<>();
+            List<ContactPoint> addedContactPoints = new ArrayList<>();
+            for (ContactPoint currentAdditiveContactPoint : additiveContactPointSet) {
+                ContactPoint matchingBaseContactPoint = null;
+                for (ContactPoint currentBaseContactPoint : baseContactPointSet) {
+                    boolean sameUse = Objects.equals(currentBaseContactPoint.getUse(), currentAdditiveContactPoint.getUse());
+                    boolean sameSystem = Objects.equals(currentBaseContactPoint.getSystem(), currentAdditiveContactPoint.getSystem());
                     boolean baseContactPointIsCurrent = isAttributeCurrent(currentBaseContactPoint.getPeriod());
                     boolean additiveContactPointIsCurrent = isAttributeCurrent(currentAdditiveContactPoint.getPeriod());
                     if (sameUse && sameSystem && baseContactPointIsCurrent && additiveContactPointIsCurrent) {
-                        if (!baseHasPrecedence("telecom", baseResponse, additiveResponse)) {
-                            baseContactPointSet.remove(currentBaseContactPoint);
-                            baseContactPointSet.add(currentAdditiveContactPoint);
-                        }
-                    } else {
-                        baseContactPointSet.add(currentAdditiveContactPoint);
+                        matchingBaseContactPoint = currentBaseContactPoint;
+                        break;
                     }
                 }
+                if (matchingBaseContactPoint == null) {
+                    addedContactPoints.add(currentAdditiveContactPoint);
+                } else if (!baseHasPrecedence("telecom", baseResponse, additiveResponse)) {
+                    displacedContactPoints.add(matchingBaseContactPoint);
+                    addedContactPoints.add(currentAdditiveContactPoint);
+                }
             }
+            baseContactPointSet.removeAll(displacedContactPoints);
+            baseContactPointSet.addAll(addedContactPoints);
         }
     }
 
@@ -194,22 +231,29 @@ public class PerPropertyMergeHelpers {
         if (baseAddressSet.isEmpty()) {
             baseAddressSet.addAll(additiveAddressSet);
         } else {
-            for (Address currentBaseAddress : baseAddressSet) {
-                for (Address currentAdditiveAddress : additiveAddressSet) {
-                    boolean sameUse = currentBaseAddress.getUse().equals(currentAdditiveAddress.getUse());
-                    boolean sameType = currentBaseAddress.getType().equals(currentAdditiveAddress.getType());
+            List<Address> displacedAddresses = new ArrayList<>();
+            List<Address> addedAddresses = new ArrayList<>();
+            for (Address currentAdditiveAddress : additiveAddressSet) {
+                Address matchingBaseAddress = null;
+                for (Address currentBaseAddress : baseAddressSet) {
+                    boolean sameUse = Objects.equals(currentBaseAddress.getUse(), currentAdditiveAddress.getUse());
+                    boolean sameType = Objects.equals(currentBaseAddress.getType(), currentAdditiveAddress.getType());
                     boolean baseContactPointIsCurrent = isAttributeCurrent(currentBaseAddress.getPeriod());
                     boolean additiveContactPointIsCurrent = isAttributeCurrent(currentAdditiveAddress.getPeriod());
                     if (sameUse && sameType && baseContactPointIsCurrent && additiveContactPointIsCurrent) {
-                        if (!baseHasPrecedence("telecom", baseResponse, additiveResponse)) {
-                            baseAddressSet.remove(currentBaseAddress);
-                            baseAddressSet.add(currentAdditiveAddress);
-                        }
-                    } else {
-                        baseAddressSet.add(currentAdditiveAddress);
+                        matchingBaseAddress = currentBaseAddress;
+                        break;
                     }
                 }
+                if (matchingBaseAddress == null) {
+                    addedAddresses.add(currentAdditiveAddress);
+                } else if (!baseHasPrecedence("telecom", baseResponse, additiveResponse)) {
+                    displacedAddresses.add(matchingBaseAddress);
+                    addedAddresses.add(currentAdditiveAddress);
+                }
             }
+            baseAddressSet.removeAll(displacedAddresses);
+            baseAddressSet.addAll(addedAddresses);
         }
     }
 
@@ -228,8 +272,11 @@ public class PerPropertyMergeHelpers {
         if (baseAttachmentSet.isEmpty()) {
             baseAttachmentSet.addAll(additiveAttachmentSet);
         } else {
-            for (Attachment currentBaseAttachment : baseAttachmentSet) {
-                for (Attachment currentAdditiveAttachment : additiveAttachmentSet) {
+            List<Attachment> displacedAttachments = new ArrayList<>();
+            List<Attachment> addedAttachments = new ArrayList<>();
+            for (Attachment currentAdditiveAttachment : additiveAttachmentSet) {
+                Attachment matchingBaseAttachment = null;
+                for (Attachment currentBaseAttachment : baseAttachmentSet) {
                     boolean sameContentType = false;
                     if (currentBaseAttachment.hasContentType() && currentAdditiveAttachment.hasContentType()) {
                         sameContentType = currentBaseAttachment.getContentType().equals(currentAdditiveAttachment.getContentType());
@@ -266,15 +313,19 @@ public class PerPropertyMergeHelpers {
                         sameCreationDate = true;
                     }
                     if (sameContentType && sameLanguageCode && sameURL && sameTitle && sameCreationDate) {
-                        if (!baseHasPrecedence(propertyName, baseResponse, additiveResponse)) {
-                            baseAttachmentSet.remove(currentBaseAttachment);
-                            baseAttachmentSet.add(currentAdditiveAttachment);
-                        }
-                    } else {
-                        baseAttachmentSet.add(currentAdditiveAttachment);
+                        matchingBaseAttachment = currentBaseAttachment;
+                        break;
                     }
                 }
+                if (matchingBaseAttachment == null) {
+                    addedAttachments.add(currentAdditiveAttachment);
+                } else if (!baseHasPrecedence(propertyName, baseResponse, additiveResponse)) {
+                    displacedAttachments.add(matchingBaseAttachment);
+                    addedAttachments.add(currentAdditiveAttachment);
+                }
             }
+            baseAttachmentSet.removeAll(displacedAttachments);
+            baseAttachmentSet.addAll(addedAttachments);
         }
     }
 
@@ -296,16 +347,26 @@ public class PerPropertyMergeHelpers {
         if (additiveCodeableConceptSet.isEmpty()) {
             return;
         }
-        for (CodeableConcept currentAdditiveCodeableConcept : baseCodeableConceptSet) {
+        Set<Long> baseFingerprintSet = new HashSet<>();
+        for (CodeableConcept currentBaseCodeableConcept : baseCodeableConceptSet) {
+            baseFingerprintSet.add(fingerprintHelpers.fingerprint(currentBaseCodeableConcept));
+        }
+        List<CodeableConcept> baseCodeableConceptSnapshot = new ArrayList<>(baseCodeableConceptSet);
+        for (CodeableConcept currentAdditiveCodeableConcept : additiveCodeableConceptSet) {
+            long additiveFingerprint = fingerprintHelpers.fingerprint(currentAdditiveCodeableConcept);
             boolean isNotPresentInBase = true;
-            for (CodeableConcept currentBaseCodeableConcept : additiveCodeableConceptSet) {
-                if(currentBaseCodeableConcept.equalsDeep(currentAdditiveCodeableConcept)){
-                    isNotPresentInBase = false;
-                    break;
+            if (baseFingerprintSet.contains(additiveFingerprint)) {
+                // Fingerprint collision - confirm with a deep comparison
+                for (CodeableConcept currentBaseCodeableConcept : baseCodeableConceptSnapshot) {
+                    if (fingerprintHelpers.sameCodeableConcept(currentAdditiveCodeableConcept, additiveFingerprint, currentBaseCodeableConcept)) {
+                        isNotPresentInBase = false;
+                        break;
+                    }
                 }
             }
             if(isNotPresentInBase){
                 baseCodeableConceptSet.add(currentAdditiveCodeableConcept);
+                baseFingerprintSet.add(additiveFingerprint);
             }
         }
     }
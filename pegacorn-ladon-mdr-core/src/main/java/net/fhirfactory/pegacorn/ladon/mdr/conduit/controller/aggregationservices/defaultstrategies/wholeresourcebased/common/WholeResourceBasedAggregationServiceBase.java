@@ -26,14 +26,8 @@ import java.util.List;
 
 import ca.uhn.fhir.parser.IParser;
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.defaultstrategies.common.DefaultResourceContentAggregationServiceBase;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Coding;
-import org.hl7.fhir.r4.model.OperationOutcome;
 
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
-import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitSearchResponseElement;
-import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBActionStatusEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBActionTypeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBMethodOutcome;
 
@@ -45,6 +39,7 @@ public abstract class WholeResourceBasedAggregationServiceBase extends DefaultRe
     //
     //
 
+    @Override
     protected VirtualDBMethodOutcome defaultActionOutcomeAggregationService(VirtualDBActionTypeEnum action, List<ResourceSoTConduitActionResponse> outcomeList){
         if(outcomeList == null){
             VirtualDBMethodOutcome aggregatedOutcome = generateBadAttributeOutcome("defaultCreateActionOutcomeAggregation()", action, "Empty Outcome List!!!");
@@ -65,7 +60,12 @@ public abstract class WholeResourceBasedAggregationServiceBase extends DefaultRe
         // Sort the List in terms of Precedence
         Collections.sort(outcomeList);
         // Now, return instance that has Precedence
-        ResourceSoTConduitActionResponse outcome = outcomeList.get(0);
+        ResourceSoTConduitActionResponse precedenceOutcome = outcomeList.get(0);
+        if(precedenceOutcome.getResource() == null){
+            getLogger().debug(".defaultActionOutcomeAggregationService(): Exit, no resource in response");
+            return(precedenceOutcome);
+        }
+        ResourceSoTConduitActionResponse outcome = createMergedView(precedenceOutcome);
 //        this.mapIdToIdentifier(outcome);
         if(getLogger().isTraceEnabled()){
             if(outcome.getResource() != null){
@@ -78,42 +78,4 @@ public abstract class WholeResourceBasedAggregationServiceBase extends DefaultRe
         getLogger().debug(".defaultActionOutcomeAggregationService(): Exit, returning suitable candidate resource");
         return(outcome);
     }
-
-    protected VirtualDBMethodOutcome defaultSearchOutcomeAggregationService(List<ResourceSoTConduitSearchResponseElement> searchOutcomeList){
-        if(searchOutcomeList == null){
-            VirtualDBMethodOutcome methodOutcome = generateBadAttributeOutcome("defaultSearchOutcomeAggregationService()", VirtualDBActionTypeEnum.SEARCH, "searchOutcomeList is null");
-            return(methodOutcome);
-        }
-        if(searchOutcomeList.isEmpty() ){
-            VirtualDBMethodOutcome methodOutcome = generateBadAttributeOutcome("defaultSearchOutcomeAggregationService()", VirtualDBActionTypeEnum.SEARCH, "searchOutcomeList is empty, no conduit has provided feedback/responses");
-            return(methodOutcome);
-        }
-        for(ResourceSoTConduitSearchResponseElement responseElement: searchOutcomeList){
-            if(responseElement.getStatusEnum() == VirtualDBActionStatusEnum.SEARCH_FAILURE){
-                VirtualDBMethodOutcome outcome = createFailedSearchOutcome(responseElement.getConduitName(), responseElement.getErrorMessage());
-            }
-        }
-        Bundle searchResult = assembleSearchResultBundle(searchOutcomeList);
-        VirtualDBMethodOutcome searchOutcome = new VirtualDBMethodOutcome();
-        searchOutcome.setCreated(false);
-        searchOutcome.setCausalAction(VirtualDBActionTypeEnum.SEARCH);
-        searchOutcome.setStatusEnum(VirtualDBActionStatusEnum.SEARCH_FINISHED);
-        CodeableConcept details = new CodeableConcept();
-        Coding detailsCoding = new Coding();
-        detailsCoding.setSystem("https://www.hl7.org/fhir/codesystem-operation-outcome.html");
-        detailsCoding.setCode("MSG_SEARCH_SUCCESFUL"); // TODO this is not a valid entry, may need to change.
-        String text = "Search completed, found " + searchResult.getTotal() + " matches";
-        detailsCoding.setDisplay(text);
-        details.setText(text);
-        details.addCoding(detailsCoding);
-        OperationOutcome opOutcome = new OperationOutcome();
-        OperationOutcome.OperationOutcomeIssueComponent newOutcomeComponent = new OperationOutcome.OperationOutcomeIssueComponent();
-        newOutcomeComponent.setDetails(details);
-        newOutcomeComponent.setCode(OperationOutcome.IssueType.INFORMATIONAL);
-        newOutcomeComponent.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
-        opOutcome.addIssue(newOutcomeComponent);
-        searchOutcome.setOperationOutcome(opOutcome);
-        searchOutcome.setResource(searchResult);
-        return(searchOutcome);
-    }
 }
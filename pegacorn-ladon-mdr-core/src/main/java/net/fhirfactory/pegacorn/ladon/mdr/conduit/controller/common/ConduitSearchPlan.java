@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.SoTResourceConduit;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.searches.SearchNameEnum;
+import org.hl7.fhir.r4.model.Property;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The plan of a search across the conduits of a controller (see ConduitSearchPlanner): for each conduit, whether the
+ * search is sent to it and, if so, which parameters are pushed down to its Source of Truth and which are evaluated
+ * (post-filtered) against the resources it returns. Once executed, each step also records its outcome.
+ */
+public class ConduitSearchPlan {
+    public enum StepMode {
+        PUSH_DOWN,
+        PUSH_DOWN_AND_POST_FILTER,
+        SKIPPED
+    }
+
+    public static class Step {
+        private SoTResourceConduit conduit;
+        private StepMode mode;
+        private String reason;
+        private Map<Property, Serializable> pushedDownParameters;
+        private Map<Property, Serializable> postFilterParameters;
+        private int returnedResourceCount;
+        private int matchedResourceCount;
+        private long elapsedMilliseconds;
+        private String errorMessage;
+
+        public Step(SoTResourceConduit conduit, StepMode mode, String reason){
+            this.conduit = conduit;
+            this.mode = mode;
+            this.reason = reason;
+            this.pushedDownParameters = new LinkedHashMap<>();
+            this.postFilterParameters = new LinkedHashMap<>();
+            this.returnedResourceCount = 0;
+            this.matchedResourceCount = 0;
+            this.elapsedMilliseconds = 0;
+            this.errorMessage = null;
+        }
+
+        public SoTResourceConduit getConduit() {
+            return conduit;
+        }
+
+        public StepMode getMode() {
+            return mode;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public Map<Property, Serializable> getPushedDownParameters() {
+            return pushedDownParameters;
+        }
+
+        public Map<Property, Serializable> getPostFilterParameters() {
+            return postFilterParameters;
+        }
+
+        public int getReturnedResourceCount() {
+            return returnedResourceCount;
+        }
+
+        public void setReturnedResourceCount(int returnedResourceCount) {
+            this.returnedResourceCount = returnedResourceCount;
+        }
+
+        public int getMatchedResourceCount() {
+            return matchedResourceCount;
+        }
+
+        public void setMatchedResourceCount(int matchedResourceCount) {
+            this.matchedResourceCount = matchedResourceCount;
+        }
+
+        public long getElapsedMilliseconds() {
+            return elapsedMilliseconds;
+        }
+
+        public void setElapsedMilliseconds(long elapsedMilliseconds) {
+            this.elapsedMilliseconds = elapsedMilliseconds;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        public void setErrorMessage(String errorMessage) {
+            this.errorMessage = errorMessage;
+        }
+
+        public boolean hasFailed(){
+            return(errorMessage != null);
+        }
+
+        public String describe(){
+            StringBuilder description = new StringBuilder();
+            description.append(conduit.getConduitName()).append(": ").append(mode);
+            if(reason != null){
+                description.append(" (").append(reason).append(")");
+            }
+            if(mode != StepMode.SKIPPED){
+                description.append(", pushedDown=").append(parameterNames(pushedDownParameters));
+                if(!postFilterParameters.isEmpty()){
+                    description.append(", postFiltered=").append(parameterNames(postFilterParameters));
+                }
+                if(hasFailed()){
+                    description.append(", FAILED: ").append(errorMessage);
+                } else {
+                    description.append(", returned=").append(returnedResourceCount)
+                            .append(", matched=").append(matchedResourceCount)
+                            .append(", elapsed=").append(elapsedMilliseconds).append("ms");
+                }
+            }
+            return(description.toString());
+        }
+
+        private List<String> parameterNames(Map<Property, Serializable> parameters){
+            List<String> names = new ArrayList<>();
+            for(Property currentProperty: parameters.keySet()){
+                names.add(currentProperty.getName());
+            }
+            return(names);
+        }
+    }
+
+    private SearchNameEnum searchName;
+    private List<Step> steps;
+
+    public ConduitSearchPlan(SearchNameEnum searchName){
+        this.searchName = searchName;
+        this.steps = new ArrayList<>();
+    }
+
+    public SearchNameEnum getSearchName() {
+        return searchName;
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public void addStep(Step step){
+        steps.add(step);
+    }
+
+    public boolean hasFailedSteps(){
+        for(Step currentStep: steps){
+            if(currentStep.hasFailed()){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    public String describe(){
+        StringBuilder description = new StringBuilder();
+        description.append("Search plan for ").append(searchName).append(": ");
+        for(int stepIndex = 0; stepIndex < steps.size(); stepIndex += 1){
+            if(stepIndex > 0){
+                description.append("; ");
+            }
+            description.append(steps.get(stepIndex).describe());
+        }
+        return(description.toString());
+    }
+
+    @Override
+    public String toString() {
+        return(describe());
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.SoTResourceConduitFunctionBase;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.projection.ResourceProjection;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitSearchResponseElement;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.SoTResourceConduit;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.searches.SearchNameEnum;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Plans and executes a search across the conduits of a controller. Rather than sending every search to every conduit,
+ * the planner uses each conduit's declared capabilities:
+ * - a conduit is only sent a named search it declares support for (supportiveOfSearch())
+ * - each parameter is pushed down to the conduit's Source of Truth if the conduit can index it
+ *   (SoTResourceConduitFunctionBase.canPushDownSearchParameter()), otherwise it is evaluated against the returned
+ *   resources (SearchResultPostFilter)
+ * - a conduit that can index none of the parameters is skipped, rather than being asked for every resource it holds
+ *
+ * The chosen sub-queries are executed in parallel, and the plan (including each step's outcome) is returned for
+ * diagnostics.
+ */
+public class ConduitSearchPlanner {
+    private static final Logger LOG = LoggerFactory.getLogger(ConduitSearchPlanner.class);
+
+    private SearchResultPostFilter postFilter;
+    private Supplier<ExecutorService> searchExecutorSupplier;
+
+    /**
+     * @param searchExecutorSupplier Supplies the (bounded) Executor on which the sub-queries are executed, see
+     *                               ConduitTaskExecutors
+     */
+    public ConduitSearchPlanner(Supplier<ExecutorService> searchExecutorSupplier){
+        this.postFilter = new SearchResultPostFilter();
+        this.searchExecutorSupplier = searchExecutorSupplier;
+    }
+
+    //
+    // Planning
+    //
+
+    public ConduitSearchPlan planSearch(Collection<SoTResourceConduit> conduits, SearchNameEnum searchName, Map<Property, Serializable> parameterSet){
+        LOG.debug(".planSearch(): Entry, searchName --> {}", searchName);
+        ConduitSearchPlan searchPlan = new ConduitSearchPlan(searchName);
+        for(SoTResourceConduit currentConduit: conduits){
+            searchPlan.addStep(planStep(currentConduit, searchName, parameterSet));
+        }
+        LOG.debug(".planSearch(): Exit, plan --> {}", searchPlan);
+        return(searchPlan);
+    }
+
+    protected ConduitSearchPlan.Step planStep(SoTResourceConduit conduit, SearchNameEnum searchName, Map<Property, Serializable> parameterSet){
+        boolean declaresSearch = searchName == null || conduit.supportiveOfSearch(searchName);
+        if(!(conduit instanceof SoTResourceConduitFunctionBase)){
+            // No parameter-level capabilities, so the conduit is trusted with the whole search (if it declares it)
+            if(!declaresSearch){
+                return(new ConduitSearchPlan.Step(conduit, ConduitSearchPlan.StepMode.SKIPPED, "search not supported"));
+            }
+            ConduitSearchPlan.Step step = new ConduitSearchPlan.Step(conduit, ConduitSearchPlan.StepMode.PUSH_DOWN, "declared search");
+            if(parameterSet != null) {
+                step.getPushedDownParameters().putAll(parameterSet);
+            }
+            return(step);
+        }
+        if(!declaresSearch){
+            return(new ConduitSearchPlan.Step(conduit, ConduitSearchPlan.StepMode.SKIPPED, "search not supported"));
+        }
+        SoTResourceConduitFunctionBase capableConduit = (SoTResourceConduitFunctionBase)conduit;
+        ConduitSearchPlan.Step step = new ConduitSearchPlan.Step(conduit, ConduitSearchPlan.StepMode.PUSH_DOWN, null);
+        if(parameterSet == null || parameterSet.isEmpty()){
+            return(step);
+        }
+        for(Map.Entry<Property, Serializable> currentParameter: parameterSet.entrySet()){
+            if(capableConduit.canPushDownSearchParameter(searchName, currentParameter.getKey(), currentParameter.getValue())){
+                step.getPushedDownParameters().put(currentParameter.getKey(), currentParameter.getValue());
+            } else if(postFilter.canEvaluate(currentParameter.getValue())){
+                step.getPostFilterParameters().put(currentParameter.getKey(), currentParameter.getValue());
+            } else {
+                return(new ConduitSearchPlan.Step(conduit, ConduitSearchPlan.StepMode.SKIPPED, "cannot evaluate parameter " + currentParameter.getKey().getName()));
+            }
+        }
+        if(step.getPushedDownParameters().isEmpty()){
+            return(new ConduitSearchPlan.Step(conduit, ConduitSearchPlan.StepMode.SKIPPED, "no indexed parameters, full scan avoided"));
+        }
+        if(step.getPostFilterParameters().isEmpty()){
+            return(step);
+        }
+        ConduitSearchPlan.Step postFilteredStep = new ConduitSearchPlan.Step(conduit, ConduitSearchPlan.StepMode.PUSH_DOWN_AND_POST_FILTER, null);
+        postFilteredStep.getPushedDownParameters().putAll(step.getPushedDownParameters());
+        postFilteredStep.getPostFilterParameters().putAll(step.getPostFilterParameters());
+        return(postFilteredStep);
+    }
+
+    //
+    // Execution
+    //
+
+    /**
+     * Executes the (non-skipped) steps of the plan in parallel, recording the outcome of each step within the plan.
+     *
+     * @param searchPlan The plan
+     * @param resourceType The type of resource being searched for
+     * @param projection The projection to be pushed down (or null)
+     * @return The (post-filtered) search responses of all the conduits that were searched
+     */
+    public List<ResourceSoTConduitSearchResponseElement> executePlan(ConduitSearchPlan searchPlan, ResourceType resourceType, ResourceProjection projection){
+        LOG.debug(".executePlan(): Entry");
+        List<Future<List<ResourceSoTConduitSearchResponseElement>>> subQueries = new ArrayList<>();
+        List<ConduitSearchPlan.Step> executedSteps = new ArrayList<>();
+        for(ConduitSearchPlan.Step currentStep: searchPlan.getSteps()){
+            if(currentStep.getMode() == ConduitSearchPlan.StepMode.SKIPPED){
+                continue;
+            }
+            executedSteps.add(currentStep);
+            subQueries.add(searchExecutorSupplier.get().submit(() -> executeStep(currentStep, resourceType, searchPlan.getSearchName(), projection)));
+        }
+        ArrayList<ResourceSoTConduitSearchResponseElement> searchResults = new ArrayList<>();
+        for(int stepIndex = 0; stepIndex < subQueries.size(); stepIndex += 1){
+            try {
+                List<ResourceSoTConduitSearchResponseElement> stepResults = subQueries.get(stepIndex).get();
+                if(stepResults != null) {
+                    searchResults.addAll(stepResults);
+                }
+            } catch(InterruptedException interruptedException){
+                Thread.currentThread().interrupt();
+                executedSteps.get(stepIndex).setErrorMessage("interrupted");
+            } catch(ExecutionException executionException){
+                Throwable cause = executionException.getCause();
+                LOG.warn(".executePlan(): Sub-query failed, conduit --> {}", executedSteps.get(stepIndex).getConduit().getConduitName(), cause);
+                executedSteps.get(stepIndex).setErrorMessage(cause == null ? executionException.getMessage() : cause.getMessage());
+            }
+        }
+        LOG.debug(".executePlan(): Exit, plan --> {}", searchPlan);
+        return(searchResults);
+    }
+
+    protected List<ResourceSoTConduitSearchResponseElement> executeStep(ConduitSearchPlan.Step step, ResourceType resourceType, SearchNameEnum searchName, ResourceProjection projection){
+        long startTime = System.currentTimeMillis();
+        SoTResourceConduit conduit = step.getConduit();
+        List<ResourceSoTConduitSearchResponseElement> stepResults;
+        if(conduit instanceof SoTResourceConduitFunctionBase){
+            stepResults = ((SoTResourceConduitFunctionBase)conduit).searchSourceOfTruthUsingCriteria(resourceType, searchName, step.getPushedDownParameters(), projection);
+        } else {
+            stepResults = conduit.searchSourceOfTruthUsingCriteria(resourceType, searchName, step.getPushedDownParameters());
+        }
+        int returnedCount = 0;
+        int matchedCount = 0;
+        if(stepResults != null){
+            for(ResourceSoTConduitSearchResponseElement currentElement: stepResults){
+                if(currentElement.getConduitName() == null){
+                    currentElement.setConduitName(conduit.getConduitName());
+                }
+                List<Resource> returnedResources = currentElement.getResources();
+                if(returnedResources == null){
+                    continue;
+                }
+                returnedCount += returnedResources.size();
+                if(!step.getPostFilterParameters().isEmpty()){
+                    List<Resource> matchedResources = postFilter.filter(new ArrayList<>(returnedResources), step.getPostFilterParameters());
+                    returnedResources.clear();
+                    returnedResources.addAll(matchedResources);
+                }
+                matchedCount += returnedResources.size();
+            }
+        }
+        step.setReturnedResourceCount(returnedCount);
+        step.setMatchedResourceCount(matchedCount);
+        step.setElapsedMilliseconds(System.currentTimeMillis() - startTime);
+        return(stepResults);
+    }
+
+    /**
+     * @param step A step of a plan
+     * @return A filter accepting the resources that match the step's post-filter parameters, or null if the step has
+     * no post-filter parameters - for lazily paged searches (see SearchResultPageIterator.setResultFilter())
+     */
+    public Predicate<Resource> createPostFilter(ConduitSearchPlan.Step step){
+        if(step.getPostFilterParameters().isEmpty()){
+            return(null);
+        }
+        Map<Property, Serializable> filterParameters = new HashMap<>(step.getPostFilterParameters());
+        return(resource -> postFilter.matches(resource, filterParameters));
+    }
+
+    //
+    // Summary (Count / Exists) Execution
+    //
+
+    /**
+     * Counts the matches of the plan without retrieving them - possible when the plan has a single executed step,
+     * pushed down in full to a conduit that supports summary searches (so "_summary=count" can be pushed down). The
+     * matches of several conduits overlap (the same entity held in several Sources of Truth) and can only be counted
+     * once de-duplicated, i.e. once retrieved and aggregated, as can post-filtered matches.
+     *
+     * @param searchPlan The plan
+     * @param resourceType The type of resource being searched for
+     * @return The number of matches, or null if the plan's matches must be retrieved in order to be counted (including
+     * when the count itself fails - the retrieval then reports the failure)
+     */
+    public Integer executeCountPlan(ConduitSearchPlan searchPlan, ResourceType resourceType){
+        LOG.debug(".executeCountPlan(): Entry");
+        ConduitSearchPlan.Step countedStep = null;
+        for(ConduitSearchPlan.Step currentStep: searchPlan.getSteps()){
+            if(currentStep.getMode() == ConduitSearchPlan.StepMode.SKIPPED){
+                continue;
+            }
+            if(countedStep != null){
+                LOG.debug(".executeCountPlan(): Exit, multiple conduits contribute, matches must be de-duplicated");
+                return(null);
+            }
+            countedStep = currentStep;
+        }
+        if(countedStep == null){
+            LOG.debug(".executeCountPlan(): Exit, no conduit is searched");
+            return(0);
+        }
+        if(countedStep.getMode() != ConduitSearchPlan.StepMode.PUSH_DOWN || !(countedStep.getConduit() instanceof SoTResourceConduitFunctionBase)){
+            LOG.debug(".executeCountPlan(): Exit, step cannot be counted in the Source of Truth");
+            return(null);
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            int matchCount = ((SoTResourceConduitFunctionBase)countedStep.getConduit()).countSourceOfTruthUsingCriteria(resourceType, searchPlan.getSearchName(), countedStep.getPushedDownParameters());
+            countedStep.setMatchedResourceCount(matchCount);
+            LOG.debug(".executeCountPlan(): Exit, matchCount --> {}", matchCount);
+            return(matchCount);
+        } catch(RuntimeException countException){
+            LOG.warn(".executeCountPlan(): Count failed, conduit --> {}", countedStep.getConduit().getConduitName(), countException);
+            countedStep.setErrorMessage(countException.getMessage());
+            return(null);
+        } finally {
+            countedStep.setElapsedMilliseconds(System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Determines whether the plan has any matches. The (non-skipped) steps are executed in parallel - those pushed
+     * down in full retrieve at most one match ("_count=1"), post-filtered steps are executed in full - and the
+     * remaining steps are cancelled as soon as any step reports a match.
+     *
+     * @param searchPlan The plan
+     * @param resourceType The type of resource being searched for
+     * @return True if any conduit holds a match, false if none does - or null if no step could be executed (every
+     * step failed), so that whether there are matches is unknown
+     */
+    public Boolean executeExistsPlan(ConduitSearchPlan searchPlan, ResourceType resourceType){
+        LOG.debug(".executeExistsPlan(): Entry");
+        ExecutorCompletionService<Boolean> completionService = new ExecutorCompletionService<>(searchExecutorSupplier.get());
+        Map<Future<Boolean>, ConduitSearchPlan.Step> subQueries = new HashMap<>();
+        for(ConduitSearchPlan.Step currentStep: searchPlan.getSteps()){
+            if(currentStep.getMode() == ConduitSearchPlan.StepMode.SKIPPED){
+                continue;
+            }
+            subQueries.put(completionService.submit(() -> executeExistsStep(currentStep, resourceType, searchPlan.getSearchName())), currentStep);
+        }
+        boolean matchesExist = false;
+        int succeededCount = 0;
+        try {
+            for (int completed = 0; completed < subQueries.size() && !matchesExist; completed += 1) {
+                Future<Boolean> completedQuery = completionService.take();
+                try {
+                    matchesExist = completedQuery.get();
+                    succeededCount += 1;
+                } catch (ExecutionException executionException) {
+                    Throwable cause = executionException.getCause();
+                    ConduitSearchPlan.Step failedStep = subQueries.get(completedQuery);
+                    LOG.warn(".executeExistsPlan(): Sub-query failed, conduit --> {}", failedStep.getConduit().getConduitName(), cause);
+                    failedStep.setErrorMessage(cause == null ? executionException.getMessage() : cause.getMessage());
+                }
+            }
+        } catch(InterruptedException interruptedException){
+            Thread.currentThread().interrupt();
+        } finally {
+            for(Future<Boolean> currentQuery: subQueries.keySet()){
+                currentQuery.cancel(true);
+            }
+        }
+        if(!matchesExist && succeededCount == 0 && !subQueries.isEmpty()){
+            LOG.warn(".executeExistsPlan(): Exit, no sub-query succeeded, existence of matches is unknown");
+            return(null);
+        }
+        LOG.debug(".executeExistsPlan(): Exit, matchesExist --> {}", matchesExist);
+        return(matchesExist);
+    }
+
+    protected boolean executeExistsStep(ConduitSearchPlan.Step step, ResourceType resourceType, SearchNameEnum searchName){
+        if(step.getMode() == ConduitSearchPlan.StepMode.PUSH_DOWN && step.getConduit() instanceof SoTResourceConduitFunctionBase){
+            long startTime = System.currentTimeMillis();
+            boolean matchesExist = ((SoTResourceConduitFunctionBase)step.getConduit()).existsInSourceOfTruthUsingCriteria(resourceType, searchName, step.getPushedDownParameters());
+            step.setMatchedResourceCount(matchesExist ? 1 : 0);
+            step.setElapsedMilliseconds(System.currentTimeMillis() - startTime);
+            return(matchesExist);
+        }
+        executeStep(step, resourceType, searchName, null);
+        return(step.getMatchedResourceCount() > 0);
+    }
+
+    //
+    // Reporting
+    //
+
+    /**
+     * @return An OperationOutcome issue describing the plan - a warning if any of the sub-queries failed
+     */
+    public OperationOutcome.OperationOutcomeIssueComponent describeAsIssue(ConduitSearchPlan searchPlan){
+        OperationOutcome.OperationOutcomeIssueComponent planIssue = new OperationOutcome.OperationOutcomeIssueComponent();
+        if(searchPlan.hasFailedSteps()){
+            planIssue.setSeverity(OperationOutcome.IssueSeverity.WARNING);
+            planIssue.setCode(OperationOutcome.IssueType.INCOMPLETE);
+        } else {
+            planIssue.setSeverity(OperationOutcome.IssueSeverity.INFORMATION);
+            planIssue.setCode(OperationOutcome.IssueType.INFORMATIONAL);
+        }
+        planIssue.setDiagnostics(searchPlan.describe());
+        return(planIssue);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBMethodOutcome;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * A bounded (least-recently-used) cache of the last per-conduit responses (snapshots) for each aggregated resource,
+ * together with the outcome of their last aggregation (as recorded by ResourceSoTConduitController.reviewResource()).
+ * This allows a change from a single Source of Truth to be re-aggregated against the other conduits' existing
+ * snapshots, rather than re-fetching from every conduit.
+ *
+ * The cached responses are never handed out: getSnapshotSet() returns copies (via the snapshot copier), so a caller
+ * modifying what it is given cannot alter the cache.
+ *
+ * Writes invalidate the snapshots of the resource written. So that a read which overlaps a write cannot re-cache the
+ * state from before the write, a snapshot is only recorded if the same resource (cache key) has not been invalidated
+ * since the read began - the reader obtains the invalidation generation (getInvalidationGeneration()) before it
+ * queries the conduits and passes it when recording. The generation at which each key was last invalidated is kept
+ * for as many keys as there are snapshots (least-recently invalidated first out) - once forgotten, a key is treated
+ * as invalidated at the latest generation forgotten, so a read can only be refused, never wrongly accepted.
+ *
+ * Only Identifiers with a system are cached (a value alone does not identify a resource).
+ */
+public class ConduitSnapshotCache {
+    private LinkedHashMap<String, SnapshotSet> snapshotMap;
+    private UnaryOperator<ResourceSoTConduitActionResponse> snapshotCopier;
+    private long invalidationGeneration;
+    private LinkedHashMap<String, Long> keyInvalidationGenerations;
+    private long forgottenInvalidationGeneration;
+
+    public ConduitSnapshotCache(int maximumSize, UnaryOperator<ResourceSoTConduitActionResponse> snapshotCopier){
+        this.snapshotMap = new LinkedHashMap<String, SnapshotSet>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SnapshotSet> eldest) {
+                return(size() > maximumSize);
+            }
+        };
+        this.snapshotCopier = snapshotCopier;
+        this.invalidationGeneration = 0;
+        this.keyInvalidationGenerations = new LinkedHashMap<String, Long>(16, 0.75f, false){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if(size() <= maximumSize){
+                    return(false);
+                }
+                forgottenInvalidationGeneration = Math.max(forgottenInvalidationGeneration, eldest.getValue());
+                return(true);
+            }
+        };
+        this.forgottenInvalidationGeneration = 0;
+    }
+
+    public static class SnapshotSet {
+        private HashMap<String, ResourceSoTConduitActionResponse> conduitSnapshots;
+        private VirtualDBMethodOutcome aggregatedOutcome;
+
+        public SnapshotSet(){
+            this.conduitSnapshots = new HashMap<>();
+            this.aggregatedOutcome = null;
+        }
+
+        public ResourceSoTConduitActionResponse getConduitSnapshot(String conduitName){
+            return(conduitSnapshots.get(conduitName));
+        }
+
+        public List<ResourceSoTConduitActionResponse> getConduitSnapshots(){
+            return(new ArrayList<>(conduitSnapshots.values()));
+        }
+
+        public VirtualDBMethodOutcome getAggregatedOutcome() {
+            return aggregatedOutcome;
+        }
+    }
+
+    /**
+     * @return The current invalidation generation, to be obtained before the conduits are read and passed to
+     * recordSnapshot()/recordAggregatedOutcome() - which then only record if the resource itself has not been
+     * invalidated since
+     */
+    public synchronized long getInvalidationGeneration(){
+        return(invalidationGeneration);
+    }
+
+    public synchronized void recordSnapshot(Identifier identifier, String conduitName, ResourceSoTConduitActionResponse conduitResponse, long readGeneration){
+        String cacheKey = buildCacheKey(identifier);
+        if(cacheKey == null || isInvalidatedSince(cacheKey, readGeneration)){
+            return;
+        }
+        SnapshotSet snapshotSet = snapshotMap.get(cacheKey);
+        if(snapshotSet == null){
+            snapshotSet = new SnapshotSet();
+            snapshotMap.put(cacheKey, snapshotSet);
+        }
+        if(conduitResponse == null){
+            snapshotSet.conduitSnapshots.remove(conduitName);
+        } else {
+            snapshotSet.conduitSnapshots.put(conduitName, conduitResponse);
+        }
+        snapshotSet.aggregatedOutcome = null;
+    }
+
+    public synchronized void recordAggregatedOutcome(Identifier identifier, VirtualDBMethodOutcome aggregatedOutcome, long readGeneration){
+        String cacheKey = buildCacheKey(identifier);
+        if(cacheKey == null || isInvalidatedSince(cacheKey, readGeneration)){
+            return;
+        }
+        SnapshotSet snapshotSet = snapshotMap.get(cacheKey);
+        if(snapshotSet != null){
+            snapshotSet.aggregatedOutcome = aggregatedOutcome;
+        }
+    }
+
+    /**
+     * @return A copy of the SnapshotSet for the identifier (or null if there is none) - holding copies of the
+     * snapshots and of the aggregated outcome, so that it is stable even if the cache is updated concurrently.
+     */
+    public synchronized SnapshotSet getSnapshotSet(Identifier identifier){
+        String cacheKey = buildCacheKey(identifier);
+        if(cacheKey == null){
+            return(null);
+        }
+        SnapshotSet snapshotSet = snapshotMap.get(cacheKey);
+        if(snapshotSet == null){
+            return(null);
+        }
+        SnapshotSet snapshotSetCopy = new SnapshotSet();
+        for(Map.Entry<String, ResourceSoTConduitActionResponse> currentSnapshot: snapshotSet.conduitSnapshots.entrySet()){
+            snapshotSetCopy.conduitSnapshots.put(currentSnapshot.getKey(), snapshotCopier.apply(currentSnapshot.getValue()));
+        }
+        snapshotSetCopy.aggregatedOutcome = copyOutcome(snapshotSet.aggregatedOutcome);
+        return(snapshotSetCopy);
+    }
+
+    public synchronized void invalidate(Identifier identifier){
+        String cacheKey = buildCacheKey(identifier);
+        if(cacheKey != null){
+            invalidationGeneration += 1;
+            // Re-inserted, so the key becomes the most recently invalidated
+            keyInvalidationGenerations.remove(cacheKey);
+            keyInvalidationGenerations.put(cacheKey, invalidationGeneration);
+            snapshotMap.remove(cacheKey);
+        }
+    }
+
+    private boolean isInvalidatedSince(String cacheKey, long readGeneration){
+        Long keyInvalidationGeneration = keyInvalidationGenerations.get(cacheKey);
+        if(keyInvalidationGeneration == null){
+            return(forgottenInvalidationGeneration > readGeneration);
+        }
+        return(keyInvalidationGeneration > readGeneration);
+    }
+
+    private VirtualDBMethodOutcome copyOutcome(VirtualDBMethodOutcome outcome){
+        if(outcome == null){
+            return(null);
+        }
+        VirtualDBMethodOutcome outcomeCopy = new VirtualDBMethodOutcome();
+        outcomeCopy.setCausalAction(outcome.getCausalAction());
+        outcomeCopy.setStatusEnum(outcome.getStatusEnum());
+        outcomeCopy.setCreated(outcome.getCreated());
+        outcomeCopy.setId(outcome.getId());
+        if(outcome.getResource() instanceof Resource){
+            outcomeCopy.setResource(((Resource)outcome.getResource()).copy());
+        }
+        if(outcome.getOperationOutcome() instanceof OperationOutcome){
+            outcomeCopy.setOperationOutcome(((OperationOutcome)outcome.getOperationOutcome()).copy());
+        }
+        return(outcomeCopy);
+    }
+
+    private String buildCacheKey(Identifier identifier){
+        if(identifier == null || !identifier.hasSystem() || !identifier.hasValue()){
+            return(null);
+        }
+        String cacheKey = identifier.getSystem() + "|" + identifier.getValue();
+        return(cacheKey);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import ca.uhn.fhir.model.api.Include;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the resources referenced by a set of (primary) resources, as described by "_include" specifications
+ * (e.g. "CareTeam:participant:Practitioner"). Within a single request, the referenced ids are collected and
+ * de-duplicated per target resource type (ignoring those already in the primary result), and each target type is then
+ * resolved via its own controller with one batched read per conduit (see ResourceSoTConduitController.reviewResources()).
+ *
+ * The include's search parameter is mapped to the element(s) holding the references - either via the known
+ * parameter/element differences (e.g. CareTeam:participant is CareTeam.participant.member) or, otherwise, by taking
+ * the parameter name as the element name. The wildcard ("*") follows every reference of the resource. Iterative
+ * ("_include:iterate") expansion is not supported, such includes are resolved for the primary resources only.
+ */
+@ApplicationScoped
+public class ReferenceIncludeResolver {
+    private static final Logger LOG = LoggerFactory.getLogger(ReferenceIncludeResolver.class);
+
+    private static final String WILDCARD = "*";
+    private static final Map<String, String> INCLUDE_ELEMENT_PATHS = new HashMap<>();
+    static {
+        INCLUDE_ELEMENT_PATHS.put("CareTeam:participant", "participant.member");
+        INCLUDE_ELEMENT_PATHS.put("CareTeam:patient", "subject");
+        INCLUDE_ELEMENT_PATHS.put("Encounter:participant", "participant.individual");
+        INCLUDE_ELEMENT_PATHS.put("Encounter:practitioner", "participant.individual");
+        INCLUDE_ELEMENT_PATHS.put("Encounter:location", "location.location");
+        INCLUDE_ELEMENT_PATHS.put("Encounter:patient", "subject");
+        INCLUDE_ELEMENT_PATHS.put("Encounter:service-provider", "serviceProvider");
+        INCLUDE_ELEMENT_PATHS.put("Group:member", "member.entity");
+        INCLUDE_ELEMENT_PATHS.put("PractitionerRole:service", "healthcareService");
+        INCLUDE_ELEMENT_PATHS.put("DocumentReference:patient", "subject");
+        INCLUDE_ELEMENT_PATHS.put("Procedure:patient", "subject");
+        INCLUDE_ELEMENT_PATHS.put("Procedure:performer", "performer.actor");
+        INCLUDE_ELEMENT_PATHS.put("Task:patient", "for");
+    }
+
+    @Inject
+    private ResourceSoTConduitControllerRegistry controllerRegistry;
+
+    //
+    // Resolution
+    //
+
+    /**
+     * @param primaryResources The resources whose references are to be followed
+     * @param includes The "_include" specifications
+     * @return The (aggregated) referenced resources, each resource only once and none of the primary resources
+     */
+    public List<Resource> resolveIncludes(Collection<Resource> primaryResources, Collection<Include> includes){
+        LOG.debug(".resolveIncludes(): Entry");
+        List<Resource> includedResources = new ArrayList<>();
+        if(primaryResources == null || primaryResources.isEmpty() || includes == null || includes.isEmpty()){
+            LOG.debug(".resolveIncludes(): Exit, nothing to include");
+            return(includedResources);
+        }
+        Set<String> primaryKeys = new HashSet<>();
+        for(Resource currentResource: primaryResources){
+            if(currentResource != null && currentResource.getIdElement().hasIdPart()){
+                primaryKeys.add(currentResource.getResourceType().toString() + "/" + currentResource.getIdElement().getIdPart());
+            }
+        }
+        Map<ResourceType, LinkedHashMap<String, IdType>> referencedIds = new EnumMap<>(ResourceType.class);
+        for(Resource currentResource: primaryResources){
+            if(currentResource == null){
+                continue;
+            }
+            for(Include currentInclude: includes){
+                collectReferencedIds(currentResource, currentInclude, primaryKeys, referencedIds);
+            }
+        }
+        for(Map.Entry<ResourceType, LinkedHashMap<String, IdType>> currentEntry: referencedIds.entrySet()){
+            ResourceSoTConduitController targetController = controllerRegistry.getController(currentEntry.getKey());
+            if(targetController == null){
+                LOG.warn(".resolveIncludes(): No controller for referenced type --> {}, ignoring {} references", currentEntry.getKey(), currentEntry.getValue().size());
+                continue;
+            }
+            LOG.trace(".resolveIncludes(): Resolving {} references of type --> {}", currentEntry.getValue().size(), currentEntry.getKey());
+            includedResources.addAll(targetController.reviewResources(currentEntry.getValue().values()));
+        }
+        LOG.debug(".resolveIncludes(): Exit, includedResources.size() --> {}", includedResources.size());
+        return(includedResources);
+    }
+
+    /**
+     * Adds the included resources to a SEARCHSET Bundle, as "include" entries (the Bundle total, which counts only
+     * the matches, is left unchanged).
+     */
+    public void addIncludedResources(Bundle searchResultBundle, List<Resource> includedResources){
+        for(Resource currentResource: includedResources){
+            Bundle.BundleEntryComponent newBundleEntry = new Bundle.BundleEntryComponent();
+            newBundleEntry.setResource(currentResource);
+            Bundle.BundleEntrySearchComponent searchComponent = new Bundle.BundleEntrySearchComponent();
+            searchComponent.setMode(Bundle.SearchEntryMode.INCLUDE);
+            newBundleEntry.setSearch(searchComponent);
+            searchResultBundle.addEntry(newBundleEntry);
+        }
+    }
+
+    //
+    // Reference Collection
+    //
+
+    protected void collectReferencedIds(Resource resource, Include include, Set<String> primaryKeys, Map<ResourceType, LinkedHashMap<String, IdType>> referencedIds){
+        String resourceName = resource.getResourceType().toString();
+        if(include.getParamType() != null && !include.getParamType().equals(WILDCARD) && !include.getParamType().equals(resourceName)){
+            return;
+        }
+        if(include.isRecurse()){
+            LOG.trace(".collectReferencedIds(): Iterative include --> {} resolved for the primary resources only", include.getValue());
+        }
+        List<Reference> references = new ArrayList<>();
+        String paramName = include.getParamName();
+        if(paramName == null || paramName.equals(WILDCARD)){
+            for(Property currentProperty: resource.children()){
+                for(Base currentValue: currentProperty.getValues()){
+                    collectReferences(currentValue, references);
+                }
+            }
+        } else {
+            for(Base currentValue: getElementValues(resource, resolveElementPath(resourceName, paramName))){
+                collectReferences(currentValue, references);
+            }
+        }
+        for(Reference currentReference: references){
+            if(!currentReference.hasReference()){
+                continue;
+            }
+            IdType referencedId = new IdType(currentReference.getReference());
+            if(referencedId.isLocal() || referencedId.isAbsolute() || !referencedId.hasResourceType() || !referencedId.hasIdPart()){
+                continue;
+            }
+            if(include.getParamTargetType() != null && !include.getParamTargetType().equals(referencedId.getResourceType())){
+                continue;
+            }
+            if(primaryKeys.contains(referencedId.getResourceType() + "/" + referencedId.getIdPart())){
+                continue;
+            }
+            ResourceType referencedType;
+            try {
+                referencedType = ResourceType.fromCode(referencedId.getResourceType());
+            } catch(FHIRException unknownType){
+                LOG.trace(".collectReferencedIds(): Ignoring reference to unknown type --> {}", referencedId.getResourceType());
+                continue;
+            }
+            referencedIds.computeIfAbsent(referencedType, type -> new LinkedHashMap<>())
+                    .putIfAbsent(referencedId.getIdPart(), referencedId.toUnqualifiedVersionless());
+        }
+    }
+
+    protected String resolveElementPath(String resourceName, String paramName){
+        String elementPath = INCLUDE_ELEMENT_PATHS.get(resourceName + ":" + paramName);
+        if(elementPath != null){
+            return(elementPath);
+        }
+        // Search parameter names are kebab-case (e.g. "managing-organization"), element names are camelCase
+        StringBuilder elementName = new StringBuilder();
+        boolean upperCaseNext = false;
+        for(char currentChar: paramName.toCharArray()){
+            if(currentChar == '-'){
+                upperCaseNext = true;
+            } else {
+                elementName.append(upperCaseNext ? Character.toUpperCase(currentChar) : currentChar);
+                upperCaseNext = false;
+            }
+        }
+        return(elementName.toString());
+    }
+
+    protected List<Base> getElementValues(Resource resource, String elementPath){
+        List<Base> currentValues = new ArrayList<>();
+        currentValues.add(resource);
+        for(String currentElementName: elementPath.split("\\.")){
+            List<Base> nextValues = new ArrayList<>();
+            for(Base currentValue: currentValues){
+                Property childProperty = currentValue.getNamedProperty(currentElementName);
+                if(childProperty != null){
+                    nextValues.addAll(childProperty.getValues());
+                }
+            }
+            currentValues = nextValues;
+        }
+        return(currentValues);
+    }
+
+    /**
+     * Collects every Reference within the element - not descending into contained resources.
+     */
+    protected void collectReferences(Base element, List<Reference> references){
+        if(element == null || element instanceof Resource){
+            return;
+        }
+        if(element instanceof Reference){
+            references.add((Reference)element);
+            return;
+        }
+        for(Property currentProperty: element.children()){
+            for(Base currentValue: currentProperty.getValues()){
+                collectReferences(currentValue, references);
+            }
+        }
+    }
+}
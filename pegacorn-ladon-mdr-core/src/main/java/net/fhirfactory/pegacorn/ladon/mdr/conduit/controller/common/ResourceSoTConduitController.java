@@ -23,41 +23,78 @@ package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Flow;
 
 import javax.inject.Inject;
 
+import ca.uhn.fhir.model.api.Include;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Property;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.slf4j.Logger;
 
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.common.ResourceContentAggregationServiceBase;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.ConduitTaskExecutors;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.SoTResourceConduitFunctionBase;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPageIterator;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPosition;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.projection.ResourceProjection;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.summary.SearchSummaryModeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceGradeEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponseFactory;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitSearchResponseElement;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.SoTResourceConduit;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBActionStatusEnum;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBMethodOutcome;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.operations.VirtualDBMethodOutcomeFactory;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.searches.SearchNameEnum;
+import net.fhirfactory.pegacorn.petasos.model.itops.PegacornFunctionStatusEnum;
 
 public abstract class ResourceSoTConduitController {
     abstract protected Logger getLogger();
 
+    private static final int DEFAULT_ORDERED_SEARCH_PAGE_SIZE = 50;
+    private static final int DEFAULT_SNAPSHOT_CACHE_SIZE = 500;
+    private static final int DEFAULT_PUBLISHED_SEARCH_BATCH_SIZE = 50;
+
     private HashSet<SoTResourceConduit> conduitSet;
     private ResourceType resourceType;
+    private ConduitSnapshotCache snapshotCache;
+    private ConduitSearchPlanner searchPlanner;
 
     @Inject
     VirtualDBMethodOutcomeFactory outcomeFactory;
 
+    @Inject
+    ReferenceIncludeResolver includeResolver;
+
+    @Inject
+    ResourceSoTConduitActionResponseFactory actionResponseFactory;
+
+    @Inject
+    ConduitTaskExecutors conduitTaskExecutors;
+
     public ResourceSoTConduitController(){
         this.conduitSet = new HashSet<>();
         this.resourceType = specifyResourceType();
+        this.snapshotCache = new ConduitSnapshotCache(specifySnapshotCacheSize(), this::copyConduitSnapshot);
+        this.searchPlanner = new ConduitSearchPlanner(() -> conduitTaskExecutors.getSearchExecutor());
     }
 
     public void addResourceConduit(SoTResourceConduit newConduit){
@@ -86,6 +123,65 @@ public abstract class ResourceSoTConduitController {
         return(specifyAggregationService());
     }
 
+    /**
+     * Specifies the natural ordering of the results of a search, for those searches whose results can be
+     * retrieved (and merged) in order. Subclasses override this for the searches they can order.
+     *
+     * @param searchName The search
+     * @return The ordering of the search results, or null if the search has no natural ordering
+     */
+    protected Comparator<Resource> specifySearchResultOrdering(SearchNameEnum searchName){
+        return(null);
+    }
+
+    /**
+     * Specifies the number of aggregated resources for which the per-conduit snapshots are retained (see
+     * ConduitSnapshotCache).
+     *
+     * @return The maximum number of entries in the snapshot cache
+     */
+    protected int specifySnapshotCacheSize(){
+        return(DEFAULT_SNAPSHOT_CACHE_SIZE);
+    }
+
+    /**
+     * Specifies the maximum number of (conduit) resources aggregated as a batch by a published search (see
+     * publishResourcesViaSearchCriteria()) - which is also the page size requested from each conduit.
+     */
+    protected int specifyPublishedSearchBatchSize(){
+        return(DEFAULT_PUBLISHED_SEARCH_BATCH_SIZE);
+    }
+
+    protected ConduitSnapshotCache getSnapshotCache(){
+        return(snapshotCache);
+    }
+
+    /**
+     * Copies a conduit response (and its Resource), so that the snapshots held by the ConduitSnapshotCache are never
+     * handed out.
+     */
+    protected ResourceSoTConduitActionResponse copyConduitSnapshot(ResourceSoTConduitActionResponse snapshot){
+        Resource snapshotResource = ((Resource)snapshot.getResource()).copy();
+        String activityLocation = getResourceType().toString() + "::copyConduitSnapshot()";
+        ResourceSoTConduitActionResponse snapshotCopy = actionResponseFactory.createResourceConduitActionResponse(
+                snapshot.getSourceOfTruthName(),
+                PegacornFunctionStatusEnum.FUNCTION_STATUS_OK,
+                snapshotResource,
+                snapshotResource.getIdElement(),
+                snapshot.getStatusEnum(),
+                activityLocation);
+        snapshotCopy.setCausalAction(snapshot.getCausalAction());
+        snapshotCopy.setCreated(snapshot.getCreated());
+        snapshotCopy.setIdentifier(snapshot.getIdentifier());
+        snapshotCopy.setResponseResourceGrade(snapshot.getResponseResourceGrade());
+        snapshotCopy.setSoTGrade(snapshot.getSoTGrade());
+        snapshotCopy.getImmutableAttributes().addAll(snapshot.getImmutableAttributes());
+        snapshotCopy.getAuthoritativeAttributes().addAll(snapshot.getAuthoritativeAttributes());
+        snapshotCopy.getInformationalAttributes().addAll(snapshot.getInformationalAttributes());
+        snapshotCopy.getAnecdotalAttributes().addAll(snapshot.getAnecdotalAttributes());
+        return(snapshotCopy);
+    }
+
 
     //
     // Review / Get Conduit Invocation
@@ -97,6 +193,15 @@ public abstract class ResourceSoTConduitController {
      * @return
      */
     protected List<ResourceSoTConduitActionResponse> getResourceFromEachConduit(Identifier identifier){
+        return(getResourceFromEachConduit(identifier, snapshotCache.getInvalidationGeneration()));
+    }
+
+    /**
+     * @param identifier The identifier of the resource
+     * @param snapshotGeneration The snapshot cache's invalidation generation, obtained before the conduits are read
+     * @return The (successful) responses of each conduit
+     */
+    protected List<ResourceSoTConduitActionResponse> getResourceFromEachConduit(Identifier identifier, long snapshotGeneration){
         getLogger().info(".getResourceFromEachConduit(Identifier): Entry, identifier (Identifier)--> {}", identifier);
         ArrayList<ResourceSoTConduitActionResponse> loadedResources = new ArrayList<ResourceSoTConduitActionResponse>();
         for(SoTResourceConduit currentConduit: conduitSet){
@@ -104,6 +209,9 @@ public abstract class ResourceSoTConduitController {
             ResourceSoTConduitActionResponse currentResponse = currentConduit.getResourceViaIdentifier(identifier);
             if(currentResponse.hasResource() && currentResponse.getStatusEnum().equals(VirtualDBActionStatusEnum.REVIEW_FINISH)) {
                 loadedResources.add(currentResponse);
+                snapshotCache.recordSnapshot(identifier, currentConduit.getConduitName(), currentResponse, snapshotGeneration);
+            } else {
+                snapshotCache.recordSnapshot(identifier, currentConduit.getConduitName(), null, snapshotGeneration);
             }
         }
         getLogger().info(".getResourceFromEachConduit(Identifier): Exit, Number of Elements in List --> {}", loadedResources.size());
@@ -157,6 +265,86 @@ public abstract class ResourceSoTConduitController {
         return(loadedResources);
     }
 
+    //
+    // Projected Review / Get Conduit Invocation
+    //
+
+    /**
+     * As per getResourceFromEachConduit(Identifier), but with the projection pushed down to each conduit. The
+     * (partial) responses are not recorded in the snapshot cache.
+     */
+    protected List<ResourceSoTConduitActionResponse> getProjectedResourceFromEachConduit(Identifier identifier, ResourceProjection projection){
+        getLogger().debug(".getProjectedResourceFromEachConduit(): Entry, identifier --> {}", identifier);
+        ArrayList<ResourceSoTConduitActionResponse> loadedResources = new ArrayList<ResourceSoTConduitActionResponse>();
+        for(SoTResourceConduit currentConduit: conduitSet){
+            ResourceSoTConduitActionResponse currentResponse;
+            if(currentConduit instanceof SoTResourceConduitFunctionBase){
+                currentResponse = ((SoTResourceConduitFunctionBase)currentConduit).getResourceViaIdentifier(identifier, projection);
+            } else {
+                currentResponse = currentConduit.getResourceViaIdentifier(identifier);
+            }
+            if(currentResponse.hasResource() && currentResponse.getStatusEnum().equals(VirtualDBActionStatusEnum.REVIEW_FINISH)) {
+                loadedResources.add(currentResponse);
+            }
+        }
+        getLogger().debug(".getProjectedResourceFromEachConduit(): Exit, Number of Elements in List --> {}", loadedResources.size());
+        return(loadedResources);
+    }
+
+    protected List<ResourceSoTConduitActionResponse> getProjectedResourceFromEachConduit(IdType id, ResourceProjection projection){
+        getLogger().debug(".getProjectedResourceFromEachConduit(): Entry, id --> {}", id);
+        ArrayList<ResourceSoTConduitActionResponse> loadedResources = new ArrayList<ResourceSoTConduitActionResponse>();
+        for(SoTResourceConduit currentConduit: conduitSet){
+            ResourceSoTConduitActionResponse currentResponse;
+            if(currentConduit instanceof SoTResourceConduitFunctionBase){
+                currentResponse = ((SoTResourceConduitFunctionBase)currentConduit).reviewResource(id, projection);
+            } else {
+                currentResponse = currentConduit.reviewResource(id);
+            }
+            if(currentResponse.getResponseResourceGrade() != ResourceGradeEnum.EMPTY) {
+                loadedResources.add(currentResponse);
+            }
+        }
+        getLogger().debug(".getProjectedResourceFromEachConduit(): Exit");
+        return(loadedResources);
+    }
+
+    //
+    // Batched Review / Get Conduit Invocation
+    //
+
+    /**
+     * Reads a set of resources from each conduit - with a single batched read per conduit where the conduit supports
+     * it (SoTResourceConduitFunctionBase.reviewResources()), otherwise with one read per id.
+     *
+     * @param ids The ids of the resources
+     * @return The responses from each conduit, grouped by the id of the resource
+     */
+    protected Map<String, List<ResourceSoTConduitActionResponse>> getResourcesFromEachConduit(Collection<IdType> ids){
+        getLogger().debug(".getResourcesFromEachConduit(): Entry, ids.size() --> {}", ids.size());
+        LinkedHashMap<String, List<ResourceSoTConduitActionResponse>> loadedResources = new LinkedHashMap<>();
+        for(SoTResourceConduit currentConduit: conduitSet){
+            List<ResourceSoTConduitActionResponse> conduitResponses;
+            if(currentConduit instanceof SoTResourceConduitFunctionBase){
+                conduitResponses = ((SoTResourceConduitFunctionBase)currentConduit).reviewResources(ids);
+            } else {
+                conduitResponses = new ArrayList<>();
+                for(IdType currentId: ids){
+                    conduitResponses.add(currentConduit.reviewResource(currentId));
+                }
+            }
+            for(ResourceSoTConduitActionResponse currentResponse: conduitResponses){
+                if(!currentResponse.hasResource() || currentResponse.getResponseResourceGrade() == ResourceGradeEnum.EMPTY){
+                    continue;
+                }
+                String idPart = ((Resource)currentResponse.getResource()).getIdElement().getIdPart();
+                loadedResources.computeIfAbsent(idPart, id -> new ArrayList<>()).add(currentResponse);
+            }
+        }
+        getLogger().debug(".getResourcesFromEachConduit(): Exit, loadedResources.size() --> {}", loadedResources.size());
+        return(loadedResources);
+    }
+
     //
     // Create Conduit Invocation
     //
@@ -179,6 +367,29 @@ public abstract class ResourceSoTConduitController {
         return(outcomeSet);
     }
 
+    /**
+     *
+     * @param wholeResource
+     * @return
+     */
+    protected List<ResourceSoTConduitActionResponse> createResourceIfAbsentViaEachConduit(Resource wholeResource){
+        getLogger().debug(".createResourceIfAbsentViaEachConduit(): Entry, wholeResource --> {}", wholeResource);
+        ArrayList<ResourceSoTConduitActionResponse> outcomeSet = new ArrayList<>();
+        for(SoTResourceConduit currentConduit: conduitSet) {
+            if(currentConduit.supportsDirectCreateAction(wholeResource)) {
+                ResourceSoTConduitActionResponse outcome;
+                if(currentConduit instanceof SoTResourceConduitFunctionBase){
+                    outcome = ((SoTResourceConduitFunctionBase)currentConduit).createResourceIfAbsent(wholeResource);
+                } else {
+                    outcome = currentConduit.createResource(wholeResource);
+                }
+                outcomeSet.add(outcome);
+            }
+        }
+        getLogger().debug(".createResourceIfAbsentViaEachConduit(): Exit");
+        return(outcomeSet);
+    }
+
     //
     // Update Conduit Invocation
     //
@@ -228,29 +439,306 @@ public abstract class ResourceSoTConduitController {
     //
 
     protected List<ResourceSoTConduitSearchResponseElement> attemptResourceSearch(SearchNameEnum searchName, Map<Property, Serializable> parameterSet){
+        return(attemptResourceSearch(searchName, parameterSet, null));
+    }
+
+    protected List<ResourceSoTConduitSearchResponseElement> attemptResourceSearch(SearchNameEnum searchName, Map<Property, Serializable> parameterSet, ResourceProjection projection){
+        ConduitSearchPlan searchPlan = planResourceSearch(searchName, parameterSet);
+        return(attemptResourceSearch(searchPlan, projection));
+    }
+
+    /**
+     * Plans the search across the conduits - only conduits able to answer the search are searched, each with the
+     * parameters it can push down (the remainder being post-filtered). See ConduitSearchPlanner.
+     */
+    protected ConduitSearchPlan planResourceSearch(SearchNameEnum searchName, Map<Property, Serializable> parameterSet){
+        return(searchPlanner.planSearch(conduitSet, searchName, parameterSet));
+    }
+
+    protected List<ResourceSoTConduitSearchResponseElement> attemptResourceSearch(ConduitSearchPlan searchPlan, ResourceProjection projection){
         getLogger().debug(".attemptResourceSearch(): Entry");
-        ArrayList<ResourceSoTConduitSearchResponseElement> loadedResources = new ArrayList<ResourceSoTConduitSearchResponseElement>();
-        for(SoTResourceConduit currentConduit: conduitSet) {
-            List<ResourceSoTConduitSearchResponseElement> currentResponse = currentConduit.searchSourceOfTruthUsingCriteria(getResourceType(), searchName, parameterSet);
-            loadedResources.addAll(currentResponse);
-        }
-        getLogger().debug(".attemptResourceSearch(): Exit");
+        List<ResourceSoTConduitSearchResponseElement> loadedResources = searchPlanner.executePlan(searchPlan, getResourceType(), projection);
+        getLogger().debug(".attemptResourceSearch(): Exit, plan --> {}", searchPlan);
         return(loadedResources);
     }
 
+    /**
+     * Adds the description of the search plan to the OperationOutcome of the search's outcome (for diagnostics).
+     */
+    protected void reportSearchPlan(VirtualDBMethodOutcome searchOutcome, ConduitSearchPlan searchPlan){
+        if(searchOutcome == null || searchPlan == null){
+            return;
+        }
+        OperationOutcome operationOutcome;
+        if(searchOutcome.getOperationOutcome() instanceof OperationOutcome){
+            operationOutcome = (OperationOutcome)searchOutcome.getOperationOutcome();
+        } else {
+            operationOutcome = new OperationOutcome();
+            searchOutcome.setOperationOutcome(operationOutcome);
+        }
+        operationOutcome.addIssue(searchPlanner.describeAsIssue(searchPlan));
+    }
+
+    /**
+     * This function retrieves the first "count" results of an ordered search, using a k-way merge of the (lazily paged
+     * and ordered) results from each conduit. Pages beyond those needed to satisfy the count are never requested.
+     *
+     * The search is planned as per attemptResourceSearch() (see ConduitSearchPlanner): only the conduits the plan
+     * searches are merged, each with its pushed-down parameters and with its post-filter applied as the results are
+     * paged. As the same entity may be returned by several conduits, the count is applied to the de-duplicated
+     * (aggregated) results - further results are merged until "count" distinct entities have been found.
+     *
+     * For conduits (or searches) that cannot provide ordered, paged results, the full (post-filtered) result set of
+     * the plan's step is ordered locally and used instead.
+     *
+     * @param searchName The search
+     * @param parameterSet The search parameters
+     * @param ordering The ordering of the results
+     * @param count The maximum number of (distinct) results required (a value < 1 means no limit)
+     * @return The (per-conduit) search responses, containing only the resources that made it into the merged result
+     */
+    protected List<ResourceSoTConduitSearchResponseElement> attemptOrderedResourceSearch(SearchNameEnum searchName, Map<Property, Serializable> parameterSet, Comparator<Resource> ordering, int count){
+        getLogger().debug(".attemptOrderedResourceSearch(): Entry, count --> {}", count);
+        int pageSize = DEFAULT_ORDERED_SEARCH_PAGE_SIZE;
+        if(count > 0 && count < pageSize){
+            pageSize = count;
+        }
+        ConduitSearchPlan searchPlan = planResourceSearch(searchName, parameterSet);
+        ArrayList<Iterator<Resource>> orderedSources = new ArrayList<>();
+        ArrayList<ResourceSoTConduitSearchResponseElement> sourceResponses = new ArrayList<>();
+        ArrayList<SearchResultPageIterator> pageIterators = new ArrayList<>();
+        try {
+            for (ConduitSearchPlan.Step currentStep : searchPlan.getSteps()) {
+                if (currentStep.getMode() == ConduitSearchPlan.StepMode.SKIPPED) {
+                    continue;
+                }
+                SoTResourceConduit currentConduit = currentStep.getConduit();
+                SearchResultPageIterator pageIterator = null;
+                if (currentConduit instanceof SoTResourceConduitFunctionBase) {
+                    pageIterator = ((SoTResourceConduitFunctionBase) currentConduit).searchSourceOfTruthInOrder(searchName, currentStep.getPushedDownParameters(), pageSize);
+                }
+                if (pageIterator != null) {
+                    pageIterator.setResultFilter(searchPlanner.createPostFilter(currentStep));
+                    ResourceSoTConduitSearchResponseElement sourceResponse = new ResourceSoTConduitSearchResponseElement();
+                    sourceResponse.setConduitName(currentConduit.getConduitName());
+                    sourceResponse.setResponseResourceGrade(pageIterator.getResponseResourceGrade());
+                    sourceResponse.setSoTConduitGrade(pageIterator.getSoTConduitGrade());
+                    sourceResponses.add(sourceResponse);
+                    pageIterators.add(pageIterator);
+                    orderedSources.add(pageIterator);
+                    continue;
+                }
+                getLogger().trace(".attemptOrderedResourceSearch(): Conduit {} does not support ordered searches, ordering locally", currentConduit.getConduitName());
+                List<ResourceSoTConduitSearchResponseElement> currentResponse = searchPlanner.executeStep(currentStep, getResourceType(), searchName, null);
+                if (currentResponse == null) {
+                    continue;
+                }
+                for (ResourceSoTConduitSearchResponseElement currentElement : currentResponse) {
+                    ArrayList<Resource> locallyOrderedResources = new ArrayList<>();
+                    if (currentElement.getResources() != null) {
+                        locallyOrderedResources.addAll(currentElement.getResources());
+                    }
+                    locallyOrderedResources.sort(ordering);
+                    ResourceSoTConduitSearchResponseElement sourceResponse = new ResourceSoTConduitSearchResponseElement();
+                    sourceResponse.setConduitName(currentConduit.getConduitName());
+                    sourceResponse.setResponseResourceGrade(currentElement.getResponseResourceGrade());
+                    sourceResponse.setSoTConduitGrade(currentElement.getSoTConduitGrade());
+                    sourceResponses.add(sourceResponse);
+                    orderedSources.add(locallyOrderedResources.iterator());
+                }
+            }
+            SortedSearchResultMerger.MergedStream mergedStream = new SortedSearchResultMerger(ordering).open(orderedSources);
+            if (count < 1) {
+                while (mergedStream.hasNext()) {
+                    Resource mergedResource = mergedStream.next();
+                    sourceResponses.get(mergedStream.getLastSourceIndex()).addResource(mergedResource);
+                }
+            } else {
+                // The entities are counted as the resources are merged (the grouping state being kept throughout)
+                SearchResultEntityCounter entityCounter = new SearchResultEntityCounter();
+                while (entityCounter.getEntityCount() < count && mergedStream.hasNext()) {
+                    Resource mergedResource = mergedStream.next();
+                    ResourceSoTConduitSearchResponseElement sourceResponse = sourceResponses.get(mergedStream.getLastSourceIndex());
+                    sourceResponse.addResource(mergedResource);
+                    entityCounter.add(getAggregationService().buildSearchResultGroupingKeys(sourceResponse, mergedResource));
+                }
+            }
+        } finally {
+            for (SearchResultPageIterator currentIterator : pageIterators) {
+                currentIterator.cancel();
+            }
+        }
+        getLogger().debug(".attemptOrderedResourceSearch(): Exit, plan --> {}", searchPlan);
+        return(sourceResponses);
+    }
+
+    /**
+     * Retrieves the next page (of at most pageSize resources) of a search across the conduits, resuming each conduit
+     * from its position in the cursor - which is updated to the position after the last of its resources on the page.
+     * The search is planned as per attemptResourceSearch() (see planResourceSearch()): conduits unable to answer it
+     * are skipped (and take no part in the cursor), and each conduit is searched with the parameters it can push down - the remainder being applied as
+     * a filter on its results (before it is resumed, the cursor's positions counting the filtered results).
+     * The conduits are visited in a stable (conduit name) order, so the same cursor always yields the same page:
+     * - an ordered search is a k-way merge of the conduits' ordered results (see SortedSearchResultMerger)
+     * - an unordered search takes each conduit's results in turn, a conduit only being searched once those of the
+     *   preceding conduits are exhausted
+     * Only the pages needed for the page being returned are retrieved from each conduit.
+     *
+     * @param searchPlan The plan of the search (see planResourceSearch())
+     * @param ordering The ordering of the results, or null if the search is unordered
+     * @param pageSize The maximum number of resources in the page
+     * @param cursor The cursor of the search (updated in place)
+     * @return The (per-conduit) search responses, containing only the resources of the page
+     */
+    protected List<ResourceSoTConduitSearchResponseElement> attemptPagedResourceSearch(ConduitSearchPlan searchPlan, Comparator<Resource> ordering,
+                                                                                     int pageSize, SearchCursor cursor){
+        getLogger().debug(".attemptPagedResourceSearch(): Entry, pageSize --> {}", pageSize);
+        SearchNameEnum searchName = searchPlan.getSearchName();
+        List<ConduitSearchPlan.Step> orderedSteps = getPagedSearchSteps(searchPlan);
+        ArrayList<ResourceSoTConduitSearchResponseElement> sourceResponses = new ArrayList<>();
+        ArrayList<SoTResourceConduit> searchedConduits = new ArrayList<>();
+        ArrayList<SearchResultPageIterator> conduitIterators = new ArrayList<>();
+        try {
+            if (ordering != null) {
+                ArrayList<Iterator<Resource>> orderedSources = new ArrayList<>();
+                for (ConduitSearchPlan.Step currentStep : orderedSteps) {
+                    SoTResourceConduit currentConduit = currentStep.getConduit();
+                    if (cursor.isExhausted(currentConduit.getConduitName())) {
+                        continue;
+                    }
+                    SearchResultPageIterator pageIterator = openPagedConduitSearch(currentStep, searchName, ordering, pageSize, cursor);
+                    searchedConduits.add(currentConduit);
+                    conduitIterators.add(pageIterator);
+                    orderedSources.add(pageIterator);
+                }
+                SortedSearchResultMerger merger = new SortedSearchResultMerger(ordering);
+                List<List<Resource>> mergedResult = merger.merge(orderedSources, pageSize);
+                for (int sourceIndex = 0; sourceIndex < searchedConduits.size(); sourceIndex += 1) {
+                    List<Resource> takenResources = mergedResult.get(sourceIndex);
+                    sourceResponses.add(createPagedSearchResponse(conduitIterators.get(sourceIndex), takenResources));
+                    advanceCursor(cursor, searchedConduits.get(sourceIndex).getConduitName(), conduitIterators.get(sourceIndex), takenResources.size());
+                }
+            } else {
+                int pageCount = 0;
+                for (ConduitSearchPlan.Step currentStep : orderedSteps) {
+                    if (pageCount >= pageSize) {
+                        break;
+                    }
+                    SoTResourceConduit currentConduit = currentStep.getConduit();
+                    if (cursor.isExhausted(currentConduit.getConduitName())) {
+                        continue;
+                    }
+                    SearchResultPageIterator pageIterator = openPagedConduitSearch(currentStep, searchName, null, pageSize - pageCount, cursor);
+                    conduitIterators.add(pageIterator);
+                    ArrayList<Resource> takenResources = new ArrayList<>();
+                    while (pageCount < pageSize && pageIterator.hasNext()) {
+                        takenResources.add(pageIterator.next());
+                        pageCount += 1;
+                    }
+                    sourceResponses.add(createPagedSearchResponse(pageIterator, takenResources));
+                    advanceCursor(cursor, currentConduit.getConduitName(), pageIterator, takenResources.size());
+                }
+            }
+        } finally {
+            for (SearchResultPageIterator currentIterator : conduitIterators) {
+                currentIterator.cancel();
+            }
+        }
+        getLogger().debug(".attemptPagedResourceSearch(): Exit, plan --> {}", searchPlan);
+        return(sourceResponses);
+    }
+
+    private List<ConduitSearchPlan.Step> getPagedSearchSteps(ConduitSearchPlan searchPlan){
+        ArrayList<ConduitSearchPlan.Step> orderedSteps = new ArrayList<>();
+        for(ConduitSearchPlan.Step currentStep: searchPlan.getSteps()){
+            if(currentStep.getMode() != ConduitSearchPlan.StepMode.SKIPPED){
+                orderedSteps.add(currentStep);
+            }
+        }
+        orderedSteps.sort(Comparator.comparing(step -> step.getConduit().getConduitName()));
+        return(orderedSteps);
+    }
+
+    private SearchResultPageIterator openPagedConduitSearch(ConduitSearchPlan.Step step, SearchNameEnum searchName, Comparator<Resource> ordering,
+                                                            int pageSize, SearchCursor cursor){
+        SoTResourceConduit conduit = step.getConduit();
+        SearchResultPosition resumePosition = cursor.getPosition(conduit.getConduitName());
+        if(conduit instanceof SoTResourceConduitFunctionBase){
+            return(((SoTResourceConduitFunctionBase)conduit).searchSourceOfTruthInPages(searchName, step.getPushedDownParameters(), pageSize, ordering,
+                    resumePosition, searchPlanner.createPostFilter(step)));
+        }
+        getLogger().trace(".openPagedConduitSearch(): Conduit {} does not support paged searches, using full results", conduit.getConduitName());
+        // The step's results are already post-filtered
+        List<ResourceSoTConduitSearchResponseElement> searchResults = searchPlanner.executeStep(step, getResourceType(), searchName, null);
+        SearchResultPageIterator pageIterator = SearchResultPageIterator.ofSearchResults(getResourceType(), searchResults, ordering);
+        pageIterator.setConduitName(conduit.getConduitName());
+        if(resumePosition != null){
+            pageIterator.skipTo(resumePosition);
+        }
+        return(pageIterator);
+    }
+
+    private ResourceSoTConduitSearchResponseElement createPagedSearchResponse(SearchResultPageIterator pageIterator, List<Resource> takenResources){
+        ResourceSoTConduitSearchResponseElement sourceResponse = new ResourceSoTConduitSearchResponseElement();
+        sourceResponse.setConduitName(pageIterator.getConduitName());
+        sourceResponse.setResponseResourceGrade(pageIterator.getResponseResourceGrade());
+        sourceResponse.setSoTConduitGrade(pageIterator.getSoTConduitGrade());
+        for(Resource currentResource: takenResources){
+            sourceResponse.addResource(currentResource);
+        }
+        return(sourceResponse);
+    }
+
+    private void advanceCursor(SearchCursor cursor, String conduitName, SearchResultPageIterator pageIterator, int takenCount){
+        // A conduit whose look-ahead resource (see SortedSearchResultMerger) was not taken is not exhausted
+        if(pageIterator.getReturnedCount() == takenCount && !pageIterator.hasNext()){
+            cursor.setExhausted(conduitName);
+        } else {
+            cursor.setPosition(conduitName, pageIterator.getPositionAfter(takenCount));
+        }
+    }
+
     //
     // Public Methods
     //
 
     public VirtualDBMethodOutcome createResource(Resource resourceToCreate) {
-        List<ResourceSoTConduitActionResponse> methodOutcomes = this.createResourceViaEachConduit(resourceToCreate);
+        invalidateSnapshots(resourceToCreate);
+        List<ResourceSoTConduitActionResponse> methodOutcomes;
+        try {
+            methodOutcomes = this.createResourceViaEachConduit(resourceToCreate);
+        } finally {
+            // Again once written, discarding any snapshot of the prior state recorded by a read during the write
+            invalidateSnapshots(resourceToCreate);
+        }
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateCreateResponseSet(methodOutcomes);
+        return(aggregatedMethodOutcome);
+    }
+
+    /**
+     * Creates the resource in each conduit unless it already exists there (by Identifier), in a single (conditional
+     * create) request per conduit - replacing the reviewResource()-then-createResource() pattern.
+     *
+     * @param resourceToCreate The resource to be created
+     * @return The aggregated outcome, containing either the new or the existing resource
+     */
+    public VirtualDBMethodOutcome createIfAbsent(Resource resourceToCreate) {
+        invalidateSnapshots(resourceToCreate);
+        List<ResourceSoTConduitActionResponse> methodOutcomes;
+        try {
+            methodOutcomes = this.createResourceIfAbsentViaEachConduit(resourceToCreate);
+        } finally {
+            // Again once written, discarding any snapshot of the prior state recorded by a read during the write
+            invalidateSnapshots(resourceToCreate);
+        }
         VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateCreateResponseSet(methodOutcomes);
         return(aggregatedMethodOutcome);
     }
 
     public VirtualDBMethodOutcome reviewResource(Identifier identifier) {
         getLogger().info(".reviewResource(): Entry, identifier --> {}");
-        List<ResourceSoTConduitActionResponse> methodOutcomes = this.getResourceFromEachConduit(identifier);
+        long snapshotGeneration = snapshotCache.getInvalidationGeneration();
+        List<ResourceSoTConduitActionResponse> methodOutcomes = this.getResourceFromEachConduit(identifier, snapshotGeneration);
         if(methodOutcomes.isEmpty()){
             getLogger().info(".reviewResource(): Failed to find a resource, generating failed outcome");
             String activityLocation = getResourceType().toString() + "reviewResource()";
@@ -260,17 +748,112 @@ public abstract class ResourceSoTConduitController {
         } else {
             getLogger().info(".reviewResource(): Exit, found at least one resource, aggregating results");
             VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateGetResponseSet(methodOutcomes);
+            snapshotCache.recordAggregatedOutcome(identifier, aggregatedMethodOutcome, snapshotGeneration);
             getLogger().info(".reviewResource(): Exit, found at least one resource, returning it");
             return (aggregatedMethodOutcome);
         }
     }
 
+    /**
+     * Reviews the resource, retrieving only the content described by the projection from each conduit (pushed down as
+     * "_elements"/"_summary"). The aggregated resource is SUBSETTED, and is not cached.
+     *
+     * @param identifier The identifier of the resource
+     * @param projection The content required (or null for the whole resource)
+     * @return The aggregated (partial) resource
+     */
+    public VirtualDBMethodOutcome reviewResource(Identifier identifier, ResourceProjection projection) {
+        if(projection == null){
+            return(reviewResource(identifier));
+        }
+        List<ResourceSoTConduitActionResponse> methodOutcomes = this.getProjectedResourceFromEachConduit(identifier, projection);
+        if(methodOutcomes.isEmpty()){
+            String activityLocation = getResourceType().toString() + "reviewResource()";
+            VirtualDBMethodOutcome aggregatedMethodOutcome = outcomeFactory.createResourceActivityOutcome(null, VirtualDBActionStatusEnum.REVIEW_FAILURE,activityLocation);
+            return(aggregatedMethodOutcome);
+        }
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateGetResponseSet(methodOutcomes);
+        return(aggregatedMethodOutcome);
+    }
+
+    public VirtualDBMethodOutcome reviewResource(IdType id, ResourceProjection projection) {
+        if(projection == null){
+            return(reviewResource(id));
+        }
+        List<ResourceSoTConduitActionResponse> methodOutcomes = this.getProjectedResourceFromEachConduit(id, projection);
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateGetResponseSet(methodOutcomes);
+        return(aggregatedMethodOutcome);
+    }
+
     public VirtualDBMethodOutcome reviewResource(IdType id) {
         List<ResourceSoTConduitActionResponse> methodOutcomes = this.getResourceFromEachConduit(id);
         VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateGetResponseSet(methodOutcomes);
         return(aggregatedMethodOutcome);
     }
 
+    /**
+     * Reviews a set of resources, reading them from each conduit in a single batch (per conduit) and aggregating each
+     * resource as per reviewResource(IdType).
+     *
+     * @param ids The ids of the resources
+     * @return The aggregated resources that could be found (in no particular order)
+     */
+    public List<Resource> reviewResources(Collection<IdType> ids) {
+        List<Resource> aggregatedResources = new ArrayList<>();
+        if(ids == null || ids.isEmpty()){
+            return(aggregatedResources);
+        }
+        Map<String, List<ResourceSoTConduitActionResponse>> methodOutcomes = this.getResourcesFromEachConduit(ids);
+        for(List<ResourceSoTConduitActionResponse> currentOutcomes: methodOutcomes.values()){
+            VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateGetResponseSet(currentOutcomes);
+            if(aggregatedMethodOutcome != null && aggregatedMethodOutcome.getResource() instanceof Resource){
+                aggregatedResources.add((Resource)aggregatedMethodOutcome.getResource());
+            }
+        }
+        return(aggregatedResources);
+    }
+
+    /**
+     * Reviews the resource together with the resources it references (as per "_include"). The outcome contains a
+     * SEARCHSET Bundle, with the resource as its (only) "match" entry and the referenced resources as "include"
+     * entries. If the resource cannot be found, the outcome is the same as reviewResource(Identifier).
+     *
+     * @param identifier The identifier of the resource
+     * @param includes The "_include" specifications (e.g. "CareTeam:participant:Practitioner")
+     * @return The outcome containing the SEARCHSET Bundle
+     */
+    public VirtualDBMethodOutcome reviewResource(Identifier identifier, Set<Include> includes) {
+        return(assembleIncludedOutcome(reviewResource(identifier), includes));
+    }
+
+    /**
+     * As per reviewResource(Identifier, Set<Include>), but locating the resource via its id.
+     */
+    public VirtualDBMethodOutcome reviewResource(IdType id, Set<Include> includes) {
+        return(assembleIncludedOutcome(reviewResource(id), includes));
+    }
+
+    protected VirtualDBMethodOutcome assembleIncludedOutcome(VirtualDBMethodOutcome reviewOutcome, Set<Include> includes){
+        if(includes == null || includes.isEmpty() || reviewOutcome == null || !(reviewOutcome.getResource() instanceof Resource)){
+            return(reviewOutcome);
+        }
+        Resource primaryResource = (Resource)reviewOutcome.getResource();
+        List<Resource> includedResources = includeResolver.resolveIncludes(Collections.singletonList(primaryResource), includes);
+        // The review outcome may be held in the snapshot cache, so the Bundle is returned in a new outcome
+        Bundle resultBundle = new Bundle();
+        resultBundle.setType(Bundle.BundleType.SEARCHSET);
+        resultBundle.setTimestamp(new Date());
+        Bundle.BundleEntryComponent primaryEntry = resultBundle.addEntry();
+        primaryEntry.setResource(primaryResource);
+        primaryEntry.getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        includeResolver.addIncludedResources(resultBundle, includedResources);
+        resultBundle.setTotal(1);
+        String activityLocation = getResourceType().toString() + "reviewResource()";
+        VirtualDBMethodOutcome includedOutcome = outcomeFactory.createResourceActivityOutcome(resultBundle, reviewOutcome.getStatusEnum(), activityLocation);
+        includedOutcome.setCausalAction(reviewOutcome.getCausalAction());
+        return(includedOutcome);
+    }
+
     public VirtualDBMethodOutcome reviewResource(List<Identifier> identifiers) {
         List<ResourceSoTConduitActionResponse> methodOutcomes = this.getResourceFromEachConduit(identifiers);
         VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateGetResponseSet(methodOutcomes);
@@ -278,22 +861,293 @@ public abstract class ResourceSoTConduitController {
     }
 
     public VirtualDBMethodOutcome updateResource(Resource resourceToUpdate) {
-        List<ResourceSoTConduitActionResponse> methodOutcomes = this.updateResourceViaEachConduit(resourceToUpdate);
+        invalidateSnapshots(resourceToUpdate);
+        List<ResourceSoTConduitActionResponse> methodOutcomes;
+        try {
+            methodOutcomes = this.updateResourceViaEachConduit(resourceToUpdate);
+        } finally {
+            // Again once written, discarding any snapshot of the prior state recorded by a read during the write
+            invalidateSnapshots(resourceToUpdate);
+        }
         VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateUpdateResponseSet(methodOutcomes);
         return(aggregatedMethodOutcome);
     }
 
     public VirtualDBMethodOutcome deleteResource(Resource resourceToDelete) {
-        List<ResourceSoTConduitActionResponse> methodOutcomes = this.deleteResourceViaEachConduit(resourceToDelete);
+        invalidateSnapshots(resourceToDelete);
+        List<ResourceSoTConduitActionResponse> methodOutcomes;
+        try {
+            methodOutcomes = this.deleteResourceViaEachConduit(resourceToDelete);
+        } finally {
+            // Again once written, discarding any snapshot of the prior state recorded by a read during the write
+            invalidateSnapshots(resourceToDelete);
+        }
         VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateDeleteResponseSet(methodOutcomes);
         return(aggregatedMethodOutcome);
     }
 
+    /**
+     * Removes the snapshots held for a resource (as keyed by each of its Identifiers), as they are stale once the
+     * resource has been written via the controller. Called both before and after the conduits are written, as a read
+     * concurrent with the write may otherwise cache the state from before the write (see ConduitSnapshotCache).
+     *
+     * @param resource The resource being written
+     */
+    protected void invalidateSnapshots(Resource resource){
+        if(resource == null){
+            return;
+        }
+        Property identifierProperty = resource.getNamedProperty("identifier");
+        if(identifierProperty == null){
+            return;
+        }
+        for(Base currentValue: identifierProperty.getValues()){
+            if(currentValue instanceof Identifier){
+                snapshotCache.invalidate((Identifier)currentValue);
+            }
+        }
+    }
+
     public VirtualDBMethodOutcome getResourcesViaSearchCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet) {
         getLogger().debug(".getResourcesViaSearchCriteria(): Entry");
-        List<ResourceSoTConduitSearchResponseElement> responseElements = this.attemptResourceSearch(searchName, parameterSet);
+        ConduitSearchPlan searchPlan = planResourceSearch(searchName, parameterSet);
+        List<ResourceSoTConduitSearchResponseElement> responseElements = this.attemptResourceSearch(searchPlan, null);
         VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateSearchResultSet(responseElements);
+        reportSearchPlan(aggregatedMethodOutcome, searchPlan);
+        getLogger().debug(".getResourcesViaSearchCriteria(): Exit");
+        return(aggregatedMethodOutcome);
+    }
+
+    /**
+     * As per getResourcesViaSearchCriteria(), but with the projection pushed down to each conduit's search - the
+     * resources in the resulting Bundle are SUBSETTED.
+     */
+    public VirtualDBMethodOutcome getResourcesViaSearchCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet, ResourceProjection projection) {
+        getLogger().debug(".getResourcesViaSearchCriteria(): Entry, projection --> {}", projection);
+        ConduitSearchPlan searchPlan = planResourceSearch(searchName, parameterSet);
+        List<ResourceSoTConduitSearchResponseElement> responseElements = this.attemptResourceSearch(searchPlan, projection);
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateSearchResultSet(responseElements);
+        reportSearchPlan(aggregatedMethodOutcome, searchPlan);
+        getLogger().debug(".getResourcesViaSearchCriteria(): Exit");
+        return(aggregatedMethodOutcome);
+    }
+
+    /**
+     * Performs the search in a summary mode - returning only the number of matches (COUNT) or whether there are any
+     * (EXISTS), as the total of an otherwise empty SEARCHSET Bundle. Where possible the summary is pushed down to the
+     * conduits ("_summary=count" / "_count=1", see ConduitSearchPlanner.executeCountPlan() and executeExistsPlan()),
+     * so that the matching resources are neither transferred nor aggregated. A count across several conduits requires
+     * the matches to be de-duplicated, so is performed via a standard search.
+     *
+     * @param resourceType The type of resource being searched for
+     * @param searchName The search
+     * @param parameterSet The search parameters
+     * @param summaryMode The summary required (or null for the standard search)
+     * @return A VirtualDBMethodOutcome containing the (entry-less) SEARCHSET Bundle
+     */
+    public VirtualDBMethodOutcome getResourcesViaSearchCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet, SearchSummaryModeEnum summaryMode) {
+        getLogger().debug(".getResourcesViaSearchCriteria(): Entry, summaryMode --> {}", summaryMode);
+        if(summaryMode == null){
+            return(getResourcesViaSearchCriteria(resourceType, searchName, parameterSet));
+        }
+        ConduitSearchPlan searchPlan = planResourceSearch(searchName, parameterSet);
+        VirtualDBMethodOutcome summaryOutcome;
+        if(summaryMode == SearchSummaryModeEnum.EXISTS){
+            Boolean matchesExist = searchPlanner.executeExistsPlan(searchPlan, getResourceType());
+            if(matchesExist == null){
+                String activityLocation = getResourceType().toString() + "getResourcesViaSearchCriteria()";
+                VirtualDBMethodOutcome failedOutcome = outcomeFactory.createResourceActivityOutcome(null, VirtualDBActionStatusEnum.SEARCH_FAILURE, activityLocation);
+                OperationOutcome operationOutcome = new OperationOutcome();
+                operationOutcome.addIssue()
+                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcome.IssueType.EXCEPTION)
+                        .setDiagnostics("No conduit could be searched, so whether there are matches is unknown");
+                failedOutcome.setOperationOutcome(operationOutcome);
+                reportSearchPlan(failedOutcome, searchPlan);
+                getLogger().debug(".getResourcesViaSearchCriteria(): Exit, search failed");
+                return(failedOutcome);
+            }
+            summaryOutcome = getAggregationService().aggregateSearchSummary(summaryMode, matchesExist ? 1 : 0);
+        } else {
+            Integer matchCount = searchPlanner.executeCountPlan(searchPlan, getResourceType());
+            if(matchCount == null){
+                getLogger().trace(".getResourcesViaSearchCriteria(): Count cannot be pushed down, counting aggregated search results");
+                List<ResourceSoTConduitSearchResponseElement> responseElements = this.attemptResourceSearch(searchPlan, null);
+                VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateSearchResultSet(responseElements);
+                if(aggregatedMethodOutcome == null || !(aggregatedMethodOutcome.getResource() instanceof Bundle)){
+                    reportSearchPlan(aggregatedMethodOutcome, searchPlan);
+                    getLogger().debug(".getResourcesViaSearchCriteria(): Exit, search failed");
+                    return(aggregatedMethodOutcome);
+                }
+                matchCount = ((Bundle)aggregatedMethodOutcome.getResource()).getTotal();
+            }
+            summaryOutcome = getAggregationService().aggregateSearchSummary(summaryMode, matchCount);
+        }
+        reportSearchPlan(summaryOutcome, searchPlan);
         getLogger().debug(".getResourcesViaSearchCriteria(): Exit");
+        return(summaryOutcome);
+    }
+
+    /**
+     * As per getResourcesViaSearchCriteria(), with the resources referenced by the matches (as per "_include") added
+     * to the resulting Bundle as "include" entries. The referenced resources are resolved via their own controllers,
+     * with the references from all the matches collected (and de-duplicated) first, so that each referenced type is
+     * read in one batch per conduit.
+     */
+    public VirtualDBMethodOutcome getResourcesViaSearchCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet, Set<Include> includes) {
+        getLogger().debug(".getResourcesViaSearchCriteria(): Entry, includes --> {}", includes);
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getResourcesViaSearchCriteria(resourceType, searchName, parameterSet);
+        if(includes == null || includes.isEmpty() || aggregatedMethodOutcome == null || !(aggregatedMethodOutcome.getResource() instanceof Bundle)){
+            getLogger().debug(".getResourcesViaSearchCriteria(): Exit, nothing to include");
+            return(aggregatedMethodOutcome);
+        }
+        Bundle searchResultBundle = (Bundle)aggregatedMethodOutcome.getResource();
+        List<Resource> matchedResources = new ArrayList<>();
+        for(Bundle.BundleEntryComponent currentEntry: searchResultBundle.getEntry()){
+            if(currentEntry.hasResource()){
+                matchedResources.add(currentEntry.getResource());
+            }
+        }
+        List<Resource> includedResources = includeResolver.resolveIncludes(matchedResources, includes);
+        includeResolver.addIncludedResources(searchResultBundle, includedResources);
+        getLogger().debug(".getResourcesViaSearchCriteria(): Exit, included {} resources", includedResources.size());
         return(aggregatedMethodOutcome);
     }
+
+    /**
+     * Performs a search whose results have a natural ordering (see specifySearchResultOrdering()), returning (at most)
+     * the first "count" results in that order. If the search has no natural ordering, this is the same as
+     * getResourcesViaSearchCriteria().
+     *
+     * @param resourceType The type of resource being searched for
+     * @param searchName The search
+     * @param parameterSet The search parameters
+     * @param count The maximum number of results (the "_count" of the search), a value < 1 means no limit
+     * @return A VirtualDBMethodOutcome containing the (ordered) SEARCHSET Bundle
+     */
+    public VirtualDBMethodOutcome getResourcesViaOrderedSearch(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet, int count) {
+        getLogger().debug(".getResourcesViaOrderedSearch(): Entry");
+        Comparator<Resource> ordering = specifySearchResultOrdering(searchName);
+        if(ordering == null){
+            getLogger().debug(".getResourcesViaOrderedSearch(): Exit, search has no natural ordering, using standard search");
+            return(getResourcesViaSearchCriteria(resourceType, searchName, parameterSet));
+        }
+        List<ResourceSoTConduitSearchResponseElement> responseElements = this.attemptOrderedResourceSearch(searchName, parameterSet, ordering, count);
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateSearchResultSet(responseElements);
+        if(aggregatedMethodOutcome != null && aggregatedMethodOutcome.getResource() instanceof Bundle){
+            Bundle searchResultBundle = (Bundle)aggregatedMethodOutcome.getResource();
+            searchResultBundle.getEntry().sort((first, second) -> ordering.compare(first.getResource(), second.getResource()));
+        }
+        getLogger().debug(".getResourcesViaOrderedSearch(): Exit");
+        return(aggregatedMethodOutcome);
+    }
+
+    /**
+     * Retrieves a page of the results of a search, resumable via a (stateless) cursor token - so a client can page
+     * through a large result set without it being retrieved (or held) in full, and without any state being retained
+     * between its requests. The token for the following page is returned as the url of the Bundle's "next" link (there
+     * is no such link on the last page), and is expected to be carried within the facade's own paging URL. If the search
+     * has a natural ordering (see specifySearchResultOrdering()), the pages are in that order.
+     *
+     * @param resourceType The type of resource being searched for
+     * @param searchName The search
+     * @param parameterSet The search parameters (the same for every page)
+     * @param pageSize The maximum number of resources in the page
+     * @param cursorToken The token from the previous page's "next" link, or null for the first page
+     * @return A VirtualDBMethodOutcome containing the SEARCHSET Bundle of the page
+     */
+    public VirtualDBMethodOutcome getResourcesViaPagedSearch(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet, int pageSize, String cursorToken) {
+        getLogger().debug(".getResourcesViaPagedSearch(): Entry, pageSize --> {}", pageSize);
+        Comparator<Resource> ordering = specifySearchResultOrdering(searchName);
+        SearchCursor cursor;
+        try {
+            if(cursorToken == null || cursorToken.isEmpty()){
+                cursor = new SearchCursor(searchName, parameterSet, ordering != null);
+            } else {
+                cursor = SearchCursor.decode(cursorToken, searchName, parameterSet, ordering != null);
+            }
+        } catch(IllegalArgumentException cursorException){
+            getLogger().debug(".getResourcesViaPagedSearch(): Exit, invalid cursor --> {}", cursorException.getMessage());
+            String activityLocation = getResourceType().toString() + "getResourcesViaPagedSearch()";
+            VirtualDBMethodOutcome failedOutcome = outcomeFactory.createResourceActivityOutcome(null, VirtualDBActionStatusEnum.SEARCH_FAILURE, activityLocation);
+            OperationOutcome operationOutcome = new OperationOutcome();
+            operationOutcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.INVALID)
+                    .setDiagnostics(cursorException.getMessage());
+            failedOutcome.setOperationOutcome(operationOutcome);
+            return(failedOutcome);
+        }
+        int effectivePageSize = pageSize > 0 ? pageSize : DEFAULT_ORDERED_SEARCH_PAGE_SIZE;
+        ConduitSearchPlan searchPlan = planResourceSearch(searchName, parameterSet);
+        List<ResourceSoTConduitSearchResponseElement> responseElements = this.attemptPagedResourceSearch(searchPlan, ordering, effectivePageSize, cursor);
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateSearchResultSet(responseElements);
+        if(aggregatedMethodOutcome != null && aggregatedMethodOutcome.getResource() instanceof Bundle){
+            Bundle searchResultBundle = (Bundle)aggregatedMethodOutcome.getResource();
+            if(ordering != null){
+                searchResultBundle.getEntry().sort((first, second) -> ordering.compare(first.getResource(), second.getResource()));
+            }
+            // Only the conduits the plan searches can be exhausted
+            if(!cursor.isExhausted(searchPlan)){
+                searchResultBundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(cursor.encode());
+            }
+        }
+        getLogger().debug(".getResourcesViaPagedSearch(): Exit");
+        return(aggregatedMethodOutcome);
+    }
+
+    /**
+     * As per getResourcesViaSearchCriteria(), but with the matches published as they are retrieved (see
+     * SearchResultPublisher) rather than assembled into a single Bundle - for consumers (e.g. exports) that process
+     * the matches incrementally. The search is planned as per attemptPagedResourceSearch() (skipped conduits are not
+     * searched, the rest with their pushed-down parameters and post-filter). The conduits are only paged through as the
+     * subscriber's demand requires, and cancelling the subscription stops the conduits' searches (no further pages being
+     * requested). Duplicates of an entity are aggregated within a batch and dropped once it is published. If the
+     * search has a natural ordering (see specifySearchResultOrdering()), the matches are published in that order.
+     *
+     * @param resourceType The type of resource being searched for
+     * @param searchName The search
+     * @param parameterSet The search parameters
+     * @return A (cold) Publisher of the matches - each subscription performs the search
+     */
+    public Flow.Publisher<Resource> publishResourcesViaSearchCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet) {
+        getLogger().debug(".publishResourcesViaSearchCriteria(): Entry, searchName --> {}", searchName);
+        Comparator<Resource> ordering = specifySearchResultOrdering(searchName);
+        int batchSize = specifyPublishedSearchBatchSize();
+        SearchResultPublisher searchPublisher = new SearchResultPublisher(
+                () -> openPublishedConduitSearches(searchName, parameterSet, ordering, batchSize),
+                ordering,
+                this::aggregatePublishedBatch,
+                getAggregationService()::buildSearchResultGroupingKeys,
+                batchSize,
+                conduitTaskExecutors.getSearchPublisherExecutor());
+        getLogger().debug(".publishResourcesViaSearchCriteria(): Exit");
+        return(searchPublisher);
+    }
+
+    private List<SearchResultPageIterator> openPublishedConduitSearches(SearchNameEnum searchName, Map<Property, Serializable> parameterSet,
+                                                                        Comparator<Resource> ordering, int pageSize){
+        ConduitSearchPlan searchPlan = planResourceSearch(searchName, parameterSet);
+        SearchCursor startCursor = new SearchCursor(searchName, parameterSet, ordering != null);
+        ArrayList<SearchResultPageIterator> conduitIterators = new ArrayList<>();
+        for(ConduitSearchPlan.Step currentStep: getPagedSearchSteps(searchPlan)){
+            conduitIterators.add(openPagedConduitSearch(currentStep, searchName, ordering, pageSize, startCursor));
+        }
+        getLogger().debug(".openPublishedConduitSearches(): Exit, plan --> {}", searchPlan);
+        return(conduitIterators);
+    }
+
+    private List<Resource> aggregatePublishedBatch(List<ResourceSoTConduitSearchResponseElement> batchResponses){
+        VirtualDBMethodOutcome aggregatedMethodOutcome = getAggregationService().aggregateSearchResultSet(batchResponses);
+        if(aggregatedMethodOutcome == null || !(aggregatedMethodOutcome.getResource() instanceof Bundle)){
+            throw(new IllegalStateException("Aggregation of the search results failed, status --> " + (aggregatedMethodOutcome == null ? null : aggregatedMethodOutcome.getStatusEnum())));
+        }
+        ArrayList<Resource> aggregatedResources = new ArrayList<>();
+        for(Bundle.BundleEntryComponent currentEntry: ((Bundle)aggregatedMethodOutcome.getResource()).getEntry()){
+            if(currentEntry.hasResource()){
+                aggregatedResources.add(currentEntry.getResource());
+            }
+        }
+        return(aggregatedResources);
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Locates the ResourceSoTConduitController for a resource type - so that one controller can resolve the resources
+ * referenced by its own (e.g. for "_include" style expansion) via the controller (and, therefore, the conduits and
+ * aggregation) responsible for the referenced type.
+ */
+@ApplicationScoped
+public class ResourceSoTConduitControllerRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceSoTConduitControllerRegistry.class);
+
+    @Inject
+    @Any
+    Instance<ResourceSoTConduitController> controllers;
+
+    private volatile Map<ResourceType, ResourceSoTConduitController> controllerMap;
+
+    public ResourceSoTConduitController getController(ResourceType resourceType){
+        if(resourceType == null){
+            return(null);
+        }
+        return(getControllerMap().get(resourceType));
+    }
+
+    private Map<ResourceType, ResourceSoTConduitController> getControllerMap(){
+        Map<ResourceType, ResourceSoTConduitController> currentMap = controllerMap;
+        if(currentMap == null){
+            synchronized(this){
+                currentMap = controllerMap;
+                if(currentMap == null){
+                    currentMap = new EnumMap<>(ResourceType.class);
+                    for(ResourceSoTConduitController currentController: controllers){
+                        currentMap.put(currentController.getResourceType(), currentController);
+                    }
+                    LOG.debug(".getControllerMap(): Registered controllers for --> {}", currentMap.keySet());
+                    controllerMap = currentMap;
+                }
+            }
+        }
+        return(currentMap);
+    }
+}
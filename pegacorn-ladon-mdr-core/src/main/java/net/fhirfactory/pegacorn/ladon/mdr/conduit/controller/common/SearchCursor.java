@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPosition;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.searches.SearchNameEnum;
+import org.hl7.fhir.r4.model.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The (stateless) cursor of a paged search across the conduits: for each conduit, either the SearchResultPosition
+ * after the last of its resources that was returned, or that its results are exhausted (conduits with neither have not
+ * yet contributed, so start from the beginning). The cursor is handed to the client as an opaque (URL-safe) token, so
+ * no state is retained between the client's requests - and as the token is supplied by the client, it is signed
+ * (HMAC-SHA256) and any token whose signature does not match is rejected, so a client cannot forge the positions
+ * (or page URLs) within it. It is also validated against the search it is used with: the search name and a digest
+ * of the (canonicalised) search parameters and ordering are signed with the positions, so a cursor cannot be replayed
+ * with different parameters (the positions being those of the search that issued it).
+ *
+ * The signing key is configured via the system property or environment variable LADON_MDR_SEARCH_CURSOR_KEY, and
+ * must be the same on every node that may serve the following page. If it is not configured, a random key is used,
+ * so a cursor is only accepted by the node (and process) that issued it.
+ */
+public class SearchCursor {
+    private static final Logger LOG = LoggerFactory.getLogger(SearchCursor.class);
+
+    private static final int TOKEN_VERSION = 3;
+    private static final byte STATE_EXHAUSTED = 'E';
+    private static final byte STATE_POSITIONED = 'P';
+    private static final String SIGNING_KEY_PROPERTY = "LADON_MDR_SEARCH_CURSOR_KEY";
+    private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_LENGTH = 32;
+    private static final String PARAMETER_DIGEST_ALGORITHM = "SHA-256";
+    private static final int PARAMETER_DIGEST_LENGTH = 32;
+    private static final byte[] SIGNING_KEY = loadSigningKey();
+
+    private final SearchNameEnum searchName;
+    private final byte[] parameterDigest;
+    private final Map<String, SearchResultPosition> conduitPositions;
+    private final Map<String, Boolean> conduitsExhausted;
+
+    /**
+     * @param searchName The search
+     * @param parameterSet The search parameters (the same for every page)
+     * @param ordered Whether the search is ordered (see ResourceSoTConduitController.specifySearchResultOrdering())
+     */
+    public SearchCursor(SearchNameEnum searchName, Map<Property, Serializable> parameterSet, boolean ordered){
+        this(searchName, digestParameters(parameterSet, ordered));
+    }
+
+    private SearchCursor(SearchNameEnum searchName, byte[] parameterDigest){
+        this.searchName = searchName;
+        this.parameterDigest = parameterDigest;
+        this.conduitPositions = new LinkedHashMap<>();
+        this.conduitsExhausted = new LinkedHashMap<>();
+    }
+
+    public SearchNameEnum getSearchName() {
+        return searchName;
+    }
+
+    public void setPosition(String conduitName, SearchResultPosition position){
+        conduitsExhausted.remove(conduitName);
+        if(position == null){
+            conduitPositions.remove(conduitName);
+        } else {
+            conduitPositions.put(conduitName, position);
+        }
+    }
+
+    /**
+     * @return The position to resume the conduit's results from, or null to start from the beginning
+     */
+    public SearchResultPosition getPosition(String conduitName){
+        return(conduitPositions.get(conduitName));
+    }
+
+    public void setExhausted(String conduitName){
+        conduitPositions.remove(conduitName);
+        conduitsExhausted.put(conduitName, Boolean.TRUE);
+    }
+
+    public boolean isExhausted(String conduitName){
+        return(conduitsExhausted.containsKey(conduitName));
+    }
+
+    /**
+     * @param searchPlan The plan of the search
+     * @return True if the results of every conduit searched by the plan are exhausted (the conduits the plan skips are
+     * never searched, so have no position)
+     */
+    public boolean isExhausted(ConduitSearchPlan searchPlan){
+        for(ConduitSearchPlan.Step currentStep: searchPlan.getSteps()){
+            if(currentStep.getMode() == ConduitSearchPlan.StepMode.SKIPPED){
+                continue;
+            }
+            if(!isExhausted(currentStep.getConduit().getConduitName())){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    //
+    // Token Encoding
+    //
+
+    public String encode(){
+        ByteArrayOutputStream tokenBytes = new ByteArrayOutputStream();
+        try(DataOutputStream tokenStream = new DataOutputStream(tokenBytes)) {
+            tokenStream.writeByte(TOKEN_VERSION);
+            tokenStream.writeUTF(searchName == null ? "" : searchName.name());
+            tokenStream.write(parameterDigest);
+            tokenStream.writeShort(conduitsExhausted.size() + conduitPositions.size());
+            for(String currentConduit: conduitsExhausted.keySet()){
+                tokenStream.writeByte(STATE_EXHAUSTED);
+                tokenStream.writeUTF(currentConduit);
+            }
+            for(Map.Entry<String, SearchResultPosition> currentEntry: conduitPositions.entrySet()){
+                SearchResultPosition currentPosition = currentEntry.getValue();
+                tokenStream.writeByte(STATE_POSITIONED);
+                tokenStream.writeUTF(currentEntry.getKey());
+                tokenStream.writeUTF(currentPosition.hasPageUrl() ? currentPosition.getPageUrl() : "");
+                tokenStream.writeInt(currentPosition.getPageEntryOffset());
+                tokenStream.writeInt(currentPosition.getResultOffset());
+            }
+        } catch(IOException encodingException){
+            throw(new IllegalStateException("Unable to encode search cursor", encodingException));
+        }
+        byte[] payload = tokenBytes.toByteArray();
+        byte[] signedToken = Arrays.copyOf(payload, payload.length + SIGNATURE_LENGTH);
+        System.arraycopy(sign(payload), 0, signedToken, payload.length, SIGNATURE_LENGTH);
+        return(Base64.getUrlEncoder().withoutPadding().encodeToString(signedToken));
+    }
+
+    /**
+     * Decodes a cursor token.
+     *
+     * @param token The token (see encode())
+     * @param expectedSearchName The search the token is being used with
+     * @param parameterSet The search parameters the token is being used with
+     * @param ordered Whether the search the token is being used with is ordered
+     * @return The cursor
+     * @throws IllegalArgumentException If the token is malformed, its signature does not match, or it is not a cursor
+     * of the expected search (and parameters)
+     */
+    public static SearchCursor decode(String token, SearchNameEnum expectedSearchName, Map<Property, Serializable> parameterSet, boolean ordered){
+        byte[] signedToken;
+        try {
+            signedToken = Base64.getUrlDecoder().decode(token);
+        } catch(IllegalArgumentException decodingException){
+            throw(new IllegalArgumentException("Search cursor is not a valid token", decodingException));
+        }
+        if(signedToken.length <= SIGNATURE_LENGTH){
+            throw(new IllegalArgumentException("Search cursor is truncated"));
+        }
+        byte[] decodedToken = Arrays.copyOf(signedToken, signedToken.length - SIGNATURE_LENGTH);
+        byte[] tokenSignature = Arrays.copyOfRange(signedToken, decodedToken.length, signedToken.length);
+        if(!MessageDigest.isEqual(sign(decodedToken), tokenSignature)){
+            throw(new IllegalArgumentException("Search cursor signature does not match"));
+        }
+        try(DataInputStream tokenStream = new DataInputStream(new ByteArrayInputStream(decodedToken))) {
+            if(tokenStream.readByte() != TOKEN_VERSION){
+                throw(new IllegalArgumentException("Search cursor version is not supported"));
+            }
+            String tokenSearchName = tokenStream.readUTF();
+            String expectedName = expectedSearchName == null ? "" : expectedSearchName.name();
+            if(!tokenSearchName.equals(expectedName)){
+                throw(new IllegalArgumentException("Search cursor is for a different search --> " + tokenSearchName));
+            }
+            byte[] tokenParameterDigest = new byte[PARAMETER_DIGEST_LENGTH];
+            tokenStream.readFully(tokenParameterDigest);
+            byte[] expectedParameterDigest = digestParameters(parameterSet, ordered);
+            if(!MessageDigest.isEqual(tokenParameterDigest, expectedParameterDigest)){
+                throw(new IllegalArgumentException("Search cursor is for different search parameters"));
+            }
+            SearchCursor cursor = new SearchCursor(expectedSearchName, expectedParameterDigest);
+            int conduitCount = tokenStream.readShort();
+            for(int conduitIndex = 0; conduitIndex < conduitCount; conduitIndex += 1){
+                byte conduitState = tokenStream.readByte();
+                String conduitName = tokenStream.readUTF();
+                if(conduitState == STATE_EXHAUSTED){
+                    cursor.setExhausted(conduitName);
+                } else if(conduitState == STATE_POSITIONED){
+                    String pageUrl = tokenStream.readUTF();
+                    int pageEntryOffset = tokenStream.readInt();
+                    int resultOffset = tokenStream.readInt();
+                    if(pageEntryOffset < 0 || resultOffset < 0){
+                        throw(new IllegalArgumentException("Search cursor has a negative offset"));
+                    }
+                    cursor.setPosition(conduitName, new SearchResultPosition(pageUrl.isEmpty() ? null : pageUrl, pageEntryOffset, resultOffset));
+                } else {
+                    throw(new IllegalArgumentException("Search cursor has an unknown conduit state"));
+                }
+            }
+            if(tokenStream.available() > 0){
+                throw(new IllegalArgumentException("Search cursor has trailing content"));
+            }
+            return(cursor);
+        } catch(IOException decodingException){
+            throw(new IllegalArgumentException("Search cursor is truncated", decodingException));
+        }
+    }
+
+    //
+    // Parameter Digest
+    //
+
+    /**
+     * Digests the canonical form of the search parameters - ordered by parameter name, each value by its type and
+     * query token - and whether the search is ordered (the ordering itself being determined by the search name).
+     */
+    private static byte[] digestParameters(Map<Property, Serializable> parameterSet, boolean ordered){
+        TreeMap<String, String> canonicalParameters = new TreeMap<>();
+        if(parameterSet != null){
+            for(Map.Entry<Property, Serializable> currentParameter: parameterSet.entrySet()){
+                String parameterName = currentParameter.getKey() == null ? "" : currentParameter.getKey().getName();
+                canonicalParameters.put(parameterName, toCanonicalValue(currentParameter.getValue()));
+            }
+        }
+        StringBuilder canonicalForm = new StringBuilder(ordered ? "ordered" : "unordered");
+        for(Map.Entry<String, String> currentParameter: canonicalParameters.entrySet()){
+            canonicalForm.append('\n').append(currentParameter.getKey()).append('=').append(currentParameter.getValue());
+        }
+        try {
+            return(MessageDigest.getInstance(PARAMETER_DIGEST_ALGORITHM).digest(canonicalForm.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch(GeneralSecurityException digestException){
+            throw(new IllegalStateException("Unable to digest search parameters", digestException));
+        }
+    }
+
+    private static String toCanonicalValue(Serializable value){
+        if(value == null){
+            return("");
+        }
+        if(value instanceof DateRangeParam){
+            DateRangeParam dateRange = (DateRangeParam)value;
+            return("DateRangeParam:" + toCanonicalBound(dateRange.getLowerBound()) + ".." + toCanonicalBound(dateRange.getUpperBound()));
+        }
+        if(value instanceof IQueryParameterType){
+            IQueryParameterType queryParameter = (IQueryParameterType)value;
+            FhirContext fhirContext = FhirContext.forCached(FhirVersionEnum.R4);
+            String qualifier = queryParameter.getQueryParameterQualifier();
+            return(value.getClass().getSimpleName() + ":" + (qualifier == null ? "" : qualifier) + ":" + queryParameter.getValueAsQueryToken(fhirContext));
+        }
+        return(value.getClass().getSimpleName() + ":" + value);
+    }
+
+    private static String toCanonicalBound(DateParam dateParam){
+        if(dateParam == null){
+            return("");
+        }
+        return(dateParam.getValueAsQueryToken(FhirContext.forCached(FhirVersionEnum.R4)));
+    }
+
+    //
+    // Signing
+    //
+
+    private static byte[] sign(byte[] payload){
+        try {
+            Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+            mac.init(new SecretKeySpec(SIGNING_KEY, SIGNATURE_ALGORITHM));
+            return(mac.doFinal(payload));
+        } catch(GeneralSecurityException signingException){
+            throw(new IllegalStateException("Unable to sign search cursor", signingException));
+        }
+    }
+
+    private static byte[] loadSigningKey(){
+        String configuredKey = System.getProperty(SIGNING_KEY_PROPERTY);
+        if(configuredKey == null){
+            configuredKey = System.getenv(SIGNING_KEY_PROPERTY);
+        }
+        if(configuredKey != null && !configuredKey.trim().isEmpty()){
+            return(configuredKey.trim().getBytes(StandardCharsets.UTF_8));
+        }
+        LOG.warn(".loadSigningKey(): {} is not configured, search cursors are only accepted by the node that issued them", SIGNING_KEY_PROPERTY);
+        byte[] randomKey = new byte[SIGNATURE_LENGTH];
+        new SecureRandom().nextBytes(randomKey);
+        return(randomKey);
+    }
+}
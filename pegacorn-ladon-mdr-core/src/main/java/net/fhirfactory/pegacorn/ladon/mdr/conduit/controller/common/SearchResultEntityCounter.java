@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.aggregationservices.defaultstrategies.common.SearchResultEntityGroup;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Counts the distinct entities among a growing set of search results, grouping them exactly as the aggregation of the
+ * search results does (see ResourceContentAggregationServiceBase.buildSearchResultGroupingKeys()) - but incrementally,
+ * the grouping state being kept between additions, and without aggregating the results themselves.
+ */
+public class SearchResultEntityCounter {
+    private HashMap<String, SearchResultEntityGroup> entityIndex;
+    private int entityCount;
+
+    public SearchResultEntityCounter(){
+        this.entityIndex = new HashMap<>();
+        this.entityCount = 0;
+    }
+
+    /**
+     * Adds a search result - which is either a new entity, part of an existing entity, or bridges (and so joins)
+     * several existing entities.
+     *
+     * @param groupingKeys The grouping keys of the search result
+     */
+    public void add(List<String> groupingKeys){
+        SearchResultEntityGroup matchedGroup = null;
+        for(String currentKey: groupingKeys){
+            SearchResultEntityGroup existingGroup = entityIndex.get(currentKey);
+            if(existingGroup == null){
+                continue;
+            }
+            existingGroup = existingGroup.getRepresentativeGroup();
+            if(matchedGroup == null){
+                matchedGroup = existingGroup;
+            } else if(matchedGroup != existingGroup){
+                matchedGroup.absorb(existingGroup);
+                entityCount -= 1;
+            }
+        }
+        if(matchedGroup == null){
+            matchedGroup = new SearchResultEntityGroup();
+            entityCount += 1;
+        }
+        for(String currentKey: groupingKeys){
+            entityIndex.put(currentKey, matchedGroup);
+        }
+    }
+
+    public int getEntityCount(){
+        return(entityCount);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Evaluates search parameters against resources, for the parameters of a search that a conduit cannot push down to
+ * its Source of Truth. Each parameter is evaluated against the element of the resource named by its Property, with
+ * (simplified) FHIR search semantics:
+ * - TokenParam: a Coding/CodeableConcept/Identifier/ContactPoint or code-like primitive with the same system (if one
+ *   is given) and code/value
+ * - StringParam: a string (or a part of a HumanName/Address) starting with (or equal to, or containing) the value,
+ *   ignoring case
+ * - DateParam/DateRangeParam: a date/dateTime/instant or Period overlapping the range
+ * - ReferenceParam: a Reference to the same id (and resource type, if one is given)
+ */
+public class SearchResultPostFilter {
+
+    /**
+     * @param value A search parameter value
+     * @return True if the value can be evaluated by this filter
+     */
+    public boolean canEvaluate(Serializable value){
+        if(value instanceof TokenParam){
+            return(((TokenParam)value).getModifier() == null && ((TokenParam)value).getValue() != null);
+        }
+        if(value instanceof ReferenceParam){
+            return(((ReferenceParam)value).getChain() == null && ((ReferenceParam)value).getIdPart() != null);
+        }
+        if(value instanceof StringParam){
+            return(((StringParam)value).getValue() != null);
+        }
+        return(value instanceof DateParam || value instanceof DateRangeParam);
+    }
+
+    public List<Resource> filter(List<Resource> resources, Map<Property, Serializable> filterParameters){
+        if(resources == null || filterParameters == null || filterParameters.isEmpty()){
+            return(resources);
+        }
+        ArrayList<Resource> matchingResources = new ArrayList<>();
+        for(Resource currentResource: resources){
+            if(matches(currentResource, filterParameters)){
+                matchingResources.add(currentResource);
+            }
+        }
+        return(matchingResources);
+    }
+
+    public boolean matches(Resource resource, Map<Property, Serializable> filterParameters){
+        for(Map.Entry<Property, Serializable> currentParameter: filterParameters.entrySet()){
+            if(!matchesAny(getElementValues(resource, currentParameter.getKey().getName()), currentParameter.getValue())){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    //
+    // Helper Methods
+    //
+
+    private List<Base> getElementValues(Resource resource, String elementName){
+        Property elementProperty = resource.getNamedProperty(elementName);
+        if(elementProperty == null || !elementProperty.hasValues()){
+            return(Collections.emptyList());
+        }
+        return(elementProperty.getValues());
+    }
+
+    private boolean matchesAny(List<Base> elementValues, Serializable value){
+        for(Base currentValue: elementValues){
+            if(value instanceof TokenParam && matchesToken(currentValue, (TokenParam)value)){
+                return(true);
+            }
+            if(value instanceof StringParam && matchesString(currentValue, (StringParam)value)){
+                return(true);
+            }
+            if(value instanceof DateParam && matchesDate(currentValue, new DateRangeParam((DateParam)value))){
+                return(true);
+            }
+            if(value instanceof DateRangeParam && matchesDate(currentValue, (DateRangeParam)value)){
+                return(true);
+            }
+            if(value instanceof ReferenceParam && matchesReference(currentValue, (ReferenceParam)value)){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    private boolean matchesToken(Base elementValue, TokenParam tokenParam){
+        if(elementValue instanceof Coding){
+            Coding coding = (Coding)elementValue;
+            return(sameSystem(coding.getSystem(), tokenParam) && tokenParam.getValue().equals(coding.getCode()));
+        }
+        if(elementValue instanceof CodeableConcept){
+            for(Coding currentCoding: ((CodeableConcept)elementValue).getCoding()){
+                if(matchesToken(currentCoding, tokenParam)){
+                    return(true);
+                }
+            }
+            return(false);
+        }
+        if(elementValue instanceof Identifier){
+            Identifier identifier = (Identifier)elementValue;
+            return(sameSystem(identifier.getSystem(), tokenParam) && tokenParam.getValue().equals(identifier.getValue()));
+        }
+        if(elementValue instanceof ContactPoint){
+            return(tokenParam.getValue().equals(((ContactPoint)elementValue).getValue()));
+        }
+        if(elementValue instanceof PrimitiveType){
+            return(tokenParam.getSystem() == null && tokenParam.getValue().equals(((PrimitiveType<?>)elementValue).getValueAsString()));
+        }
+        return(false);
+    }
+
+    private boolean sameSystem(String elementSystem, TokenParam tokenParam){
+        return(tokenParam.getSystem() == null || tokenParam.getSystem().equals(elementSystem));
+    }
+
+    private boolean matchesString(Base elementValue, StringParam stringParam){
+        List<String> candidates = new ArrayList<>();
+        if(elementValue instanceof HumanName){
+            HumanName humanName = (HumanName)elementValue;
+            candidates.add(humanName.getText());
+            candidates.add(humanName.getFamily());
+            addAll(candidates, humanName.getGiven());
+            addAll(candidates, humanName.getPrefix());
+            addAll(candidates, humanName.getSuffix());
+        } else if(elementValue instanceof Address){
+            Address address = (Address)elementValue;
+            candidates.add(address.getText());
+            addAll(candidates, address.getLine());
+            candidates.add(address.getCity());
+            candidates.add(address.getDistrict());
+            candidates.add(address.getState());
+            candidates.add(address.getPostalCode());
+            candidates.add(address.getCountry());
+        } else if(elementValue instanceof PrimitiveType){
+            candidates.add(((PrimitiveType<?>)elementValue).getValueAsString());
+        }
+        String searchValue = stringParam.getValue().toLowerCase(Locale.ROOT);
+        for(String currentCandidate: candidates){
+            if(currentCandidate == null){
+                continue;
+            }
+            if(stringParam.isExact()){
+                if(currentCandidate.equals(stringParam.getValue())){
+                    return(true);
+                }
+                continue;
+            }
+            String normalisedCandidate = currentCandidate.toLowerCase(Locale.ROOT);
+            boolean matched = stringParam.isContains() ? normalisedCandidate.contains(searchValue) : normalisedCandidate.startsWith(searchValue);
+            if(matched){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    private void addAll(List<String> candidates, List<StringType> values){
+        for(StringType currentValue: values){
+            candidates.add(currentValue.getValue());
+        }
+    }
+
+    private boolean matchesDate(Base elementValue, DateRangeParam dateRangeParam){
+        Date elementStart;
+        Date elementEnd;
+        if(elementValue instanceof BaseDateTimeType){
+            elementStart = ((BaseDateTimeType)elementValue).getValue();
+            elementEnd = elementStart;
+        } else if(elementValue instanceof Period){
+            elementStart = ((Period)elementValue).getStart();
+            elementEnd = ((Period)elementValue).getEnd();
+        } else {
+            return(false);
+        }
+        if(elementStart == null && elementEnd == null){
+            return(false);
+        }
+        Date lowerBound = dateRangeParam.getLowerBoundAsInstant();
+        Date upperBound = dateRangeParam.getUpperBoundAsInstant();
+        // An open-ended Period is unbounded on that side
+        boolean startsBeforeUpper = upperBound == null || elementStart == null || !elementStart.after(upperBound);
+        boolean endsAfterLower = lowerBound == null || elementEnd == null || !elementEnd.before(lowerBound);
+        return(startsBeforeUpper && endsAfterLower);
+    }
+
+    private boolean matchesReference(Base elementValue, ReferenceParam referenceParam){
+        if(!(elementValue instanceof Reference)){
+            return(false);
+        }
+        Reference reference = (Reference)elementValue;
+        if(!reference.hasReference()){
+            return(false);
+        }
+        if(!referenceParam.getIdPart().equals(reference.getReferenceElement().getIdPart())){
+            return(false);
+        }
+        String resourceType = referenceParam.getResourceType();
+        return(resourceType == null || resourceType.equals(reference.getReferenceElement().getResourceType()));
+    }
+}
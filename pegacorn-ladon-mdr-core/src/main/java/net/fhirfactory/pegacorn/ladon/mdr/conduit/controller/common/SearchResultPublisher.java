@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPageIterator;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitSearchResponseElement;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the results of a search across the conduits as they are retrieved, rather than as one (fully aggregated)
+ * Bundle. Each subscription performs the search afresh, driven by the subscriber's demand:
+ * - resources are pulled from the conduits' (lazily paged) results only to satisfy the outstanding demand, so a page
+ *   of a conduit's results is only requested once the subscriber has asked for the resources preceding it
+ * - the pulled resources are aggregated a batch at a time (at most batchSize, and no more than the outstanding
+ *   demand), the duplicates of an entity within a batch being aggregated together
+ * - across batches, the grouping keys of the resources already published are kept for the whole subscription, and a
+ *   later resource sharing one of them (i.e. a duplicate of an entity already published, such as from a conduit read
+ *   after the conduit that supplied the entity in an unordered search) is dropped
+ * - cancelling the subscription cancels the conduits' searches: no further pages are requested and any prefetch or
+ *   time slice not yet started is cancelled, but a page request already in flight is not aborted (it completes and is
+ *   discarded, see SearchResultPageIterator.cancel())
+ *
+ * Signals to the subscriber are serialised on the publisher's Executor (never on the thread calling request()).
+ */
+public class SearchResultPublisher implements Flow.Publisher<Resource> {
+    private static final Logger LOG = LoggerFactory.getLogger(SearchResultPublisher.class);
+
+    private final Supplier<List<SearchResultPageIterator>> sourceSupplier;
+    private final Comparator<Resource> ordering;
+    private final Function<List<ResourceSoTConduitSearchResponseElement>, List<Resource>> batchAggregator;
+    private final BiFunction<ResourceSoTConduitSearchResponseElement, Resource, List<String>> groupingKeyBuilder;
+    private final int batchSize;
+    private final Executor executor;
+
+    /**
+     * @param sourceSupplier Opens the search of each conduit (invoked once per subscription, on the Executor)
+     * @param ordering The ordering of the results, or null if the search is unordered
+     * @param batchAggregator Aggregates a batch of the conduits' search responses into the resources to be published
+     * @param groupingKeyBuilder Builds the keys on which the aggregation groups a (conduit) resource, see
+     *                           ResourceContentAggregationServiceBase.buildSearchResultGroupingKeys()
+     * @param batchSize The maximum number of (conduit) resources aggregated as a batch
+     * @param executor The Executor on which the signals are delivered (see ConduitTaskExecutors) - it must not run
+     *                 tasks on the submitting thread
+     */
+    public SearchResultPublisher(Supplier<List<SearchResultPageIterator>> sourceSupplier, Comparator<Resource> ordering,
+                                 Function<List<ResourceSoTConduitSearchResponseElement>, List<Resource>> batchAggregator,
+                                 BiFunction<ResourceSoTConduitSearchResponseElement, Resource, List<String>> groupingKeyBuilder,
+                                 int batchSize, Executor executor){
+        this.sourceSupplier = sourceSupplier;
+        this.ordering = ordering;
+        this.batchAggregator = batchAggregator;
+        this.groupingKeyBuilder = groupingKeyBuilder;
+        this.batchSize = Math.max(1, batchSize);
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Resource> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        SearchResultSubscription subscription = new SearchResultSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class SearchResultSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Resource> subscriber;
+        private final AtomicLong demand;
+        private final AtomicInteger drainRequests;
+        private final ArrayDeque<Resource> aggregatedResources;
+        private volatile boolean cancelled;
+        private volatile Throwable pendingError;
+        private List<SearchResultPageIterator> sources;
+        private SortedSearchResultMerger.MergedStream mergedSources;
+        private int currentSourceIndex;
+        private final HashSet<String> publishedGroupingKeys;
+
+        private SearchResultSubscription(Flow.Subscriber<? super Resource> subscriber){
+            this.subscriber = subscriber;
+            this.demand = new AtomicLong(0);
+            this.drainRequests = new AtomicInteger(0);
+            this.aggregatedResources = new ArrayDeque<>();
+            this.cancelled = false;
+            this.pendingError = null;
+            this.currentSourceIndex = 0;
+            this.publishedGroupingKeys = new HashSet<>();
+        }
+
+        @Override
+        public void request(long resourceCount) {
+            if(resourceCount <= 0){
+                pendingError = new IllegalArgumentException("The requested resource count must be positive (Reactive Streams rule 3.9)");
+            } else {
+                demand.getAndUpdate(current -> {
+                    long updated = current + resourceCount;
+                    // Overflow, the demand is effectively unbounded
+                    return(updated < 0 ? Long.MAX_VALUE : updated);
+                });
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            scheduleDrain();
+        }
+
+        private void scheduleDrain(){
+            if(drainRequests.getAndIncrement() == 0){
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain(){
+            int missedRequests = 1;
+            while(true){
+                if(cancelled){
+                    LOG.debug(".drain(): Subscription cancelled, cancelling the conduit searches");
+                    releaseSources();
+                    return;
+                }
+                if(pendingError != null){
+                    terminate(pendingError);
+                    return;
+                }
+                while(demand.get() > 0 && !cancelled){
+                    if(aggregatedResources.isEmpty()){
+                        boolean batchAggregated;
+                        try {
+                            batchAggregated = aggregateNextBatch();
+                        } catch(RuntimeException searchException){
+                            LOG.warn(".drain(): Search failed --> {}", searchException.getMessage());
+                            terminate(searchException);
+                            return;
+                        }
+                        if(!batchAggregated){
+                            LOG.debug(".drain(): Search complete");
+                            releaseSources();
+                            cancelled = true;
+                            try {
+                                subscriber.onComplete();
+                            } catch(RuntimeException subscriberException){
+                                LOG.warn(".drain(): Subscriber failed on completion --> {}", subscriberException.getMessage());
+                            }
+                            return;
+                        }
+                        continue;
+                    }
+                    try {
+                        subscriber.onNext(aggregatedResources.poll());
+                    } catch(RuntimeException subscriberException){
+                        // A subscriber that throws has cancelled its subscription (Reactive Streams rule 2.13) - it is not signalled again
+                        LOG.warn(".drain(): Subscriber failed, cancelling the subscription --> {}", subscriberException.getMessage());
+                        cancelled = true;
+                        releaseSources();
+                        return;
+                    }
+                    demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : current - 1);
+                }
+                missedRequests = drainRequests.addAndGet(-missedRequests);
+                if(missedRequests == 0){
+                    return;
+                }
+            }
+        }
+
+        private void terminate(Throwable error){
+            releaseSources();
+            cancelled = true;
+            try {
+                subscriber.onError(error);
+            } catch(RuntimeException subscriberException){
+                LOG.warn(".terminate(): Subscriber failed on error --> {}", subscriberException.getMessage());
+            }
+        }
+
+        /**
+         * Pulls the next batch of resources from the conduits and aggregates it.
+         *
+         * @return False if the conduits' results are exhausted (and the subscription is not cancelled)
+         */
+        private boolean aggregateNextBatch(){
+            if(sources == null){
+                sources = sourceSupplier.get();
+                if(ordering != null){
+                    mergedSources = new SortedSearchResultMerger(ordering).open(new ArrayList<Iterator<Resource>>(sources));
+                }
+            }
+            int pullCount = (int)Math.min(batchSize, demand.get());
+            ArrayList<ResourceSoTConduitSearchResponseElement> batchResponses = new ArrayList<>();
+            for(SearchResultPageIterator currentSource: sources){
+                ResourceSoTConduitSearchResponseElement sourceResponse = new ResourceSoTConduitSearchResponseElement();
+                sourceResponse.setConduitName(currentSource.getConduitName());
+                sourceResponse.setResponseResourceGrade(currentSource.getResponseResourceGrade());
+                sourceResponse.setSoTConduitGrade(currentSource.getSoTConduitGrade());
+                batchResponses.add(sourceResponse);
+            }
+            int pulledCount = 0;
+            int droppedCount = 0;
+            ArrayList<String> batchGroupingKeys = new ArrayList<>();
+            while(pulledCount < pullCount && !cancelled){
+                int sourceIndex;
+                Resource pulledResource;
+                if(mergedSources != null){
+                    if(!mergedSources.hasNext()){
+                        break;
+                    }
+                    pulledResource = mergedSources.next();
+                    sourceIndex = mergedSources.getLastSourceIndex();
+                } else {
+                    while(currentSourceIndex < sources.size() && !sources.get(currentSourceIndex).hasNext()){
+                        currentSourceIndex += 1;
+                    }
+                    if(currentSourceIndex >= sources.size()){
+                        break;
+                    }
+                    pulledResource = sources.get(currentSourceIndex).next();
+                    sourceIndex = currentSourceIndex;
+                }
+                ResourceSoTConduitSearchResponseElement sourceResponse = batchResponses.get(sourceIndex);
+                List<String> groupingKeys = groupingKeyBuilder.apply(sourceResponse, pulledResource);
+                if(isAlreadyPublished(groupingKeys)){
+                    droppedCount += 1;
+                    continue;
+                }
+                sourceResponse.addResource(pulledResource);
+                batchGroupingKeys.addAll(groupingKeys);
+                pulledCount += 1;
+            }
+            if(pulledCount == 0){
+                // A cancelled subscription is not complete (the drain loop releases it instead)
+                return(cancelled);
+            }
+            publishedGroupingKeys.addAll(batchGroupingKeys);
+            List<Resource> batchResources = new ArrayList<>(batchAggregator.apply(batchResponses));
+            if(ordering != null){
+                batchResources.sort(ordering);
+            }
+            aggregatedResources.addAll(batchResources);
+            LOG.trace(".aggregateNextBatch(): Pulled {} resources, aggregated into {}, dropped (already published) --> {}", pulledCount, batchResources.size(), droppedCount);
+            return(true);
+        }
+
+        private boolean isAlreadyPublished(List<String> groupingKeys){
+            for(String currentKey: groupingKeys){
+                if(publishedGroupingKeys.contains(currentKey)){
+                    return(true);
+                }
+            }
+            return(false);
+        }
+
+        private void releaseSources(){
+            aggregatedResources.clear();
+            if(sources == null){
+                return;
+            }
+            for(SearchResultPageIterator currentSource: sources){
+                currentSource.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Performs a (heap based) k-way merge of a set of already-ordered search result streams - one per conduit. Only as
+ * many resources as are required to satisfy the requested count are pulled from the underlying streams, so for lazily
+ * paged streams no page beyond those needed for the result is ever requested.
+ */
+public class SortedSearchResultMerger {
+
+    private Comparator<Resource> ordering;
+
+    public SortedSearchResultMerger(Comparator<Resource> ordering){
+        this.ordering = ordering;
+    }
+
+    /**
+     * Merges the ordered resource streams.
+     *
+     * @param orderedSources The (ordered) streams of resources, one per conduit
+     * @param count The maximum number of resources to be returned (a value < 1 means no limit)
+     * @return A list (indexed the same as orderedSources) containing the resources taken from each source
+     */
+    public List<List<Resource>> merge(List<Iterator<Resource>> orderedSources, int count){
+        ArrayList<List<Resource>> takenFromSource = new ArrayList<>();
+        for(int sourceIndex = 0; sourceIndex < orderedSources.size(); sourceIndex += 1){
+            takenFromSource.add(new ArrayList<>());
+        }
+        MergedStream mergedStream = open(orderedSources);
+        int takenCount = 0;
+        // The count is checked first, so that no stream is advanced beyond the resources taken
+        while((count < 1 || takenCount < count) && mergedStream.hasNext()){
+            Resource smallest = mergedStream.next();
+            takenFromSource.get(mergedStream.getLastSourceIndex()).add(smallest);
+            takenCount += 1;
+        }
+        return(takenFromSource);
+    }
+
+    /**
+     * Opens an incremental merge of the ordered resource streams - for consumers that take the merged resources a
+     * batch at a time. The head of each stream is retained between batches, and a stream is only advanced once its
+     * head has been taken and the following resource is required.
+     *
+     * @param orderedSources The (ordered) streams of resources, one per conduit
+     * @return The merged stream
+     */
+    public MergedStream open(List<Iterator<Resource>> orderedSources){
+        return(new MergedStream(orderedSources));
+    }
+
+    public class MergedStream implements Iterator<Resource> {
+        private final List<Iterator<Resource>> orderedSources;
+        private final PriorityQueue<SourceHead> heap;
+        private int lastSourceIndex;
+        private boolean refillPending;
+
+        private MergedStream(List<Iterator<Resource>> orderedSources){
+            this.orderedSources = orderedSources;
+            this.heap = new PriorityQueue<>(Math.max(1, orderedSources.size()), (first, second) -> {
+                int comparison = ordering.compare(first.resource, second.resource);
+                if(comparison != 0){
+                    return(comparison);
+                }
+                return(Integer.compare(first.sourceIndex, second.sourceIndex));
+            });
+            this.lastSourceIndex = -1;
+            this.refillPending = false;
+            for(int sourceIndex = 0; sourceIndex < orderedSources.size(); sourceIndex += 1){
+                Iterator<Resource> currentSource = orderedSources.get(sourceIndex);
+                if(currentSource != null && currentSource.hasNext()){
+                    heap.add(new SourceHead(sourceIndex, currentSource.next()));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(refillPending){
+                refillPending = false;
+                Iterator<Resource> lastSource = orderedSources.get(lastSourceIndex);
+                if(lastSource.hasNext()){
+                    heap.add(new SourceHead(lastSourceIndex, lastSource.next()));
+                }
+            }
+            return(!heap.isEmpty());
+        }
+
+        @Override
+        public Resource next() {
+            if(!hasNext()){
+                throw(new NoSuchElementException("No more merged search results"));
+            }
+            SourceHead smallest = heap.poll();
+            lastSourceIndex = smallest.sourceIndex;
+            refillPending = true;
+            return(smallest.resource);
+        }
+
+        /**
+         * @return The index (within the ordered sources) of the source of the last resource returned by next()
+         */
+        public int getLastSourceIndex() {
+            return lastSourceIndex;
+        }
+    }
+
+    private static class SourceHead {
+        private int sourceIndex;
+        private Resource resource;
+
+        private SourceHead(int sourceIndex, Resource resource){
+            this.sourceIndex = sourceIndex;
+            this.resource = resource;
+        }
+    }
+}
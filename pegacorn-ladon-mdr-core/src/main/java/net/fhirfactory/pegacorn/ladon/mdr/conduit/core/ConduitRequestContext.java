@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core;
+
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPageIterator;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.projection.ResourceProjection;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.summary.SearchSummaryModeEnum;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Map;
+
+/**
+ * The context of a single read or search made through a conduit, passed explicitly from the entry point (e.g.
+ * SoTResourceConduitFunctionBase.reviewResource(IdType, ResourceProjection) or countSourceOfTruthUsingCriteria()) down
+ * to the standard implementations that build and drain the requests to the Source of Truth:
+ * - the projection of the content required (null for the whole resource)
+ * - the summary mode (count/exists) of a summary search, which also collects the reported total
+ * - the capture of a lazily paged search (see SoTResourceConduitFunctionBase.searchSourceOfTruthInPages())
+ * - the resources already retrieved by a batched read (see SoTResourceConduitFunctionBase.reviewResources())
+ *
+ * As it travels with the call (rather than with the thread), the context also reaches work handed to other threads,
+ * such as the time slices of a date-range search.
+ */
+public class ConduitRequestContext {
+    private static final ConduitRequestContext DEFAULT_CONTEXT = new ConduitRequestContext(null, null, null, null);
+
+    private final ResourceProjection projection;
+    private final SearchSummary searchSummary;
+    private final PagedSearchCapture pagedSearch;
+    private final Map<String, Resource> prefetchedResources;
+
+    private ConduitRequestContext(ResourceProjection projection, SearchSummary searchSummary, PagedSearchCapture pagedSearch,
+                                  Map<String, Resource> prefetchedResources){
+        this.projection = projection;
+        this.searchSummary = searchSummary;
+        this.pagedSearch = pagedSearch;
+        this.prefetchedResources = prefetchedResources;
+    }
+
+    /**
+     * @return The context of a plain read or search - the whole resource, every result
+     */
+    public static ConduitRequestContext defaultContext(){
+        return(DEFAULT_CONTEXT);
+    }
+
+    /**
+     * @param projection The content required, or null for the whole resource
+     */
+    public static ConduitRequestContext forProjection(ResourceProjection projection){
+        if(projection == null){
+            return(DEFAULT_CONTEXT);
+        }
+        return(new ConduitRequestContext(projection, null, null, null));
+    }
+
+    static ConduitRequestContext forSearchSummary(SearchSummaryModeEnum summaryMode){
+        return(new ConduitRequestContext(null, new SearchSummary(summaryMode), null, null));
+    }
+
+    static ConduitRequestContext forPagedSearch(int pageSize){
+        return(new ConduitRequestContext(null, null, new PagedSearchCapture(pageSize), null));
+    }
+
+    static ConduitRequestContext forPrefetchedResources(Map<String, Resource> prefetchedResources){
+        return(new ConduitRequestContext(null, null, null, prefetchedResources));
+    }
+
+    /**
+     * @return The projection of the read/search, or null if the whole resource is required
+     */
+    public ResourceProjection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return True if the search is a summary (count/exists) search
+     */
+    public boolean isSearchSummary(){
+        return(searchSummary != null);
+    }
+
+    SearchSummary getSearchSummary() {
+        return searchSummary;
+    }
+
+    PagedSearchCapture getPagedSearch() {
+        return pagedSearch;
+    }
+
+    Map<String, Resource> getPrefetchedResources() {
+        return prefetchedResources;
+    }
+
+    static class SearchSummary {
+        private final SearchSummaryModeEnum mode;
+        private int reportedTotal;
+        private boolean totalReported;
+        private boolean totalUnknown;
+
+        SearchSummary(SearchSummaryModeEnum mode){
+            this.mode = mode;
+        }
+
+        SearchSummaryModeEnum getMode() {
+            return mode;
+        }
+
+        void addReportedTotal(int total){
+            this.reportedTotal += total;
+            this.totalReported = true;
+        }
+
+        int getReportedTotal() {
+            return reportedTotal;
+        }
+
+        boolean isTotalReported() {
+            return totalReported;
+        }
+
+        void setTotalUnknown(){
+            this.totalUnknown = true;
+        }
+
+        boolean isTotalUnknown() {
+            return totalUnknown;
+        }
+    }
+
+    static class PagedSearchCapture {
+        private final int pageSize;
+        private SearchResultPageIterator captured;
+        private int captureCount;
+
+        PagedSearchCapture(int pageSize){
+            this.pageSize = pageSize;
+        }
+
+        int getPageSize() {
+            return pageSize;
+        }
+
+        void capture(SearchResultPageIterator pageIterator){
+            this.captured = pageIterator;
+            this.captureCount += 1;
+        }
+
+        SearchResultPageIterator getCaptured() {
+            return captured;
+        }
+
+        int getCaptureCount() {
+            return captureCount;
+        }
+    }
+}
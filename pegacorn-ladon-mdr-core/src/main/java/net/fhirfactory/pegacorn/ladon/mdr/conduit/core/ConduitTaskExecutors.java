@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The (bounded) thread pools shared by all conduits and controllers, for:
+ * - the parallel sub-queries of a planned search (ConduitSearchPlanner)
+ * - the prefetching of the following page of a paged search (SearchResultPageIterator)
+ * - the time slices of a date-range search (TimeSlicedSearchPageIterator)
+ * - the delivery of published search results (SearchResultPublisher)
+ * - the scheduled (background) maintenance of the conduits and accessors - e.g. the flushing of write batches, the
+ *   committing of the write-behind journal and the polling of change feeds
+ *
+ * Each is a separate pool because a task of one kind may block on tasks of another (e.g. a sub-query waits on its
+ * time slices), which within a single bounded pool could deadlock. The number of threads of each pool is configured
+ * via the system property or environment variable named in its specifyXxx() method; a task submitted to a saturated
+ * pool (all threads busy and the queue full) is executed by the submitting thread, so the pools apply back-pressure
+ * rather than failing the search. The maintenance scheduler's tasks are periodic or delayed (so are queued, never run
+ * by the submitting thread). The pools are shut down when the application is.
+ *
+ * (Bulk data transfers deliberately keep their own, per-transfer, threads - see FHIRPlaceBulkDataTransfer.)
+ */
+@ApplicationScoped
+public class ConduitTaskExecutors {
+    private static final Logger LOG = LoggerFactory.getLogger(ConduitTaskExecutors.class);
+
+    private static final String SEARCH_THREADS_PROPERTY = "LADON_MDR_SEARCH_THREADS";
+    private static final String SEARCH_PAGE_PREFETCH_THREADS_PROPERTY = "LADON_MDR_SEARCH_PAGE_PREFETCH_THREADS";
+    private static final String DATE_RANGE_SLICE_THREADS_PROPERTY = "LADON_MDR_DATE_RANGE_SLICE_THREADS";
+    private static final String SEARCH_PUBLISHER_THREADS_PROPERTY = "LADON_MDR_SEARCH_PUBLISHER_THREADS";
+    private static final String MAINTENANCE_THREADS_PROPERTY = "LADON_MDR_MAINTENANCE_THREADS";
+    private static final int DEFAULT_SEARCH_THREADS = 32;
+    private static final int DEFAULT_SEARCH_PAGE_PREFETCH_THREADS = 16;
+    private static final int DEFAULT_DATE_RANGE_SLICE_THREADS = 32;
+    private static final int DEFAULT_SEARCH_PUBLISHER_THREADS = 16;
+    private static final int DEFAULT_MAINTENANCE_THREADS = 4;
+    private static final int QUEUE_CAPACITY_PER_THREAD = 4;
+    private static final long IDLE_THREAD_TIMEOUT_IN_SECONDS = 60;
+
+    private ThreadPoolExecutor searchExecutor;
+    private ThreadPoolExecutor searchPagePrefetchExecutor;
+    private ThreadPoolExecutor dateRangeSliceExecutor;
+    private ThreadPoolExecutor searchPublisherExecutor;
+    private ScheduledThreadPoolExecutor maintenanceScheduler;
+
+    public synchronized ExecutorService getSearchExecutor(){
+        if(searchExecutor == null){
+            searchExecutor = newBoundedExecutor("ConduitSearchPlanner-SubQuery", specifySearchThreads(), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return(searchExecutor);
+    }
+
+    public synchronized ExecutorService getSearchPagePrefetchExecutor(){
+        if(searchPagePrefetchExecutor == null){
+            searchPagePrefetchExecutor = newBoundedExecutor("SoTConduit-SearchPagePrefetch", specifySearchPagePrefetchThreads(), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return(searchPagePrefetchExecutor);
+    }
+
+    public synchronized ExecutorService getDateRangeSliceExecutor(){
+        if(dateRangeSliceExecutor == null){
+            dateRangeSliceExecutor = newBoundedExecutor("SoTConduit-DateRangeSlice", specifyDateRangeSliceThreads(), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return(dateRangeSliceExecutor);
+    }
+
+    /**
+     * The publisher's signals must never be delivered on the thread calling request() (see SearchResultPublisher),
+     * so its queue is unbounded rather than running a rejected task on the submitting thread - the number of threads
+     * is still bounded.
+     */
+    public synchronized ExecutorService getSearchPublisherExecutor(){
+        if(searchPublisherExecutor == null){
+            searchPublisherExecutor = newExecutor("SearchResultPublisher-Drain", specifySearchPublisherThreads(), new LinkedBlockingQueue<>(),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return(searchPublisherExecutor);
+    }
+
+    /**
+     * The scheduler of the conduits' and accessors' background tasks. Its tasks may perform I/O (e.g. send a write
+     * batch), so must not wait on one another.
+     */
+    public synchronized ScheduledExecutorService getMaintenanceScheduler(){
+        if(maintenanceScheduler == null){
+            int threadCount = Math.max(1, specifyMaintenanceThreads());
+            LOG.info(".getMaintenanceScheduler(): Creating scheduler --> SoTConduit-Maintenance, threads --> {}", threadCount);
+            maintenanceScheduler = new ScheduledThreadPoolExecutor(threadCount, newThreadFactory("SoTConduit-Maintenance"));
+            // Cancelled tasks (e.g. a write batch flushed early) are not retained until their delay elapses
+            maintenanceScheduler.setRemoveOnCancelPolicy(true);
+        }
+        return(maintenanceScheduler);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown(){
+        LOG.debug(".shutdown(): Entry");
+        shutdownExecutor(searchExecutor);
+        shutdownExecutor(searchPagePrefetchExecutor);
+        shutdownExecutor(dateRangeSliceExecutor);
+        shutdownExecutor(searchPublisherExecutor);
+        shutdownExecutor(maintenanceScheduler);
+        searchExecutor = null;
+        searchPagePrefetchExecutor = null;
+        dateRangeSliceExecutor = null;
+        searchPublisherExecutor = null;
+        maintenanceScheduler = null;
+        LOG.debug(".shutdown(): Exit");
+    }
+
+    //
+    // Sizing
+    //
+
+    /**
+     * @return The number of threads executing the sub-queries of planned searches, configured via the system property
+     * or environment variable LADON_MDR_SEARCH_THREADS
+     */
+    protected int specifySearchThreads(){
+        return(getConfiguredInteger(SEARCH_THREADS_PROPERTY, DEFAULT_SEARCH_THREADS));
+    }
+
+    /**
+     * @return The number of threads prefetching search pages, configured via the system property or environment
+     * variable LADON_MDR_SEARCH_PAGE_PREFETCH_THREADS
+     */
+    protected int specifySearchPagePrefetchThreads(){
+        return(getConfiguredInteger(SEARCH_PAGE_PREFETCH_THREADS_PROPERTY, DEFAULT_SEARCH_PAGE_PREFETCH_THREADS));
+    }
+
+    /**
+     * @return The number of threads executing the time slices of date-range searches, configured via the system
+     * property or environment variable LADON_MDR_DATE_RANGE_SLICE_THREADS
+     */
+    protected int specifyDateRangeSliceThreads(){
+        return(getConfiguredInteger(DATE_RANGE_SLICE_THREADS_PROPERTY, DEFAULT_DATE_RANGE_SLICE_THREADS));
+    }
+
+    /**
+     * @return The number of threads delivering published search results, configured via the system property or
+     * environment variable LADON_MDR_SEARCH_PUBLISHER_THREADS
+     */
+    protected int specifySearchPublisherThreads(){
+        return(getConfiguredInteger(SEARCH_PUBLISHER_THREADS_PROPERTY, DEFAULT_SEARCH_PUBLISHER_THREADS));
+    }
+
+    /**
+     * @return The number of threads running the scheduled maintenance tasks, configured via the system property or
+     * environment variable LADON_MDR_MAINTENANCE_THREADS
+     */
+    protected int specifyMaintenanceThreads(){
+        return(getConfiguredInteger(MAINTENANCE_THREADS_PROPERTY, DEFAULT_MAINTENANCE_THREADS));
+    }
+
+    //
+    // Helper Methods
+    //
+
+    private ThreadPoolExecutor newBoundedExecutor(String threadName, int threadCount, RejectedExecutionHandler saturationPolicy){
+        int boundedThreadCount = Math.max(1, threadCount);
+        return(newExecutor(threadName, boundedThreadCount, new LinkedBlockingQueue<>(boundedThreadCount * QUEUE_CAPACITY_PER_THREAD), saturationPolicy));
+    }
+
+    private ThreadPoolExecutor newExecutor(String threadName, int threadCount, BlockingQueue<Runnable> workQueue, RejectedExecutionHandler saturationPolicy){
+        int boundedThreadCount = Math.max(1, threadCount);
+        LOG.info(".newExecutor(): Creating executor --> {}, threads --> {}", threadName, boundedThreadCount);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(boundedThreadCount, boundedThreadCount, IDLE_THREAD_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS,
+                workQueue, newThreadFactory(threadName), saturationPolicy);
+        // Idle pools hold no threads
+        executor.allowCoreThreadTimeOut(true);
+        return(executor);
+    }
+
+    private ThreadFactory newThreadFactory(String threadName){
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        return(runnable -> {
+            Thread workerThread = new Thread(runnable, threadName + "-" + threadNumber.incrementAndGet());
+            workerThread.setDaemon(true);
+            return(workerThread);
+        });
+    }
+
+    private void shutdownExecutor(ExecutorService executor){
+        if(executor == null){
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            if(!executor.awaitTermination(5, TimeUnit.SECONDS)){
+                LOG.warn(".shutdownExecutor(): Executor did not terminate within 5 seconds");
+            }
+        } catch(InterruptedException interruptedException){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads an integer setting from the system property (or, failing that, the environment variable) of the same name.
+     */
+    private int getConfiguredInteger(String settingName, int defaultValue){
+        String settingValue = System.getProperty(settingName);
+        if(settingValue == null){
+            settingValue = System.getenv(settingName);
+        }
+        if(settingValue == null){
+            return(defaultValue);
+        }
+        try {
+            return(Integer.parseInt(settingValue.trim()));
+        } catch(NumberFormatException badValueException){
+            LOG.warn(".getConfiguredInteger(): Invalid value for {} --> {}", settingName, settingValue);
+            return(defaultValue);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.identifier;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A (bounded, LRU) local index from an Identifier (by type and value, see IdentifierOfTypeCriterion) to the ids of
+ * the resources carrying it within a Source of Truth - so that repeated "identifier:of_type" lookups are answered by
+ * reading the resources by id rather than by searching.
+ *
+ * An entry is only recorded from the complete results of a lookup, so (within its time-to-live) holds every matching
+ * resource; resources written via the conduit are added to the existing entries for their Identifiers (under each of
+ * their type codings, as a lookup matches any of them). Entries may
+ * still become stale (e.g. an Identifier removed from a resource), so callers verify the resources they read and
+ * evict the entry on a mismatch.
+ */
+public class IdentifierIdIndex {
+    private final int maxEntries;
+    private final long timeToLiveInMilliseconds;
+    private final LinkedHashMap<IdentifierOfTypeCriterion, IndexedIdentifier> indexedIdentifiers;
+
+    public IdentifierIdIndex(int maxEntries, long timeToLiveInMilliseconds){
+        this.maxEntries = maxEntries;
+        this.timeToLiveInMilliseconds = timeToLiveInMilliseconds;
+        this.indexedIdentifiers = new LinkedHashMap<IdentifierOfTypeCriterion, IndexedIdentifier>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<IdentifierOfTypeCriterion, IndexedIdentifier> eldest) {
+                return(size() > IdentifierIdIndex.this.maxEntries);
+            }
+        };
+    }
+
+    /**
+     * @return The ids of the resources carrying the Identifier (possibly none), or null if the Identifier is not indexed
+     */
+    public synchronized List<String> find(IdentifierOfTypeCriterion identifierOfType){
+        IndexedIdentifier indexedIdentifier = indexedIdentifiers.get(identifierOfType);
+        if(indexedIdentifier == null){
+            return(null);
+        }
+        if(indexedIdentifier.getExpiry() < System.currentTimeMillis()){
+            indexedIdentifiers.remove(identifierOfType);
+            return(null);
+        }
+        return(new ArrayList<>(indexedIdentifier.getResourceIds()));
+    }
+
+    /**
+     * Records the complete results of a lookup of the Identifier.
+     */
+    public synchronized void record(IdentifierOfTypeCriterion identifierOfType, List<? extends Resource> matchingResources){
+        IndexedIdentifier indexedIdentifier = new IndexedIdentifier(System.currentTimeMillis() + timeToLiveInMilliseconds);
+        for(Resource currentResource: matchingResources){
+            if(currentResource.hasIdElement()){
+                indexedIdentifier.getResourceIds().add(currentResource.getIdElement().getIdPart());
+            }
+        }
+        indexedIdentifiers.put(identifierOfType, indexedIdentifier);
+    }
+
+    /**
+     * Adds a (created or updated) resource to the existing entries of its Identifiers.
+     *
+     * @param resource The resource (as written)
+     * @param resourceId The id of the resource (the server-assigned id, for a create)
+     */
+    public synchronized void addResource(Resource resource, String resourceId){
+        if(resource == null || resourceId == null){
+            return;
+        }
+        for(Identifier currentIdentifier: getIdentifiers(resource)){
+            for(IdentifierOfTypeCriterion identifierOfType: IdentifierOfTypeCriterion.fromIdentifierTypes(currentIdentifier)){
+                IndexedIdentifier indexedIdentifier = indexedIdentifiers.get(identifierOfType);
+                if(indexedIdentifier != null){
+                    indexedIdentifier.getResourceIds().add(resourceId);
+                }
+            }
+        }
+    }
+
+    public synchronized void evict(IdentifierOfTypeCriterion identifierOfType){
+        indexedIdentifiers.remove(identifierOfType);
+    }
+
+    public synchronized int size(){
+        return(indexedIdentifiers.size());
+    }
+
+    /**
+     * @return The Identifiers of the resource (its "identifier" element, for any resource type that has one)
+     */
+    public static List<Identifier> getIdentifiers(Resource resource){
+        ArrayList<Identifier> identifiers = new ArrayList<>();
+        Property identifierProperty;
+        try {
+            identifierProperty = resource.getNamedProperty("identifier");
+        } catch(FHIRException noIdentifierProperty){
+            return(identifiers);
+        }
+        if(identifierProperty == null){
+            return(identifiers);
+        }
+        for(Base currentValue: identifierProperty.getValues()){
+            if(currentValue instanceof Identifier){
+                identifiers.add((Identifier)currentValue);
+            }
+        }
+        return(identifiers);
+    }
+
+    private static class IndexedIdentifier {
+        private final Set<String> resourceIds;
+        private final long expiry;
+
+        IndexedIdentifier(long expiry){
+            this.resourceIds = new LinkedHashSet<>();
+            this.expiry = expiry;
+        }
+
+        Set<String> getResourceIds() {
+            return resourceIds;
+        }
+
+        long getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.identifier;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.gclient.ICriterion;
+import ca.uhn.fhir.rest.gclient.ICriterionInternal;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.param.ParameterUtil;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Identifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An "identifier:of_type" search criterion (an Identifier matched by its type coding and value, regardless of its
+ * system) - which the generic client's TokenClientParam cannot express. The parameter value is built once, with each
+ * of its parts escaped as per the FHIR search syntax (the client URL-encodes it when the query is executed).
+ *
+ * The criterion is immutable, and is also used as the key of the IdentifierIdIndex.
+ */
+public class IdentifierOfTypeCriterion implements ICriterion<TokenClientParam>, ICriterionInternal {
+    public static final String PARAMETER_NAME = "identifier:of_type";
+
+    private final String typeSystem;
+    private final String typeCode;
+    private final String value;
+    private final String parameterValue;
+
+    public IdentifierOfTypeCriterion(String typeSystem, String typeCode, String value){
+        this.typeSystem = typeSystem;
+        this.typeCode = typeCode;
+        this.value = value;
+        this.parameterValue = ParameterUtil.escape(typeSystem) + "|" + ParameterUtil.escape(typeCode) + "|" + ParameterUtil.escape(value);
+    }
+
+    /**
+     * @return The criterion for the Identifier's (first) type coding and value, or null if it has no such coding/value
+     */
+    public static IdentifierOfTypeCriterion fromIdentifier(Identifier identifier){
+        if(identifier == null || !identifier.hasValue() || !identifier.hasType()){
+            return(null);
+        }
+        for(Coding currentCoding: identifier.getType().getCoding()){
+            if(currentCoding.hasSystem() && currentCoding.hasCode()){
+                return(new IdentifierOfTypeCriterion(currentCoding.getSystem(), currentCoding.getCode(), identifier.getValue()));
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * @return The criteria for each of the Identifier's type codings (with its value) - any of which matches it (see
+     * matches()) - or an empty list if it has no such coding/value
+     */
+    public static List<IdentifierOfTypeCriterion> fromIdentifierTypes(Identifier identifier){
+        ArrayList<IdentifierOfTypeCriterion> criteria = new ArrayList<>();
+        if(identifier == null || !identifier.hasValue() || !identifier.hasType()){
+            return(criteria);
+        }
+        for(Coding currentCoding: identifier.getType().getCoding()){
+            if(currentCoding.hasSystem() && currentCoding.hasCode()){
+                criteria.add(new IdentifierOfTypeCriterion(currentCoding.getSystem(), currentCoding.getCode(), identifier.getValue()));
+            }
+        }
+        return(criteria);
+    }
+
+    /**
+     * Interprets an "identifier:of_type" TokenParam - parsed as the system (the type system) and the value (the type
+     * code and the identifier value, separated by the first "|").
+     *
+     * @return The criterion, or null if the TokenParam is not a (complete) "of_type" token
+     */
+    public static IdentifierOfTypeCriterion fromTokenParam(TokenParam tokenParam){
+        if(tokenParam == null || tokenParam.getModifier() != TokenParamModifier.OF_TYPE){
+            return(null);
+        }
+        String combinedValue = tokenParam.getValue();
+        if(tokenParam.getSystem() == null || combinedValue == null){
+            return(null);
+        }
+        int separatorIndex = combinedValue.indexOf('|');
+        if(separatorIndex < 1 || separatorIndex == combinedValue.length() - 1){
+            return(null);
+        }
+        return(new IdentifierOfTypeCriterion(tokenParam.getSystem(), combinedValue.substring(0, separatorIndex), combinedValue.substring(separatorIndex + 1)));
+    }
+
+    /**
+     * @return True if the Identifier has this type (any of its codings) and value
+     */
+    public boolean matches(Identifier identifier){
+        if(identifier == null || !value.equals(identifier.getValue()) || !identifier.hasType()){
+            return(false);
+        }
+        CodeableConcept identifierType = identifier.getType();
+        for(Coding currentCoding: identifierType.getCoding()){
+            if(typeSystem.equals(currentCoding.getSystem()) && typeCode.equals(currentCoding.getCode())){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    @Override
+    public String getParameterName() {
+        return(PARAMETER_NAME);
+    }
+
+    @Override
+    public String getParameterValue(FhirContext theContext) {
+        return(parameterValue);
+    }
+
+    public String getTypeSystem() {
+        return typeSystem;
+    }
+
+    public String getTypeCode() {
+        return typeCode;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(this == other){
+            return(true);
+        }
+        if(!(other instanceof IdentifierOfTypeCriterion)){
+            return(false);
+        }
+        IdentifierOfTypeCriterion otherCriterion = (IdentifierOfTypeCriterion)other;
+        return(typeSystem.equals(otherCriterion.typeSystem) && typeCode.equals(otherCriterion.typeCode) && value.equals(otherCriterion.value));
+    }
+
+    @Override
+    public int hashCode() {
+        return(Objects.hash(typeSystem, typeCode, value));
+    }
+
+    @Override
+    public String toString() {
+        return(PARAMETER_NAME + "=" + parameterValue);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A (bounded, LRU) cache of the results of "closed" time slices - slices wholly in the past (by at least a settling
+ * interval), whose results are therefore not expected to change - so that a repeated wide date-range search only
+ * re-executes its open (recent) slices. Entries expire after a time-to-live, and can be invalidated per search key
+ * (e.g. when a resource matching the search is written via the conduit, or reported changed by a change feed).
+ *
+ * The cache holds its own copies of the resources, and hands out copies, so callers may modify the results.
+ */
+public class ClosedDateRangeSliceCache {
+    private final int maxEntries;
+    private final long timeToLiveInMilliseconds;
+    private final long settlingIntervalInMilliseconds;
+    private final LinkedHashMap<String, CachedSlice> cachedSlices;
+
+    public ClosedDateRangeSliceCache(int maxEntries, long timeToLiveInMilliseconds, long settlingIntervalInMilliseconds){
+        this.maxEntries = maxEntries;
+        this.timeToLiveInMilliseconds = timeToLiveInMilliseconds;
+        this.settlingIntervalInMilliseconds = settlingIntervalInMilliseconds;
+        this.cachedSlices = new LinkedHashMap<String, CachedSlice>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSlice> eldest) {
+                return(size() > ClosedDateRangeSliceCache.this.maxEntries);
+            }
+        };
+    }
+
+    /**
+     * @return True if the slice is closed (wholly in the past, by at least the settling interval) and may be cached
+     */
+    public boolean isClosed(TimeSlicedSearchPageIterator.DateRangeSlice slice){
+        return(slice.getUpperBound().getTime() < System.currentTimeMillis() - settlingIntervalInMilliseconds);
+    }
+
+    /**
+     * @return (Copies of) the cached results of the slice, or null if the slice is not (or is no longer) cached
+     */
+    public synchronized List<Resource> get(String searchKey, TimeSlicedSearchPageIterator.DateRangeSlice slice){
+        String sliceKey = toSliceKey(searchKey, slice);
+        CachedSlice cachedSlice = cachedSlices.get(sliceKey);
+        if(cachedSlice == null){
+            return(null);
+        }
+        if(cachedSlice.getExpiry() < System.currentTimeMillis()){
+            cachedSlices.remove(sliceKey);
+            return(null);
+        }
+        return(copyResources(cachedSlice.getResources()));
+    }
+
+    /**
+     * Caches the results of the slice, if it is closed.
+     */
+    public synchronized void put(String searchKey, TimeSlicedSearchPageIterator.DateRangeSlice slice, List<Resource> resources){
+        if(!isClosed(slice)){
+            return;
+        }
+        long expiry = System.currentTimeMillis() + timeToLiveInMilliseconds;
+        cachedSlices.put(toSliceKey(searchKey, slice), new CachedSlice(Collections.unmodifiableList(copyResources(resources)), expiry));
+    }
+
+    /**
+     * Removes every cached slice of the search.
+     */
+    public synchronized void invalidate(String searchKey){
+        String sliceKeyPrefix = searchKey + "|";
+        Iterator<String> sliceKeyIterator = cachedSlices.keySet().iterator();
+        while(sliceKeyIterator.hasNext()){
+            if(sliceKeyIterator.next().startsWith(sliceKeyPrefix)){
+                sliceKeyIterator.remove();
+            }
+        }
+    }
+
+    public synchronized int size(){
+        return(cachedSlices.size());
+    }
+
+    private List<Resource> copyResources(List<Resource> resources){
+        List<Resource> resourceCopies = new ArrayList<>(resources.size());
+        for(Resource currentResource: resources){
+            resourceCopies.add(currentResource.copy());
+        }
+        return(resourceCopies);
+    }
+
+    private String toSliceKey(String searchKey, TimeSlicedSearchPageIterator.DateRangeSlice slice){
+        return(searchKey + "|" + slice.getLowerBound().getTime() + "|" + slice.getUpperBound().getTime());
+    }
+
+    private static class CachedSlice {
+        private final List<Resource> resources;
+        private final long expiry;
+
+        CachedSlice(List<Resource> resources, long expiry){
+            this.resources = resources;
+            this.expiry = expiry;
+        }
+
+        List<Resource> getResources() {
+            return resources;
+        }
+
+        long getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceGradeEnum;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitSearchResponseElement;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.SoTConduitGradeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A lazy Iterator over the results of a (paged) FHIR search. The first page is only requested when the iterator is
+ * first consulted, and each subsequent page (the Bundle "next" link) is only requested once the resources of the
+ * current page have been consumed - the end of the results is detected by the absence of a "next" link, never by the
+ * Bundle total (which servers frequently leave unpopulated).
+ *
+ * Prefetch (optional): if a prefetch Executor is set, the next page is requested in the background as soon as the
+ * current page is loaded, so at most two pages are ever held in memory. Otherwise no page is requested ahead of the
+ * caller - a consumer bounds the pages retrieved simply by not calling hasNext() (see SearchResultPublisher).
+ *
+ * Only resources of the searched ResourceType are returned (i.e. "_include"d resources are skipped) and, if a result
+ * filter is set, only those it accepts (e.g. the post-filter of a search parameter the Source of Truth cannot index).
+ *
+ * The iterator records the SearchResultPosition after each of the last two resources it returned (see
+ * getPositionAfter()) - so that a consumer that reads one resource ahead (e.g. a k-way merge) can still determine the
+ * position after the last resource it actually used - and can be resumed from such a position (see resumeFrom()).
+ */
+public class SearchResultPageIterator implements Iterator<Resource> {
+    private static final Logger LOG = LoggerFactory.getLogger(SearchResultPageIterator.class);
+
+    private IGenericClient client;
+    private ResourceType resourceType;
+    private Supplier<Bundle> firstPageSupplier;
+    private Bundle currentPage;
+    private Iterator<Bundle.BundleEntryComponent> currentPageEntries;
+    private Resource nextResource;
+    private boolean exhausted;
+    private int pageCount;
+    private String conduitName;
+    private ResourceGradeEnum responseResourceGrade;
+    private SoTConduitGradeEnum soTConduitGrade;
+    private Executor prefetchExecutor;
+    private CompletableFuture<Bundle> prefetchedPage;
+    private int currentPageEntryIndex;
+    private SearchResultPosition nextResourcePosition;
+    private SearchResultPosition originPosition;
+    private SearchResultPosition lastReturnedPosition;
+    private SearchResultPosition previousReturnedPosition;
+    private int returnedCount;
+    private int firstPageEntriesToSkip;
+    private Predicate<Resource> resultFilter;
+
+    public SearchResultPageIterator(IGenericClient client, ResourceType resourceType, Supplier<Bundle> firstPageSupplier){
+        this.client = client;
+        this.resourceType = resourceType;
+        this.firstPageSupplier = firstPageSupplier;
+        this.currentPage = null;
+        this.currentPageEntries = null;
+        this.nextResource = null;
+        this.exhausted = false;
+        this.pageCount = 0;
+        this.prefetchExecutor = null;
+        this.prefetchedPage = null;
+        this.currentPageEntryIndex = 0;
+        this.originPosition = null;
+        this.returnedCount = 0;
+        this.firstPageEntriesToSkip = 0;
+        this.resultFilter = null;
+    }
+
+    /**
+     * Presents already retrieved search results (e.g. from a conduit that cannot page its searches lazily) as a single
+     * page - optionally ordered - with the grading of the (first graded) response element.
+     *
+     * @param resourceType The type of resource searched for
+     * @param searchResults The search results
+     * @param ordering The ordering of the resources, or null to retain the order of the search results
+     * @return An iterator over the search results
+     */
+    public static SearchResultPageIterator ofSearchResults(ResourceType resourceType, List<ResourceSoTConduitSearchResponseElement> searchResults, Comparator<Resource> ordering){
+        Bundle resultPage = new Bundle();
+        resultPage.setType(Bundle.BundleType.SEARCHSET);
+        ResourceGradeEnum responseResourceGrade = null;
+        SoTConduitGradeEnum soTConduitGrade = null;
+        if(searchResults != null){
+            for(ResourceSoTConduitSearchResponseElement currentElement: searchResults){
+                if(responseResourceGrade == null){
+                    responseResourceGrade = currentElement.getResponseResourceGrade();
+                    soTConduitGrade = currentElement.getSoTConduitGrade();
+                }
+                if(currentElement.getResources() != null){
+                    for(Resource currentResource: currentElement.getResources()){
+                        resultPage.addEntry().setResource(currentResource);
+                    }
+                }
+            }
+        }
+        if(ordering != null){
+            resultPage.getEntry().sort((first, second) -> ordering.compare(first.getResource(), second.getResource()));
+        }
+        SearchResultPageIterator pageIterator = new SearchResultPageIterator(null, resourceType, () -> resultPage);
+        pageIterator.setResponseResourceGrade(responseResourceGrade);
+        pageIterator.setSoTConduitGrade(soTConduitGrade);
+        return(pageIterator);
+    }
+
+    /**
+     * Abandons the search: no further pages are requested. A prefetch not yet started is cancelled, but a page request
+     * already in flight is not aborted (the FHIR client offers no way to) - it runs to completion and its page is
+     * discarded.
+     */
+    public void cancel(){
+        exhausted = true;
+        nextResource = null;
+        currentPageEntries = null;
+        if(prefetchedPage != null){
+            prefetchedPage.cancel(false);
+            prefetchedPage = null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(nextResource != null){
+            return(true);
+        }
+        if(exhausted){
+            return(false);
+        }
+        nextResource = advance();
+        return(nextResource != null);
+    }
+
+    @Override
+    public Resource next() {
+        if(!hasNext()){
+            throw(new NoSuchElementException("No more search results"));
+        }
+        Resource resource = nextResource;
+        nextResource = null;
+        returnedCount += 1;
+        previousReturnedPosition = lastReturnedPosition;
+        int resultOffset = returnedCount + (originPosition == null ? 0 : originPosition.getResultOffset());
+        lastReturnedPosition = new SearchResultPosition(nextResourcePosition.getPageUrl(), nextResourcePosition.getPageEntryOffset(), resultOffset);
+        return(resource);
+    }
+
+    private Resource advance(){
+        while(true) {
+            if (currentPageEntries != null) {
+                while (currentPageEntries.hasNext()) {
+                    Resource candidate = currentPageEntries.next().getResource();
+                    currentPageEntryIndex += 1;
+                    if (candidate != null && (resourceType == null || candidate.getResourceType() == resourceType)
+                            && (resultFilter == null || resultFilter.test(candidate))) {
+                        Bundle.BundleLinkComponent selfLink = currentPage.getLink(Bundle.LINK_SELF);
+                        nextResourcePosition = new SearchResultPosition(selfLink == null ? null : selfLink.getUrl(), currentPageEntryIndex, 0);
+                        return (candidate);
+                    }
+                }
+            }
+            Bundle nextPage = loadNextPage();
+            if (nextPage == null) {
+                exhausted = true;
+                return (null);
+            }
+            currentPage = nextPage;
+            currentPageEntries = nextPage.getEntry().iterator();
+            currentPageEntryIndex = 0;
+            while(firstPageEntriesToSkip > 0 && currentPageEntries.hasNext()){
+                // Resuming within the page, skip the entries consumed before the position
+                currentPageEntries.next();
+                currentPageEntryIndex += 1;
+                firstPageEntriesToSkip -= 1;
+            }
+            firstPageEntriesToSkip = 0;
+            prefetchFollowingPage();
+        }
+    }
+
+    private void prefetchFollowingPage(){
+        if(prefetchExecutor == null || exhausted){
+            return;
+        }
+        final Bundle pageToFollow = currentPage;
+        if(pageToFollow.getLink(Bundle.LINK_NEXT) == null){
+            return;
+        }
+        LOG.trace(".prefetchFollowingPage(): Prefetching page --> {}", pageCount + 1);
+        pageCount += 1;
+        prefetchedPage = CompletableFuture.supplyAsync(() -> client
+                .loadPage()
+                .next(pageToFollow)
+                .execute(), prefetchExecutor);
+    }
+
+    private Bundle takePrefetchedPage(){
+        CompletableFuture<Bundle> pageFuture = prefetchedPage;
+        prefetchedPage = null;
+        try {
+            return(pageFuture.join());
+        } catch(CompletionException completionException){
+            if(completionException.getCause() instanceof RuntimeException){
+                throw((RuntimeException)completionException.getCause());
+            }
+            throw(completionException);
+        }
+    }
+
+    protected Bundle loadNextPage(){
+        if(prefetchedPage != null){
+            return(takePrefetchedPage());
+        }
+        if(currentPage == null){
+            if(pageCount > 0){
+                return(null);
+            }
+            LOG.trace(".loadNextPage(): Requesting first page");
+            pageCount += 1;
+            return(firstPageSupplier.get());
+        }
+        if(currentPage.getLink(Bundle.LINK_NEXT) == null){
+            return(null);
+        }
+        LOG.trace(".loadNextPage(): Requesting page --> {}", pageCount + 1);
+        pageCount += 1;
+        Bundle nextPage = client
+                .loadPage()
+                .next(currentPage)
+                .execute();
+        return(nextPage);
+    }
+
+    //
+    // Position
+    //
+
+    /**
+     * Resumes the search from a position: the iterator's first page must be the position's page (i.e. the first page
+     * supplier must load the position's pageUrl), whose entries up to the position are skipped. Must be called before
+     * the iterator is first consulted.
+     */
+    public void resumeFrom(SearchResultPosition position){
+        this.originPosition = position;
+        this.firstPageEntriesToSkip = position.getPageEntryOffset();
+    }
+
+    /**
+     * Resumes the search from a position by skipping (consuming) the resources of the search up to the position - for
+     * when the position's page cannot be re-loaded. Must be called before the iterator is first consulted.
+     */
+    public void skipTo(SearchResultPosition position){
+        int skipped = 0;
+        while(skipped < position.getResultOffset() && hasNext()){
+            next();
+            skipped += 1;
+        }
+        this.originPosition = position;
+        this.returnedCount = 0;
+        this.lastReturnedPosition = null;
+        this.previousReturnedPosition = null;
+    }
+
+    /**
+     * @param usedCount The number of the resources returned by the iterator (since it was created or resumed) that
+     *                  the caller has used - either all of them, or all but the last
+     * @return The position after the last used resource (the position resumed from, or null for the start of the
+     * search, if none were used)
+     */
+    public SearchResultPosition getPositionAfter(int usedCount){
+        if(usedCount == returnedCount){
+            return(returnedCount == 0 ? originPosition : lastReturnedPosition);
+        }
+        if(usedCount == returnedCount - 1){
+            return(usedCount == 0 ? originPosition : previousReturnedPosition);
+        }
+        throw(new IllegalArgumentException("Only the position after the last, or the last but one, returned resource is retained"));
+    }
+
+    public int getReturnedCount() {
+        return returnedCount;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public Executor getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    public void setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    public Predicate<Resource> getResultFilter() {
+        return resultFilter;
+    }
+
+    public void setResultFilter(Predicate<Resource> resultFilter) {
+        this.resultFilter = resultFilter;
+    }
+
+    public String getConduitName() {
+        return conduitName;
+    }
+
+    public void setConduitName(String conduitName) {
+        this.conduitName = conduitName;
+    }
+
+    public ResourceGradeEnum getResponseResourceGrade() {
+        return responseResourceGrade;
+    }
+
+    public void setResponseResourceGrade(ResourceGradeEnum responseResourceGrade) {
+        this.responseResourceGrade = responseResourceGrade;
+    }
+
+    public SoTConduitGradeEnum getSoTConduitGrade() {
+        return soTConduitGrade;
+    }
+
+    public void setSoTConduitGrade(SoTConduitGradeEnum soTConduitGrade) {
+        this.soTConduitGrade = soTConduitGrade;
+    }
+}
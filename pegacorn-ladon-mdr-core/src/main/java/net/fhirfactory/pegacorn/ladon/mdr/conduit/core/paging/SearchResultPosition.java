@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging;
+
+/**
+ * The position within the results of a (paged) search, immediately after a given resource - from which the search
+ * can be resumed without any server-side (or in-memory) state being retained between requests:
+ * - pageUrl/pageEntryOffset: the URL of the page holding the resource (its Bundle "self" link) and the number of the
+ *   page's entries up to and including the resource, so the page can be re-loaded and the consumed entries skipped
+ * - resultOffset: the number of resources of the search up to and including the resource, so the search can be
+ *   re-executed and the consumed resources skipped (used when the page cannot be re-loaded, e.g. it has no "self" link)
+ */
+public class SearchResultPosition {
+    private final String pageUrl;
+    private final int pageEntryOffset;
+    private final int resultOffset;
+
+    public SearchResultPosition(String pageUrl, int pageEntryOffset, int resultOffset){
+        this.pageUrl = pageUrl;
+        this.pageEntryOffset = pageEntryOffset;
+        this.resultOffset = resultOffset;
+    }
+
+    public String getPageUrl() {
+        return pageUrl;
+    }
+
+    public boolean hasPageUrl(){
+        return(pageUrl != null && !pageUrl.isEmpty());
+    }
+
+    public int getPageEntryOffset() {
+        return pageEntryOffset;
+    }
+
+    public int getResultOffset() {
+        return resultOffset;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResultPosition{pageUrl=" + pageUrl + ", pageEntryOffset=" + pageEntryOffset + ", resultOffset=" + resultOffset + "}";
+    }
+}
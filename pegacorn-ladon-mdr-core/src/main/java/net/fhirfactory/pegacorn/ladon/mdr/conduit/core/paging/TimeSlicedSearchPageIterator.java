@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * Executes a search over a wide date range as a series of narrower (time-sliced) searches, run in parallel with at
+ * most a bounded number of slices in flight (executing, or completed but not yet consumed). Each slice is presented
+ * as a "page" of the iterator once it (and every earlier slice) has completed - its resources sorted by the supplied
+ * ordering - so the results are streamed back in date order as the slices finish, without waiting for the whole range.
+ *
+ * The slices are contiguous and non-overlapping: each covers (lowerBound, upperBound], matching a search of the form
+ * "date=gt{lower}&date=le{upper}" - so the union of the slices is exactly the original range.
+ */
+public class TimeSlicedSearchPageIterator extends SearchResultPageIterator {
+    private static final Logger LOG = LoggerFactory.getLogger(TimeSlicedSearchPageIterator.class);
+
+    private final List<DateRangeSlice> slices;
+    private final Function<DateRangeSlice, List<Resource>> sliceSearch;
+    private final Comparator<Resource> ordering;
+    private final Executor sliceExecutor;
+    private final int maxSlicesInFlight;
+    private final List<CompletableFuture<List<Resource>>> sliceResults;
+    private int nextSliceToDeliver;
+
+    /**
+     * @param resourceType The type of resource being searched for
+     * @param slices The slices of the date range, in ascending order (see sliceDateRange())
+     * @param sliceSearch Performs the search of a single slice, returning all of its results
+     * @param ordering The ordering of the resources within a slice (consistent with the slice order)
+     * @param sliceExecutor The Executor on which the slice searches are run
+     * @param maxSlicesInFlight The maximum number of slices executing or awaiting consumption
+     */
+    public TimeSlicedSearchPageIterator(ResourceType resourceType, List<DateRangeSlice> slices, Function<DateRangeSlice, List<Resource>> sliceSearch,
+                                        Comparator<Resource> ordering, Executor sliceExecutor, int maxSlicesInFlight){
+        super(null, resourceType, null);
+        this.slices = slices;
+        this.sliceSearch = sliceSearch;
+        this.ordering = ordering;
+        this.sliceExecutor = sliceExecutor;
+        this.maxSlicesInFlight = Math.max(1, maxSlicesInFlight);
+        this.sliceResults = new ArrayList<>();
+        this.nextSliceToDeliver = 0;
+    }
+
+    //
+    // Slicing
+    //
+
+    /**
+     * Splits the date range (lowerBound, upperBound] into contiguous slices of (at most) the given width.
+     *
+     * @return The slices, in ascending order (a single slice if the range is no wider than the slice width)
+     */
+    public static List<DateRangeSlice> sliceDateRange(Date lowerBound, Date upperBound, long sliceWidthInMilliseconds){
+        List<DateRangeSlice> slices = new ArrayList<>();
+        long lower = lowerBound.getTime();
+        long upper = upperBound.getTime();
+        if(sliceWidthInMilliseconds <= 0 || upper - lower <= sliceWidthInMilliseconds){
+            slices.add(new DateRangeSlice(lowerBound, upperBound));
+            return(slices);
+        }
+        for(long sliceLower = lower; sliceLower < upper; sliceLower += sliceWidthInMilliseconds){
+            long sliceUpper = Math.min(sliceLower + sliceWidthInMilliseconds, upper);
+            slices.add(new DateRangeSlice(new Date(sliceLower), new Date(sliceUpper)));
+        }
+        return(slices);
+    }
+
+    //
+    // Paging
+    //
+
+    @Override
+    protected synchronized Bundle loadNextPage(){
+        if(nextSliceToDeliver >= slices.size()){
+            return(null);
+        }
+        submitSlices();
+        CompletableFuture<List<Resource>> sliceFuture = sliceResults.get(nextSliceToDeliver);
+        List<Resource> sliceResources;
+        try {
+            sliceResources = sliceFuture.join();
+        } catch(CompletionException completionException){
+            cancel();
+            if(completionException.getCause() instanceof RuntimeException){
+                throw((RuntimeException)completionException.getCause());
+            }
+            throw(completionException);
+        }
+        sliceResults.set(nextSliceToDeliver, null);
+        LOG.trace(".loadNextPage(): Slice --> {} of {} complete, resources --> {}", nextSliceToDeliver + 1, slices.size(), sliceResources.size());
+        nextSliceToDeliver += 1;
+        submitSlices();
+        Bundle slicePage = new Bundle();
+        slicePage.setType(Bundle.BundleType.SEARCHSET);
+        List<Resource> orderedResources = new ArrayList<>(sliceResources);
+        if(ordering != null){
+            orderedResources.sort(ordering);
+        }
+        for(Resource currentResource: orderedResources){
+            slicePage.addEntry().setResource(currentResource);
+        }
+        return(slicePage);
+    }
+
+    private void submitSlices(){
+        while(sliceResults.size() < slices.size() && sliceResults.size() - nextSliceToDeliver < maxSlicesInFlight){
+            DateRangeSlice slice = slices.get(sliceResults.size());
+            sliceResults.add(CompletableFuture.supplyAsync(() -> sliceSearch.apply(slice), sliceExecutor));
+        }
+    }
+
+    /**
+     * Abandons the search: the slices not yet started are never executed, while those already executing run to
+     * completion (their requests cannot be aborted) and their results are discarded.
+     */
+    @Override
+    public synchronized void cancel(){
+        super.cancel();
+        for(CompletableFuture<List<Resource>> currentSlice: sliceResults){
+            if(currentSlice != null){
+                currentSlice.cancel(false);
+            }
+        }
+        nextSliceToDeliver = slices.size();
+    }
+
+    public int getSliceCount(){
+        return(slices.size());
+    }
+
+    /**
+     * A slice of a date range, covering (lowerBound, upperBound].
+     */
+    public static class DateRangeSlice {
+        private final Date lowerBound;
+        private final Date upperBound;
+
+        public DateRangeSlice(Date lowerBound, Date upperBound){
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        public Date getLowerBound() {
+            return lowerBound;
+        }
+
+        public Date getUpperBound() {
+            return upperBound;
+        }
+
+        @Override
+        public String toString() {
+            return "DateRangeSlice{(" + lowerBound.toInstant() + ", " + upperBound.toInstant() + "]}";
+        }
+    }
+}
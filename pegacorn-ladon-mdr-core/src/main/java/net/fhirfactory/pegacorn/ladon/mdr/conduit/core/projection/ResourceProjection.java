@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.projection;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.gclient.IClientExecutable;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Describes the subset of a resource that a caller needs, so that reads and searches can be pushed down to the Source
+ * of Truth as "_elements" or "_summary" and return (and parse) less content. The "identifier" element is always
+ * included, as the aggregation services rely on it to correlate the responses from different conduits.
+ *
+ * Projected resources are only partially populated: they carry the SUBSETTED tag, and must not be cached or used as
+ * the baseline for updates.
+ */
+public class ResourceProjection {
+    private static final String IDENTIFIER_ELEMENT = "identifier";
+
+    private Set<String> elements;
+    private SummaryEnum summaryMode;
+
+    private ResourceProjection(Set<String> elements, SummaryEnum summaryMode){
+        this.elements = elements;
+        this.summaryMode = summaryMode;
+    }
+
+    /**
+     * @param elements The (top-level) elements required, e.g. "status", "subject"
+     * @return A projection onto those elements (plus "identifier")
+     */
+    public static ResourceProjection ofElements(String... elements){
+        LinkedHashSet<String> elementSet = new LinkedHashSet<>();
+        elementSet.add(IDENTIFIER_ELEMENT);
+        elementSet.addAll(Arrays.asList(elements));
+        return(new ResourceProjection(elementSet, null));
+    }
+
+    /**
+     * @param summaryMode The FHIR summary mode (e.g. SummaryEnum.TRUE for the "summary" elements only)
+     * @return A projection using the summary mode
+     */
+    public static ResourceProjection ofSummary(SummaryEnum summaryMode){
+        return(new ResourceProjection(Collections.emptySet(), summaryMode));
+    }
+
+    public Set<String> getElements() {
+        return Collections.unmodifiableSet(elements);
+    }
+
+    public SummaryEnum getSummaryMode() {
+        return summaryMode;
+    }
+
+    /**
+     * Applies the projection to a FHIR client request (read or search).
+     *
+     * @param request The request
+     * @return The request, with "_elements" or "_summary" applied
+     */
+    public <T extends IClientExecutable<T, ?>> T applyTo(T request){
+        if(summaryMode != null){
+            return(request.summaryMode(summaryMode));
+        }
+        return(request.elementsSubset(elements.toArray(new String[0])));
+    }
+
+    /**
+     * Marks the resource as partially populated (SUBSETTED), if the Source of Truth has not already done so.
+     *
+     * @param resource The projected resource
+     */
+    public static void markAsSubsetted(Resource resource){
+        if(resource == null || isSubsetted(resource)){
+            return;
+        }
+        resource.getMeta().addTag(new Coding(Constants.TAG_SUBSETTED_SYSTEM_R4, Constants.TAG_SUBSETTED_CODE, null));
+    }
+
+    /**
+     * @param resource The resource
+     * @return True if the resource is only partially populated (i.e. carries the SUBSETTED tag)
+     */
+    public static boolean isSubsetted(Resource resource){
+        if(resource == null || !resource.hasMeta()){
+            return(false);
+        }
+        for(Coding currentTag: resource.getMeta().getTag()){
+            if(Constants.TAG_SUBSETTED_CODE.equals(currentTag.getCode())){
+                return(true);
+            }
+        }
+        return(false);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.searchplan;
+
+import java.io.Serializable;
+
+/**
+ * The parameters of a search, bound to the slots of a CompiledSearchParameterPlan.
+ */
+public class BoundSearchParameters {
+    private final CompiledSearchParameterPlan plan;
+    private final Serializable[] values;
+
+    BoundSearchParameters(CompiledSearchParameterPlan plan, Serializable[] values){
+        this.plan = plan;
+        this.values = values;
+    }
+
+    public CompiledSearchParameterPlan getPlan() {
+        return plan;
+    }
+
+    public <T extends Serializable> T get(SearchParameterSlot<T> slot){
+        return(slot.getValueType().cast(values[slot.getIndex()]));
+    }
+
+    public boolean has(SearchParameterSlot<?> slot){
+        return(values[slot.getIndex()] != null);
+    }
+}
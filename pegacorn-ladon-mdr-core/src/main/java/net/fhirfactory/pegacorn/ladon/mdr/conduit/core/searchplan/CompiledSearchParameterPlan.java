@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.searchplan;
+
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.searches.SearchNameEnum;
+import org.hl7.fhir.r4.model.Property;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parameter "plan" of a named search (SearchNameEnum): the parameters the search evaluates, each as a typed,
+ * indexed slot. The plan is created once (per conduit), after which each incoming parameter set is validated and
+ * bound to the slots in a single pass - one map lookup per parameter, rather than a re-scan of the parameter set (and
+ * of the Property names) for each parameter the conduit needs.
+ *
+ * Parameters that are not part of the plan are ignored by bind() (see accepts() - the search planner does not push
+ * such parameters down to the conduit, it post-filters them).
+ */
+public class CompiledSearchParameterPlan {
+    private final SearchNameEnum searchName;
+    private final List<SearchParameterSlot<?>> slots;
+    private final Map<String, SearchParameterSlot<?>> slotsByName;
+    private int requiredSlotCount;
+
+    public CompiledSearchParameterPlan(SearchNameEnum searchName){
+        this.searchName = searchName;
+        this.slots = new ArrayList<>();
+        this.slotsByName = new HashMap<>();
+        this.requiredSlotCount = 0;
+    }
+
+    //
+    // Plan Definition
+    //
+
+    public <T extends Serializable> SearchParameterSlot<T> addRequiredSlot(String parameterName, Class<T> valueType){
+        return(addSlot(parameterName, valueType, true));
+    }
+
+    public <T extends Serializable> SearchParameterSlot<T> addOptionalSlot(String parameterName, Class<T> valueType){
+        return(addSlot(parameterName, valueType, false));
+    }
+
+    private <T extends Serializable> SearchParameterSlot<T> addSlot(String parameterName, Class<T> valueType, boolean required){
+        if(slotsByName.containsKey(parameterName)){
+            throw(new IllegalArgumentException("Parameter " + parameterName + " is already part of the plan for " + searchName));
+        }
+        SearchParameterSlot<T> newSlot = new SearchParameterSlot<>(parameterName, valueType, slots.size(), required);
+        slots.add(newSlot);
+        slotsByName.put(parameterName, newSlot);
+        if(required){
+            requiredSlotCount += 1;
+        }
+        return(newSlot);
+    }
+
+    //
+    // Binding
+    //
+
+    /**
+     * Validates and binds the parameter set to the plan's slots, in a single pass over the parameter set.
+     *
+     * @param parameterSet The search parameters
+     * @return The bound parameters, or null if a required parameter is absent (or is not of the slot's type)
+     */
+    public BoundSearchParameters bind(Map<Property, Serializable> parameterSet){
+        if(parameterSet == null){
+            return(requiredSlotCount == 0 ? new BoundSearchParameters(this, new Serializable[slots.size()]) : null);
+        }
+        Serializable[] values = new Serializable[slots.size()];
+        int boundRequiredCount = 0;
+        for(Map.Entry<Property, Serializable> currentParameter: parameterSet.entrySet()){
+            SearchParameterSlot<?> slot = slotsByName.get(currentParameter.getKey().getName());
+            if(slot == null || !slot.accepts(currentParameter.getValue()) || values[slot.getIndex()] != null){
+                continue;
+            }
+            values[slot.getIndex()] = currentParameter.getValue();
+            if(slot.isRequired()){
+                boundRequiredCount += 1;
+            }
+        }
+        if(boundRequiredCount < requiredSlotCount){
+            return(null);
+        }
+        return(new BoundSearchParameters(this, values));
+    }
+
+    /**
+     * @return True if the parameter (name and value type) is one of the plan's slots
+     */
+    public boolean accepts(Property property, Serializable value){
+        SearchParameterSlot<?> slot = slotsByName.get(property.getName());
+        return(slot != null && slot.accepts(value));
+    }
+
+    public SearchNameEnum getSearchName() {
+        return searchName;
+    }
+
+    public List<SearchParameterSlot<?>> getSlots() {
+        return(Collections.unmodifiableList(slots));
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledSearchParameterPlan{searchName=" + searchName + ", slots=" + slots + "}";
+    }
+}
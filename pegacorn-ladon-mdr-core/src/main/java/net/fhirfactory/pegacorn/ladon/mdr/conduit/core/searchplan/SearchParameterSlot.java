@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.core.searchplan;
+
+import java.io.Serializable;
+
+/**
+ * A typed, indexed parameter of a CompiledSearchParameterPlan. The slot is used (rather than the parameter's name) to
+ * retrieve the bound value from BoundSearchParameters - so no name matching or casting is repeated by the conduit.
+ *
+ * @param <T> The type of the parameter value (e.g. TokenParam, DateRangeParam)
+ */
+public class SearchParameterSlot<T extends Serializable> {
+    private final String parameterName;
+    private final Class<T> valueType;
+    private final int index;
+    private final boolean required;
+
+    SearchParameterSlot(String parameterName, Class<T> valueType, int index, boolean required){
+        this.parameterName = parameterName;
+        this.valueType = valueType;
+        this.index = index;
+        this.required = required;
+    }
+
+    public String getParameterName() {
+        return parameterName;
+    }
+
+    public Class<T> getValueType() {
+        return valueType;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isRequired() {
+        return required;
+    }
+
+    public boolean accepts(Serializable value){
+        return(valueType.isInstance(value));
+    }
+
+    @Override
+    public String toString() {
+        return "SearchParameterSlot{" + parameterName + ":" + valueType.getSimpleName() + (required ? ", required" : "") + "}";
+    }
+}
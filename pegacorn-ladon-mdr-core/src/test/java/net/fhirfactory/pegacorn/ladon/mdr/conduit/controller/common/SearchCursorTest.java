@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.common;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.StringParam;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPosition;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitSearchResponseElement;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.SoTResourceConduit;
+import net.fhirfactory.pegacorn.ladon.model.virtualdb.searches.SearchNameEnum;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SearchCursorTest {
+
+    @Test
+    public void exhaustedOnceEverySearchedConduitIsExhaustedIgnoringSkippedConduits(){
+        ConduitSearchPlan searchPlan = new ConduitSearchPlan(null);
+        searchPlan.addStep(new ConduitSearchPlan.Step(new NamedConduit("searched"), ConduitSearchPlan.StepMode.PUSH_DOWN, null));
+        searchPlan.addStep(new ConduitSearchPlan.Step(new NamedConduit("skipped"), ConduitSearchPlan.StepMode.SKIPPED, "search not supported"));
+        SearchCursor cursor = new SearchCursor(null, Collections.emptyMap(), false);
+        assertFalse(cursor.isExhausted(searchPlan));
+        cursor.setPosition("searched", new SearchResultPosition(null, 0, 10));
+        assertFalse(cursor.isExhausted(searchPlan));
+        cursor.setExhausted("searched");
+        assertTrue(cursor.isExhausted(searchPlan));
+        SearchCursor resumedCursor = SearchCursor.decode(cursor.encode(), null, Collections.emptyMap(), false);
+        assertTrue(resumedCursor.isExhausted(searchPlan));
+    }
+
+    @Test
+    public void rejectedWhenUsedWithDifferentParameters(){
+        Property nameProperty = new Property("name", "string", "", 0, 1, (Base)null);
+        Map<Property, Serializable> firstParameters = new HashMap<>();
+        firstParameters.put(nameProperty, new StringParam("Smith"));
+        Map<Property, Serializable> secondParameters = new HashMap<>();
+        secondParameters.put(nameProperty, new StringParam("Jones"));
+        SearchCursor cursor = new SearchCursor(null, firstParameters, false);
+        cursor.setPosition("searched", new SearchResultPosition(null, 0, 10));
+        String token = cursor.encode();
+        assertEquals(10, SearchCursor.decode(token, null, firstParameters, false).getPosition("searched").getResultOffset());
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(token, null, secondParameters, false));
+        assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(token, null, firstParameters, true));
+    }
+
+    private static class NamedConduit extends SoTResourceConduit {
+        private static final Logger LOG = LoggerFactory.getLogger(NamedConduit.class);
+        private final String conduitName;
+
+        private NamedConduit(String conduitName){
+            this.conduitName = conduitName;
+        }
+
+        @Override
+        public String getConduitName(){
+            return(conduitName);
+        }
+
+        @Override
+        protected Logger getLogger(){
+            return(LOG);
+        }
+
+        @Override
+        protected String specifySourceOfTruthOwningOrganization(){
+            return(null);
+        }
+
+        @Override
+        protected String specifySourceOfTruthEndpointSystemName(){
+            return(null);
+        }
+
+        @Override
+        protected Identifier getBestIdentifier(MethodOutcome outcome){
+            return(null);
+        }
+
+        @Override
+        protected void registerWithSoTCConduitController(){
+        }
+
+        @Override
+        public ResourceSoTConduitActionResponse createResource(Resource resourceToCreate){
+            return(null);
+        }
+
+        @Override
+        public ResourceSoTConduitActionResponse getResourceViaIdentifier(Identifier identifier){
+            return(null);
+        }
+
+        @Override
+        public ResourceSoTConduitActionResponse reviewResource(IdType id){
+            return(null);
+        }
+
+        @Override
+        public ResourceSoTConduitActionResponse updateResource(Resource resourceToUpdate){
+            return(null);
+        }
+
+        @Override
+        public ResourceSoTConduitActionResponse deleteResource(Resource resourceToDelete){
+            return(null);
+        }
+
+        @Override
+        public List<ResourceSoTConduitSearchResponseElement> searchSourceOfTruthUsingCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet){
+            return(null);
+        }
+
+        @Override
+        public boolean supportiveOfSearch(SearchNameEnum searchName){
+            return(false);
+        }
+
+        @Override
+        public boolean supportsDirectCreateAction(Resource resource){
+            return(false);
+        }
+
+        @Override
+        public boolean supportsDirectUpdateAction(Resource resource){
+            return(false);
+        }
+
+        @Override
+        public boolean supportsDirectDeleteAction(Resource resource){
+            return(false);
+        }
+    }
+}
@@ -22,7 +22,7 @@
 package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor;
 
 import net.fhirfactory.pegacorn.deployment.names.PegacornFHIRPlaceMDRComponentNames;
-import net.fhirfactory.pegacorn.platform.restfulapi.PegacornInternalFHIRClientServices;
+import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common.FHIRPlaceMDRAccessorBase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,7 +30,7 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
 @ApplicationScoped
-public class FHIRPlaceClinicalCareProvisionMDRAccessor extends PegacornInternalFHIRClientServices {
+public class FHIRPlaceClinicalCareProvisionMDRAccessor extends FHIRPlaceMDRAccessorBase {
     private static final Logger LOG = LoggerFactory.getLogger(FHIRPlaceClinicalCareProvisionMDRAccessor.class);
 
     @Override
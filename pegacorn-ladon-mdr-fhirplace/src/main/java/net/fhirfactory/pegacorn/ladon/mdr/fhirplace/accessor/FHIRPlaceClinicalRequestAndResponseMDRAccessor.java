@@ -22,7 +22,7 @@
 package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor;
 
 import net.fhirfactory.pegacorn.deployment.names.PegacornFHIRPlaceMDRComponentNames;
-import net.fhirfactory.pegacorn.platform.restfulapi.PegacornInternalFHIRClientServices;
+import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common.FHIRPlaceMDRAccessorBase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,7 +30,7 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
 @ApplicationScoped
-public class FHIRPlaceClinicalRequestAndResponseMDRAccessor extends PegacornInternalFHIRClientServices {
+public class FHIRPlaceClinicalRequestAndResponseMDRAccessor extends FHIRPlaceMDRAccessorBase {
     private static final Logger LOG = LoggerFactory.getLogger(FHIRPlaceClinicalRequestAndResponseMDRAccessor.class);
 
     @Override
@@ -63,4 +63,14 @@ public class FHIRPlaceClinicalRequestAndResponseMDRAccessor extends PegacornInte
     protected String specifyFHIRServerServerEndpointName() {
         return (pegacornMDRComponentNames.getClinicalRequestAndResponsePegacornMDREndpointFhirApi());
     }
+
+    @Override
+    protected boolean specifyWriteBatching() {
+        return (true);
+    }
+
+    @Override
+    protected String specifyWriteBehindJournalDirectory() {
+        return (getConfiguredWriteBehindJournalDirectory());
+    }
 }
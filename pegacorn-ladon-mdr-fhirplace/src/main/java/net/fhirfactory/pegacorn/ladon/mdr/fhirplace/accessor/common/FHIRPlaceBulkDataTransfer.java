@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPageIterator;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A bulk data path (NDJSON - one compact JSON resource per line) into and out of the FHIRPlace MDR subsystem behind an
+ * accessor, for re-hydrating a node or back-filling a new Source of Truth without millions of individual reads and
+ * creates.
+ *
+ * Export streams every resource of a type (via a paged search, following the "next" links) to an NDJSON stream, one
+ * page in memory at a time. Import reads an NDJSON stream into a bounded queue, from which a pool of workers parses the
+ * resources (each worker with its own parser) and loads them in groups - either into FHIRPlace as batch Bundles (PUT
+ * where the resource has an id, so that ids are preserved, POST otherwise) or into a caller-supplied loader (e.g. a
+ * cache). The queue bounds the memory used regardless of the size of the stream.
+ *
+ * Each transfer returns a FHIRPlaceBulkTransferReport (resource count, failures and resources per second).
+ *
+ * Unlike the conduits' tasks (see ConduitTaskExecutors), a transfer runs on its own threads - its import workers and,
+ * for a transfer between subsystems, its exporter - which exist only for the duration of the transfer. The exporter
+ * and the workers wait on one another (via the pipe and the queue), so within a shared bounded pool a transfer's
+ * workers could occupy every thread while its exporter waits to run.
+ */
+public class FHIRPlaceBulkDataTransfer {
+    private static final Logger LOG = LoggerFactory.getLogger(FHIRPlaceBulkDataTransfer.class);
+
+    // Marks the end of the stream in the import queue (compared by identity)
+    private static final String END_OF_STREAM = new String("END_OF_STREAM");
+    private static final int PIPE_BUFFER_SIZE = 1024 * 1024;
+
+    private String transferName;
+    private Supplier<IGenericClient> clientSupplier;
+    private int exportPageSize;
+    private int importWorkerCount;
+    private int importBatchSize;
+    private int importQueueCapacity;
+
+    public FHIRPlaceBulkDataTransfer(String transferName, Supplier<IGenericClient> clientSupplier, int exportPageSize, int importWorkerCount, int importBatchSize, int importQueueCapacity){
+        this.transferName = transferName;
+        this.clientSupplier = clientSupplier;
+        this.exportPageSize = exportPageSize;
+        this.importWorkerCount = Math.max(1, importWorkerCount);
+        this.importBatchSize = Math.max(1, importBatchSize);
+        this.importQueueCapacity = Math.max(this.importWorkerCount, importQueueCapacity);
+    }
+
+    //
+    // Export
+    //
+
+    public FHIRPlaceBulkTransferReport exportResources(ResourceType resourceType, Path ndjsonFile){
+        try(BufferedWriter ndjsonWriter = Files.newBufferedWriter(ndjsonFile, StandardCharsets.UTF_8)) {
+            return(exportResources(resourceType, ndjsonWriter));
+        } catch(IOException ioException){
+            throw(new UncheckedIOException("Unable to export " + resourceType + " to " + ndjsonFile, ioException));
+        }
+    }
+
+    /**
+     * Writes every resource of the given type held by FHIRPlace to the NDJSON stream.
+     *
+     * @param resourceType The type of resource to export
+     * @param ndjsonWriter The stream to which the resources are written (not closed by this method)
+     * @return The report of the export
+     */
+    public FHIRPlaceBulkTransferReport exportResources(ResourceType resourceType, Writer ndjsonWriter){
+        LOG.debug(".exportResources(): Entry, transferName --> {}, resourceType --> {}", transferName, resourceType);
+        long startTime = System.currentTimeMillis();
+        IGenericClient client = clientSupplier.get();
+        IParser ndjsonParser = client.getFhirContext().newJsonParser().setPrettyPrint(false);
+        SearchResultPageIterator pageIterator = new SearchResultPageIterator(client, resourceType, () -> client
+                .search()
+                .forResource(resourceType.toString())
+                .count(exportPageSize)
+                .returnBundle(Bundle.class)
+                .execute());
+        long resourceCount = 0;
+        try {
+            while (pageIterator.hasNext()) {
+                ndjsonWriter.write(ndjsonParser.encodeResourceToString(pageIterator.next()));
+                ndjsonWriter.write('\n');
+                resourceCount += 1;
+            }
+            ndjsonWriter.flush();
+        } catch(IOException ioException){
+            pageIterator.cancel();
+            throw(new UncheckedIOException("Unable to write the " + resourceType + " export", ioException));
+        }
+        FHIRPlaceBulkTransferReport report = new FHIRPlaceBulkTransferReport(transferName + "::export::" + resourceType, resourceCount, 0, System.currentTimeMillis() - startTime);
+        LOG.info(".exportResources(): Exit, report --> {}", report);
+        return(report);
+    }
+
+    //
+    // Import
+    //
+
+    public FHIRPlaceBulkTransferReport importResources(Path ndjsonFile){
+        return(importResources(ndjsonFile, null));
+    }
+
+    public FHIRPlaceBulkTransferReport importResources(Path ndjsonFile, Consumer<List<Resource>> loader){
+        try(BufferedReader ndjsonReader = Files.newBufferedReader(ndjsonFile, StandardCharsets.UTF_8)) {
+            return(importResources(ndjsonFile.getFileName().toString(), ndjsonReader, loader));
+        } catch(IOException ioException){
+            throw(new UncheckedIOException("Unable to import " + ndjsonFile, ioException));
+        }
+    }
+
+    /**
+     * Parses the NDJSON stream (in parallel) and loads the resources in groups of (up to) the import batch size.
+     *
+     * @param sourceName A name for the source of the stream (for the report)
+     * @param ndjsonReader The NDJSON stream (not closed by this method)
+     * @param loader Loads each group of resources - or null to load them into FHIRPlace as batch Bundles
+     * @return The report of the import
+     */
+    public FHIRPlaceBulkTransferReport importResources(String sourceName, BufferedReader ndjsonReader, Consumer<List<Resource>> loader){
+        LOG.debug(".importResources(): Entry, transferName --> {}, sourceName --> {}", transferName, sourceName);
+        long startTime = System.currentTimeMillis();
+        IGenericClient client = clientSupplier.get();
+        AtomicLong loadedCount = new AtomicLong(0);
+        AtomicLong failedCount = new AtomicLong(0);
+        BlockingQueue<String> lineQueue = new ArrayBlockingQueue<>(importQueueCapacity);
+        ExecutorService workers = Executors.newFixedThreadPool(importWorkerCount, runnable -> {
+            Thread workerThread = new Thread(runnable, "FHIRPlaceBulkImport-" + transferName);
+            workerThread.setDaemon(true);
+            return(workerThread);
+        });
+        List<Future<?>> workerFutures = new ArrayList<>();
+        for(int workerIndex = 0; workerIndex < importWorkerCount; workerIndex += 1){
+            workerFutures.add(workers.submit(() -> runImportWorker(client, lineQueue, loader, loadedCount, failedCount)));
+        }
+        try {
+            String line;
+            while ((line = ndjsonReader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lineQueue.put(line);
+                }
+            }
+        } catch(IOException ioException){
+            LOG.error(".importResources(): Unable to read the NDJSON stream, sourceName --> {}", sourceName, ioException);
+        } catch(InterruptedException interruptedException){
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int workerIndex = 0; workerIndex < importWorkerCount; workerIndex += 1) {
+                try {
+                    lineQueue.put(END_OF_STREAM);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    workers.shutdownNow();
+                    break;
+                }
+            }
+            for (Future<?> workerFuture : workerFutures) {
+                try {
+                    workerFuture.get();
+                } catch (Exception workerException) {
+                    LOG.error(".importResources(): Import worker failed", workerException);
+                }
+            }
+            workers.shutdown();
+        }
+        FHIRPlaceBulkTransferReport report = new FHIRPlaceBulkTransferReport(transferName + "::import::" + sourceName, loadedCount.get(), failedCount.get(), System.currentTimeMillis() - startTime);
+        LOG.info(".importResources(): Exit, report --> {}", report);
+        return(report);
+    }
+
+    /**
+     * Streams every resource of the given type from this (source) FHIRPlace straight into the target's import
+     * pipeline, without an intermediate file.
+     *
+     * @param resourceType The type of resource to copy
+     * @param target The transfer (i.e. accessor) into which the resources are imported
+     * @param loader The loader passed to the target's import, or null to load them into the target's FHIRPlace
+     * @return The report of the import (as the export is bounded by it)
+     */
+    public FHIRPlaceBulkTransferReport transferResources(ResourceType resourceType, FHIRPlaceBulkDataTransfer target, Consumer<List<Resource>> loader){
+        PipedWriter exportWriter = new PipedWriter();
+        PipedReader importReader;
+        try {
+            importReader = new PipedReader(exportWriter, PIPE_BUFFER_SIZE);
+        } catch(IOException ioException){
+            throw(new UncheckedIOException("Unable to transfer " + resourceType, ioException));
+        }
+        ExecutorService exporter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread exportThread = new Thread(runnable, "FHIRPlaceBulkExport-" + transferName);
+            exportThread.setDaemon(true);
+            return(exportThread);
+        });
+        try {
+            // The export owns (and closes) the writing end of the pipe, which ends the import's stream
+            Future<FHIRPlaceBulkTransferReport> exportFuture = exporter.submit(() -> {
+                try(Writer ndjsonWriter = exportWriter) {
+                    return(exportResources(resourceType, ndjsonWriter));
+                }
+            });
+            FHIRPlaceBulkTransferReport importReport;
+            try {
+                importReport = target.importResources(transferName + "::" + resourceType, new BufferedReader(importReader), loader);
+            } catch(RuntimeException importException){
+                exportFuture.cancel(true);
+                throw(importException);
+            } finally {
+                // The import has stopped reading (at the end of the stream, or having failed) - closing the reading end
+                // fails any further write, so the export can never block on a full pipe
+                closePipe(importReader);
+            }
+            try {
+                exportFuture.get();
+            } catch(ExecutionException exportException){
+                if(exportException.getCause() instanceof RuntimeException){
+                    throw((RuntimeException)exportException.getCause());
+                }
+                throw(new IllegalStateException("Unable to export " + resourceType, exportException.getCause()));
+            } catch(InterruptedException interruptedException){
+                Thread.currentThread().interrupt();
+                exportFuture.cancel(true);
+            }
+            return(importReport);
+        } finally {
+            exporter.shutdownNow();
+        }
+    }
+
+    private void closePipe(PipedReader importReader){
+        try {
+            importReader.close();
+        } catch(IOException ioException){
+            LOG.warn(".closePipe(): Unable to close the import stream", ioException);
+        }
+    }
+
+    private void runImportWorker(IGenericClient client, BlockingQueue<String> lineQueue, Consumer<List<Resource>> loader, AtomicLong loadedCount, AtomicLong failedCount){
+        IParser ndjsonParser = client.getFhirContext().newJsonParser();
+        List<Resource> batch = new ArrayList<>(importBatchSize);
+        try {
+            while (true) {
+                String line = lineQueue.take();
+                if (line == END_OF_STREAM) {
+                    break;
+                }
+                try {
+                    batch.add((Resource) ndjsonParser.parseResource(line));
+                } catch (Exception parseException) {
+                    LOG.warn(".runImportWorker(): Unable to parse NDJSON line, error --> {}", parseException.getMessage());
+                    failedCount.incrementAndGet();
+                    continue;
+                }
+                if (batch.size() >= importBatchSize) {
+                    loadBatch(client, batch, loader, loadedCount, failedCount);
+                    batch = new ArrayList<>(importBatchSize);
+                }
+            }
+        } catch(InterruptedException interruptedException){
+            Thread.currentThread().interrupt();
+        }
+        if(!batch.isEmpty()){
+            loadBatch(client, batch, loader, loadedCount, failedCount);
+        }
+    }
+
+    private void loadBatch(IGenericClient client, List<Resource> batch, Consumer<List<Resource>> loader, AtomicLong loadedCount, AtomicLong failedCount){
+        if(loader != null){
+            try {
+                loader.accept(batch);
+                loadedCount.addAndGet(batch.size());
+            } catch(Exception loaderException){
+                LOG.warn(".loadBatch(): Loader failed for {} resources, error --> {}", batch.size(), loaderException.getMessage());
+                failedCount.addAndGet(batch.size());
+            }
+            return;
+        }
+        Bundle batchBundle = new Bundle();
+        batchBundle.setType(Bundle.BundleType.BATCH);
+        for(Resource currentResource: batch){
+            Bundle.BundleEntryComponent entry = batchBundle.addEntry().setResource(currentResource);
+            String resourceType = currentResource.getResourceType().toString();
+            if(currentResource.hasIdElement() && currentResource.getIdElement().hasIdPart()){
+                entry.getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl(resourceType + "/" + currentResource.getIdElement().getIdPart());
+            } else {
+                entry.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resourceType);
+            }
+        }
+        try {
+            Bundle responseBundle = client.transaction().withBundle(batchBundle).execute();
+            for(Bundle.BundleEntryComponent responseEntry: responseBundle.getEntry()){
+                String status = responseEntry.hasResponse() ? responseEntry.getResponse().getStatus() : null;
+                if(status != null && status.startsWith("2")){
+                    loadedCount.incrementAndGet();
+                } else {
+                    failedCount.incrementAndGet();
+                }
+            }
+        } catch(Exception batchException){
+            LOG.warn(".loadBatch(): Batch of {} resources failed, error --> {}", batch.size(), batchException.getMessage());
+            failedCount.addAndGet(batch.size());
+        }
+    }
+}
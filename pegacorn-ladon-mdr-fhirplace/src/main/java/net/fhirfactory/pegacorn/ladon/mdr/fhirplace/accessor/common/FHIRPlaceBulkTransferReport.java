@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+/**
+ * The outcome of a bulk (NDJSON) export or import: the number of resources transferred (and failed), the elapsed time
+ * and hence the throughput in resources per second.
+ */
+public class FHIRPlaceBulkTransferReport {
+    private String transferName;
+    private long resourceCount;
+    private long failedCount;
+    private long elapsedMilliseconds;
+
+    public FHIRPlaceBulkTransferReport(String transferName, long resourceCount, long failedCount, long elapsedMilliseconds){
+        this.transferName = transferName;
+        this.resourceCount = resourceCount;
+        this.failedCount = failedCount;
+        this.elapsedMilliseconds = elapsedMilliseconds;
+    }
+
+    public String getTransferName() {
+        return transferName;
+    }
+
+    public long getResourceCount() {
+        return resourceCount;
+    }
+
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    public long getElapsedMilliseconds() {
+        return elapsedMilliseconds;
+    }
+
+    public double getResourcesPerSecond(){
+        if(elapsedMilliseconds <= 0){
+            return(resourceCount);
+        }
+        return((resourceCount * 1000.0) / elapsedMilliseconds);
+    }
+
+    @Override
+    public String toString() {
+        return "FHIRPlaceBulkTransferReport{" +
+                "transferName='" + transferName + '\'' +
+                ", resourceCount=" + resourceCount +
+                ", failedCount=" + failedCount +
+                ", elapsedMilliseconds=" + elapsedMilliseconds +
+                ", resourcesPerSecond=" + String.format("%.1f", getResourcesPerSecond()) +
+                '}';
+    }
+}
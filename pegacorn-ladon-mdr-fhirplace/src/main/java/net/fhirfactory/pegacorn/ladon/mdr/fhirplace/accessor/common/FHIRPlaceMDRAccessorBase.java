@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.apache.GZipContentInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.AdditionalRequestHeadersInterceptor;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.ConduitTaskExecutors;
+import net.fhirfactory.pegacorn.platform.restfulapi.PegacornInternalFHIRClientServices;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.nio.file.Paths;
+
+/**
+ * The common base of the FHIRPlace MDR accessors. It runs the accessor's FHIR client over the transport shared by all
+ * accessors (FHIRPlaceSharedTransport) and applies the transport (wire) encoding settings of the accessor to it: by
+ * default compact (not pretty-printed) JSON, with optional gzip compression of request and/or response bodies. It also
+ * owns the accessor's optional write batcher and write-behind journal, and its bulk (NDJSON) data transfer. Subclasses
+ * override the specifyXxx() methods to change these settings.
+ */
+public abstract class FHIRPlaceMDRAccessorBase extends PegacornInternalFHIRClientServices {
+
+    private static final long DEFAULT_WRITE_BATCH_WINDOW_IN_MILLISECONDS = 10;
+    private static final int DEFAULT_WRITE_BATCH_MAXIMUM_SIZE = 20;
+    private static final int DEFAULT_WRITE_BEHIND_GROUP_SIZE = 50;
+    private static final long DEFAULT_WRITE_BEHIND_COMMIT_INTERVAL_IN_MILLISECONDS = 100;
+    private static final String WRITE_BEHIND_JOURNAL_DIRECTORY_PROPERTY = "FHIRPLACE_MDR_WRITE_BEHIND_JOURNAL_DIRECTORY";
+    private static final int DEFAULT_MAXIMUM_CONNECTIONS_PER_ENDPOINT = 20;
+    private static final int DEFAULT_BULK_EXPORT_PAGE_SIZE = 500;
+    private static final int DEFAULT_BULK_IMPORT_WORKER_COUNT = 4;
+    private static final int DEFAULT_BULK_IMPORT_BATCH_SIZE = 100;
+    private static final int DEFAULT_BULK_IMPORT_QUEUE_CAPACITY = 1000;
+
+    @Inject
+    private FHIRPlaceSharedTransport sharedTransport;
+
+    @Inject
+    private ConduitTaskExecutors conduitTaskExecutors;
+
+    private IGenericClient templateClient;
+    private IGenericClient configuredClient;
+    private FHIRPlaceWriteBatcher writeBatcher;
+    private FHIRPlaceWriteBehindJournal writeBehindJournal;
+    private FHIRPlaceBulkDataTransfer bulkDataTransfer;
+
+    /**
+     * @return The encoding used for request bodies (and requested for responses), JSON by default
+     */
+    protected EncodingEnum specifyWireEncoding(){
+        return(EncodingEnum.JSON);
+    }
+
+    /**
+     * @return Whether request/response bodies are pretty-printed, false by default (pretty-printing inflates
+     * every payload and is only useful when debugging)
+     */
+    protected boolean specifyPrettyPrint(){
+        return(false);
+    }
+
+    /**
+     * @return Whether request bodies (create/update) are gzip compressed, false by default - the FHIRPlace server
+     * must support gzip Content-Encoding for this to be enabled
+     */
+    protected boolean specifyRequestCompression(){
+        return(false);
+    }
+
+    /**
+     * @return Whether gzip compressed responses are requested (Accept-Encoding), false by default
+     */
+    protected boolean specifyResponseCompression(){
+        return(false);
+    }
+
+    /**
+     * @return Whether create/update writes via this accessor are coalesced into batch Bundles (see
+     * FHIRPlaceWriteBatcher), false by default
+     */
+    protected boolean specifyWriteBatching(){
+        return(false);
+    }
+
+    protected long specifyWriteBatchWindowInMilliseconds(){
+        return(DEFAULT_WRITE_BATCH_WINDOW_IN_MILLISECONDS);
+    }
+
+    protected int specifyWriteBatchMaximumSize(){
+        return(DEFAULT_WRITE_BATCH_MAXIMUM_SIZE);
+    }
+
+    public boolean isWriteBatchingEnabled(){
+        return(specifyWriteBatching());
+    }
+
+    public synchronized FHIRPlaceWriteBatcher getWriteBatcher(){
+        if(writeBatcher == null){
+            writeBatcher = new FHIRPlaceWriteBatcher(this::getClient, specifyWriteBatchWindowInMilliseconds(), specifyWriteBatchMaximumSize(),
+                    conduitTaskExecutors.getMaintenanceScheduler());
+        }
+        return(writeBatcher);
+    }
+
+    /**
+     * @return The directory in which the write-behind journal (see FHIRPlaceWriteBehindJournal) for this accessor is
+     * kept, or null (the default) if write-behind is not enabled for this accessor
+     */
+    protected String specifyWriteBehindJournalDirectory(){
+        return(null);
+    }
+
+    /**
+     * @return The write-behind journal directory configured for the deployment (via the system property or environment
+     * variable FHIRPLACE_MDR_WRITE_BEHIND_JOURNAL_DIRECTORY), or null if none is configured
+     */
+    protected String getConfiguredWriteBehindJournalDirectory(){
+        String journalDirectory = System.getProperty(WRITE_BEHIND_JOURNAL_DIRECTORY_PROPERTY);
+        if(journalDirectory == null){
+            journalDirectory = System.getenv(WRITE_BEHIND_JOURNAL_DIRECTORY_PROPERTY);
+        }
+        return(journalDirectory);
+    }
+
+    protected int specifyWriteBehindGroupSize(){
+        return(DEFAULT_WRITE_BEHIND_GROUP_SIZE);
+    }
+
+    protected long specifyWriteBehindCommitIntervalInMilliseconds(){
+        return(DEFAULT_WRITE_BEHIND_COMMIT_INTERVAL_IN_MILLISECONDS);
+    }
+
+    /**
+     * @return The write-behind journal for this accessor, or null if write-behind is not enabled
+     */
+    public synchronized FHIRPlaceWriteBehindJournal getWriteBehindJournal(){
+        return(writeBehindJournal);
+    }
+
+    protected int specifyBulkExportPageSize(){
+        return(DEFAULT_BULK_EXPORT_PAGE_SIZE);
+    }
+
+    protected int specifyBulkImportWorkerCount(){
+        return(DEFAULT_BULK_IMPORT_WORKER_COUNT);
+    }
+
+    protected int specifyBulkImportBatchSize(){
+        return(DEFAULT_BULK_IMPORT_BATCH_SIZE);
+    }
+
+    /**
+     * @return The number of NDJSON lines that may be queued (read but not yet parsed) during an import - this bounds
+     * the memory used by an import
+     */
+    protected int specifyBulkImportQueueCapacity(){
+        return(DEFAULT_BULK_IMPORT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @return The bulk (NDJSON) export/import path for the MDR subsystem behind this accessor
+     */
+    public synchronized FHIRPlaceBulkDataTransfer getBulkDataTransfer(){
+        if(bulkDataTransfer == null){
+            bulkDataTransfer = new FHIRPlaceBulkDataTransfer(getClass().getSimpleName(), this::getClient, specifyBulkExportPageSize(),
+                    specifyBulkImportWorkerCount(), specifyBulkImportBatchSize(), specifyBulkImportQueueCapacity());
+        }
+        return(bulkDataTransfer);
+    }
+
+    @Override
+    public void initialise(){
+        super.initialise();
+        synchronized(this) {
+            String journalDirectory = specifyWriteBehindJournalDirectory();
+            if (writeBehindJournal == null && journalDirectory != null && !journalDirectory.isEmpty()) {
+                getLogger().info(".initialise(): Opening write-behind journal, directory --> {}", journalDirectory);
+                writeBehindJournal = new FHIRPlaceWriteBehindJournal(Paths.get(journalDirectory), getClass().getSimpleName(), this::getClient,
+                        specifyWriteBehindGroupSize(), specifyWriteBehindCommitIntervalInMilliseconds(), conduitTaskExecutors.getMaintenanceScheduler());
+            }
+        }
+    }
+
+    /**
+     * Flushes (and stops) the write batcher and write-behind journal, if they are in use.
+     */
+    @PreDestroy
+    public synchronized void shutdownWriters(){
+        if(writeBatcher != null){
+            writeBatcher.shutdown();
+            writeBatcher = null;
+        }
+        if(writeBehindJournal != null){
+            writeBehindJournal.shutdown();
+            writeBehindJournal = null;
+        }
+    }
+
+    public EncodingEnum getWireEncoding(){
+        return(specifyWireEncoding());
+    }
+
+    public boolean isPrettyPrint(){
+        return(specifyPrettyPrint());
+    }
+
+    /**
+     * Returns the accessor's FHIR client - re-built over the shared transport (if enabled) and configured with the
+     * wire encoding settings. This is done once for each client built by PegacornInternalFHIRClientServices.
+     */
+    @Override
+    public IGenericClient getClient(){
+        IGenericClient client = super.getClient();
+        if(client == null){
+            return(null);
+        }
+        synchronized(this) {
+            if (client != templateClient) {
+                IGenericClient transportClient = client;
+                if(specifySharedTransport() && sharedTransport != null){
+                    transportClient = sharedTransport.newClient(client, specifyMaximumConnectionsPerEndpoint());
+                }
+                applyWireEncodingSettings(transportClient);
+                templateClient = client;
+                configuredClient = transportClient;
+            }
+            return(configuredClient);
+        }
+    }
+
+    /**
+     * @return Whether the accessor's requests are executed via the transport shared by all accessors (see
+     * FHIRPlaceSharedTransport), true by default
+     */
+    protected boolean specifySharedTransport(){
+        return(true);
+    }
+
+    protected int specifyMaximumConnectionsPerEndpoint(){
+        return(DEFAULT_MAXIMUM_CONNECTIONS_PER_ENDPOINT);
+    }
+
+    protected void applyWireEncodingSettings(IGenericClient client){
+        getLogger().debug(".applyWireEncodingSettings(): Entry, encoding --> {}, prettyPrint --> {}, requestCompression --> {}, responseCompression --> {}",
+                specifyWireEncoding(), specifyPrettyPrint(), specifyRequestCompression(), specifyResponseCompression());
+        client.setEncoding(specifyWireEncoding());
+        client.setPrettyPrint(specifyPrettyPrint());
+        if(specifyRequestCompression()){
+            client.registerInterceptor(new GZipContentInterceptor());
+        }
+        if(specifyResponseCompression()){
+            AdditionalRequestHeadersInterceptor acceptEncodingInterceptor = new AdditionalRequestHeadersInterceptor();
+            acceptEncodingInterceptor.addHeaderValue("Accept-Encoding", "gzip");
+            client.registerInterceptor(acceptEncodingInterceptor);
+        }
+        getLogger().debug(".applyWireEncodingSettings(): Exit");
+    }
+}
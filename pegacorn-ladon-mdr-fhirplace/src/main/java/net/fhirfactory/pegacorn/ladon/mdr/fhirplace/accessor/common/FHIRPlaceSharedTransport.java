@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.impl.RestfulClientFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HTTP transport shared by all the FHIRPlace MDR accessors. Rather than each accessor's FHIR client creating (and
+ * pooling) its own connections, every client built via newClient() executes its requests over a single pooled,
+ * keep-alive Apache HttpClient - so accessors pointing at the same server share connections (and hence TLS sessions),
+ * and the number of connections to each endpoint is bounded by a per-endpoint limit.
+ *
+ * Each client keeps the transport settings of its FhirContext's IRestfulClientFactory: the connect, socket and
+ * connection-request timeouts and the proxy (with its credentials) are applied to each of the client's requests. TLS
+ * uses the JVM's default SSL settings (the javax.net.ssl.* system properties) - the factory builds its own HttpClient
+ * with no custom SSLContext either, so a client needing one must not use the shared transport.
+ *
+ * Connection-level metrics (pool usage, connections opened and requests executed, per endpoint) are available via
+ * getEndpointMetrics().
+ */
+@ApplicationScoped
+public class FHIRPlaceSharedTransport {
+    private static final Logger LOG = LoggerFactory.getLogger(FHIRPlaceSharedTransport.class);
+
+    private static final int DEFAULT_MAXIMUM_TOTAL_CONNECTIONS = 200;
+    private static final int DEFAULT_MAXIMUM_CONNECTIONS_PER_ENDPOINT = 20;
+    private static final int VALIDATE_AFTER_INACTIVITY_IN_MILLISECONDS = 2000;
+    private static final long IDLE_CONNECTION_TIMEOUT_IN_SECONDS = 30;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private Map<HttpRoute, AtomicLong> connectionsOpened;
+    private Map<HttpRoute, AtomicLong> requestsExecuted;
+    private BasicCredentialsProvider proxyCredentials;
+
+    public FHIRPlaceSharedTransport(){
+        this.connectionManager = null;
+        this.httpClient = null;
+        this.connectionsOpened = new ConcurrentHashMap<>();
+        this.requestsExecuted = new ConcurrentHashMap<>();
+        this.proxyCredentials = new BasicCredentialsProvider();
+    }
+
+    protected int specifyMaximumTotalConnections(){
+        return(DEFAULT_MAXIMUM_TOTAL_CONNECTIONS);
+    }
+
+    protected int specifyDefaultMaximumConnectionsPerEndpoint(){
+        return(DEFAULT_MAXIMUM_CONNECTIONS_PER_ENDPOINT);
+    }
+
+    /**
+     * Creates a FHIR client for the same server (and with the same interceptors and transport settings) as the
+     * template client, but which executes its requests via the shared transport.
+     *
+     * @param templateClient The client as built by PegacornInternalFHIRClientServices
+     * @param maximumConnectionsForEndpoint The connection limit for the server's endpoint (the largest limit requested
+     *                                      by any accessor for an endpoint applies)
+     * @return The client using the shared transport
+     */
+    public IGenericClient newClient(IGenericClient templateClient, int maximumConnectionsForEndpoint){
+        LOG.debug(".newClient(): Entry, serverBase --> {}", templateClient.getServerBase());
+        FhirContext fhirContext = templateClient.getFhirContext();
+        IRestfulClientFactory contextClientFactory = fhirContext.getRestfulClientFactory();
+        ApacheRestfulClientFactory transportClientFactory = new ApacheRestfulClientFactory(fhirContext);
+        transportClientFactory.setServerValidationMode(contextClientFactory.getServerValidationMode());
+        transportClientFactory.setHttpClient(getHttpClient());
+        setEndpointConnectionLimit(templateClient.getServerBase(), maximumConnectionsForEndpoint);
+        IGenericClient transportClient = transportClientFactory.newGenericClient(templateClient.getServerBase());
+        for(Object currentInterceptor: templateClient.getInterceptorService().getAllRegisteredInterceptors()){
+            transportClient.registerInterceptor(currentInterceptor);
+        }
+        transportClient.setEncoding(templateClient.getEncoding());
+        transportClient.registerInterceptor(new RequestConfigInterceptor(buildClientRequestConfig(contextClientFactory)));
+        LOG.debug(".newClient(): Exit");
+        return(transportClient);
+    }
+
+    /**
+     * @return The pool usage, connections opened and requests executed for each endpoint used via the transport
+     */
+    public List<FHIRPlaceTransportEndpointMetrics> getEndpointMetrics(){
+        List<FHIRPlaceTransportEndpointMetrics> metricsList = new ArrayList<>();
+        PoolingHttpClientConnectionManager currentConnectionManager;
+        synchronized (this) {
+            currentConnectionManager = connectionManager;
+        }
+        if(currentConnectionManager == null){
+            return(metricsList);
+        }
+        for(HttpRoute currentRoute: currentConnectionManager.getRoutes()){
+            PoolStats routeStats = currentConnectionManager.getStats(currentRoute);
+            metricsList.add(new FHIRPlaceTransportEndpointMetrics(
+                    currentRoute.getTargetHost().toURI(),
+                    routeStats.getLeased(),
+                    routeStats.getAvailable(),
+                    routeStats.getPending(),
+                    routeStats.getMax(),
+                    getCounter(connectionsOpened, currentRoute).get(),
+                    getCounter(requestsExecuted, currentRoute).get()));
+        }
+        return(metricsList);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown(){
+        LOG.info(".shutdown(): Closing shared transport, metrics --> {}", getEndpointMetrics());
+        if(httpClient != null){
+            try {
+                httpClient.close();
+            } catch (IOException ioException) {
+                LOG.warn(".shutdown(): Unable to close the shared HttpClient", ioException);
+            }
+            httpClient = null;
+        }
+        if(connectionManager != null){
+            connectionManager.close();
+            connectionManager = null;
+        }
+    }
+
+    //
+    // Client Transport Settings
+    //
+
+    /**
+     * Applies a client's transport settings to each of its requests (the shared HttpClient's defaults being shared by
+     * every client).
+     */
+    private static class RequestConfigInterceptor implements IClientInterceptor {
+        private RequestConfig requestConfig;
+
+        RequestConfigInterceptor(RequestConfig requestConfig){
+            this.requestConfig = requestConfig;
+        }
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            if(request instanceof ApacheHttpRequest){
+                ((ApacheHttpRequest)request).getApacheRequest().setConfig(requestConfig);
+            }
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+        }
+    }
+
+    /**
+     * Builds the request settings (timeouts and proxy) matching those of the FhirContext's client factory. The proxy's
+     * credentials are registered with the shared HttpClient.
+     */
+    protected RequestConfig buildClientRequestConfig(IRestfulClientFactory contextClientFactory){
+        RequestConfig.Builder requestConfig = RequestConfig.custom()
+                .setConnectTimeout(contextClientFactory.getConnectTimeout())
+                .setSocketTimeout(contextClientFactory.getSocketTimeout())
+                .setConnectionRequestTimeout(contextClientFactory.getConnectionRequestTimeout());
+        HttpHost proxy = getFactoryProxy(contextClientFactory);
+        if(proxy != null){
+            LOG.debug(".buildClientRequestConfig(): Using proxy --> {}", proxy);
+            requestConfig.setProxy(proxy);
+            String proxyUsername = getFactoryProxySetting(contextClientFactory, "getProxyUsername");
+            String proxyPassword = getFactoryProxySetting(contextClientFactory, "getProxyPassword");
+            if(proxyUsername != null && proxyPassword != null){
+                proxyCredentials.setCredentials(new AuthScope(proxy.getHostName(), proxy.getPort()), new UsernamePasswordCredentials(proxyUsername, proxyPassword));
+            }
+        }
+        return(requestConfig.build());
+    }
+
+    /**
+     * HAPI's ApacheRestfulClientFactory does not expose the proxy given to its setProxy(), so it is read from the
+     * factory's (private) field.
+     */
+    private HttpHost getFactoryProxy(IRestfulClientFactory contextClientFactory){
+        if(!(contextClientFactory instanceof ApacheRestfulClientFactory)){
+            return(null);
+        }
+        try {
+            Field proxyField = ApacheRestfulClientFactory.class.getDeclaredField("myProxy");
+            proxyField.setAccessible(true);
+            return((HttpHost)proxyField.get(contextClientFactory));
+        } catch(ReflectiveOperationException | RuntimeException reflectionException){
+            LOG.warn(".getFactoryProxy(): Unable to determine the client factory's proxy, error --> {}", reflectionException.getMessage());
+            return(null);
+        }
+    }
+
+    private String getFactoryProxySetting(IRestfulClientFactory contextClientFactory, String getterName){
+        if(!(contextClientFactory instanceof RestfulClientFactory)){
+            return(null);
+        }
+        try {
+            Method getter = RestfulClientFactory.class.getDeclaredMethod(getterName);
+            getter.setAccessible(true);
+            return((String)getter.invoke(contextClientFactory));
+        } catch(ReflectiveOperationException | RuntimeException reflectionException){
+            LOG.warn(".getFactoryProxySetting(): Unable to determine the client factory's proxy credentials, error --> {}", reflectionException.getMessage());
+            return(null);
+        }
+    }
+
+    //
+    // Helper Methods
+    //
+
+    protected synchronized CloseableHttpClient getHttpClient(){
+        if(httpClient != null){
+            return(httpClient);
+        }
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> countingConnectionFactory = (route, config) -> {
+            getCounter(connectionsOpened, route).incrementAndGet();
+            return(ManagedHttpClientConnectionFactory.INSTANCE.create(route, config));
+        };
+        // TLS uses the JVM's default SSL settings (javax.net.ssl.*)
+        connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+                        .build(),
+                countingConnectionFactory);
+        connectionManager.setMaxTotal(specifyMaximumTotalConnections());
+        connectionManager.setDefaultMaxPerRoute(specifyDefaultMaximumConnectionsPerEndpoint());
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_IN_MILLISECONDS);
+        RequestConfig defaultRequestConfig = RequestConfig.custom()
+                .setConnectTimeout(IRestfulClientFactory.DEFAULT_CONNECT_TIMEOUT)
+                .setSocketTimeout(IRestfulClientFactory.DEFAULT_SOCKET_TIMEOUT)
+                .setConnectionRequestTimeout(IRestfulClientFactory.DEFAULT_CONNECTION_REQUEST_TIMEOUT)
+                .build();
+        HttpRequestInterceptor requestCounter = (request, context) -> {
+            RouteInfo route = HttpClientContext.adapt(context).getHttpRoute();
+            if(route instanceof HttpRoute){
+                getCounter(requestsExecuted, (HttpRoute)route).incrementAndGet();
+            }
+        };
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(defaultRequestConfig)
+                .setDefaultCredentialsProvider(proxyCredentials)
+                .addInterceptorFirst(requestCounter)
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS)
+                .disableCookieManagement()
+                .build();
+        return(httpClient);
+    }
+
+    protected synchronized void setEndpointConnectionLimit(String serverBase, int maximumConnections){
+        if(maximumConnections <= 0){
+            return;
+        }
+        HttpRoute route = toRoute(serverBase);
+        if(route == null){
+            return;
+        }
+        getHttpClient();
+        if(connectionManager.getMaxPerRoute(route) < maximumConnections){
+            connectionManager.setMaxPerRoute(route, maximumConnections);
+        }
+    }
+
+    private HttpRoute toRoute(String serverBase){
+        try {
+            URI serverURI = URI.create(serverBase);
+            boolean secure = "https".equalsIgnoreCase(serverURI.getScheme());
+            int port = serverURI.getPort();
+            if(port < 0){
+                port = secure ? 443 : 80;
+            }
+            return(new HttpRoute(new HttpHost(serverURI.getHost(), port, serverURI.getScheme()), null, secure));
+        } catch(IllegalArgumentException badURIException){
+            LOG.warn(".toRoute(): Unable to determine endpoint, serverBase --> {}", serverBase);
+            return(null);
+        }
+    }
+
+    private AtomicLong getCounter(Map<HttpRoute, AtomicLong> counters, HttpRoute route){
+        return(counters.computeIfAbsent(route, key -> new AtomicLong(0)));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+/**
+ * A point-in-time view of the shared transport's connection pool for a single FHIRPlace endpoint (route).
+ */
+public class FHIRPlaceTransportEndpointMetrics {
+    private String endpoint;
+    private int leasedConnections;
+    private int availableConnections;
+    private int pendingRequests;
+    private int maximumConnections;
+    private long connectionsOpened;
+    private long requestsExecuted;
+
+    public FHIRPlaceTransportEndpointMetrics(String endpoint, int leasedConnections, int availableConnections, int pendingRequests, int maximumConnections, long connectionsOpened, long requestsExecuted){
+        this.endpoint = endpoint;
+        this.leasedConnections = leasedConnections;
+        this.availableConnections = availableConnections;
+        this.pendingRequests = pendingRequests;
+        this.maximumConnections = maximumConnections;
+        this.connectionsOpened = connectionsOpened;
+        this.requestsExecuted = requestsExecuted;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public int getLeasedConnections() {
+        return leasedConnections;
+    }
+
+    public int getAvailableConnections() {
+        return availableConnections;
+    }
+
+    public int getPendingRequests() {
+        return pendingRequests;
+    }
+
+    public int getMaximumConnections() {
+        return maximumConnections;
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    public long getRequestsExecuted() {
+        return requestsExecuted;
+    }
+
+    /**
+     * @return The average number of requests carried by each connection opened to the endpoint
+     */
+    public double getRequestsPerConnection(){
+        if(connectionsOpened == 0){
+            return(0);
+        }
+        return(((double)requestsExecuted) / connectionsOpened);
+    }
+
+    @Override
+    public String toString() {
+        return "FHIRPlaceTransportEndpointMetrics{" +
+                "endpoint='" + endpoint + '\'' +
+                ", leasedConnections=" + leasedConnections +
+                ", availableConnections=" + availableConnections +
+                ", pendingRequests=" + pendingRequests +
+                ", maximumConnections=" + maximumConnections +
+                ", connectionsOpened=" + connectionsOpened +
+                ", requestsExecuted=" + requestsExecuted +
+                '}';
+    }
+}
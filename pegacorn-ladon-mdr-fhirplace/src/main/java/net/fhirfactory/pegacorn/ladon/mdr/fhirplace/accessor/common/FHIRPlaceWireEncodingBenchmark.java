@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-alone benchmark of the request body size (bytes on the wire) and serialisation CPU time of the create/update
+ * payloads sent by the FHIRPlace conduits, for each of the wire encoding settings of FHIRPlaceMDRAccessorBase - the
+ * former pretty-printed JSON, the default compact JSON, compact JSON with gzip request compression, and compact XML.
+ * Only the client-side encoding is measured (no server is needed), over a representative sample of Patient and
+ * DocumentReference resources.
+ *
+ * Usage: java ... FHIRPlaceWireEncodingBenchmark [iterations]
+ */
+public class FHIRPlaceWireEncodingBenchmark {
+    private static final int DEFAULT_ITERATIONS = 2000;
+    private static final int SAMPLE_SIZE = 20;
+
+    private FhirContext fhirContext;
+    private List<Resource> sampleResources;
+
+    public FHIRPlaceWireEncodingBenchmark(FhirContext fhirContext, List<Resource> sampleResources){
+        this.fhirContext = fhirContext;
+        this.sampleResources = sampleResources;
+    }
+
+    public static void main(String[] args){
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        FHIRPlaceWireEncodingBenchmark benchmark = new FHIRPlaceWireEncodingBenchmark(FhirContext.forR4(), buildSampleResources(SAMPLE_SIZE));
+        System.out.println(String.format("%-24s %14s %14s", "Encoding", "Bytes/resource", "Micros/resource"));
+        benchmark.report("JSON (pretty-printed)", EncodingEnum.JSON, true, false, iterations);
+        benchmark.report("JSON (compact)", EncodingEnum.JSON, false, false, iterations);
+        benchmark.report("JSON (compact, gzip)", EncodingEnum.JSON, false, true, iterations);
+        benchmark.report("XML (compact)", EncodingEnum.XML, false, false, iterations);
+    }
+
+    public void report(String label, EncodingEnum encoding, boolean prettyPrint, boolean gzip, int iterations){
+        IParser parser = encoding.newParser(fhirContext).setPrettyPrint(prettyPrint);
+        // Warm up (JIT, parser caches) before measuring
+        encodeSample(parser, gzip, Math.max(1, iterations / 10));
+        long startTime = System.nanoTime();
+        long totalBytes = encodeSample(parser, gzip, iterations);
+        long elapsedNanos = System.nanoTime() - startTime;
+        long encodedCount = (long)iterations * sampleResources.size();
+        System.out.println(String.format("%-24s %14d %14.2f", label, totalBytes / encodedCount, elapsedNanos / 1000.0 / encodedCount));
+    }
+
+    private long encodeSample(IParser parser, boolean gzip, int iterations){
+        long totalBytes = 0;
+        for(int iteration = 0; iteration < iterations; iteration += 1){
+            for(Resource currentResource: sampleResources){
+                byte[] body = parser.encodeResourceToString(currentResource).getBytes(StandardCharsets.UTF_8);
+                totalBytes += gzip ? compress(body).length : body.length;
+            }
+        }
+        return(totalBytes);
+    }
+
+    private static byte[] compress(byte[] body){
+        ByteArrayOutputStream compressedBody = new ByteArrayOutputStream(body.length);
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressedBody)) {
+            gzipStream.write(body);
+        } catch(IOException ioException){
+            throw(new UncheckedIOException(ioException));
+        }
+        return(compressedBody.toByteArray());
+    }
+
+    public static List<Resource> buildSampleResources(int sampleSize){
+        ArrayList<Resource> sampleResources = new ArrayList<>();
+        for(int sampleIndex = 0; sampleIndex < sampleSize; sampleIndex += 1){
+            Patient patient = new Patient();
+            patient.setId("Patient/" + sampleIndex);
+            patient.addIdentifier(new Identifier().setSystem("http://ns.electronichealth.net.au/id/hi/ihi/1.0").setValue("800360" + String.format("%010d", sampleIndex)));
+            patient.addIdentifier(new Identifier().setSystem("https://fhirfactory.net/identifiers/mrn").setValue("MRN" + sampleIndex));
+            patient.addName(new HumanName().setUse(HumanName.NameUse.OFFICIAL).setFamily("Family" + sampleIndex).addGiven("Given").addGiven("Middle"));
+            patient.addTelecom(new ContactPoint().setSystem(ContactPoint.ContactPointSystem.PHONE).setUse(ContactPoint.ContactPointUse.MOBILE).setValue("0400 000 " + String.format("%03d", sampleIndex)));
+            patient.setGender(Enumerations.AdministrativeGender.UNKNOWN);
+            patient.setBirthDate(new Date(0));
+            sampleResources.add(patient);
+
+            DocumentReference documentReference = new DocumentReference();
+            documentReference.setId("DocumentReference/" + sampleIndex);
+            documentReference.addIdentifier(new Identifier().setSystem("https://fhirfactory.net/identifiers/document").setValue("DOC" + sampleIndex));
+            documentReference.setStatus(Enumerations.DocumentReferenceStatus.CURRENT);
+            documentReference.setType(new CodeableConcept().addCoding(new Coding("http://loinc.org", "11488-4", "Consult note")));
+            documentReference.setSubject(new Reference("Patient/" + sampleIndex));
+            documentReference.setDate(new Date(0));
+            StringBuilder noteText = new StringBuilder();
+            for(int sentence = 0; sentence < 20; sentence += 1){
+                noteText.append("Consultation note for sample patient ").append(sampleIndex).append(". ");
+            }
+            documentReference.addContent().setAttachment(new Attachment()
+                    .setContentType("text/plain")
+                    .setTitle("Consult note " + sampleIndex)
+                    .setData(noteText.toString().getBytes(StandardCharsets.UTF_8)));
+            sampleResources.add(documentReference);
+        }
+        return(sampleResources);
+    }
+}
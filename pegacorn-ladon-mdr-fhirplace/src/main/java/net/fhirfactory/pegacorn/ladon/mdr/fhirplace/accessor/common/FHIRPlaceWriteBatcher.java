@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces the create/update writes made (via the conduits) to a single FHIRPlace accessor into FHIR "batch"
+ * Bundles. Writes are gathered until either the batch window (measured from the first write in the batch) elapses
+ * or the maximum batch size is reached, at which point a single batch Bundle is sent. Each caller blocks until the
+ * batch has been sent and receives the MethodOutcome mapped from its own Bundle response entry.
+ *
+ * A "batch" (rather than "transaction") Bundle is used so that the entries (which come from unrelated callers)
+ * succeed or fail independently.
+ *
+ * The batch window is timed on the shared maintenance scheduler (see ConduitTaskExecutors).
+ */
+public class FHIRPlaceWriteBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(FHIRPlaceWriteBatcher.class);
+
+    private Supplier<IGenericClient> clientSupplier;
+    private long batchWindowInMilliseconds;
+    private int maximumBatchSize;
+    private ScheduledExecutorService flushScheduler;
+    private List<PendingWrite> pendingWrites;
+    private ScheduledFuture<?> scheduledFlush;
+
+    private static class PendingWrite {
+        private Bundle.BundleEntryComponent entry;
+        private CompletableFuture<MethodOutcome> outcome;
+
+        PendingWrite(Bundle.BundleEntryComponent entry){
+            this.entry = entry;
+            this.outcome = new CompletableFuture<>();
+        }
+    }
+
+    public FHIRPlaceWriteBatcher(Supplier<IGenericClient> clientSupplier, long batchWindowInMilliseconds, int maximumBatchSize,
+                                 ScheduledExecutorService flushScheduler){
+        this.clientSupplier = clientSupplier;
+        this.batchWindowInMilliseconds = batchWindowInMilliseconds;
+        this.maximumBatchSize = maximumBatchSize;
+        this.pendingWrites = new ArrayList<>();
+        this.scheduledFlush = null;
+        this.flushScheduler = flushScheduler;
+    }
+
+    public MethodOutcome create(Resource resourceToCreate){
+        return(create(resourceToCreate, null));
+    }
+
+    /**
+     * @param resourceToCreate The resource to be created
+     * @param ifNoneExistCondition The conditional create (If-None-Exist) search, or null for an unconditional create
+     * @return The outcome of the create (containing the existing resource, if the condition matched one)
+     */
+    public MethodOutcome create(Resource resourceToCreate, String ifNoneExistCondition){
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        entry.setResource(resourceToCreate);
+        entry.getRequest()
+                .setMethod(Bundle.HTTPVerb.POST)
+                .setUrl(resourceToCreate.fhirType());
+        if(ifNoneExistCondition != null){
+            entry.getRequest().setIfNoneExist(ifNoneExistCondition.substring(ifNoneExistCondition.indexOf('?') + 1));
+        }
+        return(submit(entry));
+    }
+
+    public MethodOutcome update(Resource resourceToUpdate){
+        Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+        entry.setResource(resourceToUpdate);
+        entry.getRequest()
+                .setMethod(Bundle.HTTPVerb.PUT)
+                .setUrl(resourceToUpdate.fhirType() + "/" + resourceToUpdate.getIdElement().getIdPart());
+        return(submit(entry));
+    }
+
+    /**
+     * Adds the entry to the current batch and blocks until that batch has been sent.
+     *
+     * @param entry The batch entry (resource and request) to be written
+     * @return The outcome of the write, mapped from the corresponding batch response entry
+     * @throws BaseServerResponseException if the batch response entry reports a failure (non-2xx status)
+     */
+    public MethodOutcome submit(Bundle.BundleEntryComponent entry){
+        LOG.debug(".submit(): Entry, method --> {}, url --> {}", entry.getRequest().getMethod(), entry.getRequest().getUrl());
+        PendingWrite pendingWrite = new PendingWrite(entry);
+        List<PendingWrite> fullBatch = null;
+        synchronized(this){
+            pendingWrites.add(pendingWrite);
+            if(pendingWrites.size() >= maximumBatchSize){
+                fullBatch = takePendingWrites();
+            } else if(scheduledFlush == null){
+                scheduledFlush = flushScheduler.schedule(this::flushPendingWrites, batchWindowInMilliseconds, TimeUnit.MILLISECONDS);
+            }
+        }
+        if(fullBatch != null){
+            sendBatch(fullBatch);
+        }
+        try {
+            MethodOutcome outcome = pendingWrite.outcome.join();
+            LOG.debug(".submit(): Exit, outcome.id --> {}", outcome.getId());
+            return (outcome);
+        } catch(CompletionException completionException){
+            if(completionException.getCause() instanceof RuntimeException){
+                throw((RuntimeException)completionException.getCause());
+            }
+            throw(completionException);
+        }
+    }
+
+    /**
+     * Sends any pending writes (the scheduled flush, if any, is cancelled - the scheduler itself is shared).
+     */
+    public void shutdown(){
+        flushPendingWrites();
+    }
+
+    //
+    // Helper Methods
+    //
+
+    private void flushPendingWrites(){
+        List<PendingWrite> batch;
+        synchronized(this){
+            batch = takePendingWrites();
+        }
+        if(!batch.isEmpty()){
+            sendBatch(batch);
+        }
+    }
+
+    private List<PendingWrite> takePendingWrites(){
+        List<PendingWrite> batch = pendingWrites;
+        pendingWrites = new ArrayList<>();
+        if(scheduledFlush != null){
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return(batch);
+    }
+
+    private void sendBatch(List<PendingWrite> batch){
+        LOG.debug(".sendBatch(): Entry, batch size --> {}", batch.size());
+        Bundle batchBundle = new Bundle();
+        batchBundle.setType(Bundle.BundleType.BATCH);
+        for(PendingWrite currentWrite: batch){
+            batchBundle.addEntry(currentWrite.entry);
+        }
+        Bundle responseBundle;
+        try {
+            responseBundle = clientSupplier.get()
+                    .transaction()
+                    .withBundle(batchBundle)
+                    .execute();
+        } catch(RuntimeException sendException){
+            LOG.error(".sendBatch(): Failed to send batch, error --> {}", sendException.getMessage());
+            for(PendingWrite currentWrite: batch){
+                currentWrite.outcome.completeExceptionally(sendException);
+            }
+            return;
+        }
+        for(int entryIndex = 0; entryIndex < batch.size(); entryIndex += 1){
+            PendingWrite currentWrite = batch.get(entryIndex);
+            if(responseBundle == null || entryIndex >= responseBundle.getEntry().size()){
+                currentWrite.outcome.completeExceptionally(new IllegalStateException("No batch response entry for " + currentWrite.entry.getRequest().getUrl()));
+                continue;
+            }
+            Bundle.BundleEntryComponent responseEntry = responseBundle.getEntry().get(entryIndex);
+            BaseServerResponseException entryFailure = buildEntryFailure(responseEntry);
+            if(entryFailure != null){
+                currentWrite.outcome.completeExceptionally(entryFailure);
+                continue;
+            }
+            currentWrite.outcome.complete(buildMethodOutcome(currentWrite.entry, responseEntry));
+        }
+        LOG.debug(".sendBatch(): Exit");
+    }
+
+    /**
+     * Builds the exception the non-batched client would have thrown for a failed (non-2xx) batch response entry.
+     *
+     * @param responseEntry The batch response entry
+     * @return The exception (matching the entry's status code), or null if the entry was successful
+     */
+    private BaseServerResponseException buildEntryFailure(Bundle.BundleEntryComponent responseEntry){
+        Bundle.BundleEntryResponseComponent response = responseEntry.getResponse();
+        String status = response.hasStatus() ? response.getStatus().trim() : "";
+        if(status.startsWith("2")){
+            return(null);
+        }
+        int statusCode = 500;
+        int separatorIndex = status.indexOf(' ');
+        String statusCodeText = separatorIndex > 0 ? status.substring(0, separatorIndex) : status;
+        try {
+            statusCode = Integer.parseInt(statusCodeText);
+        } catch(NumberFormatException badStatus){
+            LOG.warn(".buildEntryFailure(): Unparseable batch entry status --> {}", status);
+        }
+        BaseServerResponseException entryFailure = BaseServerResponseException.newInstance(statusCode, "Batch entry failed, status --> " + status);
+        if(response.getOutcome() instanceof OperationOutcome){
+            entryFailure.setOperationOutcome((OperationOutcome)response.getOutcome());
+        }
+        return(entryFailure);
+    }
+
+    private MethodOutcome buildMethodOutcome(Bundle.BundleEntryComponent requestEntry, Bundle.BundleEntryComponent responseEntry){
+        MethodOutcome outcome = new MethodOutcome();
+        Bundle.BundleEntryResponseComponent response = responseEntry.getResponse();
+        String status = response.hasStatus() ? response.getStatus().trim() : "";
+        boolean successful = status.startsWith("2");
+        outcome.setCreated(status.startsWith("201"));
+        if(response.hasLocation()){
+            outcome.setId(new IdType(response.getLocation()));
+        }
+        if(response.getOutcome() instanceof OperationOutcome){
+            outcome.setOperationOutcome((OperationOutcome)response.getOutcome());
+        }
+        if(responseEntry.hasResource()){
+            outcome.setResource(responseEntry.getResource());
+        } else if(successful){
+            // The server returned a "minimal" response, so the (submitted) resource is returned with its new id
+            Resource writtenResource = ((Resource)requestEntry.getResource()).copy();
+            if(outcome.getId() != null){
+                writtenResource.setId(outcome.getId().toUnqualifiedVersionless());
+            }
+            outcome.setResource(writtenResource);
+        }
+        return(outcome);
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A write-behind journal for resource updates (PUTs) made via a FHIRPlace accessor. An update is acknowledged once it
+ * has been appended (and forced) to a local append-only journal file; a background committer then drains the journal
+ * to FHIRPlace in groups, each group being sent as a single batch Bundle. The committer runs on the shared maintenance
+ * scheduler (see ConduitTaskExecutors), one commit cycle at a time.
+ *
+ * Updates to the same resource are committed in journal order: a group never contains two entries for the same
+ * resource, and groups are sent one at a time. Once a group has been committed, its last sequence number is recorded
+ * in the checkpoint file - on startup, any journal entries beyond the checkpoint are replayed. The journal is
+ * truncated whenever it has been fully drained. The journal, the dead-letter file and the checkpoint are all forced to
+ * disk when written.
+ *
+ * An update that FHIRPlace rejects (a non-retryable 4xx status, or no response entry at all) has already been
+ * acknowledged to the caller, so it is not silently dropped: it is appended to the dead-letter file (together with the
+ * status) and logged as an error, and the number of dead-lettered updates is available via getDeadLetterCount(). If
+ * FHIRPlace rejects a whole group, the group is split until the offending update(s) can be dead-lettered, so a single
+ * bad update never blocks the journal. Transient failures (5xx, 408, 429, 401 and 403) are retried.
+ *
+ * Note that reads from FHIRPlace may not reflect an acknowledged update until it has been committed.
+ */
+public class FHIRPlaceWriteBehindJournal {
+    private static final Logger LOG = LoggerFactory.getLogger(FHIRPlaceWriteBehindJournal.class);
+
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE_SUFFIX = ".checkpoint";
+    private static final String DEAD_LETTER_FILE_SUFFIX = ".deadletter";
+    private static final char FIELD_SEPARATOR = '\t';
+
+    private Supplier<IGenericClient> clientSupplier;
+    private Path journalFile;
+    private Path checkpointFile;
+    private Path deadLetterFile;
+    private long deadLetterCount;
+    private FileChannel journalChannel;
+    private LinkedList<JournalEntry> uncommittedEntries;
+    private long nextSequenceNumber;
+    private long checkpointSequenceNumber;
+    private int maximumGroupSize;
+    private ScheduledFuture<?> committer;
+    private final Object commitLock;
+
+    private static class JournalEntry {
+        private long sequenceNumber;
+        private Resource resource;
+
+        JournalEntry(long sequenceNumber, Resource resource){
+            this.sequenceNumber = sequenceNumber;
+            this.resource = resource;
+        }
+
+        String getResourceKey(){
+            return(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+        }
+    }
+
+    public FHIRPlaceWriteBehindJournal(Path journalDirectory, String journalName, Supplier<IGenericClient> clientSupplier, int maximumGroupSize,
+                                       long commitIntervalInMilliseconds, ScheduledExecutorService commitScheduler){
+        this.clientSupplier = clientSupplier;
+        this.journalFile = journalDirectory.resolve(journalName + JOURNAL_FILE_SUFFIX);
+        this.checkpointFile = journalDirectory.resolve(journalName + CHECKPOINT_FILE_SUFFIX);
+        this.deadLetterFile = journalDirectory.resolve(journalName + DEAD_LETTER_FILE_SUFFIX);
+        this.deadLetterCount = 0;
+        this.maximumGroupSize = maximumGroupSize;
+        this.uncommittedEntries = new LinkedList<>();
+        this.commitLock = new Object();
+        try {
+            Files.createDirectories(journalDirectory);
+            replay();
+            this.journalChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch(IOException ioException){
+            throw(new UncheckedIOException("Unable to open write-behind journal " + journalFile, ioException));
+        }
+        this.committer = commitScheduler.scheduleWithFixedDelay(this::commitPendingGroups, commitIntervalInMilliseconds, commitIntervalInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends an update to the journal, returning once it is durable (i.e. before it is sent to FHIRPlace).
+     *
+     * @param resourceToUpdate The resource to be updated (it must have an id)
+     * @return An (acknowledgement) MethodOutcome containing the resource as journaled
+     */
+    public MethodOutcome appendUpdate(Resource resourceToUpdate){
+        LOG.debug(".appendUpdate(): Entry, resource --> {}", resourceToUpdate.getIdElement());
+        Resource journaledResource = resourceToUpdate.copy();
+        String encodedResource = getParser().encodeResourceToString(journaledResource);
+        synchronized(this){
+            long sequenceNumber = nextSequenceNumber;
+            String journalLine = Long.toString(sequenceNumber) + FIELD_SEPARATOR + encodedResource + "\n";
+            try {
+                ByteBuffer lineBuffer = ByteBuffer.wrap(journalLine.getBytes(StandardCharsets.UTF_8));
+                while(lineBuffer.hasRemaining()) {
+                    journalChannel.write(lineBuffer);
+                }
+                journalChannel.force(false);
+            } catch(IOException ioException){
+                throw(new UncheckedIOException("Unable to append to write-behind journal " + journalFile, ioException));
+            }
+            nextSequenceNumber += 1;
+            uncommittedEntries.add(new JournalEntry(sequenceNumber, journaledResource));
+        }
+        MethodOutcome acknowledgement = new MethodOutcome();
+        acknowledgement.setId(journaledResource.getIdElement());
+        acknowledgement.setResource(journaledResource);
+        LOG.debug(".appendUpdate(): Exit, update journaled");
+        return(acknowledgement);
+    }
+
+    public synchronized int getUncommittedCount(){
+        return(uncommittedEntries.size());
+    }
+
+    /**
+     * @return The number of (acknowledged) updates rejected by FHIRPlace and written to the dead-letter file since startup
+     */
+    public synchronized long getDeadLetterCount(){
+        return(deadLetterCount);
+    }
+
+    public Path getDeadLetterFile(){
+        return(deadLetterFile);
+    }
+
+    public void shutdown(){
+        committer.cancel(false);
+        // Waits for any commit cycle in progress (see commitPendingGroups())
+        commitPendingGroups();
+        synchronized(this) {
+            try {
+                journalChannel.close();
+            } catch (IOException ioException) {
+                LOG.warn(".shutdown(): Unable to close journal, error --> {}", ioException.getMessage());
+            }
+        }
+    }
+
+    //
+    // Committer
+    //
+
+    private void commitPendingGroups(){
+        // A group is only removed from the journal once committed, so commit cycles must not overlap
+        synchronized(commitLock) {
+            try {
+                List<JournalEntry> group = takeNextGroup();
+                while (!group.isEmpty()) {
+                    if (!commitGroup(group)) {
+                        // Leave the group in the journal, it will be retried on the next cycle
+                        return;
+                    }
+                    group = takeNextGroup();
+                }
+            } catch (RuntimeException unexpectedException) {
+                LOG.error(".commitPendingGroups(): Unexpected error, will retry, error --> {}", unexpectedException.getMessage());
+            }
+        }
+    }
+
+    private synchronized List<JournalEntry> takeNextGroup(){
+        ArrayList<JournalEntry> group = new ArrayList<>();
+        Set<String> resourceKeysInGroup = new HashSet<>();
+        for(JournalEntry currentEntry: uncommittedEntries){
+            if(group.size() >= maximumGroupSize || resourceKeysInGroup.contains(currentEntry.getResourceKey())){
+                break;
+            }
+            group.add(currentEntry);
+            resourceKeysInGroup.add(currentEntry.getResourceKey());
+        }
+        return(group);
+    }
+
+    private boolean commitGroup(List<JournalEntry> group){
+        LOG.debug(".commitGroup(): Entry, group size --> {}", group.size());
+        Bundle batchBundle = new Bundle();
+        batchBundle.setType(Bundle.BundleType.BATCH);
+        for(JournalEntry currentEntry: group){
+            batchBundle.addEntry()
+                    .setResource(currentEntry.resource)
+                    .getRequest()
+                        .setMethod(Bundle.HTTPVerb.PUT)
+                        .setUrl(currentEntry.getResourceKey());
+        }
+        Bundle responseBundle;
+        try {
+            responseBundle = clientSupplier.get()
+                    .transaction()
+                    .withBundle(batchBundle)
+                    .execute();
+        } catch(BaseServerResponseException rejectedException){
+            if(isRetryable(rejectedException.getStatusCode())){
+                LOG.warn(".commitGroup(): Unable to commit group, will retry, status --> {}", rejectedException.getStatusCode());
+                return(false);
+            }
+            return(commitRejectedGroup(group, rejectedException));
+        } catch(RuntimeException sendException){
+            LOG.warn(".commitGroup(): Unable to commit group, will retry, error --> {}", sendException.getMessage());
+            return(false);
+        }
+        List<JournalEntry> completedEntries = new ArrayList<>();
+        for(int entryIndex = 0; entryIndex < group.size(); entryIndex += 1){
+            JournalEntry currentEntry = group.get(entryIndex);
+            String status = null;
+            if(responseBundle != null && entryIndex < responseBundle.getEntry().size()){
+                status = responseBundle.getEntry().get(entryIndex).getResponse().getStatus();
+            }
+            int statusCode = parseStatusCode(status);
+            if(statusCode >= 200 && statusCode < 300){
+                completedEntries.add(currentEntry);
+            } else if(statusCode > 0 && isRetryable(statusCode)){
+                // Left in the journal, it (and any later update of the same resource) is retried on the next cycle
+                LOG.warn(".commitGroup(): Update not committed, will retry, resource --> {}, status --> {}", currentEntry.getResourceKey(), status);
+            } else {
+                // A rejected update will not succeed on retry, so it is dead-lettered rather than blocking the journal
+                writeDeadLetter(currentEntry, status);
+                completedEntries.add(currentEntry);
+            }
+        }
+        markCommitted(completedEntries);
+        LOG.debug(".commitGroup(): Exit, checkpoint --> {}", checkpointSequenceNumber);
+        return(completedEntries.size() == group.size());
+    }
+
+    /**
+     * FHIRPlace rejected the whole group (e.g. one malformed entry failed the batch), so the group is split in two and
+     * each half committed separately - until the rejected update(s) are isolated and can be dead-lettered.
+     */
+    private boolean commitRejectedGroup(List<JournalEntry> group, BaseServerResponseException rejectedException){
+        if(group.size() == 1){
+            writeDeadLetter(group.get(0), Integer.toString(rejectedException.getStatusCode()) + " " + rejectedException.getMessage());
+            markCommitted(group);
+            return(true);
+        }
+        LOG.warn(".commitRejectedGroup(): Group rejected, splitting, group size --> {}, status --> {}", group.size(), rejectedException.getStatusCode());
+        int splitIndex = group.size() / 2;
+        if(!commitGroup(new ArrayList<>(group.subList(0, splitIndex)))){
+            return(false);
+        }
+        return(commitGroup(new ArrayList<>(group.subList(splitIndex, group.size()))));
+    }
+
+    private synchronized void markCommitted(List<JournalEntry> committedEntries){
+        if(committedEntries.isEmpty()){
+            return;
+        }
+        uncommittedEntries.removeAll(committedEntries);
+        long committedSequenceNumber = committedEntries.get(committedEntries.size() - 1).sequenceNumber;
+        if(!uncommittedEntries.isEmpty()){
+            // Everything before the oldest uncommitted (e.g. retried) entry has been committed
+            committedSequenceNumber = Math.min(committedSequenceNumber, uncommittedEntries.getFirst().sequenceNumber - 1);
+        }
+        if(committedSequenceNumber <= checkpointSequenceNumber){
+            return;
+        }
+        checkpointSequenceNumber = committedSequenceNumber;
+        writeCheckpoint();
+        if(uncommittedEntries.isEmpty()){
+            try {
+                journalChannel.truncate(0);
+                journalChannel.force(false);
+            } catch(IOException ioException){
+                LOG.warn(".markCommitted(): Unable to truncate journal, error --> {}", ioException.getMessage());
+            }
+        }
+    }
+
+    private boolean isRetryable(int statusCode){
+        return(statusCode >= 500 || statusCode == 408 || statusCode == 429 || statusCode == 401 || statusCode == 403);
+    }
+
+    private int parseStatusCode(String status){
+        if(status == null){
+            return(0);
+        }
+        String trimmedStatus = status.trim();
+        int separatorIndex = trimmedStatus.indexOf(' ');
+        try {
+            return(Integer.parseInt(separatorIndex > 0 ? trimmedStatus.substring(0, separatorIndex) : trimmedStatus));
+        } catch(NumberFormatException badStatus){
+            return(0);
+        }
+    }
+
+    //
+    // Dead Letters
+    //
+
+    private synchronized void writeDeadLetter(JournalEntry rejectedEntry, String status){
+        deadLetterCount += 1;
+        LOG.error(".writeDeadLetter(): Acknowledged update rejected by FHIRPlace, dead-lettered, resource --> {}, status --> {}, deadLetterFile --> {}", rejectedEntry.getResourceKey(), status, deadLetterFile);
+        String deadLetterLine = Long.toString(rejectedEntry.sequenceNumber) + FIELD_SEPARATOR + (status == null ? "no-response" : status.trim()) + FIELD_SEPARATOR + getParser().encodeResourceToString(rejectedEntry.resource) + "\n";
+        try(FileChannel deadLetterChannel = FileChannel.open(deadLetterFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer lineBuffer = ByteBuffer.wrap(deadLetterLine.getBytes(StandardCharsets.UTF_8));
+            while(lineBuffer.hasRemaining()) {
+                deadLetterChannel.write(lineBuffer);
+            }
+            deadLetterChannel.force(false);
+        } catch(IOException ioException){
+            // The update is still logged (in full) above - it must not block the journal
+            LOG.error(".writeDeadLetter(): Unable to write dead letter, resource --> {}, content --> {}, error --> {}", rejectedEntry.getResourceKey(), deadLetterLine, ioException.getMessage());
+        }
+    }
+
+    //
+    // Replay and Checkpoint
+    //
+
+    private void replay() throws IOException {
+        checkpointSequenceNumber = 0;
+        if(Files.exists(checkpointFile)){
+            String checkpointContent = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim();
+            if(!checkpointContent.isEmpty()){
+                checkpointSequenceNumber = Long.parseLong(checkpointContent);
+            }
+        }
+        nextSequenceNumber = checkpointSequenceNumber + 1;
+        if(!Files.exists(journalFile)){
+            return;
+        }
+        try(BufferedReader journalReader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String journalLine = journalReader.readLine();
+            while(journalLine != null){
+                int separatorIndex = journalLine.indexOf(FIELD_SEPARATOR);
+                try {
+                    long sequenceNumber = Long.parseLong(journalLine.substring(0, separatorIndex));
+                    if (sequenceNumber > checkpointSequenceNumber) {
+                        Resource journaledResource = (Resource) getParser().parseResource(journalLine.substring(separatorIndex + 1));
+                        uncommittedEntries.add(new JournalEntry(sequenceNumber, journaledResource));
+                    }
+                    nextSequenceNumber = Math.max(nextSequenceNumber, sequenceNumber + 1);
+                } catch(RuntimeException parseException){
+                    // Most likely a partially written (final) line from before a crash - it was never acknowledged
+                    LOG.warn(".replay(): Skipping unreadable journal entry, error --> {}", parseException.getMessage());
+                }
+                journalLine = journalReader.readLine();
+            }
+        }
+        LOG.info(".replay(): Replaying {} uncommitted entries from journal {}", uncommittedEntries.size(), journalFile);
+    }
+
+    private void writeCheckpoint(){
+        Path temporaryCheckpointFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try {
+            try(FileChannel checkpointChannel = FileChannel.open(temporaryCheckpointFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer checkpointBuffer = ByteBuffer.wrap(Long.toString(checkpointSequenceNumber).getBytes(StandardCharsets.UTF_8));
+                while(checkpointBuffer.hasRemaining()) {
+                    checkpointChannel.write(checkpointBuffer);
+                }
+                checkpointChannel.force(true);
+            }
+            Files.move(temporaryCheckpointFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(checkpointFile.getParent());
+        } catch(IOException ioException){
+            LOG.warn(".writeCheckpoint(): Unable to write checkpoint, entries may be re-sent on restart, error --> {}", ioException.getMessage());
+        }
+    }
+
+    /**
+     * Forces a directory (so that a rename within it is durable). Not all platforms allow a directory to be opened, in
+     * which case this is a no-op.
+     */
+    private void forceDirectory(Path directory){
+        try(FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch(IOException | UnsupportedOperationException unsupportedException){
+            LOG.trace(".forceDirectory(): Unable to force directory, error --> {}", unsupportedException.getMessage());
+        }
+    }
+
+    private IParser getParser(){
+        IParser parser = clientSupplier.get().getFhirContext().newJsonParser();
+        parser.setPrettyPrint(false);
+        return(parser);
+    }
+}
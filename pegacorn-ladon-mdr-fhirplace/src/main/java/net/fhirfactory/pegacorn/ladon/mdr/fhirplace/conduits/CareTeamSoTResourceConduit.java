@@ -23,6 +23,7 @@ package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.CareTeamSoTConduitController;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.ConduitRequestContext;
 import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.FHIRPlaceClinicalCareProvisionMDRAccessor;
 import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common.FHIRPlaceSoTConduitCommon;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.businesskey.VirtualDBKeyManagement;
@@ -104,9 +105,9 @@ public class CareTeamSoTResourceConduit extends FHIRPlaceSoTConduitCommon {
      * @return A Response/Outcome of the operation, including a copy of the Resource.
      */
     @Override
-    public ResourceSoTConduitActionResponse createResource(Resource resourceToCreate) {
+    public ResourceSoTConduitActionResponse createResource(Resource resourceToCreate, String ifNoneExistCondition) {
         LOG.debug(".createResource(): Entry, resourceToCreate --> {}", resourceToCreate);
-        ResourceSoTConduitActionResponse outcome = standardCreateResource(resourceToCreate);
+        ResourceSoTConduitActionResponse outcome = standardCreateResource(resourceToCreate, ifNoneExistCondition);
         outcome.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
         outcome.setSoTGrade(SoTConduitGradeEnum.AUTHORITATIVE);
         LOG.debug(".createResource(): Exit, outcome --> {}", outcome);
@@ -125,9 +126,9 @@ public class CareTeamSoTResourceConduit extends FHIRPlaceSoTConduitCommon {
      * @return A Response/Outcome of the operation, including a copy of the Resource (if found).
      */
     @Override
-    public ResourceSoTConduitActionResponse getResourceViaIdentifier(Identifier identifier) {
+    public ResourceSoTConduitActionResponse getResourceViaIdentifier(Identifier identifier, ConduitRequestContext context) {
         LOG.debug(".readResource(): Entry, identifier --> {}", identifier);
-        ResourceSoTConduitActionResponse outcome = standardGetResourceViaIdentifier(ResourceType.CareTeam.toString(), identifier);
+        ResourceSoTConduitActionResponse outcome = standardGetResourceViaIdentifier(ResourceType.CareTeam.toString(), identifier, context);
         outcome.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
         outcome.setSoTGrade(SoTConduitGradeEnum.AUTHORITATIVE);
         LOG.debug(".readResource(): Exit, outcome --> {}", outcome);
@@ -146,9 +147,9 @@ public class CareTeamSoTResourceConduit extends FHIRPlaceSoTConduitCommon {
      * @return A Response/Outcome of the operation, including a copy of the Resource (if found).
      */
     @Override
-    public ResourceSoTConduitActionResponse reviewResource(IdType id) {
+    public ResourceSoTConduitActionResponse reviewResource(IdType id, ConduitRequestContext context) {
         LOG.debug(".readResource(): Entry, identifier --> {}", id);
-        ResourceSoTConduitActionResponse outcome = standardReviewResource(CareTeam.class, id);
+        ResourceSoTConduitActionResponse outcome = standardReviewResource(CareTeam.class, id, context);
         outcome.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
         outcome.setSoTGrade(SoTConduitGradeEnum.AUTHORITATIVE);
         LOG.debug(".readResource(): Exit, outcome --> {}", outcome);
@@ -182,13 +183,16 @@ public class CareTeamSoTResourceConduit extends FHIRPlaceSoTConduitCommon {
     }
 
     @Override
-    public List<ResourceSoTConduitSearchResponseElement> searchSourceOfTruthUsingCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet) {
-        return null;
+    public List<ResourceSoTConduitSearchResponseElement> searchSourceOfTruthUsingCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet, ConduitRequestContext context) {
+        LOG.debug(".searchSourceOfTruthUsingCriteria(): Entry, searchName --> {}", searchName);
+        List<ResourceSoTConduitSearchResponseElement> searchResults = standardSearchUsingCriteria(ResourceType.CareTeam, parameterSet, ResourceGradeEnum.THOROUGH, SoTConduitGradeEnum.AUTHORITATIVE, context);
+        LOG.debug(".searchSourceOfTruthUsingCriteria(): Exit");
+        return(searchResults);
     }
 
     @Override
     public boolean supportiveOfSearch(SearchNameEnum searchName) {
-        return false;
+        return(standardSupportiveOfSearch(searchName));
     }
 
     @Override
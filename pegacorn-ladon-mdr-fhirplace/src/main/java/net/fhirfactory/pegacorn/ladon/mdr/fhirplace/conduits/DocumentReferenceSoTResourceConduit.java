@@ -22,10 +22,20 @@
 package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.param.DateRangeParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.controller.DocumentReferenceSoTConduitController;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.ConduitRequestContext;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.ClosedDateRangeSliceCache;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.SearchResultPageIterator;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.paging.TimeSlicedSearchPageIterator;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.projection.ResourceProjection;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.searchplan.BoundSearchParameters;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.searchplan.CompiledSearchParameterPlan;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.searchplan.SearchParameterSlot;
 import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.FHIRPlaceFoundationDocumentsMDRAccessor;
+import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common.DocumentReferenceTypeDateIndex;
 import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common.FHIRPlaceSoTConduitCommon;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.businesskey.VirtualDBKeyManagement;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceGradeEnum;
@@ -39,13 +49,19 @@ import org.hl7.fhir.r4.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 @ApplicationScoped
 public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitCommon {
@@ -60,11 +76,238 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
     @Inject
     private FHIRPlaceFoundationDocumentsMDRAccessor servicesAccessor;
 
+    private static final String TYPE_DATE_INDEX_WINDOW_PROPERTY = "FHIRPLACE_MDR_DOCUMENT_REFERENCE_INDEX_WINDOW_DAYS";
+    private static final long DEFAULT_TYPE_DATE_INDEX_POLL_INTERVAL_IN_MILLISECONDS = 30000;
+
+    private static final Set<SearchNameEnum> SUPPORTED_SEARCHES = Collections.unmodifiableSet(EnumSet.of(SearchNameEnum.DOCUMENT_REFERENCE_DATE_AND_TYPE));
+    private static final CompiledSearchParameterPlan TYPE_AND_DATE_SEARCH_PLAN = new CompiledSearchParameterPlan(SearchNameEnum.DOCUMENT_REFERENCE_DATE_AND_TYPE);
+    private static final SearchParameterSlot<TokenParam> TYPE_SLOT = TYPE_AND_DATE_SEARCH_PLAN.addRequiredSlot("type", TokenParam.class);
+    private static final SearchParameterSlot<DateRangeParam> DATE_SLOT = TYPE_AND_DATE_SEARCH_PLAN.addRequiredSlot("date", DateRangeParam.class);
+
+    private static final String SEARCH_SLICE_WIDTH_PROPERTY = "FHIRPLACE_MDR_DOCUMENT_REFERENCE_SEARCH_SLICE_HOURS";
+    private static final String SEARCH_SLICE_CACHE_TTL_PROPERTY = "FHIRPLACE_MDR_DOCUMENT_REFERENCE_SEARCH_SLICE_CACHE_MINUTES";
+    private static final int DEFAULT_SEARCH_SLICE_WIDTH_IN_HOURS = 24;
+    private static final int SEARCH_SLICE_CACHE_SIZE = 1000;
+    private static final long SEARCH_SLICE_CACHE_SETTLING_INTERVAL_IN_MILLISECONDS = TimeUnit.HOURS.toMillis(1);
+    private static final Comparator<Resource> DATE_ORDERING = Comparator
+            .comparing((Resource resource) -> ((DocumentReference)resource).getDate(), Comparator.nullsLast(Comparator.<Date>naturalOrder()))
+            .thenComparing(resource -> resource.getIdElement().getIdPart(), Comparator.nullsLast(Comparator.<String>naturalOrder()));
+
+    private DocumentReferenceTypeDateIndex typeDateIndex;
+    private ClosedDateRangeSliceCache searchSliceCache;
+
     @Override
     protected Logger getLogger(){
         return(LOG);
     }
 
+    //
+    // Type+Date Index
+    //
+
+    @Override
+    protected void doSubclassInitialisations(){
+        super.doSubclassInitialisations();
+        int indexWindowInDays = specifyTypeDateIndexWindowInDays();
+        if(indexWindowInDays > 0 && typeDateIndex == null){
+            LOG.info(".doSubclassInitialisations(): Starting DocumentReference type+date index, window (days) --> {}", indexWindowInDays);
+            typeDateIndex = new DocumentReferenceTypeDateIndex(this::getFHIRPlaceShardClient, TimeUnit.DAYS.toMillis(indexWindowInDays),
+                    specifyTypeDateIndexPollIntervalInMilliseconds(), getMaintenanceScheduler());
+            typeDateIndex.start();
+        }
+        int sliceCacheTimeToLiveInMinutes = specifySearchSliceCacheTimeToLiveInMinutes();
+        if(sliceCacheTimeToLiveInMinutes > 0 && searchSliceCache == null){
+            searchSliceCache = new ClosedDateRangeSliceCache(SEARCH_SLICE_CACHE_SIZE, TimeUnit.MINUTES.toMillis(sliceCacheTimeToLiveInMinutes),
+                    SEARCH_SLICE_CACHE_SETTLING_INTERVAL_IN_MILLISECONDS);
+            if(typeDateIndex != null){
+                // Writes made by other nodes reach this node via the index's change feed
+                typeDateIndex.setChangeListener((typeSystem, typeCode) -> invalidateSearchSlices(typeSystem, typeCode));
+            } else {
+                LOG.warn(".doSubclassInitialisations(): Search slice cache enabled without the type+date index, writes made by other nodes are only seen once cached slices expire");
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdownTypeDateIndex(){
+        if(typeDateIndex != null){
+            typeDateIndex.shutdown();
+            typeDateIndex = null;
+        }
+    }
+
+    /**
+     * @return The number of days (back from now) of DocumentReferences held in the local type+date index, configured
+     * via the system property or environment variable FHIRPLACE_MDR_DOCUMENT_REFERENCE_INDEX_WINDOW_DAYS - 0 (the
+     * default) disables the index
+     */
+    protected int specifyTypeDateIndexWindowInDays(){
+        return(getConfiguredInteger(TYPE_DATE_INDEX_WINDOW_PROPERTY, 0));
+    }
+
+    protected long specifyTypeDateIndexPollIntervalInMilliseconds(){
+        return(DEFAULT_TYPE_DATE_INDEX_POLL_INTERVAL_IN_MILLISECONDS);
+    }
+
+    private void indexOutcome(ResourceSoTConduitActionResponse outcome){
+        if(typeDateIndex == null || outcome == null){
+            return;
+        }
+        if(outcome.getResource() instanceof DocumentReference && !ResourceProjection.isSubsetted((Resource)outcome.getResource())){
+            typeDateIndex.index((DocumentReference)outcome.getResource());
+        }
+    }
+
+    /**
+     * Reads an integer setting from the system property (or, failing that, the environment variable) of the same name.
+     */
+    private int getConfiguredInteger(String settingName, int defaultValue){
+        String settingValue = System.getProperty(settingName);
+        if(settingValue == null){
+            settingValue = System.getenv(settingName);
+        }
+        if(settingValue == null){
+            return(defaultValue);
+        }
+        try {
+            return(Integer.parseInt(settingValue.trim()));
+        } catch(NumberFormatException badValueException){
+            LOG.warn(".getConfiguredInteger(): Invalid value for {} --> {}", settingName, settingValue);
+            return(defaultValue);
+        }
+    }
+
+    //
+    // Time-sliced Type+Date Searches
+    //
+
+    /**
+     * @return The width (in hours) of the time slices a wide type+date search is split into (and executed in
+     * parallel), configured via the system property or environment variable
+     * FHIRPLACE_MDR_DOCUMENT_REFERENCE_SEARCH_SLICE_HOURS - 0 disables time slicing
+     */
+    protected int specifySearchSliceWidthInHours(){
+        return(getConfiguredInteger(SEARCH_SLICE_WIDTH_PROPERTY, DEFAULT_SEARCH_SLICE_WIDTH_IN_HOURS));
+    }
+
+    /**
+     * @return The time (in minutes) for which the results of closed time slices are cached, configured via the system
+     * property or environment variable FHIRPLACE_MDR_DOCUMENT_REFERENCE_SEARCH_SLICE_CACHE_MINUTES - 0 (the default)
+     * disables the cache. Cached slices are invalidated by writes made via this conduit and - only if the type+date
+     * index is enabled (FHIRPLACE_MDR_DOCUMENT_REFERENCE_INDEX_WINDOW_DAYS) - by changes its change feed finds on the
+     * server. Without the index, a DocumentReference written by another node into a closed slice is not seen by this
+     * node's cached searches for up to this time.
+     */
+    protected int specifySearchSliceCacheTimeToLiveInMinutes(){
+        return(getConfiguredInteger(SEARCH_SLICE_CACHE_TTL_PROPERTY, 0));
+    }
+
+    /**
+     * @return A date-ordered iterator over the type+date search executed as parallel time slices, or null if the
+     * search is not to be sliced (slicing disabled, an open or narrow date range, or a summary search)
+     */
+    private SearchResultPageIterator newTimeSlicedTypeAndDateIterator(TokenParam documentReferenceTypeValue, DateRangeParam dateRangeParam, ConduitRequestContext context){
+        long sliceWidth = TimeUnit.HOURS.toMillis(specifySearchSliceWidthInHours());
+        Date lowerBound = dateRangeParam.getLowerBoundAsInstant();
+        Date upperBound = dateRangeParam.getUpperBoundAsInstant();
+        if(sliceWidth <= 0 || lowerBound == null || upperBound == null || context.isSearchSummary()){
+            return(null);
+        }
+        if(upperBound.getTime() - lowerBound.getTime() <= sliceWidth){
+            return(null);
+        }
+        List<TimeSlicedSearchPageIterator.DateRangeSlice> slices = TimeSlicedSearchPageIterator.sliceDateRange(lowerBound, upperBound, sliceWidth);
+        LOG.trace(".newTimeSlicedTypeAndDateIterator(): Executing search as {} slices", slices.size());
+        String cacheKey = toSearchSliceCacheKey(documentReferenceTypeValue.getSystem(), documentReferenceTypeValue.getValue());
+        return(newTimeSlicedSearchPageIterator(slices,
+                slice -> buildDocumentReferenceByTypeAndDateQuery(documentReferenceTypeValue, slice.getLowerBound(), slice.getUpperBound(), context),
+                DATE_ORDERING, searchSliceCache, cacheKey, context));
+    }
+
+    private String toSearchSliceCacheKey(String typeSystem, String typeCode){
+        return(typeSystem + "|" + typeCode);
+    }
+
+    /**
+     * The cached slices of a type are stale once a DocumentReference of that type is written via the conduit (or is
+     * reported changed by the type+date index's change feed).
+     */
+    private void invalidateSearchSlices(Resource writtenResource){
+        if(searchSliceCache == null || !(writtenResource instanceof DocumentReference)){
+            return;
+        }
+        DocumentReference writtenDocument = (DocumentReference)writtenResource;
+        if(!writtenDocument.hasType()){
+            return;
+        }
+        for(Coding currentCoding: writtenDocument.getType().getCoding()){
+            invalidateSearchSlices(currentCoding.getSystem(), currentCoding.getCode());
+        }
+    }
+
+    private void invalidateSearchSlices(String typeSystem, String typeCode){
+        if(searchSliceCache != null){
+            searchSliceCache.invalidate(toSearchSliceCacheKey(typeSystem, typeCode));
+        }
+    }
+
+    /**
+     * The index holds only the ids, so the matching DocumentReferences are read by id (batched "_id" searches) - any
+     * no longer matching the type and date (changed since the last poll) are dropped.
+     *
+     * @return The DocumentReferences matching the type+date search via the local index (in date order), or null if the
+     * index cannot answer the search (not enabled, not covering the date range, stale, or the search is projected)
+     */
+    private List<DocumentReference> findInTypeDateIndex(TokenParam documentReferenceTypeValue, DateRangeParam dateRangeParam, ConduitRequestContext context){
+        if(typeDateIndex == null || context.getProjection() != null || documentReferenceTypeValue.getSystem() == null){
+            return(null);
+        }
+        Date lowerBound = dateRangeParam.getLowerBoundAsInstant();
+        Date upperBound = dateRangeParam.getUpperBoundAsInstant();
+        if(!typeDateIndex.isCovered(lowerBound, upperBound)){
+            return(null);
+        }
+        List<String> indexedIds = typeDateIndex.findIds(documentReferenceTypeValue.getSystem(), documentReferenceTypeValue.getValue(), lowerBound, upperBound);
+        List<DocumentReference> indexedDocuments = new ArrayList<>();
+        if(indexedIds.isEmpty()){
+            return(indexedDocuments);
+        }
+        for(Resource currentResource: searchResourcesById(indexedIds)){
+            if(!(currentResource instanceof DocumentReference)){
+                continue;
+            }
+            DocumentReference currentDocument = (DocumentReference)currentResource;
+            typeDateIndex.index(currentDocument);
+            if(isOfType(currentDocument, documentReferenceTypeValue) && isDatedWithin(currentDocument, lowerBound, upperBound)){
+                indexedDocuments.add(currentDocument);
+            }
+        }
+        indexedDocuments.sort(DATE_ORDERING);
+        return(indexedDocuments);
+    }
+
+    private boolean isOfType(DocumentReference documentReference, TokenParam documentReferenceTypeValue){
+        if(!documentReference.hasType()){
+            return(false);
+        }
+        for(Coding currentCoding: documentReference.getType().getCoding()){
+            if(documentReferenceTypeValue.getSystem().equals(currentCoding.getSystem()) && documentReferenceTypeValue.getValue().equals(currentCoding.getCode())){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    /**
+     * The same bounds as the FHIRPlace type+date search: after lowerBound, and on or before upperBound (if any).
+     */
+    private boolean isDatedWithin(DocumentReference documentReference, Date lowerBound, Date upperBound){
+        if(!documentReference.hasDate() || !documentReference.getDate().after(lowerBound)){
+            return(false);
+        }
+        return(upperBound == null || !documentReference.getDate().after(upperBound));
+    }
+
     @Override
     protected PegacornInternalFHIRClientServices specifySecureAccessor() {
         return (servicesAccessor);
@@ -109,9 +352,11 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
      * @return A Response/Outcome of the operation, including a copy of the Resource.
      */
     @Override
-    public ResourceSoTConduitActionResponse createResource(Resource resourceToCreate) {
+    public ResourceSoTConduitActionResponse createResource(Resource resourceToCreate, String ifNoneExistCondition) {
         LOG.debug(".createResource(): Entry, resourceToCreate --> {}", resourceToCreate);
-        ResourceSoTConduitActionResponse outcome = standardCreateResource(resourceToCreate);
+        ResourceSoTConduitActionResponse outcome = standardCreateResource(resourceToCreate, ifNoneExistCondition);
+        indexOutcome(outcome);
+        invalidateSearchSlices(resourceToCreate);
         outcome.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
         outcome.setSoTGrade(SoTConduitGradeEnum.AUTHORITATIVE);
         LOG.debug(".createResource(): Exit, outcome --> {}", outcome);
@@ -130,9 +375,10 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
      * @return A Response/Outcome of the operation, including a copy of the Resource (if found).
      */
     @Override
-    public ResourceSoTConduitActionResponse getResourceViaIdentifier(Identifier identifier) {
+    public ResourceSoTConduitActionResponse getResourceViaIdentifier(Identifier identifier, ConduitRequestContext context) {
         LOG.debug(".reviewResource(): Entry, identifier --> {}", identifier);
-        ResourceSoTConduitActionResponse outcome = standardGetResourceViaIdentifier(ResourceType.DocumentReference.toString(), identifier);
+        ResourceSoTConduitActionResponse outcome = standardGetResourceViaIdentifier(ResourceType.DocumentReference.toString(), identifier, context);
+        indexOutcome(outcome);
         if(outcome.getStatusEnum().equals(VirtualDBActionStatusEnum.REVIEW_FINISH)) {
             outcome.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
             outcome.setSoTGrade(SoTConduitGradeEnum.AUTHORITATIVE);
@@ -153,9 +399,10 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
      * @return A Response/Outcome of the operation, including a copy of the Resource (if found).
      */
     @Override
-    public ResourceSoTConduitActionResponse reviewResource(IdType id) {
+    public ResourceSoTConduitActionResponse reviewResource(IdType id, ConduitRequestContext context) {
         LOG.debug(".readResource(): Entry, identifier --> {}", id);
-        ResourceSoTConduitActionResponse outcome = standardReviewResource(DocumentReference.class, id);
+        ResourceSoTConduitActionResponse outcome = standardReviewResource(DocumentReference.class, id, context);
+        indexOutcome(outcome);
         outcome.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
         outcome.setSoTGrade(SoTConduitGradeEnum.AUTHORITATIVE);
         LOG.debug(".readResource(): Exit, outcome --> {}", outcome);
@@ -177,6 +424,8 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
     public ResourceSoTConduitActionResponse updateResource(Resource resourceToUpdate) {
         LOG.debug(".updateResource(): Entry, resourceToUpdate --> {}", resourceToUpdate);
         ResourceSoTConduitActionResponse outcome = standardUpdateResource(resourceToUpdate);
+        indexOutcome(outcome);
+        invalidateSearchSlices(resourceToUpdate);
         outcome.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
         outcome.setSoTGrade(SoTConduitGradeEnum.AUTHORITATIVE);
         LOG.debug(".updateResource(): Exit, outcome --> {}", outcome);
@@ -189,17 +438,28 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
     }
 
     @Override
-    public List<ResourceSoTConduitSearchResponseElement> searchSourceOfTruthUsingCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet) {
+    public List<ResourceSoTConduitSearchResponseElement> searchSourceOfTruthUsingCriteria(ResourceType resourceType, SearchNameEnum searchName, Map<Property, Serializable> parameterSet, ConduitRequestContext context) {
         ArrayList<ResourceSoTConduitSearchResponseElement> resourceList = new ArrayList<ResourceSoTConduitSearchResponseElement>();
         if(searchName.equals(SearchNameEnum.DOCUMENT_REFERENCE_DATE_AND_TYPE)) {
-            resourceList.add(getDocumentReferenceByTypeAndDate(parameterSet));
+            resourceList.add(getDocumentReferenceByTypeAndDate(parameterSet, context));
+            return(resourceList);
         }
-        return(resourceList);
+        return(standardSearchUsingCriteria(ResourceType.DocumentReference, parameterSet, ResourceGradeEnum.THOROUGH, SoTConduitGradeEnum.AUTHORITATIVE, context));
     }
 
     @Override
     public boolean supportiveOfSearch(SearchNameEnum searchName) {
-        return false;
+        return(standardSupportiveOfSearch(searchName));
+    }
+
+    @Override
+    protected Set<SearchNameEnum> specifySupportedSearches() {
+        return(SUPPORTED_SEARCHES);
+    }
+
+    @Override
+    protected List<CompiledSearchParameterPlan> specifySearchParameterPlans() {
+        return(Collections.singletonList(TYPE_AND_DATE_SEARCH_PLAN));
     }
 
     @Override
@@ -221,84 +481,59 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
     // Supported Searches
     //
 
-    private boolean isDocumentReferenceSearchByTypeAndDate(Map<Property, Serializable> parameterSet){
-        if(parameterSet.size() != 2){
-            return(false);
-        }
-        boolean isRightSearch = false;
-        Set<Property> propertyList = parameterSet.keySet();
-        for(Property currentProperty: propertyList){
-            if(currentProperty.getName().contentEquals("type")){
-                isRightSearch = true;
-                break;
-            }
-        }
-        if(!isRightSearch){
-            return(false);
-        }
-        isRightSearch = false;
-        for(Property currentProperty: propertyList){
-            Serializable currentElement = parameterSet.get(currentProperty);
-            if(currentElement instanceof DateRangeParam){
-                isRightSearch = true;
-                break;
-            }
-        }
-        return(isRightSearch);
-    }
-
-    private ResourceSoTConduitSearchResponseElement getDocumentReferenceByTypeAndDate(Map<Property, Serializable> parameterSet){
-        boolean hasDocumentReferenceTypeParam = false;
-        boolean hasDocumentReferenceCreationDateParam = false;
-        TokenParam documentReferenceTypeValue = null;
-        Set<Property> propertyList = parameterSet.keySet();
-        for (Property currentProperty : propertyList) {
-            if (currentProperty.getName().contentEquals("type")) {
-                Serializable currentElement = parameterSet.get(currentProperty);
-                if(currentElement instanceof TokenParam) {
-                    documentReferenceTypeValue = (TokenParam) currentElement;
-                    hasDocumentReferenceTypeParam = true;
-                    break;
-                }
-            }
-        }
-        DateRangeParam dateRangeParam = null;
-        for (Property currentProperty : propertyList) {
-            if (currentProperty.getName().contentEquals("date")) {
-                Serializable currentElement = parameterSet.get(currentProperty);
-                if(currentElement instanceof DateRangeParam) {
-                    dateRangeParam = (DateRangeParam) currentElement;
-                    hasDocumentReferenceCreationDateParam = true;
-                    break;
-                }
-            }
-        }
-        ResourceSoTConduitSearchResponseElement searchResponse = new ResourceSoTConduitSearchResponseElement();
-        if(!(hasDocumentReferenceCreationDateParam && hasDocumentReferenceTypeParam)) {
-            //Todo this is empty, needs populating
-            return (searchResponse);
-        }
-        Bundle response = getFHIRPlaceShardClient()
+    @Override
+    protected boolean specifySearchPagePrefetch(){
+        return(true);
+    }
+
+    private IQuery<Bundle> buildDocumentReferenceByTypeAndDateQuery(TokenParam documentReferenceTypeValue, DateRangeParam dateRangeParam, ConduitRequestContext context){
+        return(buildDocumentReferenceByTypeAndDateQuery(documentReferenceTypeValue, dateRangeParam.getLowerBoundAsInstant(), dateRangeParam.getUpperBoundAsInstant(), context));
+    }
+
+    private IQuery<Bundle> buildDocumentReferenceByTypeAndDateQuery(TokenParam documentReferenceTypeValue, Date lowerBound, Date upperBound, ConduitRequestContext context){
+        IQuery<Bundle> query = getFHIRPlaceShardClient()
                 .search()
                 .forResource(DocumentReference.class)
-                .where(DocumentReference.DATE.after().millis(dateRangeParam.getLowerBoundAsInstant()))
-                .and(DocumentReference.DATE.beforeOrEquals().millis(dateRangeParam.getUpperBoundAsInstant()))
+                .where(DocumentReference.DATE.after().millis(lowerBound))
+                .and(DocumentReference.DATE.beforeOrEquals().millis(upperBound))
                 .and(DocumentReference.TYPE.exactly().systemAndCode(documentReferenceTypeValue.getSystem(), documentReferenceTypeValue.getValue()))
-                .returnBundle(Bundle.class)
-                .execute();
+                .returnBundle(Bundle.class);
+        return(applyRequestContext(query, context));
+    }
 
-        if(response == null){
-            //Todo this is empty, needs populating
-            return(searchResponse);
-        }
-        if(response.getTotal() == 0){
+    private ResourceSoTConduitSearchResponseElement getDocumentReferenceByTypeAndDate(Map<Property, Serializable> parameterSet, ConduitRequestContext context){
+        BoundSearchParameters boundParameters = bindSearchParameters(SearchNameEnum.DOCUMENT_REFERENCE_DATE_AND_TYPE, parameterSet);
+        ResourceSoTConduitSearchResponseElement searchResponse = new ResourceSoTConduitSearchResponseElement();
+        searchResponse.setConduitName(getConduitName());
+        if(boundParameters == null) {
             //Todo this is empty, needs populating
-            return(searchResponse);
+            return (searchResponse);
         }
-        for(Bundle.BundleEntryComponent entry: response.getEntry()){
-            Resource currentResource = entry.getResource();
-            if(currentResource.getResourceType() == ResourceType.DocumentReference){
-                searchResponse.addResource(currentResource);
+        TokenParam documentReferenceTypeValue = boundParameters.get(TYPE_SLOT);
+        DateRangeParam dateRangeParam = boundParameters.get(DATE_SLOT);
+        List<DocumentReference> indexedDocuments = findInTypeDateIndex(documentReferenceTypeValue, dateRangeParam, context);
+        if(indexedDocuments != null){
+            LOG.trace(".getDocumentReferenceByTypeAndDate(): Answered from the type+date index, matches --> {}", indexedDocuments.size());
+            for(DocumentReference currentDocument: indexedDocuments){
+                searchResponse.addResource(currentDocument);
+            }
+        } else {
+            SearchResultPageIterator slicedIterator = newTimeSlicedTypeAndDateIterator(documentReferenceTypeValue, dateRangeParam, context);
+            if(slicedIterator != null){
+                while(slicedIterator.hasNext()){
+                    searchResponse.addResource(slicedIterator.next());
+                }
+            } else {
+                // Follow every "next" link (the Bundle total is frequently not populated, so it cannot be relied upon)
+                IQuery<Bundle> query = buildDocumentReferenceByTypeAndDateQuery(documentReferenceTypeValue, dateRangeParam, context);
+                addAllSearchResults(query::execute, searchResponse, context);
+            }
+            if(typeDateIndex != null && context.getProjection() == null && searchResponse.getResources() != null){
+                for(Resource currentResource: searchResponse.getResources()){
+                    if(currentResource instanceof DocumentReference){
+                        typeDateIndex.index((DocumentReference)currentResource);
+                    }
+                }
             }
         }
         searchResponse.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
@@ -306,42 +541,44 @@ public class DocumentReferenceSoTResourceConduit extends FHIRPlaceSoTConduitComm
         return(searchResponse);
     }
 
-/*    private ResourceSoTConduitSearchResponseElement getDocumentReferenceByIdentifier(Map<Property, Serializable> parameterSet) {
-        boolean hasDocumentReferenceIdentifierInfo = false;
-        TokenParam documentReferenceIdentifierParam = null;
-        Set<Property> propertyList = parameterSet.keySet();
-        for (Property currentProperty : propertyList) {
-            if (currentProperty.getName().contentEquals("identifier")) {
-                Serializable currentElement = parameterSet.get(currentProperty);
-                if(currentElement instanceof TokenParam) {
-                    documentReferenceIdentifierParam = (TokenParam) currentElement;
-                    hasDocumentReferenceIdentifierInfo = true;
-                    break;
-                }
-            }
+    /**
+     * Provides the DocumentReference type+date search as a lazily paged iterator, ordered (ascending) by the
+     * DocumentReference date - for use within the controller's k-way merge of ordered search results.
+     */
+    @Override
+    public SearchResultPageIterator searchSourceOfTruthInOrder(SearchNameEnum searchName, Map<Property, Serializable> parameterSet, int pageSize) {
+        if(!searchName.equals(SearchNameEnum.DOCUMENT_REFERENCE_DATE_AND_TYPE)){
+            return(null);
         }
-        ResourceSoTConduitSearchResponseElement searchResponse = new ResourceSoTConduitSearchResponseElement();
-        if(hasDocumentReferenceIdentifierInfo) {
-            String searchURL = "DocumentReference?identifier:of_type=" + documentReferenceIdentifierParam.getSystem() + "|" + documentReferenceIdentifierParam.getValue();
-            Bundle response = getFHIRPlaceShardClient()
-                    .search()
-                    .byUrl(searchURL)
-                    .returnBundle(Bundle.class)
-                    .execute();
-            for(Bundle.BundleEntryComponent entry: response.getEntry()){
-                Resource currentResource = entry.getResource();
-                if(currentResource.getResourceType() == ResourceType.DocumentReference){
-                    searchResponse.addResource(currentResource);
-                }
+        BoundSearchParameters boundParameters = bindSearchParameters(searchName, parameterSet);
+        if(boundParameters == null) {
+            return(null);
+        }
+        TokenParam documentReferenceTypeValue = boundParameters.get(TYPE_SLOT);
+        DateRangeParam dateRangeParam = boundParameters.get(DATE_SLOT);
+        ConduitRequestContext context = ConduitRequestContext.defaultContext();
+        SearchResultPageIterator pageIterator;
+        List<DocumentReference> indexedDocuments = findInTypeDateIndex(documentReferenceTypeValue, dateRangeParam, context);
+        if(indexedDocuments != null){
+            // The index is already in date order, so it is presented as a single page
+            Bundle indexedPage = new Bundle();
+            indexedPage.setType(Bundle.BundleType.SEARCHSET);
+            for(DocumentReference currentDocument: indexedDocuments){
+                indexedPage.addEntry().setResource(currentDocument);
+            }
+            pageIterator = newSearchResultPageIterator(() -> indexedPage);
+        } else {
+            // A wide range is executed as time slices, each (date-ordered) slice being a page of the iterator
+            pageIterator = newTimeSlicedTypeAndDateIterator(documentReferenceTypeValue, dateRangeParam, context);
+            if(pageIterator == null) {
+                IQuery<Bundle> dateOrderedQuery = buildDocumentReferenceByTypeAndDateQuery(documentReferenceTypeValue, dateRangeParam, context)
+                        .sort().ascending(DocumentReference.DATE)
+                        .count(pageSize);
+                pageIterator = newSearchResultPageIterator(dateOrderedQuery::execute);
             }
-            searchResponse.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
-            searchResponse.setSoTConduitGrade(SoTConduitGradeEnum.AUTHORITATIVE);
-            return(searchResponse);
         }
-        return(searchResponse);
+        pageIterator.setResponseResourceGrade(ResourceGradeEnum.THOROUGH);
+        pageIterator.setSoTConduitGrade(SoTConduitGradeEnum.AUTHORITATIVE);
+        return(pageIterator);
     }
-
-*/
-
-
 }
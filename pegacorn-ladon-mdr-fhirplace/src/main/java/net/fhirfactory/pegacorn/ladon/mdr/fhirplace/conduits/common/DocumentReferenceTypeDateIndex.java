@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * An in-process secondary index of DocumentReference resources, keyed by type (system|code of each type Coding) and
+ * then ordered by (date, id) - so that the ids matching a DocumentReference type+date range search can be found
+ * locally. Only the keys and ids are held (never the resources, which the caller reads by id), so the memory used is
+ * bounded by the number of DocumentReferences within the window.
+ *
+ * The index is only complete (and so only used to answer a search) within its coverage:
+ * - warm-up indexes every DocumentReference dated within the window (back from now), which becomes the start of the
+ *   coverage - the coverage then slides forward with the window on each poll, the entries dated before it being
+ *   evicted (and DocumentReferences dated before it never being indexed)
+ * - the change-feed poller then follows the DocumentReference history (_history?_since=) to apply every create,
+ *   update and delete made on the server (by this or any other node)
+ * - a search is answered locally only if its lower bound is within the coverage and the last successful poll is
+ *   recent; otherwise it goes to FHIRPlace
+ * Resources created, updated or read through the conduit are also indexed immediately.
+ *
+ * A change listener (see setChangeListener()) is told the type codings of every change the poller applies - those of
+ * both the previously indexed and the new version - e.g. so that cached search results can be invalidated when another
+ * node writes.
+ */
+public class DocumentReferenceTypeDateIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentReferenceTypeDateIndex.class);
+
+    private static final long CLOCK_SKEW_MARGIN_IN_MILLISECONDS = 5000;
+    private static final int WARM_UP_PAGE_SIZE = 200;
+    private static final int STALENESS_POLL_INTERVALS = 3;
+
+    private static class IndexKey implements Comparable<IndexKey> {
+        private long dateInMilliseconds;
+        private String id;
+
+        IndexKey(long dateInMilliseconds, String id){
+            this.dateInMilliseconds = dateInMilliseconds;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(IndexKey other) {
+            int dateComparison = Long.compare(dateInMilliseconds, other.dateInMilliseconds);
+            if(dateComparison != 0){
+                return(dateComparison);
+            }
+            return(id.compareTo(other.id));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof IndexKey)){
+                return(false);
+            }
+            return(compareTo((IndexKey)other) == 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return(Objects.hash(dateInMilliseconds, id));
+        }
+    }
+
+    private static class TypeCoding {
+        private String system;
+        private String code;
+
+        TypeCoding(String system, String code){
+            this.system = system;
+            this.code = code;
+        }
+
+        String getTypeKey(){
+            return(toTypeKey(system, code));
+        }
+    }
+
+    private static class IndexedDocument {
+        private IndexKey key;
+        private List<TypeCoding> typeCodings;
+        private long versionId;
+    }
+
+    private Supplier<IGenericClient> clientSupplier;
+    private ConcurrentHashMap<String, ConcurrentSkipListSet<IndexKey>> typeIndex;
+    private ConcurrentSkipListSet<IndexKey> dateIndex;
+    private ConcurrentHashMap<String, IndexedDocument> documents;
+    private long windowInMilliseconds;
+    private long pollIntervalInMilliseconds;
+    private volatile Date coverageStart;
+    private volatile Date watermark;
+    private volatile long lastSuccessfulPoll;
+    private ScheduledExecutorService poller;
+    private volatile ScheduledFuture<?> pollerTask;
+    private volatile boolean shutdown;
+    private volatile BiConsumer<String, String> changeListener;
+
+    /**
+     * @param poller The (shared) scheduler on which the warm-up and the change-feed poller run, see ConduitTaskExecutors
+     */
+    public DocumentReferenceTypeDateIndex(Supplier<IGenericClient> clientSupplier, long windowInMilliseconds, long pollIntervalInMilliseconds,
+                                          ScheduledExecutorService poller){
+        this.clientSupplier = clientSupplier;
+        this.typeIndex = new ConcurrentHashMap<>();
+        this.dateIndex = new ConcurrentSkipListSet<>();
+        this.documents = new ConcurrentHashMap<>();
+        this.windowInMilliseconds = windowInMilliseconds;
+        this.pollIntervalInMilliseconds = pollIntervalInMilliseconds;
+        this.coverageStart = null;
+        this.watermark = null;
+        this.lastSuccessfulPoll = 0;
+        this.poller = poller;
+        this.pollerTask = null;
+        this.shutdown = false;
+    }
+
+    /**
+     * Starts the (background) warm-up, after which the change-feed poller runs every poll interval.
+     */
+    public synchronized void start(){
+        pollerTask = poller.schedule(this::warmUp, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the warm-up or change-feed poller (the scheduler itself is shared).
+     */
+    public synchronized void shutdown(){
+        shutdown = true;
+        if(pollerTask != null){
+            pollerTask.cancel(true);
+            pollerTask = null;
+        }
+    }
+
+    private synchronized void schedulePollerTask(Runnable task, long delayInMilliseconds, boolean periodic){
+        if(shutdown){
+            return;
+        }
+        if(periodic){
+            pollerTask = poller.scheduleWithFixedDelay(task, delayInMilliseconds, delayInMilliseconds, TimeUnit.MILLISECONDS);
+        } else {
+            pollerTask = poller.schedule(task, delayInMilliseconds, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param changeListener Told the type codings (system, code) of each DocumentReference changed on the server (as
+     *                       found by the change-feed poller) - those of the previously indexed version (if any) and those
+     *                       of the new version (unless deleted)
+     */
+    public void setChangeListener(BiConsumer<String, String> changeListener){
+        this.changeListener = changeListener;
+    }
+
+    //
+    // Maintenance
+    //
+
+    /**
+     * Adds (or replaces) the DocumentReference in the index. Older versions than the one already indexed are ignored,
+     * as are DocumentReferences dated before the window.
+     */
+    public void index(DocumentReference documentReference){
+        if(documentReference == null || !documentReference.hasIdElement() || !documentReference.getIdElement().hasIdPart()){
+            return;
+        }
+        String id = documentReference.getIdElement().getIdPart();
+        long versionId = getVersion(documentReference);
+        synchronized (this) {
+            IndexedDocument existing = documents.get(id);
+            if (existing != null && versionId > 0 && existing.versionId > versionId) {
+                return;
+            }
+            remove(id);
+            if (!documentReference.hasDate() || documentReference.getDate().getTime() < getWindowStart()) {
+                return;
+            }
+            IndexedDocument indexedDocument = new IndexedDocument();
+            indexedDocument.key = new IndexKey(documentReference.getDate().getTime(), id);
+            indexedDocument.typeCodings = getTypeCodings(documentReference);
+            indexedDocument.versionId = versionId;
+            documents.put(id, indexedDocument);
+            dateIndex.add(indexedDocument.key);
+            for (TypeCoding currentTypeCoding : indexedDocument.typeCodings) {
+                typeIndex.computeIfAbsent(currentTypeCoding.getTypeKey(), key -> new ConcurrentSkipListSet<>()).add(indexedDocument.key);
+            }
+        }
+    }
+
+    public synchronized void remove(String id){
+        IndexedDocument existing = documents.remove(id);
+        if(existing == null){
+            return;
+        }
+        dateIndex.remove(existing.key);
+        for(TypeCoding currentTypeCoding: existing.typeCodings){
+            String typeKey = currentTypeCoding.getTypeKey();
+            ConcurrentSkipListSet<IndexKey> typeEntries = typeIndex.get(typeKey);
+            if(typeEntries != null){
+                typeEntries.remove(existing.key);
+                if(typeEntries.isEmpty()){
+                    typeIndex.remove(typeKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Slides the coverage forward to the start of the window, evicting the entries dated before it.
+     */
+    protected synchronized void slideCoverage(){
+        long windowStart = getWindowStart();
+        List<String> evictedIds = new ArrayList<>();
+        for(IndexKey currentKey: dateIndex.headSet(new IndexKey(windowStart, ""), false)){
+            evictedIds.add(currentKey.id);
+        }
+        for(String currentId: evictedIds){
+            remove(currentId);
+        }
+        coverageStart = new Date(windowStart);
+        LOG.trace(".slideCoverage(): Evicted {} entries, coverageStart --> {}", evictedIds.size(), coverageStart);
+    }
+
+    //
+    // Queries
+    //
+
+    /**
+     * @return True if a search for documents dated after lowerBound (up to upperBound) can be answered by the index
+     */
+    public boolean isCovered(Date lowerBound, Date upperBound){
+        Date currentCoverageStart = coverageStart;
+        if(currentCoverageStart == null || lowerBound == null){
+            return(false);
+        }
+        if(System.currentTimeMillis() - lastSuccessfulPoll > STALENESS_POLL_INTERVALS * pollIntervalInMilliseconds){
+            return(false);
+        }
+        return(!lowerBound.before(currentCoverageStart));
+    }
+
+    /**
+     * Finds the DocumentReferences of the type (system and code) dated after lowerBound and on or before upperBound
+     * (the same bounds as the FHIRPlace type+date search), in date order.
+     *
+     * @return The ids of the indexed DocumentReferences (the caller reads the resources)
+     */
+    public List<String> findIds(String typeSystem, String typeCode, Date lowerBound, Date upperBound){
+        List<String> matchingIds = new ArrayList<>();
+        ConcurrentSkipListSet<IndexKey> typeEntries = typeIndex.get(toTypeKey(typeSystem, typeCode));
+        if(typeEntries == null){
+            return(matchingIds);
+        }
+        IndexKey fromKey = new IndexKey(lowerBound.getTime(), "\uffff");
+        IndexKey toKey = new IndexKey(upperBound == null ? Long.MAX_VALUE : upperBound.getTime(), "\uffff");
+        for(IndexKey currentKey: typeEntries.subSet(fromKey, false, toKey, true)){
+            matchingIds.add(currentKey.id);
+        }
+        return(matchingIds);
+    }
+
+    public int size(){
+        return(documents.size());
+    }
+
+    public Date getCoverageStart(){
+        return(coverageStart);
+    }
+
+    public Date getWatermark(){
+        return(watermark);
+    }
+
+    //
+    // Warm-up and Change-Feed
+    //
+
+    protected void warmUp(){
+        long warmUpStartTime = System.currentTimeMillis();
+        Date windowStart = new Date(getWindowStart());
+        LOG.info(".warmUp(): Entry, windowStart --> {}", windowStart);
+        try {
+            IGenericClient client = clientSupplier.get();
+            Bundle page = client
+                    .search()
+                    .forResource(DocumentReference.class)
+                    .where(DocumentReference.DATE.after().millis(windowStart))
+                    .count(WARM_UP_PAGE_SIZE)
+                    .returnBundle(Bundle.class)
+                    .execute();
+            int pageCount = 0;
+            while (page != null) {
+                pageCount += 1;
+                for (Bundle.BundleEntryComponent currentEntry : page.getEntry()) {
+                    if (currentEntry.getResource() instanceof DocumentReference) {
+                        index((DocumentReference) currentEntry.getResource());
+                    }
+                }
+                page = page.getLink(Bundle.LINK_NEXT) == null ? null : client.loadPage().next(page).execute();
+            }
+            watermark = new Date(warmUpStartTime - CLOCK_SKEW_MARGIN_IN_MILLISECONDS);
+            lastSuccessfulPoll = System.currentTimeMillis();
+            coverageStart = windowStart;
+            LOG.info(".warmUp(): Exit, indexed --> {}, pages --> {}", size(), pageCount);
+        } catch(Exception warmUpException){
+            LOG.warn(".warmUp(): Warm-up failed, will retry, error --> {}", warmUpException.getMessage());
+            schedulePollerTask(this::warmUp, pollIntervalInMilliseconds, false);
+            return;
+        }
+        schedulePollerTask(this::pollChanges, pollIntervalInMilliseconds, true);
+    }
+
+    /**
+     * Applies every change (create, update or delete) to a DocumentReference since the watermark - only the latest
+     * version of each changed resource is applied.
+     */
+    protected void pollChanges(){
+        long pollStartTime = System.currentTimeMillis();
+        try {
+            IGenericClient client = clientSupplier.get();
+            Bundle page = client
+                    .history()
+                    .onType(DocumentReference.class)
+                    .returnBundle(Bundle.class)
+                    .since(watermark)
+                    .execute();
+            Map<String, Bundle.BundleEntryComponent> latestChanges = new HashMap<>();
+            Map<String, Long> latestVersions = new HashMap<>();
+            while (page != null) {
+                for (Bundle.BundleEntryComponent currentEntry : page.getEntry()) {
+                    IdType changedId = getChangedId(currentEntry);
+                    if (changedId == null) {
+                        continue;
+                    }
+                    long changedVersion = changedId.hasVersionIdPart() && changedId.isVersionIdPartValidLong() ? changedId.getVersionIdPartAsLong() : 0;
+                    Long latestVersion = latestVersions.get(changedId.getIdPart());
+                    // History is returned newest first, so where a version is unknown the first entry seen is kept
+                    boolean newerVersion = latestVersion != null && latestVersion > 0 && changedVersion > latestVersion;
+                    if (latestVersion == null || newerVersion) {
+                        latestVersions.put(changedId.getIdPart(), changedVersion);
+                        latestChanges.put(changedId.getIdPart(), currentEntry);
+                    }
+                }
+                page = page.getLink(Bundle.LINK_NEXT) == null ? null : client.loadPage().next(page).execute();
+            }
+            for (Map.Entry<String, Bundle.BundleEntryComponent> currentChange : latestChanges.entrySet()) {
+                Bundle.BundleEntryComponent changeEntry = currentChange.getValue();
+                boolean deleted = changeEntry.hasRequest() && changeEntry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE;
+                IndexedDocument previouslyIndexed = documents.get(currentChange.getKey());
+                if (previouslyIndexed != null) {
+                    notifyChange(previouslyIndexed.typeCodings);
+                }
+                if (deleted || !(changeEntry.getResource() instanceof DocumentReference)) {
+                    remove(currentChange.getKey());
+                } else {
+                    DocumentReference changedDocument = (DocumentReference) changeEntry.getResource();
+                    index(changedDocument);
+                    notifyChange(getTypeCodings(changedDocument));
+                }
+            }
+            slideCoverage();
+            watermark = new Date(pollStartTime - CLOCK_SKEW_MARGIN_IN_MILLISECONDS);
+            lastSuccessfulPoll = System.currentTimeMillis();
+            LOG.trace(".pollChanges(): Applied {} changes, watermark --> {}", latestChanges.size(), watermark);
+        } catch(Exception pollException){
+            // The index stops answering searches once polls have failed for long enough (see isCovered())
+            LOG.warn(".pollChanges(): Poll failed, error --> {}", pollException.getMessage());
+        }
+    }
+
+    //
+    // Helper Methods
+    //
+
+    private void notifyChange(List<TypeCoding> typeCodings){
+        BiConsumer<String, String> currentListener = changeListener;
+        if(currentListener == null){
+            return;
+        }
+        try {
+            for(TypeCoding currentTypeCoding: typeCodings){
+                currentListener.accept(currentTypeCoding.system, currentTypeCoding.code);
+            }
+        } catch(RuntimeException listenerException){
+            LOG.warn(".notifyChange(): Change listener failed, error --> {}", listenerException.getMessage());
+        }
+    }
+
+    private IdType getChangedId(Bundle.BundleEntryComponent entry){
+        if(entry.getResource() != null && entry.getResource().getIdElement().hasIdPart()){
+            return(entry.getResource().getIdElement());
+        }
+        if(entry.hasRequest() && entry.getRequest().hasUrl()){
+            IdType requestId = new IdType(entry.getRequest().getUrl());
+            if(requestId.hasIdPart()){
+                return(requestId);
+            }
+        }
+        if(entry.hasFullUrl()){
+            IdType fullUrlId = new IdType(entry.getFullUrl());
+            if(fullUrlId.hasIdPart()){
+                return(fullUrlId);
+            }
+        }
+        return(null);
+    }
+
+    private long getVersion(DocumentReference documentReference){
+        IdType id = documentReference.getIdElement();
+        if(id.hasVersionIdPart() && id.isVersionIdPartValidLong()){
+            return(id.getVersionIdPartAsLong());
+        }
+        if(documentReference.hasMeta() && documentReference.getMeta().hasVersionId()){
+            try {
+                return(Long.parseLong(documentReference.getMeta().getVersionId()));
+            } catch(NumberFormatException notNumericException){
+                return(0);
+            }
+        }
+        return(0);
+    }
+
+    private long getWindowStart(){
+        return(System.currentTimeMillis() - windowInMilliseconds);
+    }
+
+    private List<TypeCoding> getTypeCodings(DocumentReference documentReference){
+        List<TypeCoding> typeCodings = new ArrayList<>();
+        if(!documentReference.hasType()){
+            return(typeCodings);
+        }
+        for(Coding currentCoding: documentReference.getType().getCoding()){
+            if(currentCoding.hasCode()){
+                typeCodings.add(new TypeCoding(currentCoding.getSystem(), currentCoding.getCode()));
+            }
+        }
+        return(typeCodings);
+    }
+
+    private static String toTypeKey(String system, String code){
+        return((system == null ? "" : system) + "|" + code);
+    }
+}
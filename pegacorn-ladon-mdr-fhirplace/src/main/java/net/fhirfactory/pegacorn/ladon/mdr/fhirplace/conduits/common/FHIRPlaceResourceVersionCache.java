@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded (least-recently-used) cache of the last-known (JSON encoded) version of each resource read from, or
+ * written to, FHIRPlace via a conduit - the baseline against which delta (PATCH) updates are computed.
+ */
+public class FHIRPlaceResourceVersionCache {
+    private LinkedHashMap<String, KnownVersion> knownVersions;
+
+    public static class KnownVersion {
+        private String versionId;
+        private String encodedResource;
+
+        public KnownVersion(String versionId, String encodedResource){
+            this.versionId = versionId;
+            this.encodedResource = encodedResource;
+        }
+
+        public String getVersionId() {
+            return versionId;
+        }
+
+        public String getEncodedResource() {
+            return encodedResource;
+        }
+    }
+
+    public FHIRPlaceResourceVersionCache(int maximumSize){
+        this.knownVersions = new LinkedHashMap<String, KnownVersion>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, KnownVersion> eldest) {
+                return(size() > maximumSize);
+            }
+        };
+    }
+
+    public synchronized void recordVersion(String resourceKey, String versionId, String encodedResource){
+        knownVersions.put(resourceKey, new KnownVersion(versionId, encodedResource));
+    }
+
+    public synchronized KnownVersion getVersion(String resourceKey){
+        return(knownVersions.get(resourceKey));
+    }
+
+    public synchronized void invalidate(String resourceKey){
+        knownVersions.remove(resourceKey);
+    }
+}
@@ -22,11 +22,20 @@
 package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common;
 
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.PreferReturnEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IClientExecutable;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.UrlUtil;
 import net.fhirfactory.pegacorn.datasets.fhir.r4.internal.systems.DeploymentInstanceDetailInterface;
 import net.fhirfactory.pegacorn.deployment.names.PegacornFHIRPlaceMDRComponentNames;
 import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.SoTResourceConduitFunctionBase;
+import net.fhirfactory.pegacorn.ladon.mdr.conduit.core.projection.ResourceProjection;
+import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common.FHIRPlaceMDRAccessorBase;
+import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common.FHIRPlaceWriteBatcher;
+import net.fhirfactory.pegacorn.ladon.mdr.fhirplace.accessor.common.FHIRPlaceWriteBehindJournal;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponse;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.ResourceSoTConduitActionResponseFactory;
 import net.fhirfactory.pegacorn.ladon.model.virtualdb.mdr.SoTResourceConduit;
@@ -37,8 +46,12 @@ import net.fhirfactory.pegacorn.platform.restfulapi.PegacornInternalFHIRClientSe
 import net.fhirfactory.pegacorn.util.FHIRContextUtility;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.HashSet;
 
 public abstract class FHIRPlaceSoTConduitCommon extends SoTResourceConduitFunctionBase {
 
@@ -48,6 +61,14 @@ public abstract class FHIRPlaceSoTConduitCommon extends SoTResourceConduitFuncti
     @Inject
     private DeploymentInstanceDetailInterface deploymentInstanceDetailInterface;
 
+    private FHIRPlaceUpdateCoalescer updateCoalescer;
+
+    private static final int DEFAULT_RESOURCE_VERSION_CACHE_SIZE = 1000;
+    private static final double DEFAULT_PATCH_SIZE_THRESHOLD = 0.5;
+
+    private FHIRPlaceResourceVersionCache resourceVersionCache = new FHIRPlaceResourceVersionCache(DEFAULT_RESOURCE_VERSION_CACHE_SIZE);
+    private JSONPatchBuilder patchBuilder = new JSONPatchBuilder(new HashSet<>(Arrays.asList("meta", "id")));
+
     public PegacornFHIRPlaceMDRComponentNames getPegacornFHIRPlaceMDRComponentNames() {
         return pegacornFHIRPlaceMDRComponentNames;
     }
@@ -66,6 +87,145 @@ public abstract class FHIRPlaceSoTConduitCommon extends SoTResourceConduitFuncti
     public String getConduitVersion(){
         return(pegacornFHIRPlaceMDRComponentNames.getPegacornFHIRPlaceMDRVersion());
     }
+
+    /**
+     * @return The accessor's write batcher, if write batching is enabled for the accessor, otherwise null
+     */
+    protected FHIRPlaceWriteBatcher getWriteBatcher(){
+        if(getFHIRServiceAccessor() instanceof FHIRPlaceMDRAccessorBase){
+            FHIRPlaceMDRAccessorBase accessor = (FHIRPlaceMDRAccessorBase)getFHIRServiceAccessor();
+            if(accessor.isWriteBatchingEnabled()){
+                return(accessor.getWriteBatcher());
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * Specifies the window within which updates to the same resource are collapsed into a single write of the latest
+     * version (see FHIRPlaceUpdateCoalescer). A window of 0 (the default) disables update coalescing.
+     */
+    protected long specifyUpdateCoalescingWindowInMilliseconds(){
+        return(0);
+    }
+
+    protected synchronized FHIRPlaceUpdateCoalescer getUpdateCoalescer(){
+        long coalescingWindow = specifyUpdateCoalescingWindowInMilliseconds();
+        if(coalescingWindow <= 0){
+            return(null);
+        }
+        if(updateCoalescer == null){
+            updateCoalescer = new FHIRPlaceUpdateCoalescer(coalescingWindow, getMaintenanceScheduler());
+        }
+        return(updateCoalescer);
+    }
+
+    /**
+     * Specifies whether updates to this conduit's resources may be acknowledged once journaled locally (and written
+     * to FHIRPlace in the background) - if the accessor has a write-behind journal configured. False by default.
+     */
+    protected boolean specifyWriteBehindUpdates(){
+        return(false);
+    }
+
+    /**
+     * @return The accessor's write-behind journal, if write-behind updates are enabled for this conduit and the
+     * accessor has a journal, otherwise null
+     */
+    protected FHIRPlaceWriteBehindJournal getWriteBehindJournal(){
+        if(!specifyWriteBehindUpdates()){
+            return(null);
+        }
+        if(getFHIRServiceAccessor() instanceof FHIRPlaceMDRAccessorBase){
+            return(((FHIRPlaceMDRAccessorBase)getFHIRServiceAccessor()).getWriteBehindJournal());
+        }
+        return(null);
+    }
+
+    /**
+     * Applies the accessor's wire encoding (see FHIRPlaceMDRAccessorBase) to an individual request - compact JSON
+     * unless the accessor specifies otherwise.
+     *
+     * @param request The (create/update) request to be sent
+     * @return The request, with the encoding (and pretty-printing, if enabled) applied
+     */
+    protected <T extends IClientExecutable<T, ?>> T applyWireEncoding(T request){
+        EncodingEnum wireEncoding = EncodingEnum.JSON;
+        boolean prettyPrint = false;
+        if(getFHIRServiceAccessor() instanceof FHIRPlaceMDRAccessorBase){
+            FHIRPlaceMDRAccessorBase accessor = (FHIRPlaceMDRAccessorBase)getFHIRServiceAccessor();
+            wireEncoding = accessor.getWireEncoding();
+            prettyPrint = accessor.isPrettyPrint();
+        }
+        T encodedRequest = request.encoded(wireEncoding);
+        if(prettyPrint){
+            encodedRequest = encodedRequest.prettyPrint();
+        }
+        return(encodedRequest);
+    }
+    /**
+     * Creates the resource only if no resource with the same "best" Identifier (see VirtualDBKeyManagement) already
+     * exists - using a conditional create (If-None-Exist), so that a create-or-get is a single (idempotent) request.
+     * If the resource already exists, the returned outcome contains the existing resource. Resources without an
+     * Identifier are created unconditionally.
+     *
+     * The conduit's own createResource() is used (so that its grading of the outcome is applied), passing it the
+     * If-None-Exist condition.
+     *
+     * @param resourceToCreate The resource to be created
+     * @return The outcome of the (conditional) create
+     */
+    @Override
+    public ResourceSoTConduitActionResponse createResourceIfAbsent(Resource resourceToCreate) {
+        getLogger().debug(".createResourceIfAbsent(): Entry, resourceToCreate --> {}", resourceToCreate);
+        ResourceSoTConduitActionResponse outcome = createResource(resourceToCreate, buildIfNoneExistCondition(resourceToCreate));
+        getLogger().debug(".createResourceIfAbsent(): Exit, outcome --> {}", outcome);
+        return (outcome);
+    }
+
+    @Override
+    public final ResourceSoTConduitActionResponse createResource(Resource resourceToCreate) {
+        return (createResource(resourceToCreate, null));
+    }
+
+    /**
+     * The create of the conduit - conduits implement this, passing the condition on to standardCreateResource().
+     *
+     * @param resourceToCreate The resource to be created
+     * @param ifNoneExistCondition The If-None-Exist condition of a conditional create, or null for an unconditional one
+     * @return The outcome of the create
+     */
+    public abstract ResourceSoTConduitActionResponse createResource(Resource resourceToCreate, String ifNoneExistCondition);
+
+    /**
+     * Builds the If-None-Exist search condition (e.g. "Patient?identifier=system|value") from the resource's "best"
+     * Identifier, escaping the token as per the FHIR search rules and then for the URL.
+     *
+     * @param resource The resource to be created
+     * @return The condition, or null if the resource has no suitable Identifier
+     */
+    protected String buildIfNoneExistCondition(Resource resource){
+        MethodOutcome resourceHolder = new MethodOutcome();
+        resourceHolder.setResource(resource);
+        Identifier bestIdentifier = getBestIdentifier(resourceHolder);
+        if(bestIdentifier == null || !bestIdentifier.hasValue()){
+            return(null);
+        }
+        StringBuilder condition = new StringBuilder();
+        condition.append(resource.fhirType());
+        condition.append("?identifier=");
+        if(bestIdentifier.hasSystem()){
+            condition.append(UrlUtil.escapeUrlParam(escapeSearchToken(bestIdentifier.getSystem())));
+            condition.append("|");
+        }
+        condition.append(UrlUtil.escapeUrlParam(escapeSearchToken(bestIdentifier.getValue())));
+        return(condition.toString());
+    }
+
+    private String escapeSearchToken(String token){
+        return(token.replace("\\", "\\\\").replace("|", "\\|").replace(",", "\\,").replace("$", "\\$"));
+    }
+
     /**
      *
      * @param resourceToCreate
@@ -73,16 +233,47 @@ public abstract class FHIRPlaceSoTConduitCommon extends SoTResourceConduitFuncti
      */
 
     public ResourceSoTConduitActionResponse standardCreateResource(Resource resourceToCreate) {
+        return (standardCreateResource(resourceToCreate, null));
+    }
+
+    /**
+     * As per standardCreateResource(Resource), but - if a condition is given - as a conditional create (see
+     * createResourceIfAbsent()).
+     *
+     * @param resourceToCreate The resource to be created
+     * @param ifNoneExistCondition The If-None-Exist condition (see buildIfNoneExistCondition()), or null
+     * @return The outcome of the create
+     */
+    public ResourceSoTConduitActionResponse standardCreateResource(Resource resourceToCreate, String ifNoneExistCondition) {
         getLogger().debug(".standardCreateResource(): Entry, resourceToCreate --> {}", resourceToCreate);
 
-        MethodOutcome callOutcome = getFHIRPlaceShardClient()
-                .create()
-                .resource(resourceToCreate)
-                .prettyPrint()
-                .encodedJson()
-                .execute();
-        if(!callOutcome.getCreated()) {
-            getLogger().error(".writeResource(): Can't create Resource {}, error --> {}", callOutcome.getOperationOutcome());
+        MethodOutcome callOutcome;
+        FHIRPlaceWriteBatcher writeBatcher = getWriteBatcher();
+        if(writeBatcher != null){
+            callOutcome = writeBatcher.create(resourceToCreate, ifNoneExistCondition);
+        } else if(ifNoneExistCondition != null){
+            callOutcome = applyWireEncoding(getFHIRPlaceShardClient()
+                    .create()
+                    .resource(resourceToCreate)
+                    .conditionalByUrl(ifNoneExistCondition)
+                    .prefer(PreferReturnEnum.REPRESENTATION))
+                    .execute();
+        } else {
+            callOutcome = applyWireEncoding(getFHIRPlaceShardClient()
+                    .create()
+                    .resource(resourceToCreate))
+                    .execute();
+        }
+        if(!Boolean.TRUE.equals(callOutcome.getCreated())) {
+            if(ifNoneExistCondition != null && callOutcome.getResource() != null){
+                getLogger().debug(".standardCreateResource(): Resource already exists (conditional create), condition --> {}", ifNoneExistCondition);
+            } else {
+                getLogger().error(".writeResource(): Can't create Resource {}, error --> {}", callOutcome.getOperationOutcome());
+            }
+        }
+        recordKnownVersion(resourceToCreate, (Resource)callOutcome.getResource());
+        if(Boolean.TRUE.equals(callOutcome.getCreated()) && callOutcome.getId() != null){
+            addToIdentifierIdIndex(resourceToCreate, callOutcome.getId().getIdPart());
         }
         Identifier bestIdentifier = getBestIdentifier(callOutcome);
         ResourceSoTConduitActionResponse outcome = new ResourceSoTConduitActionResponse( getSourceOfTruthOwningOrganization(), getSourceOfTruthEndpoint(), VirtualDBActionTypeEnum.CREATE, bestIdentifier, callOutcome);
@@ -101,14 +292,16 @@ public abstract class FHIRPlaceSoTConduitCommon extends SoTResourceConduitFuncti
 
     public ResourceSoTConduitActionResponse standardUpdateResource(Resource resourceToUpdate) {
         getLogger().debug(".standardUpdateResource(): Entry, resourceToUpdate --> {}", resourceToUpdate);
-        MethodOutcome callOutcome = getFHIRPlaceShardClient()
-                .update()
-                .resource(resourceToUpdate)
-                .prettyPrint()
-                .encodedJson()
-                .execute();
-        if(!callOutcome.getCreated()) {
-            getLogger().error(".writeResource(): Can't update Resource {}, error --> {}", callOutcome.getOperationOutcome());
+        MethodOutcome callOutcome;
+        FHIRPlaceUpdateCoalescer updateCoalescer = getUpdateCoalescer();
+        if(updateCoalescer != null && resourceToUpdate.hasIdElement()){
+            callOutcome = updateCoalescer.update(resourceToUpdate, this::writeAndIndexUpdate);
+        } else {
+            callOutcome = writeAndIndexUpdate(resourceToUpdate);
+        }
+        if(Boolean.TRUE.equals(callOutcome.getCreated())) {
+            // An update of a resource the server did not yet have (failures are raised as exceptions by the client)
+            getLogger().debug(".standardUpdateResource(): Update created Resource, id --> {}", callOutcome.getId());
         }
         Identifier bestIdentifier = getBestIdentifier(callOutcome);
         ResourceSoTConduitActionResponse outcome = new ResourceSoTConduitActionResponse(getSourceOfTruthOwningOrganization(), getSourceOfTruthEndpoint(), VirtualDBActionTypeEnum.UPDATE, bestIdentifier, callOutcome);
@@ -116,6 +309,167 @@ public abstract class FHIRPlaceSoTConduitCommon extends SoTResourceConduitFuncti
         return(outcome);
     }
 
+    /**
+     * Writes the update and indexes the Identifiers of the version written - when updates are coalesced, only the
+     * latest version is written (and indexed), not the versions it superseded.
+     */
+    private MethodOutcome writeAndIndexUpdate(Resource resourceToUpdate){
+        MethodOutcome callOutcome = writeUpdate(resourceToUpdate);
+        if(resourceToUpdate.hasIdElement()){
+            addToIdentifierIdIndex(resourceToUpdate, resourceToUpdate.getIdElement().getIdPart());
+        }
+        return(callOutcome);
+    }
+
+    private MethodOutcome writeUpdate(Resource resourceToUpdate){
+        MethodOutcome callOutcome;
+        FHIRPlaceWriteBatcher writeBatcher = getWriteBatcher();
+        FHIRPlaceWriteBehindJournal writeBehindJournal = getWriteBehindJournal();
+        if(writeBehindJournal != null && resourceToUpdate.hasIdElement()){
+            getLogger().trace(".writeUpdate(): Journaling update for write-behind");
+            callOutcome = writeBehindJournal.appendUpdate(resourceToUpdate);
+            // The server-side version is not known until the journal is committed
+            resourceVersionCache.invalidate(buildResourceKey(resourceToUpdate));
+            return(callOutcome);
+        } else if(writeBatcher != null){
+            callOutcome = writeBatcher.update(resourceToUpdate);
+        } else {
+            callOutcome = attemptPatchUpdate(resourceToUpdate);
+            if(callOutcome == null) {
+                callOutcome = applyWireEncoding(getFHIRPlaceShardClient()
+                        .update()
+                        .resource(resourceToUpdate))
+                        .execute();
+            }
+        }
+        recordKnownVersion(resourceToUpdate, (Resource)callOutcome.getResource());
+        return(callOutcome);
+    }
+
+    //
+    // Delta (PATCH) Updates
+    //
+
+    /**
+     * Specifies the maximum size of a JSON Patch (as a fraction of the size of the full resource) for which a delta
+     * (PATCH) update is sent instead of a full update (PUT). A value of 0 disables delta updates.
+     */
+    protected double specifyPatchSizeThreshold(){
+        return(DEFAULT_PATCH_SIZE_THRESHOLD);
+    }
+
+    /**
+     * Attempts to update the resource using a JSON Patch computed against the last-known version of the resource. The
+     * patch begins with a "test" of the last-known versionId, so if the resource has been changed since, the server
+     * rejects the patch.
+     *
+     * @param resourceToUpdate The (new version of the) resource
+     * @return The outcome of the PATCH, or null if there is no last-known version, the patch is larger than the
+     * threshold, or the server rejects the patch - in which case the caller should fall back to a full update.
+     * @throws BaseServerResponseException if the PATCH fails for any other reason (see isPatchRejection())
+     */
+    protected MethodOutcome attemptPatchUpdate(Resource resourceToUpdate){
+        double patchSizeThreshold = specifyPatchSizeThreshold();
+        if(patchSizeThreshold <= 0 || !resourceToUpdate.hasIdElement()){
+            return(null);
+        }
+        String resourceKey = buildResourceKey(resourceToUpdate);
+        FHIRPlaceResourceVersionCache.KnownVersion knownVersion = resourceVersionCache.getVersion(resourceKey);
+        if(knownVersion == null){
+            return(null);
+        }
+        String encodedResource = getCompactJsonParser().encodeResourceToString(resourceToUpdate);
+        JSONArray patchOperations = patchBuilder.buildPatch(new JSONObject(knownVersion.getEncodedResource()), new JSONObject(encodedResource));
+        JSONArray patchDocument = new JSONArray();
+        patchDocument.put(JSONPatchBuilder.buildTestOperation("/meta/versionId", knownVersion.getVersionId()));
+        for(int index = 0; index < patchOperations.length(); index += 1){
+            patchDocument.put(patchOperations.get(index));
+        }
+        String patchBody = patchDocument.toString();
+        if(patchBody.length() > patchSizeThreshold * encodedResource.length()){
+            getLogger().trace(".attemptPatchUpdate(): Patch is too large ({} vs {} characters), using full update", patchBody.length(), encodedResource.length());
+            return(null);
+        }
+        try {
+            MethodOutcome callOutcome = applyWireEncoding(getFHIRPlaceShardClient()
+                    .patch()
+                    .withBody(patchBody)
+                    .withId(resourceToUpdate.getIdElement().toUnqualifiedVersionless())
+                    .prefer(PreferReturnEnum.REPRESENTATION))
+                    .execute();
+            getLogger().trace(".attemptPatchUpdate(): Patched resource --> {}, operations --> {}", resourceKey, patchOperations.length());
+            return(callOutcome);
+        } catch(BaseServerResponseException patchException){
+            resourceVersionCache.invalidate(resourceKey);
+            if(!isPatchRejection(patchException.getStatusCode())){
+                // Not a problem with the patch itself (e.g. authorisation or server failure), so a full update would fail too
+                throw(patchException);
+            }
+            getLogger().debug(".attemptPatchUpdate(): Patch rejected (version conflict?), using full update, status --> {}", patchException.getStatusCode());
+            return(null);
+        }
+    }
+
+    /**
+     * @param statusCode The status code of a failed PATCH
+     * @return True if the server rejected the patch itself - a failed "test" (409/412) or a patch it could not apply
+     * (400/422) - so that a full update may still succeed
+     */
+    protected boolean isPatchRejection(int statusCode){
+        return(statusCode == 409 || statusCode == 412 || statusCode == 400 || statusCode == 422);
+    }
+
+    /**
+     * Records the last-known version of a resource (the baseline for subsequent delta updates). If the server's
+     * version of the resource is not known, any previously recorded version is discarded. Partial (SUBSETTED) resources
+     * are ignored.
+     *
+     * @param requestedResource The resource as it was requested (read or written)
+     * @param serverResource The resource as returned by the server (may be null)
+     */
+    protected void recordKnownVersion(Resource requestedResource, Resource serverResource){
+        if(ResourceProjection.isSubsetted(serverResource)){
+            // A partial (projected) resource is never a valid baseline - but it does not invalidate one either
+            return;
+        }
+        if(serverResource == null || !serverResource.hasIdElement() || !serverResource.getMeta().hasVersionId()){
+            if(requestedResource != null && requestedResource.hasIdElement()){
+                resourceVersionCache.invalidate(buildResourceKey(requestedResource));
+            }
+            return;
+        }
+        String encodedResource = getCompactJsonParser().encodeResourceToString(serverResource);
+        resourceVersionCache.recordVersion(buildResourceKey(serverResource), serverResource.getMeta().getVersionId(), encodedResource);
+    }
+
+    @Override
+    public ResourceSoTConduitActionResponse standardGetResource(String resourceName, IdType id){
+        ResourceSoTConduitActionResponse outcome = super.standardGetResource(resourceName, id);
+        if(outcome != null && outcome.getResource() instanceof Resource){
+            recordKnownVersion(null, (Resource)outcome.getResource());
+        }
+        return(outcome);
+    }
+
+    @Override
+    public ResourceSoTConduitActionResponse standardGetResourceViaIdentifier(String resourceName, Identifier identifier){
+        ResourceSoTConduitActionResponse outcome = super.standardGetResourceViaIdentifier(resourceName, identifier);
+        if(outcome != null && outcome.getResource() instanceof Resource){
+            recordKnownVersion(null, (Resource)outcome.getResource());
+        }
+        return(outcome);
+    }
+
+    private String buildResourceKey(Resource resource){
+        return(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+    }
+
+    private IParser getCompactJsonParser(){
+        IParser parser = getFHIRPlaceShardClient().getFhirContext().newJsonParser();
+        parser.setPrettyPrint(false);
+        return(parser);
+    }
+
     /**
      *
      * @param resourceToDelete
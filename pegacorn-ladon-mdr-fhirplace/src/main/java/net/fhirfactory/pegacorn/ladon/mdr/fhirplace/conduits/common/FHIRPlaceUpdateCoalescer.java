@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Collapses updates to the same resource (logical id) that arrive within a (configurable) window into a single write
+ * of the latest version - last writer wins:
+ * - an update of a resource with no write within the window is written straight away, on the caller's thread
+ * - updates arriving while that write is in flight, or before the window (from the start of that write) has elapsed,
+ *   are collapsed into a single pending update, which is written (on the scheduler) once the window has elapsed and
+ *   the previous write has finished. Every caller collapsed into it is completed with the outcome of that write.
+ *
+ * Writes of the same resource are never performed concurrently, so the order in which the versions reach FHIRPlace
+ * is preserved.
+ */
+public class FHIRPlaceUpdateCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(FHIRPlaceUpdateCoalescer.class);
+
+    private long coalescingWindowInMilliseconds;
+    private ScheduledExecutorService scheduler;
+    private HashMap<String, ResourceWriteState> writeStates;
+
+    private static class PendingUpdate {
+        private Resource latestResource;
+        private int coalescedCount;
+        private CompletableFuture<MethodOutcome> outcome;
+
+        PendingUpdate(){
+            this.coalescedCount = 0;
+            this.outcome = new CompletableFuture<>();
+        }
+    }
+
+    private static class ResourceWriteState {
+        private CompletableFuture<MethodOutcome> lastWrite;
+        private long windowEnd;
+        private PendingUpdate pendingUpdate;
+    }
+
+    public FHIRPlaceUpdateCoalescer(long coalescingWindowInMilliseconds, ScheduledExecutorService scheduler){
+        this.coalescingWindowInMilliseconds = coalescingWindowInMilliseconds;
+        this.scheduler = scheduler;
+        this.writeStates = new HashMap<>();
+    }
+
+    /**
+     * Submits an update, blocking until the (possibly collapsed) write containing it has been performed.
+     *
+     * @param resourceToUpdate The resource to be updated (it must have an id)
+     * @param writer The function that actually writes a resource - it is applied only to the versions written
+     * @return The outcome of the write that was performed (which will contain the latest version of the resource)
+     */
+    public MethodOutcome update(Resource resourceToUpdate, Function<Resource, MethodOutcome> writer){
+        String resourceKey = resourceToUpdate.fhirType() + "/" + resourceToUpdate.getIdElement().getIdPart();
+        LOG.debug(".update(): Entry, resource --> {}", resourceKey);
+        ResourceWriteState writeState;
+        PendingUpdate pendingUpdate;
+        synchronized(this){
+            long now = System.currentTimeMillis();
+            writeState = writeStates.get(resourceKey);
+            if(writeState == null){
+                writeState = new ResourceWriteState();
+                writeState.lastWrite = new CompletableFuture<>();
+                writeState.windowEnd = now + coalescingWindowInMilliseconds;
+                writeStates.put(resourceKey, writeState);
+                pendingUpdate = null;
+            } else {
+                pendingUpdate = writeState.pendingUpdate;
+                if(pendingUpdate == null){
+                    pendingUpdate = new PendingUpdate();
+                    writeState.pendingUpdate = pendingUpdate;
+                    ResourceWriteState flushedState = writeState;
+                    scheduler.schedule(() -> flush(resourceKey, flushedState, writer), Math.max(0, writeState.windowEnd - now), TimeUnit.MILLISECONDS);
+                }
+                pendingUpdate.latestResource = resourceToUpdate;
+                pendingUpdate.coalescedCount += 1;
+            }
+        }
+        if(pendingUpdate != null){
+            LOG.debug(".update(): Exit, collapsed into pending update, awaiting its outcome");
+            return(awaitOutcome(pendingUpdate.outcome));
+        }
+        LOG.trace(".update(): Writing resource --> {}", resourceKey);
+        MethodOutcome outcome = write(resourceKey, writeState, writeState.lastWrite, resourceToUpdate, writer);
+        LOG.debug(".update(): Exit, written");
+        return(outcome);
+    }
+
+    /**
+     * Writes the pending update of the resource, once the previous write of the resource has finished (without
+     * holding a scheduler thread while it waits).
+     */
+    private void flush(String resourceKey, ResourceWriteState writeState, Function<Resource, MethodOutcome> writer){
+        PendingUpdate pendingUpdate;
+        CompletableFuture<MethodOutcome> previousWrite;
+        synchronized(this){
+            pendingUpdate = writeState.pendingUpdate;
+            writeState.pendingUpdate = null;
+            previousWrite = writeState.lastWrite;
+            writeState.lastWrite = pendingUpdate.outcome;
+            writeState.windowEnd = System.currentTimeMillis() + coalescingWindowInMilliseconds;
+        }
+        // The previous write's failure has been reported to its own callers
+        previousWrite.whenCompleteAsync((previousOutcome, previousFailure) -> {
+            LOG.trace(".flush(): Writing resource --> {}, collapsed updates --> {}", resourceKey, pendingUpdate.coalescedCount);
+            try {
+                write(resourceKey, writeState, pendingUpdate.outcome, pendingUpdate.latestResource, writer);
+            } catch(RuntimeException writeException){
+                // Reported to the callers collapsed into the pending update
+            }
+        }, scheduler);
+    }
+
+    private MethodOutcome write(String resourceKey, ResourceWriteState writeState, CompletableFuture<MethodOutcome> writeOutcome,
+                                Resource resourceToWrite, Function<Resource, MethodOutcome> writer){
+        try {
+            MethodOutcome outcome = writer.apply(resourceToWrite);
+            writeOutcome.complete(outcome);
+            return(outcome);
+        } catch(RuntimeException writeException){
+            writeOutcome.completeExceptionally(writeException);
+            throw(writeException);
+        } finally {
+            synchronized(this){
+                long remainingWindow = writeState.windowEnd - System.currentTimeMillis();
+                if(remainingWindow > 0){
+                    scheduler.schedule(() -> release(resourceKey, writeState), remainingWindow, TimeUnit.MILLISECONDS);
+                } else {
+                    release(resourceKey, writeState);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the resource once its last write has finished, its window has elapsed and no update is pending - so
+     * that the next update of it is written straight away.
+     */
+    private synchronized void release(String resourceKey, ResourceWriteState writeState){
+        if(writeState.pendingUpdate == null && writeState.lastWrite.isDone()){
+            writeStates.remove(resourceKey, writeState);
+        }
+    }
+
+    private MethodOutcome awaitOutcome(CompletableFuture<MethodOutcome> outcome){
+        try {
+            return(outcome.join());
+        } catch(CompletionException completionException){
+            if(completionException.getCause() instanceof RuntimeException){
+                throw((RuntimeException)completionException.getCause());
+            }
+            throw(completionException);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.ladon.mdr.fhirplace.conduits.common;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Set;
+
+/**
+ * Builds a JSON Patch (RFC 6902) document describing the differences between two (JSON encoded) versions of a
+ * resource. Objects are compared member-by-member, arrays element-by-element where their lengths match (or where the
+ * new array only appends to the old one), otherwise the differing value is replaced as a whole.
+ */
+public class JSONPatchBuilder {
+
+    private Set<String> ignoredTopLevelMembers;
+
+    /**
+     * @param ignoredTopLevelMembers Top-level members that are not compared (e.g. "meta", which is maintained by the server)
+     */
+    public JSONPatchBuilder(Set<String> ignoredTopLevelMembers){
+        this.ignoredTopLevelMembers = ignoredTopLevelMembers;
+    }
+
+    /**
+     * @param previousVersion The previous (last-known) version of the resource
+     * @param currentVersion The new version of the resource
+     * @return The patch operations that transform previousVersion into currentVersion (empty if they are the same)
+     */
+    public JSONArray buildPatch(JSONObject previousVersion, JSONObject currentVersion){
+        JSONArray patchOperations = new JSONArray();
+        diffObject("", previousVersion, currentVersion, patchOperations, true);
+        return(patchOperations);
+    }
+
+    public static JSONObject buildTestOperation(String path, Object value){
+        JSONObject testOperation = new JSONObject();
+        testOperation.put("op", "test");
+        testOperation.put("path", path);
+        testOperation.put("value", value);
+        return(testOperation);
+    }
+
+    //
+    // Helper Methods
+    //
+
+    private void diffObject(String path, JSONObject previousObject, JSONObject currentObject, JSONArray patchOperations, boolean isTopLevel){
+        for(String previousKey: previousObject.keySet()){
+            if(isTopLevel && ignoredTopLevelMembers.contains(previousKey)){
+                continue;
+            }
+            if(!currentObject.has(previousKey)){
+                patchOperations.put(buildOperation("remove", path + "/" + escapePathSegment(previousKey), null));
+            }
+        }
+        for(String currentKey: currentObject.keySet()){
+            if(isTopLevel && ignoredTopLevelMembers.contains(currentKey)){
+                continue;
+            }
+            String memberPath = path + "/" + escapePathSegment(currentKey);
+            Object currentValue = currentObject.get(currentKey);
+            if(!previousObject.has(currentKey)){
+                patchOperations.put(buildOperation("add", memberPath, currentValue));
+            } else {
+                diffValue(memberPath, previousObject.get(currentKey), currentValue, patchOperations);
+            }
+        }
+    }
+
+    private void diffArray(String path, JSONArray previousArray, JSONArray currentArray, JSONArray patchOperations){
+        if(previousArray.length() == currentArray.length()){
+            for(int index = 0; index < currentArray.length(); index += 1){
+                diffValue(path + "/" + index, previousArray.get(index), currentArray.get(index), patchOperations);
+            }
+            return;
+        }
+        if(currentArray.length() > previousArray.length() && isPrefixOf(previousArray, currentArray)){
+            for(int index = previousArray.length(); index < currentArray.length(); index += 1){
+                patchOperations.put(buildOperation("add", path + "/-", currentArray.get(index)));
+            }
+            return;
+        }
+        patchOperations.put(buildOperation("replace", path, currentArray));
+    }
+
+    private void diffValue(String path, Object previousValue, Object currentValue, JSONArray patchOperations){
+        if(previousValue instanceof JSONObject && currentValue instanceof JSONObject){
+            diffObject(path, (JSONObject)previousValue, (JSONObject)currentValue, patchOperations, false);
+            return;
+        }
+        if(previousValue instanceof JSONArray && currentValue instanceof JSONArray){
+            diffArray(path, (JSONArray)previousValue, (JSONArray)currentValue, patchOperations);
+            return;
+        }
+        if(!valuesAreEqual(previousValue, currentValue)){
+            patchOperations.put(buildOperation("replace", path, currentValue));
+        }
+    }
+
+    private boolean isPrefixOf(JSONArray shorterArray, JSONArray longerArray){
+        for(int index = 0; index < shorterArray.length(); index += 1){
+            if(!valuesAreEqual(shorterArray.get(index), longerArray.get(index))){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    private boolean valuesAreEqual(Object firstValue, Object secondValue){
+        if(firstValue instanceof JSONObject && secondValue instanceof JSONObject){
+            return(((JSONObject)firstValue).similar(secondValue));
+        }
+        if(firstValue instanceof JSONArray && secondValue instanceof JSONArray){
+            return(((JSONArray)firstValue).similar(secondValue));
+        }
+        if(firstValue instanceof Number && secondValue instanceof Number){
+            return(firstValue.toString().equals(secondValue.toString()));
+        }
+        return(firstValue.equals(secondValue));
+    }
+
+    private JSONObject buildOperation(String operation, String path, Object value){
+        JSONObject patchOperation = new JSONObject();
+        patchOperation.put("op", operation);
+        patchOperation.put("path", path);
+        if(value != null){
+            patchOperation.put("value", value);
+        }
+        return(patchOperation);
+    }
+
+    private String escapePathSegment(String segment){
+        return(segment.replace("~", "~0").replace("/", "~1"));
+    }
+}